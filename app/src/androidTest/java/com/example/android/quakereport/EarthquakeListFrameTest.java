@@ -0,0 +1,150 @@
+package com.example.android.quakereport;
+
+import android.app.Activity;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.SdkSuppress;
+import android.support.test.rule.ActivityTestRule;
+import android.support.test.runner.AndroidJUnit4;
+import android.support.v7.widget.RecyclerView;
+import android.view.Choreographer;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Measurement of the frame times of the list of earthquakes on a device: 5k rows are scrolled
+ * through one step per frame, and halfway a revision of the earthquakes is submitted, so the
+ * diff and the rows it binds again fall into the measured frames. A frame is janky if it
+ * took longer than one and a half refresh periods of the display.
+ *
+ * Run with "gradlew connectedAndroidTest". The frame times are in the assertion message.
+ */
+@RunWith(AndroidJUnit4.class)
+@SdkSuppress(minSdkVersion = 16) // Choreographer
+public class EarthquakeListFrameTest {
+
+    private static final int ROW_COUNT = 5000;
+
+    // frames that are measured, and the pixels scrolled per frame
+    private static final int FRAME_COUNT = 600;
+    private static final int SCROLL_STEP = 24;
+
+    // most janky frames, in percent of the measured ones
+    private static final int MAX_JANK_PERCENT = 5;
+
+    @Rule
+    public final ActivityTestRule<EarthquakeActivity> mActivityRule =
+            new ActivityTestRule<>(EarthquakeActivity.class);
+
+    @Test
+    public void scrollingAndUpdatingFiveThousandRowsDropsFewFrames() throws Throwable {
+        final Activity activity = mActivityRule.getActivity();
+        int[] colors = EarthquakeAdapter.getMagnitudeColors(activity);
+        String nearThe = activity.getString(R.string.near_the);
+        // formatted ahead of time, as the loader delivers them
+        final EarthquakeStore earthquakes = createEarthquakes(0);
+        EarthquakeFormatter.formatAll(colors, nearThe, earthquakes);
+        final EarthquakeStore revised = createEarthquakes(100);
+        EarthquakeFormatter.formatAll(colors, nearThe, revised);
+
+        final RecyclerView list = activity.findViewById(R.id.list);
+        final EarthquakeAdapter adapter = new EarthquakeAdapter(activity);
+        mActivityRule.runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                list.setAdapter(adapter);
+                adapter.setEarthquakes(earthquakes);
+            }
+        });
+        InstrumentationRegistry.getInstrumentation().waitForIdleSync();
+
+        long refreshNanos = (long) (1e9 / activity.getWindowManager().getDefaultDisplay()
+                .getRefreshRate());
+        final FrameRecorder recorder = new FrameRecorder(list, adapter, revised,
+                refreshNanos * 3 / 2);
+        mActivityRule.runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                Choreographer.getInstance().postFrameCallback(recorder);
+            }
+        });
+        assertTrue(recorder.done.await(60, TimeUnit.SECONDS));
+
+        assertTrue(recorder.describe(), recorder.jankyFrames * 100
+                <= MAX_JANK_PERCENT * FRAME_COUNT);
+    }
+
+    /**
+     * Return earthquakes a minute apart, the given number of them new since the first ones.
+     * Every third of the earthquakes that are not new is revised.
+     */
+    private static EarthquakeStore createEarthquakes(int newCount) {
+        long now = 1539820800000L;
+        EarthquakeStore earthquakes = new EarthquakeStore(ROW_COUNT + newCount);
+        for (int i = -newCount; i < ROW_COUNT; i++) {
+            boolean revised = newCount > 0 && i % 3 == 0;
+            earthquakes.add("us" + i, (revised ? 3.5 : 2.5) + Math.abs(i % 60) / 10.0,
+                    (1 + Math.abs(i % 300)) + "km NNE of Adak, Alaska", now - i * 60000L,
+                    null, now + (revised ? 1 : 0), 51.9, -176.6, false);
+        }
+        return earthquakes;
+    }
+
+    /**
+     * Scrolls the list one step per frame and records how long every frame took.
+     */
+    private static final class FrameRecorder implements Choreographer.FrameCallback {
+        final CountDownLatch done = new CountDownLatch(1);
+
+        private final RecyclerView mList;
+        private final EarthquakeAdapter mAdapter;
+        private final EarthquakeStore mRevised;
+        private final long mJankNanos;
+
+        private long mLastFrameNanos;
+        private int mFrames;
+        private long mTotalNanos;
+        private long mMaxNanos;
+        int jankyFrames;
+
+        FrameRecorder(RecyclerView list, EarthquakeAdapter adapter, EarthquakeStore revised,
+                      long jankNanos) {
+            mList = list;
+            mAdapter = adapter;
+            mRevised = revised;
+            mJankNanos = jankNanos;
+        }
+
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            if (mLastFrameNanos != 0) {
+                long frameNanos = frameTimeNanos - mLastFrameNanos;
+                mFrames++;
+                mTotalNanos += frameNanos;
+                mMaxNanos = Math.max(mMaxNanos, frameNanos);
+                if (frameNanos > mJankNanos) jankyFrames++;
+            }
+            mLastFrameNanos = frameTimeNanos;
+            if (mFrames == FRAME_COUNT) {
+                done.countDown();
+                return;
+            }
+
+            if (mFrames == FRAME_COUNT / 2) mAdapter.setEarthquakes(mRevised);
+            mList.scrollBy(0, SCROLL_STEP);
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+
+        String describe() {
+            return jankyFrames + " of " + mFrames + " frames janky, mean "
+                    + mTotalNanos / Math.max(mFrames, 1) / 1000 + " us, max "
+                    + mMaxNanos / 1000 + " us";
+        }
+    }
+}
@@ -15,6 +15,7 @@
  */
 package com.example.android.quakereport;
 
+import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.net.ConnectivityManager;
@@ -27,21 +28,21 @@ import android.support.annotation.Nullable;
 import android.support.v4.app.LoaderManager.LoaderCallbacks;
 import android.support.v4.content.Loader;
 import android.support.v7.app.AppCompatActivity;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
 import android.view.Menu;
 import android.view.MenuItem;
-import android.view.View;
-import android.widget.AdapterView;
-import android.widget.ListView;
 import android.widget.ProgressBar;
 import android.widget.TextView;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 
 import static android.view.View.GONE;
+import static android.view.View.VISIBLE;
 
 public class EarthquakeActivity extends AppCompatActivity
-        implements LoaderCallbacks<List<Earthquake>> {
+        implements LoaderCallbacks<EarthquakeStore> {
 
     @SuppressWarnings("unused")
     public static final String LOG_TAG = EarthquakeActivity.class.getName();
@@ -49,9 +50,15 @@ public class EarthquakeActivity extends AppCompatActivity
     // url to request earthquake data from USGS site
     public static final String REQUEST_URL = "https://earthquake.usgs.gov/fdsnws/event/1/query";
 
+    // length of a day, periods start at the beginning of a day in UTC
+    private static final long DAY = 24 * 60 * 60 * 1000; /* milliseconds */
+
     // unique loader id
     private static final int LOADER_ID = 0;
 
+    // how many rows before the end of the list the next page starts loading
+    private static final int PREFETCH_DISTANCE = 10;
+
     // references to avoid several calls to findViewById
     private EarthquakeAdapter mEarthquakeAdapter;
     private TextView mEmptyListTextView;
@@ -62,48 +69,62 @@ public class EarthquakeActivity extends AppCompatActivity
         super.onCreate(savedInstanceState);
         setContentView(R.layout.earthquake_activity);
 
-        ListView earthquakeListView = findViewById(R.id.list);
-        mEarthquakeAdapter = new EarthquakeAdapter(this, new ArrayList<Earthquake>());
+        RecyclerView earthquakeListView = findViewById(R.id.list);
+        final LinearLayoutManager layoutManager = new LinearLayoutManager(this);
+        earthquakeListView.setLayoutManager(layoutManager);
+        mEarthquakeAdapter = new EarthquakeAdapter(this);
         earthquakeListView.setAdapter(mEarthquakeAdapter);
 
         mEmptyListTextView = findViewById(R.id.empty_list);
-        earthquakeListView.setEmptyView(mEmptyListTextView);
 
         mProgressBar = findViewById(R.id.loading_spinner);
 
-        // Check internet connection
+        // query data, earthquakes cached on disk are shown even without a network connection
+        // getSupportLoaderManager is deprecated as of API 28, but it is part of the tutorial
+        // noinspection deprecation
+        getSupportLoaderManager().initLoader(LOADER_ID, null, this);
+
+        // keep the earthquakes fresh in the background while the app is not on screen
+        EarthquakePollService.start(this);
+
+        // set clickListener on list item to start intent to open web page with particular url
+        mEarthquakeAdapter.setOnItemClickListener(new EarthquakeAdapter.OnItemClickListener() {
+            @Override
+            public void onItemClick(Earthquake earthquake) {
+                Uri uri = Uri.parse(earthquake.getUrl());
+                Intent intent = new Intent(Intent.ACTION_VIEW, uri);
+                startActivity(intent);
+            }
+        });
+
+        // prefetch the next page when the list is scrolled close to its end
+        earthquakeListView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(@NonNull RecyclerView recyclerView, int dx, int dy) {
+                int totalItemCount = layoutManager.getItemCount();
+                if (totalItemCount == 0) return;
+                if (layoutManager.findLastVisibleItemPosition() >= totalItemCount - PREFETCH_DISTANCE) {
+                    // noinspection deprecation
+                    Loader<EarthquakeStore> loader = getSupportLoaderManager().getLoader(LOADER_ID);
+                    if (loader != null) ((EarthquakeLoader) loader).loadNextPage();
+                }
+            }
+        });
+    }
+
+    /**
+     * Check internet connection
+     */
+    private boolean isConnected() {
         ConnectivityManager cm = (ConnectivityManager) this.getSystemService(CONNECTIVITY_SERVICE);
         NetworkInfo activeNetwork = cm.getActiveNetworkInfo();
-        boolean isConnected = activeNetwork != null && activeNetwork.isConnectedOrConnecting();
-
-        // if there is a network connection - query data
-        if (isConnected) {
-            // getSupportLoaderManager is deprecated as of API 28, but it is part of the tutorial
-            // noinspection deprecation
-            getSupportLoaderManager().initLoader(LOADER_ID, null, this);
-
-            // set clickListener on ListView Item to start intent to open web page with particular url
-            earthquakeListView.setOnItemClickListener(new AdapterView.OnItemClickListener() {
-                @Override
-                public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
-                    Earthquake earthquake = mEarthquakeAdapter.getItem(position);
-                    Uri uri = Uri.parse(earthquake.getUrl());
-                    Intent intent = new Intent(Intent.ACTION_VIEW, uri);
-                    startActivity(intent);
-                }
-            });
-        } else {
-            // if there is no connection show a message
-            // set text for empty list
-            mEmptyListTextView.setText(R.string.no_internet);
-            // hide loading bar
-            mProgressBar.setVisibility(GONE);
-        }
+        return activeNetwork != null && activeNetwork.isConnectedOrConnecting();
     }
 
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         getMenuInflater().inflate(R.menu.main, menu);
+        menu.findItem(R.id.action_metrics).setVisible(BuildConfig.DEBUG);
         return true;
     }
 
@@ -115,30 +136,58 @@ public class EarthquakeActivity extends AppCompatActivity
             startActivity(settingsIntent);
             return true;
         }
+        if (id == R.id.action_metrics) {
+            startActivity(new Intent(this, MetricsActivity.class));
+            return true;
+        }
         return super.onOptionsItemSelected(item);
     }
 
+    /**
+     * Print the metrics of the app and the earthquakes per day of the loaded query, for
+     * {@code adb shell dumpsys activity com.example.android.quakereport/.EarthquakeActivity}.
+     */
+    @Override
+    public void dump(String prefix, FileDescriptor fd, PrintWriter writer, String[] args) {
+        super.dump(prefix, fd, writer, args);
+        writer.print(Metrics.dump());
+        // noinspection deprecation
+        Loader<EarthquakeStore> loader = getSupportLoaderManager().getLoader(LOADER_ID);
+        if (loader != null) writer.print(((EarthquakeLoader) loader).getAggregates().dump());
+    }
+
     /**
      * Update the UI.
      */
-    private void updateUI(List<Earthquake> earthquakes) {
+    private void updateUI(EarthquakeStore earthquakes) {
+        // a new page extends the earthquakes that are already shown, only the rows
+        // that changed are updated and the list keeps its scroll position
         if (earthquakes != null && !earthquakes.isEmpty()) {
-            mEarthquakeAdapter.clear();
-            mEarthquakeAdapter.addAll(earthquakes);
+            mEarthquakeAdapter.setEarthquakes(earthquakes);
         }
     }
 
     @NonNull
     @Override
-    public Loader<List<Earthquake>> onCreateLoader(int i, @Nullable Bundle bundle) {
-        SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(this);
+    public Loader<EarthquakeStore> onCreateLoader(int i, @Nullable Bundle bundle) {
+        return new EarthquakeLoader(this, buildQueryUrl(this));
+    }
+
+    /**
+     * Return the url of the query of the current settings, without paging parameters.
+     */
+    static String buildQueryUrl(Context context) {
+        SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(context);
         String orderBy = sharedPreferences.getString(
-                getString(R.string.settings_order_by_key),
-                getString(R.string.settings_order_by_default)
+                context.getString(R.string.settings_order_by_key),
+                context.getString(R.string.settings_order_by_default)
         );
         String minMagnitude = sharedPreferences.getString(
-                getString(R.string.settings_min_magnitude_key),
-                getString(R.string.settings_min_magnitude_default));
+                context.getString(R.string.settings_min_magnitude_key),
+                context.getString(R.string.settings_min_magnitude_default));
+        String period = sharedPreferences.getString(
+                context.getString(R.string.settings_period_key),
+                context.getString(R.string.settings_period_default));
 
         Uri baseUri = Uri.parse(REQUEST_URL);
         Uri.Builder uriBuilder = baseUri.buildUpon();
@@ -147,25 +196,38 @@ public class EarthquakeActivity extends AppCompatActivity
         uriBuilder.appendQueryParameter("eventtype", "earthquake");
         uriBuilder.appendQueryParameter("orderby", orderBy);
         uriBuilder.appendQueryParameter("minmag", minMagnitude);
-        uriBuilder.appendQueryParameter("limit", "10");
+        // the server returns the last 30 days without a start time, longer periods start
+        // at the beginning of a day, so the query stays the same all day long
+        if (!period.equals(context.getString(R.string.settings_period_default))) {
+            try {
+                long now = System.currentTimeMillis();
+                long startTime = now - now % DAY - Integer.parseInt(period) * DAY;
+                uriBuilder.appendQueryParameter("starttime", QueryUtils.formatQueryTime(startTime));
+            } catch (NumberFormatException e) {
+                // an unknown period is left to the server default
+            }
+        }
 
-        return new EarthquakeLoader(this, uriBuilder.toString());
+        return uriBuilder.toString();
     }
 
     @Override
-    public void onLoadFinished(@NonNull Loader<List<Earthquake>> loader, List<Earthquake> earthquakes) {
+    public void onLoadFinished(@NonNull Loader<EarthquakeStore> loader, EarthquakeStore earthquakes) {
         // update view with new earthquakes
         updateUI(earthquakes);
 
-        // set text for empty list
-        mEmptyListTextView.setText(R.string.no_earthquakes);
+        // set text for empty list, if there is no connection show a message
+        mEmptyListTextView.setText(isConnected() ? R.string.no_earthquakes : R.string.no_internet);
+        boolean empty = (earthquakes == null || earthquakes.isEmpty())
+                && mEarthquakeAdapter.getItemCount() == 0;
+        mEmptyListTextView.setVisibility(empty ? VISIBLE : GONE);
 
         // hide loading bar
         mProgressBar.setVisibility(GONE);
     }
 
     @Override
-    public void onLoaderReset(@NonNull Loader<List<Earthquake>> loader) {
-        mEarthquakeAdapter.clear();
+    public void onLoaderReset(@NonNull Loader<EarthquakeStore> loader) {
+        mEarthquakeAdapter.setEarthquakes(null);
     }
 }
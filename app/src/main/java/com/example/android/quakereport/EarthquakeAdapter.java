@@ -2,181 +2,263 @@ package com.example.android.quakereport;
 
 import android.content.Context;
 import android.graphics.drawable.GradientDrawable;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.NonNull;
 import android.support.v4.content.ContextCompat;
+import android.support.v7.util.DiffUtil;
+import android.support.v7.widget.RecyclerView;
+import android.text.TextUtils;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.ArrayAdapter;
 import android.widget.TextView;
 
-import java.text.DecimalFormat;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.List;
-import java.util.Locale;
-
 /**
- * {@link EarthquakeAdapter} is an {@link ArrayAdapter} that can provide the layout for each list
- * based on a data source, which is a list of {@link Earthquake} objects.
+ * {@link EarthquakeAdapter} is a {@link RecyclerView.Adapter} that can provide the layout for
+ * each list based on a data source, which is an {@link EarthquakeStore}. Rows are bound by
+ * their index straight from the columns of the store, without an {@link Earthquake} per row.
+ *
+ * A new store is diffed against the one on screen on a background thread, matching
+ * earthquakes by their USGS ids and comparing the columns of both stores, so only the rows
+ * that changed are bound again and inserted rows are animated. The list keeps its scroll
+ * position across updates.
+ *
+ * Rows are formatted ahead of time by the loader, see
+ * {@link EarthquakeFormatter#formatAll(int[], String, EarthquakeStore)}, so binding a row only
+ * assigns its values to the views. A row that has not been formatted yet is formatted
+ * here once and kept in the store.
  */
-public class EarthquakeAdapter extends ArrayAdapter<Earthquake> {
+public class EarthquakeAdapter extends RecyclerView.Adapter<EarthquakeAdapter.ViewHolder> {
+
+    // colors of the magnitude circle, indexed by the floor of the magnitude
+    private static final int[] MAGNITUDE_COLOR_RESOURCE_IDS = {
+            R.color.magnitude1,
+            R.color.magnitude1,
+            R.color.magnitude2,
+            R.color.magnitude3,
+            R.color.magnitude4,
+            R.color.magnitude5,
+            R.color.magnitude6,
+            R.color.magnitude7,
+            R.color.magnitude8,
+            R.color.magnitude9,
+            R.color.magnitude10plus
+    };
+
+    /**
+     * Listener for clicks on the rows of the list.
+     */
+    interface OnItemClickListener {
+        void onItemClick(Earthquake earthquake);
+    }
 
-    private static final String LOG_TAG = EarthquakeAdapter.class.getSimpleName();
+    private final Context mContext;
 
-    private static final String LOCATION_SEPARATOR = " of ";
+    // earthquakes on screen, null if there are none
+    private EarthquakeStore mEarthquakes;
+
+    // counts the stores submitted, a diff against a store that was replaced since is dropped
+    private int mGeneration;
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    // used on the main thread only, for rows the loader has not formatted
+    private final EarthquakeFormatter mFormatter;
+
+    private OnItemClickListener mOnItemClickListener;
 
     /**
      * Custom constructor.
-     * The context is used to inflate the layout file, and the list is the data we want
-     * to populate into the list elements.
+     * The context is used to inflate the layout file.
      *
-     * @param context     The current context. Used to inflate the layout file.
-     * @param earthquakes A List of Earthquake objects to display in a list
+     * @param context The current context. Used to inflate the layout file.
+     */
+    public EarthquakeAdapter(Context context) {
+        mContext = context;
+        mFormatter = new EarthquakeFormatter(getMagnitudeColors(context),
+                context.getString(R.string.near_the));
+    }
+
+    /**
+     * Return the colors of the magnitude circle, resolved from their resource ids.
      */
-    public EarthquakeAdapter(Context context, List<Earthquake> earthquakes) {
-        super(context, 0, earthquakes);
+    static int[] getMagnitudeColors(Context context) {
+        int[] colors = new int[MAGNITUDE_COLOR_RESOURCE_IDS.length];
+        for (int i = 0; i < MAGNITUDE_COLOR_RESOURCE_IDS.length; i++) {
+            colors[i] = ContextCompat.getColor(context, MAGNITUDE_COLOR_RESOURCE_IDS[i]);
+        }
+        return colors;
     }
 
     /**
-     * Provides a view for an AdapterView
+     * Replace the earthquakes to display in a list. The rows are updated once the
+     * difference to the displayed earthquakes has been computed.
      *
-     * @param position The position in the list of data that should be displayed
-     * @param convertView The recycled view to populate.
-     * @param parent The parent ViewGroup that is used for inflation.
-     * @return The View for the position in the AdapterView.
+     * @param earthquakes earthquakes to display, or null to clear the list
      */
-    @Override
-    public View getView(int position, View convertView, ViewGroup parent) {
-        ViewHolder viewHolder;
-
-        // if recycled view is already inflated, its elements can be reused
-        // otherwise inflating on every scroll would be too expensive
-        if (convertView == null) {
-            convertView = LayoutInflater.from(getContext())
-                    .inflate(R.layout.earthquake_list_item, parent, false);
-
-            viewHolder = new ViewHolder();
-            viewHolder.magnitudeTextView = convertView.findViewById(R.id.magnitude);
-            viewHolder.locationOffsetTextView = convertView.findViewById(R.id.location_offset);
-            viewHolder.locationPrimaryTextView = convertView.findViewById(R.id.location_primary);
-            viewHolder.dateTextView = convertView.findViewById(R.id.date);
-            viewHolder.timeTextView = convertView.findViewById(R.id.time);
-
-            convertView.setTag(viewHolder);
-        } else {
-            viewHolder = (ViewHolder) convertView.getTag();
+    public void setEarthquakes(final EarthquakeStore earthquakes) {
+        final int generation = ++mGeneration;
+        final EarthquakeStore displayed = mEarthquakes;
+        if (earthquakes == displayed) return;
+
+        if (displayed == null || displayed.isEmpty()
+                || earthquakes == null || earthquakes.isEmpty()) {
+            // nothing to diff, every row is removed or inserted
+            mEarthquakes = earthquakes;
+            if (displayed != null && !displayed.isEmpty()) {
+                notifyItemRangeRemoved(0, displayed.size());
+            }
+            if (earthquakes != null && !earthquakes.isEmpty()) {
+                notifyItemRangeInserted(0, earthquakes.size());
+            }
+            return;
         }
 
-        Earthquake earthquake = getItem(position);
+        WorkerPool.get().execute(new Runnable() {
+            @Override
+            public void run() {
+                final DiffUtil.DiffResult result = DiffUtil.calculateDiff(
+                        new StoreDiff(displayed, earthquakes));
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (generation != mGeneration) return;
+                        mEarthquakes = earthquakes;
+                        result.dispatchUpdatesTo(EarthquakeAdapter.this);
+                    }
+                });
+            }
+        });
+    }
 
-        String formattedMagnitude = formatMagnitude(earthquake.getMagnitude());
-        viewHolder.magnitudeTextView.setText(formattedMagnitude);
+    void setOnItemClickListener(OnItemClickListener listener) {
+        mOnItemClickListener = listener;
+    }
 
-        GradientDrawable magnitudeCircle = (GradientDrawable) viewHolder.magnitudeTextView.getBackground();
-        int magnitudeColor = getMagnitudeColor(earthquake.getMagnitude());
-        magnitudeCircle.setColor(magnitudeColor);
+    public Context getContext() {
+        return mContext;
+    }
 
-        String fullLocation = earthquake.getLocation();
-        String locationOffset;
-        String locationPrimary;
+    @Override
+    public int getItemCount() {
+        return mEarthquakes == null ? 0 : mEarthquakes.size();
+    }
 
-        // splitting string in the form of "99km N of Temp Location"
-        // into "99km N of" and "Temp Location"
-        if (fullLocation.contains(LOCATION_SEPARATOR)) {
-            locationPrimary = fullLocation.split(LOCATION_SEPARATOR)[1];
-            locationOffset = fullLocation.substring(0, fullLocation.length() - locationPrimary.length());
-        } else {
-            // if no precise distance found, it is replaced with default string "Near the"
-            locationOffset = getContext().getString(R.string.near_the);
-            locationPrimary = fullLocation;
-        }
+    /**
+     * Return a lightweight view of the earthquake at the given position.
+     */
+    public Earthquake getItem(int position) {
+        return mEarthquakes.get(position);
+    }
+
+    @NonNull
+    @Override
+    public ViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
+        View itemView = LayoutInflater.from(getContext())
+                .inflate(R.layout.earthquake_list_item, parent, false);
+        final ViewHolder viewHolder = new ViewHolder(itemView);
+        itemView.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View view) {
+                int position = viewHolder.getAdapterPosition();
+                // the row may be on its way out of the list
+                if (position == RecyclerView.NO_POSITION || mOnItemClickListener == null) return;
+                mOnItemClickListener.onItemClick(getItem(position));
+            }
+        });
+        return viewHolder;
+    }
+
+    @Override
+    public void onBindViewHolder(@NonNull ViewHolder viewHolder, int position) {
+        long bindStart = System.nanoTime();
+
+        EarthquakeRow row = getRow(mEarthquakes, position);
 
-        viewHolder.locationOffsetTextView.setText(locationOffset);
-        viewHolder.locationPrimaryTextView.setText(locationPrimary);
+        viewHolder.magnitudeTextView.setText(row.magnitude);
 
-        Date date = new Date(earthquake.getTime());
+        GradientDrawable magnitudeCircle =
+                (GradientDrawable) viewHolder.magnitudeTextView.getBackground();
+        magnitudeCircle.setColor(row.magnitudeColor);
 
-        String formattedDate = formatDate(date);
-        viewHolder.dateTextView.setText(formattedDate);
+        viewHolder.locationOffsetTextView.setText(row.locationOffset);
+        viewHolder.locationPrimaryTextView.setText(row.locationPrimary);
 
-        String formattedTime = formatTime(date);
-        viewHolder.timeTextView.setText(formattedTime);
+        viewHolder.dateTextView.setText(row.date);
+        viewHolder.timeTextView.setText(row.time);
 
-        return convertView;
+        Metrics.BIND.recordSince(bindStart);
     }
 
     /**
-     * Return int color for magnitude in a specified range
+     * Return the formatted row of an earthquake, formatting it if the loader has not done it yet.
      */
-    private int getMagnitudeColor(double magnitude) {
-        int magnitudeColorResourceId;
-        int magnitudeFloor = (int) Math.floor(magnitude);
-        switch (magnitudeFloor) {
-            case 0:
-            case 1:
-                magnitudeColorResourceId = R.color.magnitude1;
-                break;
-            case 2:
-                magnitudeColorResourceId = R.color.magnitude2;
-                break;
-            case 3:
-                magnitudeColorResourceId = R.color.magnitude3;
-                break;
-            case 4:
-                magnitudeColorResourceId = R.color.magnitude4;
-                break;
-            case 5:
-                magnitudeColorResourceId = R.color.magnitude5;
-                break;
-            case 6:
-                magnitudeColorResourceId = R.color.magnitude6;
-                break;
-            case 7:
-                magnitudeColorResourceId = R.color.magnitude7;
-                break;
-            case 8:
-                magnitudeColorResourceId = R.color.magnitude8;
-                break;
-            case 9:
-                magnitudeColorResourceId = R.color.magnitude9;
-                break;
-            default:
-                magnitudeColorResourceId = R.color.magnitude10plus;
-                break;
+    private EarthquakeRow getRow(EarthquakeStore store, int index) {
+        EarthquakeRow row = store.getRow(index);
+        if (row == null) {
+            row = mFormatter.format(store, index);
+            store.setRow(index, row);
         }
-        //converting the color resource ID into an actual integer color value
-        return ContextCompat.getColor(getContext(), magnitudeColorResourceId);
+        return row;
     }
 
     /**
-     * Return the formatted date string (i.e. "Jan 01, 1990").
+     * Compares two stores by their columns. Earthquakes are the same if they have the same id,
+     * and their row does not have to be bound again unless one of the displayed values or the
+     * update time changed.
      */
-    private String formatDate(Date date) {
-        SimpleDateFormat dateFormat = new SimpleDateFormat("LLL dd, yyyy", Locale.US);
-        return dateFormat.format(date);
-    }
+    private static final class StoreDiff extends DiffUtil.Callback {
+        private final EarthquakeStore mOld;
+        private final EarthquakeStore mNew;
 
-    /**
-     * Return the formatted date string (i.e. "4:30 PM").
-     */
-    private String formatTime(Date date) {
-        SimpleDateFormat timeFormat = new SimpleDateFormat("h:mm a", Locale.US);
-        return timeFormat.format(date);
-    }
+        StoreDiff(EarthquakeStore oldStore, EarthquakeStore newStore) {
+            mOld = oldStore;
+            mNew = newStore;
+        }
 
-    /**
-     * Return the formatted magnitude string in the form of "99.9" (one decimal)
-     */
-    private String formatMagnitude(double magnitude) {
-        DecimalFormat decimalFormat = new DecimalFormat("0.0");
-        return decimalFormat.format(magnitude);
+        @Override
+        public int getOldListSize() {
+            return mOld.size();
+        }
+
+        @Override
+        public int getNewListSize() {
+            return mNew.size();
+        }
+
+        @Override
+        public boolean areItemsTheSame(int oldIndex, int newIndex) {
+            return TextUtils.equals(mOld.getId(oldIndex), mNew.getId(newIndex));
+        }
+
+        @Override
+        public boolean areContentsTheSame(int oldIndex, int newIndex) {
+            return mOld.getUpdated(oldIndex) == mNew.getUpdated(newIndex)
+                    && mOld.getTime(oldIndex) == mNew.getTime(newIndex)
+                    && Double.compare(mOld.getMagnitude(oldIndex),
+                            mNew.getMagnitude(newIndex)) == 0
+                    && TextUtils.equals(mOld.getLocationPrimary(oldIndex),
+                            mNew.getLocationPrimary(newIndex))
+                    && TextUtils.equals(mOld.getLocationOffset(oldIndex),
+                            mNew.getLocationOffset(newIndex));
+        }
     }
 
-    static class ViewHolder {
-        TextView magnitudeTextView;
-        TextView locationOffsetTextView;
-        TextView locationPrimaryTextView;
-        TextView dateTextView;
-        TextView timeTextView;
+    static class ViewHolder extends RecyclerView.ViewHolder {
+        final TextView magnitudeTextView;
+        final TextView locationOffsetTextView;
+        final TextView locationPrimaryTextView;
+        final TextView dateTextView;
+        final TextView timeTextView;
+
+        ViewHolder(View itemView) {
+            super(itemView);
+            magnitudeTextView = itemView.findViewById(R.id.magnitude);
+            locationOffsetTextView = itemView.findViewById(R.id.location_offset);
+            locationPrimaryTextView = itemView.findViewById(R.id.location_primary);
+            dateTextView = itemView.findViewById(R.id.date);
+            timeTextView = itemView.findViewById(R.id.time);
+        }
     }
 }
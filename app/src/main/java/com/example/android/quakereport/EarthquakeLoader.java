@@ -1,44 +1,581 @@
 package com.example.android.quakereport;
 
 import android.content.Context;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.support.v4.content.AsyncTaskLoader;
+import android.text.TextUtils;
+import android.util.Log;
 
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
- * Loads a list of earthquakes by using AsyncTask
+ * Loads a list of earthquakes by using AsyncTask.
+ *
+ * Earthquakes are requested page by page, and every delivered result contains all the
+ * earthquakes loaded so far, with their rows formatted. What is known already, from memory,
+ * from the last loaded query or from disk, is delivered first and then checked with the
+ * server, see {@link #load(Cancellation)}.
  */
-public class EarthquakeLoader extends AsyncTaskLoader<List<Earthquake>> {
+public class EarthquakeLoader extends AsyncTaskLoader<EarthquakeStore> {
+
+    private static final String LOG_TAG = EarthquakeLoader.class.getSimpleName();
+
+    // number of earthquakes requested per page
+    static final int PAGE_SIZE = 50;
+
+    // loaded earthquakes are synced again when the loader is started after this time
+    static final long SYNC_INTERVAL = 60 * 1000; /* milliseconds */
+
+    // time windows longer than this are fetched in slices of about this length
+    static final long WINDOW_SLICE_DURATION = 30L * 24 * 60 * 60 * 1000; /* milliseconds */
+
+    // most slices a time window is fetched in
+    private static final int MAX_WINDOW_SLICES = 16;
+
     // url to make request to
     private String mUrl;
 
+    // earthquakes loaded so far, across all pages
+    private EarthquakeStore mEarthquakes;
+
+    // false once a page came back shorter than requested
+    private boolean mHasMore = true;
+
+    // true while a page is being loaded
+    private boolean mLoading;
+
+    // cancellation of the running load in the background
+    private volatile Cancellation mCancellation;
+
+    // earthquakes stored on disk for this query
+    private final EarthquakeCache mCache;
+
+    // true once the disk cache has been read
+    private boolean mCacheRead;
+
+    // true if cached earthquakes were delivered and still have to be checked with the server
+    private boolean mRevalidate;
+
+    // true if the earthquakes are ordered by time and can be synced with deltas
+    private final boolean mDeltaSync;
+
+    // brings loaded earthquakes up to date with the server
+    private final EarthquakeSync mSync;
+
+    // SystemClock.elapsedRealtime() of the last response that synced the head of the list
+    private volatile long mLastSync;
+
+    // url of the feed of earthquakes as they happen, empty if they are not followed
+    private final String mStreamUrl;
+
+    // pushes new and updated earthquakes while the loader is started
+    private EarthquakeStream mStream;
+
+    // pushed earthquakes that have not been delivered yet, and the ones applied by the last load
+    private volatile EarthquakeStore mStreamed;
+    private volatile EarthquakeStore mStreamedApplied;
+
+    // earthquakes of the last load of any loader, indexed to answer other queries locally
+    private static volatile IndexedQuery sLastLoaded;
+
+    // length of the time buckets of the aggregates
+    private static final long AGGREGATE_BUCKET_DURATION = 24 * 60 * 60 * 1000; /* milliseconds */
+
+    // appends to the archive, one after the other in the order they were received
+    private static final ExecutorService sArchiveExecutor = Executors.newSingleThreadExecutor();
+
+    // earthquakes received from the server and not archived yet
+    private final List<EarthquakeStore> mToArchive = new ArrayList<>();
+
+    // the earthquakes of this query, aggregated
+    private final EarthquakeAggregates mAggregates =
+            new EarthquakeAggregates(AGGREGATE_BUCKET_DURATION);
+
     /**
      * Constructs a new EarthquakeLoader
      * @param context context of the activity
-     * @param url     url to make request to
+     * @param url     url to make request to, without paging parameters
      */
     EarthquakeLoader(@NonNull Context context, String url) {
         super(context);
         mUrl = url;
+        mCache = url == null ? null : new EarthquakeCache(context.getFilesDir(), url);
+        mDeltaSync = url != null && EarthquakeSync.isOrderedByTime(context, url);
+        mSync = url == null ? null : new EarthquakeSync(url, mCache, mDeltaSync);
+        // pushed earthquakes are applied like deltas, which needs the order by time
+        mStreamUrl = mDeltaSync ? context.getString(R.string.stream_url) : "";
     }
 
     /**
-     * force start of the loader
+     * Deliver already loaded earthquakes, and start loading if there are none yet
+     * or they have not been synced for {@link #SYNC_INTERVAL}
      */
     @Override
     protected void onStartLoading() {
-        forceLoad();
+        startStream();
+        if (mEarthquakes != null) {
+            deliverResult(mEarthquakes);
+            if (!mRevalidate && SystemClock.elapsedRealtime() - mLastSync > SYNC_INTERVAL) {
+                mRevalidate = true;
+                forceLoad();
+                return;
+            }
+        }
+        if (mEarthquakes == null || takeContentChanged() || mStreamed != null) forceLoad();
+    }
+
+    @Override
+    protected void onForceLoad() {
+        mLoading = true;
+        super.onForceLoad();
+    }
+
+    @Override
+    protected void onStopLoading() {
+        cancelLoad();
+        mLoading = false;
+        if (mStream != null) {
+            mStream.stop();
+            mStream = null;
+        }
+    }
+
+    @Override
+    protected void onReset() {
+        onStopLoading();
+        mEarthquakes = null;
+        mHasMore = true;
+        mCacheRead = false;
+        mRevalidate = false;
+        mStreamed = null;
+    }
+
+    /**
+     * Follow the feed of earthquakes as they happen, unless it is followed already. Only
+     * earthquakes ordered by time follow it, as every batch of pushed earthquakes is applied
+     * to the loaded ones like a delta, written to the cache and delivered as a new result.
+     * The stream holds back the next batch until then.
+     */
+    private void startStream() {
+        if (mStream != null || TextUtils.isEmpty(mStreamUrl)) return;
+        final Handler handler = new Handler(Looper.getMainLooper());
+        EarthquakeStream.Dispatcher mainThread = new EarthquakeStream.Dispatcher() {
+            @Override
+            public void post(Runnable task, long delayMillis) {
+                handler.postDelayed(task, delayMillis);
+            }
+
+            @Override
+            public void remove(Runnable task) {
+                handler.removeCallbacks(task);
+            }
+        };
+        mStream = new EarthquakeStream(mStreamUrl, mainThread, new EarthquakeStream.Listener() {
+            @Override
+            public void onEarthquakes(EarthquakeStore batch) {
+                EarthquakeStore streamed = mStreamed;
+                // the newer batch goes first, so its versions of the earthquakes are kept
+                mStreamed = streamed == null ? batch : EarthquakeSync.merge(batch, streamed);
+                // a running load delivers first and then loads again
+                if (!mLoading) onContentChanged();
+            }
+        });
+        mStream.start();
     }
 
     /**
-     * Background thread
+     * Background thread. The rows of the loaded earthquakes are formatted here, and the
+     * earthquakes are counted in the aggregates and kept in the {@link EarthquakeMemoryCache}
+     * and the index of the last loaded query.
      */
     @Nullable
     @Override
-    public List<Earthquake> loadInBackground() {
+    public EarthquakeStore loadInBackground() {
         if (mUrl == null) return null;
-        return QueryUtils.fetchEarthquakesData(mUrl);
+
+        Cancellation cancellation = new Cancellation();
+        mCancellation = cancellation;
+        // the load may have been cancelled before its cancellation was set
+        if (isLoadInBackgroundCanceled()) cancellation.cancel();
+
+        EarthquakeStore earthquakes = load(cancellation);
+        // the result of a cancelled load is not delivered, so it is not formatted either
+        if (earthquakes != null && !cancellation.isCancelled()) {
+            // format the rows here, so the adapter does not have to do it on the main thread
+            long formatStart = System.nanoTime();
+            EarthquakeFormatter.formatAll(EarthquakeAdapter.getMagnitudeColors(getContext()),
+                    getContext().getString(R.string.near_the), earthquakes);
+            Metrics.FORMAT.recordSince(formatStart);
+            mAggregates.setEarthquakes(earthquakes);
+            IndexedQuery lastLoaded = sLastLoaded;
+            if (lastLoaded == null || lastLoaded.index.getEarthquakes() != earthquakes) {
+                sLastLoaded = new IndexedQuery(mUrl, mDeltaSync, !mHasMore, earthquakes);
+            }
+            EarthquakeMemoryCache.put(getContext(), mUrl, earthquakes, mHasMore, mLastSync);
+        }
+        return earthquakes;
+    }
+
+    /**
+     * Main thread, stops the fetch of the running load, which stops reading and parsing
+     * its response instead of finishing it for nobody
+     */
+    @Override
+    public void cancelLoadInBackground() {
+        Cancellation cancellation = mCancellation;
+        if (cancellation != null) cancellation.cancel();
+    }
+
+    /**
+     * Main thread, the result of a cancelled load is dropped. If nothing has been delivered
+     * yet, the next load starts over from the caches instead of revalidating earthquakes
+     * that were never shown.
+     */
+    @Override
+    public void onCanceled(@Nullable EarthquakeStore earthquakes) {
+        // what was received before the cancellation is archived all the same
+        flushArchive();
+        if (mEarthquakes == null) {
+            mCacheRead = false;
+            mRevalidate = false;
+        }
+    }
+
+    /**
+     * Load the cached earthquakes, the changes to them or the next page.
+     *
+     * The first load answers from the first of the {@link EarthquakeMemoryCache}, the index of
+     * the last loaded query and the {@link EarthquakeCache} that has the earthquakes, and the
+     * next load revalidates them: the first page with a conditional request, or a delta for
+     * earthquakes ordered by time, see {@link EarthquakeSync}. Earthquakes in memory that were
+     * synced within {@link #SYNC_INTERVAL} are not revalidated.
+     *
+     * Requests go through {@link EarthquakeRequests}, so loaders of the same query share their
+     * fetches. The first page is fetched for the screen and the next ones as prefetches, see
+     * {@link FetchScheduler}. A query for a time window longer than
+     * {@link #WINDOW_SLICE_DURATION} is not paged but loaded whole, see
+     * {@link #loadWindow(long, long, Cancellation)}.
+     */
+    private EarthquakeStore load(Cancellation cancellation) {
+        EarthquakeStore loaded = mEarthquakes;
+
+        // start with what is already loaded or on disk,
+        // the server is asked right after it is shown
+        if (!mCacheRead) {
+            mCacheRead = true;
+            EarthquakeMemoryCache.Entry entry = EarthquakeMemoryCache.get(mUrl);
+            if (entry != null) {
+                mHasMore = entry.hasMore;
+                mLastSync = entry.lastSync;
+                // recently synced earthquakes are shown as they are
+                mRevalidate = SystemClock.elapsedRealtime() - entry.lastSync > SYNC_INTERVAL;
+                // the revalidation and the writes of these earthquakes need the validators
+                mCache.readValidators();
+                return entry.earthquakes;
+            }
+            EarthquakeStore local = queryLocally();
+            if (local != null) {
+                mRevalidate = true;
+                mCache.readValidators();
+                return local;
+            }
+            EarthquakeStore cached = mCache.read();
+            if (cached != null && !cached.isEmpty()) {
+                mRevalidate = true;
+                return cached;
+            }
+        }
+
+        EarthquakeStore streamed = mStreamed;
+        if (streamed != null && loaded != null) {
+            mStreamedApplied = streamed;
+            archive(streamed);
+            EarthquakeStore earthquakes = applyStreamed(loaded, streamed);
+            // the validators describe the first page before the pushed earthquakes, so the
+            // next revalidation still asks the server for everything that changed since
+            if (earthquakes != loaded) {
+                mCache.write(earthquakes, mCache.getETag(), mCache.getLastModified());
+            }
+            return earthquakes;
+        }
+
+        // only delivered earthquakes are revalidated, a cancelled load may have dropped them
+        if (loaded == null) mRevalidate = false;
+        if (mRevalidate) {
+            mRevalidate = false;
+            EarthquakeStore earthquakes = mSync.revalidate(loaded, !mHasMore, cancellation);
+            // the next load revalidates again, the earthquakes have not been checked
+            if (cancellation.isCancelled()) mRevalidate = true;
+            QueryUtils.Response response = mSync.getLastResponse();
+            if (response != null) {
+                mLastSync = SystemClock.elapsedRealtime();
+                if (response.earthquakes != null) archive(response.earthquakes);
+            }
+            return earthquakes;
+        }
+
+        if (loaded == null) {
+            long[] window = getWideWindow();
+            if (window != null) return loadWindow(window[0], window[1], cancellation);
+        }
+
+        // the first page is waited for on screen, the next ones are prefetched while scrolling
+        int offset = loaded == null ? 0 : loaded.size();
+        int priority = loaded == null
+                ? FetchScheduler.PRIORITY_VISIBLE : FetchScheduler.PRIORITY_PREFETCH;
+        QueryUtils.Response response = EarthquakeRequests.fetch(
+                EarthquakeSync.buildPageUrl(mUrl, offset), null, 0, priority, cancellation);
+        if (response.cancelled) return loaded;
+        EarthquakeStore page = response.earthquakes;
+        if (page == null) return loadArchivedPage(loaded, offset);
+        // the next pages hold older earthquakes, only the first one syncs the list
+        if (loaded == null) mLastSync = SystemClock.elapsedRealtime();
+        mHasMore = page.size() >= PAGE_SIZE;
+        archive(page);
+
+        EarthquakeStore earthquakes;
+        if (loaded == null) {
+            earthquakes = page;
+            mCache.write(earthquakes, response.eTag, response.lastModified);
+        } else {
+            earthquakes = EarthquakeSync.merge(loaded, page);
+            // the validators describe the first page only, so keep the ones already stored
+            mCache.write(earthquakes, mCache.getETag(), mCache.getLastModified());
+        }
+        return earthquakes;
+    }
+
+    /**
+     * Load every earthquake of a long time window in slices of about
+     * {@link #WINDOW_SLICE_DURATION}. Return null if the load was cancelled.
+     */
+    private EarthquakeStore loadWindow(long startTime, long endTime, Cancellation cancellation) {
+        int sliceCount = (int) Math.min(MAX_WINDOW_SLICES,
+                (endTime - startTime + WINDOW_SLICE_DURATION - 1) / WINDOW_SLICE_DURATION);
+        QueryUtils.Response response = EarthquakeRequests.fetchWindow(
+                withoutTimeWindow(Uri.parse(mUrl)), startTime, endTime, sliceCount,
+                FetchScheduler.PRIORITY_VISIBLE, cancellation);
+        if (response.cancelled) return null;
+        EarthquakeStore earthquakes = response.earthquakes;
+        if (earthquakes == null) return loadArchivedPage(null, 0);
+        mLastSync = SystemClock.elapsedRealtime();
+        // the whole window is loaded, there are no pages to follow
+        mHasMore = false;
+        archive(earthquakes);
+        mCache.write(earthquakes, null, 0);
+        return earthquakes;
+    }
+
+    /**
+     * Return the start and end of the time window of the query if it is longer than
+     * {@link #WINDOW_SLICE_DURATION}, or null if the query is paged as usual.
+     */
+    private long[] getWideWindow() {
+        Uri uri = Uri.parse(mUrl);
+        String start = uri.getQueryParameter("starttime");
+        if (start == null) return null;
+        String end = uri.getQueryParameter("endtime");
+        long startTime = QueryUtils.parseQueryTime(start);
+        long endTime = end == null ? System.currentTimeMillis() : QueryUtils.parseQueryTime(end);
+        // a window the server does not understand either is left to its error response
+        if (startTime < 0 || endTime < 0 || endTime - startTime <= WINDOW_SLICE_DURATION) {
+            return null;
+        }
+        return new long[]{startTime, endTime};
+    }
+
+    /**
+     * Apply pushed earthquakes to the loaded ones. Earthquakes below the minimum magnitude
+     * of the query are removed like deleted ones, in case they were updated to a lower one.
+     */
+    private EarthquakeStore applyStreamed(EarthquakeStore loaded, EarthquakeStore streamed) {
+        return EarthquakeSync.applyDelta(loaded, streamed, EarthquakeSync.minMagnitude(mUrl),
+                !mHasMore);
+    }
+
+    /**
+     * Add the next page from the archive to the loaded earthquakes, when the server cannot
+     * be reached. Return the loaded earthquakes if the archive has nothing more.
+     */
+    private EarthquakeStore loadArchivedPage(EarthquakeStore loaded, int offset) {
+        double minMagnitude = EarthquakeSync.minMagnitude(mUrl);
+        if (Double.isNaN(minMagnitude)) return loaded;
+
+        EarthquakeIndex.Query query = new EarthquakeIndex.Query();
+        query.minMagnitude = minMagnitude;
+        query.byTime = mDeltaSync;
+        EarthquakeStore page;
+        try {
+            page = EarthquakeArchive.get(getContext().getFilesDir())
+                    .scan(query, offset, PAGE_SIZE);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Problem scanning the earthquake archive.", e);
+            return loaded;
+        }
+        // paging goes on with the server once it can be reached again
+        if (page.isEmpty()) return loaded;
+        mHasMore = page.size() >= PAGE_SIZE;
+        return loaded == null ? page : EarthquakeSync.merge(loaded, page);
+    }
+
+    /**
+     * Keep earthquakes received from the server to be appended to the archive once the load
+     * is delivered, so writing them does not delay what is shown. Pages that cannot be
+     * fetched are scanned from the archive, see {@link #loadArchivedPage}.
+     */
+    private void archive(EarthquakeStore earthquakes) {
+        if (earthquakes.isEmpty()) return;
+        synchronized (mToArchive) {
+            mToArchive.add(earthquakes);
+        }
+    }
+
+    /**
+     * Append the earthquakes received so far to the archive, in the background.
+     */
+    private void flushArchive() {
+        final List<EarthquakeStore> toArchive;
+        synchronized (mToArchive) {
+            if (mToArchive.isEmpty()) return;
+            toArchive = new ArrayList<>(mToArchive);
+            mToArchive.clear();
+        }
+        final EarthquakeArchive archive = EarthquakeArchive.get(getContext().getFilesDir());
+        sArchiveExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (EarthquakeStore earthquakes : toArchive) archive.append(earthquakes);
+                } catch (IOException e) {
+                    Log.e(LOG_TAG, "Problem writing to the earthquake archive.", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Return the earthquakes of this query selected from the last loaded earthquakes,
+     * or null if they may not all be there. They are all there for a higher minimum magnitude
+     * of the same query, or for another order once every earthquake of it was loaded.
+     */
+    private EarthquakeStore queryLocally() {
+        IndexedQuery loaded = sLastLoaded;
+        if (loaded == null) return null;
+
+        Uri uri = Uri.parse(mUrl);
+        double minMagnitude = EarthquakeSync.minMagnitude(mUrl);
+
+        // a page of one order is a prefix of the same order with a higher minimum magnitude,
+        // but other orders need the whole list
+        if (!loaded.baseQuery.equals(baseQuery(uri))
+                || !(minMagnitude >= loaded.minMagnitude)
+                || (mDeltaSync != loaded.byTime && !loaded.complete)) {
+            return null;
+        }
+
+        EarthquakeIndex.Query query = new EarthquakeIndex.Query();
+        query.minMagnitude = minMagnitude;
+        query.byTime = mDeltaSync;
+        EarthquakeStore earthquakes = loaded.index.query(query);
+        if (earthquakes.isEmpty()) return null;
+
+        mHasMore = !loaded.complete;
+        return earthquakes;
+    }
+
+    /**
+     * Return the url of a query without its order and minimum magnitude, with sorted parameters.
+     */
+    private static String baseQuery(Uri uri) {
+        Uri.Builder builder = uri.buildUpon().clearQuery();
+        for (String name : new TreeSet<>(uri.getQueryParameterNames())) {
+            if ("orderby".equals(name) || "minmag".equals(name)) continue;
+            for (String value : uri.getQueryParameters(name)) {
+                builder.appendQueryParameter(name, value);
+            }
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Return the url of a query without its start and end time.
+     */
+    private static String withoutTimeWindow(Uri uri) {
+        Uri.Builder builder = uri.buildUpon().clearQuery();
+        for (String name : uri.getQueryParameterNames()) {
+            if ("starttime".equals(name) || "endtime".equals(name)) continue;
+            for (String value : uri.getQueryParameters(name)) {
+                builder.appendQueryParameter(name, value);
+            }
+        }
+        return builder.toString();
+    }
+
+    @Override
+    public void deliverResult(@Nullable EarthquakeStore earthquakes) {
+        mLoading = false;
+        mEarthquakes = earthquakes;
+        flushArchive();
+        // pushed earthquakes are in the delivered ones, the stream can send more
+        if (mStreamedApplied != null && mStreamedApplied == mStreamed) {
+            mStreamed = null;
+            mStreamedApplied = null;
+            if (mStream != null) mStream.batchConsumed();
+        }
+        if (isStarted()) {
+            super.deliverResult(earthquakes);
+            // cached earthquakes are on screen, now ask the server for changes
+            if (mRevalidate || (mStreamed != null && earthquakes != null)) forceLoad();
+        }
+    }
+
+    /**
+     * Return the aggregates of the earthquakes of the last result, per map cell and per day,
+     * for views that summarize more earthquakes than a list can show.
+     */
+    EarthquakeAggregates getAggregates() {
+        return mAggregates;
+    }
+
+    /**
+     * Request the next page of earthquakes as the user scrolls down, unless one is already
+     * loading or the last page has been reached.
+     */
+    void loadNextPage() {
+        if (mLoading || !mHasMore || mEarthquakes == null) return;
+        forceLoad();
+    }
+
+    /**
+     * Loaded earthquakes of a query along with their index.
+     */
+    private static final class IndexedQuery {
+        final String baseQuery;
+        final double minMagnitude;
+        final boolean byTime;
+
+        // true if every earthquake of the query has been loaded
+        final boolean complete;
+
+        final EarthquakeIndex index;
+
+        IndexedQuery(String url, boolean byTime, boolean complete, EarthquakeStore earthquakes) {
+            Uri uri = Uri.parse(url);
+            this.baseQuery = baseQuery(uri);
+            this.minMagnitude = EarthquakeSync.minMagnitude(url);
+            this.byTime = byTime;
+            this.complete = complete;
+            this.index = new EarthquakeIndex(earthquakes);
+        }
     }
 }
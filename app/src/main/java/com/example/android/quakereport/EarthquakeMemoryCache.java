@@ -0,0 +1,184 @@
+package com.example.android.quakereport;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.os.SystemClock;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * {@link EarthquakeMemoryCache} keeps the loaded earthquakes of recent queries in memory,
+ * so switching back to settings that were used a moment ago shows their earthquakes at once.
+ *
+ * Entries are keyed by the whole query, order and minimum magnitude included. The cache is
+ * bounded by the estimated heap size of its entries, the least recently used ones are evicted
+ * first, and entries expire after {@link #TIME_TO_LIVE}. Everything is dropped when the system
+ * runs low on memory.
+ *
+ * Hits and misses are counted in {@link Metrics}.
+ */
+final class EarthquakeMemoryCache {
+
+    // entries expire after this time
+    static final long TIME_TO_LIVE = 10 * 60 * 1000; /* milliseconds */
+
+    // at most this share of the heap is used
+    private static final int HEAP_FRACTION = 16;
+
+    // upper bound of the size of all entries in bytes
+    private static final long MAX_SIZE = Runtime.getRuntime().maxMemory() / HEAP_FRACTION;
+
+    private static final Object sLock = new Object();
+
+    // entries by query, the least recently used first
+    private static final LinkedHashMap<String, Entry> sEntries =
+            new LinkedHashMap<>(16, 0.75f, true);
+
+    // estimated size of all entries in bytes
+    private static long sSize;
+
+    // true once the memory callbacks are registered
+    private static boolean sRegistered;
+
+    private EarthquakeMemoryCache() {
+    }
+
+    /**
+     * Loaded earthquakes of a query.
+     */
+    static final class Entry {
+        final EarthquakeStore earthquakes;
+
+        // false once the last page has been loaded
+        final boolean hasMore;
+
+        // SystemClock.elapsedRealtime() of the last response from the server
+        final long lastSync;
+
+        // when the entry was put into the cache, and its estimated size
+        final long time;
+        final long size;
+
+        Entry(EarthquakeStore earthquakes, boolean hasMore, long lastSync, long time, long size) {
+            this.earthquakes = earthquakes;
+            this.hasMore = hasMore;
+            this.lastSync = lastSync;
+            this.time = time;
+            this.size = size;
+        }
+    }
+
+    /**
+     * Return the earthquakes of a query, or null if they are not in the cache.
+     */
+    static Entry get(String url) {
+        String key = EarthquakeRequests.normalize(url);
+        synchronized (sLock) {
+            removeExpired();
+            Entry entry = sEntries.get(key);
+            if (entry != null) {
+                Metrics.QUERY_CACHE_HITS.increment();
+            } else {
+                Metrics.QUERY_CACHE_MISSES.increment();
+            }
+            return entry;
+        }
+    }
+
+    /**
+     * Put the loaded earthquakes of a query into the cache, replacing the ones it had.
+     * Must be called on a background thread, the size of the earthquakes is estimated here.
+     *
+     * Replacing an entry with more pages of the same earthquakes keeps its insertion time and
+     * last sync, so loading pages does not keep the head of the list alive past
+     * {@link #TIME_TO_LIVE}. Only earthquakes synced since the entry was put start a new one.
+     */
+    static void put(Context context, String url, EarthquakeStore earthquakes, boolean hasMore,
+                    long lastSync) {
+        String key = EarthquakeRequests.normalize(url);
+        long size = earthquakes.estimateSize();
+        synchronized (sLock) {
+            if (!sRegistered) {
+                context.getApplicationContext().registerComponentCallbacks(sCallbacks);
+                sRegistered = true;
+            }
+
+            long time = SystemClock.elapsedRealtime();
+            Entry previous = sEntries.remove(key);
+            if (previous != null) {
+                sSize -= previous.size;
+                if (lastSync <= previous.lastSync) {
+                    time = previous.time;
+                    lastSync = previous.lastSync;
+                }
+            }
+            // an entry that takes the whole cache is not worth evicting everything else
+            if (size > MAX_SIZE / 2) return;
+
+            sEntries.put(key, new Entry(earthquakes, hasMore, lastSync, time, size));
+            sSize += size;
+            trimToSize(MAX_SIZE);
+        }
+    }
+
+    /**
+     * Drop everything from the cache.
+     */
+    static void clear() {
+        synchronized (sLock) {
+            sEntries.clear();
+            sSize = 0;
+        }
+    }
+
+    /**
+     * Evict the least recently used entries until the cache is not larger than the given size.
+     */
+    private static void trimToSize(long maxSize) {
+        Iterator<Entry> iterator = sEntries.values().iterator();
+        while (sSize > maxSize && iterator.hasNext()) {
+            sSize -= iterator.next().size;
+            iterator.remove();
+            Metrics.QUERY_CACHE_EVICTIONS.increment();
+        }
+    }
+
+    private static void removeExpired() {
+        long now = SystemClock.elapsedRealtime();
+        Iterator<Entry> iterator = sEntries.values().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (now - entry.time >= TIME_TO_LIVE) {
+                sSize -= entry.size;
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Shrinks the cache when the system asks the app to give back memory.
+     */
+    private static final ComponentCallbacks2 sCallbacks = new ComponentCallbacks2() {
+        @Override
+        public void onTrimMemory(int level) {
+            if (level >= TRIM_MEMORY_MODERATE || level == TRIM_MEMORY_RUNNING_CRITICAL) {
+                clear();
+            } else if (level >= TRIM_MEMORY_BACKGROUND || level == TRIM_MEMORY_RUNNING_LOW) {
+                synchronized (sLock) {
+                    trimToSize(sSize / 2);
+                }
+            }
+        }
+
+        @Override
+        public void onLowMemory() {
+            clear();
+        }
+
+        @Override
+        public void onConfigurationChanged(Configuration configuration) {
+        }
+    };
+}
@@ -0,0 +1,102 @@
+package com.example.android.quakereport;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.v4.app.JobIntentService;
+
+/**
+ * {@link EarthquakePollService} keeps the cached earthquakes of the current settings fresh
+ * while the app is not on screen, so they are up to date the next time it is opened.
+ *
+ * An alarm wakes up the {@link AlarmReceiver}, which enqueues a poll. The poll itself is run
+ * by an {@link EarthquakePoller}, which also decides when the next alarm goes off. The alarm
+ * does not wake up the device, so polls never keep a sleeping device awake.
+ */
+public class EarthquakePollService extends JobIntentService {
+
+    // unique job id of the service
+    private static final int JOB_ID = 1000;
+
+    // shared preferences the state of the poller is kept in
+    private static final String PREFERENCES_NAME = "poller";
+
+    /**
+     * Schedule the next poll if none is scheduled yet.
+     */
+    static void start(Context context) {
+        Intent intent = new Intent(context, AlarmReceiver.class);
+        if (PendingIntent.getBroadcast(context, 0, intent, PendingIntent.FLAG_NO_CREATE) != null) {
+            return;
+        }
+        EarthquakePoller poller = new EarthquakePoller();
+        poller.restore(getPreferences(context));
+        schedule(context, poller.getInterval());
+    }
+
+    /**
+     * Schedule the next poll after the given delay, replacing the scheduled one.
+     */
+    private static void schedule(Context context, long delay) {
+        Intent intent = new Intent(context, AlarmReceiver.class);
+        PendingIntent operation = PendingIntent.getBroadcast(context, 0, intent,
+                PendingIntent.FLAG_UPDATE_CURRENT);
+        AlarmManager alarmManager = (AlarmManager) context.getSystemService(ALARM_SERVICE);
+        alarmManager.set(AlarmManager.ELAPSED_REALTIME,
+                SystemClock.elapsedRealtime() + delay, operation);
+    }
+
+    private static SharedPreferences getPreferences(Context context) {
+        return context.getSharedPreferences(PREFERENCES_NAME, MODE_PRIVATE);
+    }
+
+    /**
+     * Background thread
+     */
+    @Override
+    protected void onHandleWork(@NonNull Intent intent) {
+        SharedPreferences preferences = getPreferences(this);
+        EarthquakePoller poller = new EarthquakePoller();
+        poller.restore(preferences);
+
+        long delay;
+        if (isConnected()) {
+            String url = EarthquakeActivity.buildQueryUrl(this);
+            EarthquakeCache cache = new EarthquakeCache(getFilesDir(), url);
+            EarthquakeSync sync = new EarthquakeSync(url, cache,
+                    EarthquakeSync.isOrderedByTime(this, url));
+            delay = poller.poll(cache, sync);
+        } else {
+            // try again later, without spending the budget
+            delay = poller.getInterval();
+        }
+
+        SharedPreferences.Editor editor = preferences.edit();
+        poller.save(editor);
+        editor.apply();
+        schedule(this, delay);
+    }
+
+    private boolean isConnected() {
+        ConnectivityManager cm = (ConnectivityManager) getSystemService(CONNECTIVITY_SERVICE);
+        NetworkInfo activeNetwork = cm.getActiveNetworkInfo();
+        return activeNetwork != null && activeNetwork.isConnected();
+    }
+
+    /**
+     * Receives the alarms of the poller and hands them over to the service.
+     */
+    public static class AlarmReceiver extends BroadcastReceiver {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            enqueueWork(context, EarthquakePollService.class, JOB_ID, intent);
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package com.example.android.quakereport;
+
+import android.content.SharedPreferences;
+import android.support.annotation.VisibleForTesting;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * {@link EarthquakePoller} decides when the earthquakes of a query are synced in the
+ * background, and keeps the polling within a budget of requests and bytes.
+ *
+ * Every poll sends a single request through {@link EarthquakeSync}. The interval to the next
+ * poll doubles, up to {@link #MAX_INTERVAL}, while nothing changes, and drops back to
+ * {@link #MIN_INTERVAL} as soon as a significant earthquake shows up. Polls that come earlier
+ * than the interval are skipped, so any number of triggers end up in one request per interval.
+ *
+ * The budget is counted per {@link #BUDGET_WINDOW} and is a hard cap: once either the requests
+ * or the bytes are spent, the next poll waits for the next window. Every request that was
+ * sent counts, and so do the bytes of its response, whether the server answered or not.
+ *
+ * Time comes from a {@link Clock}, so the schedule can be driven by a fake clock in tests.
+ */
+final class EarthquakePoller {
+
+    static final long MIN_INTERVAL = 5 * 60 * 1000; /* milliseconds */
+    static final long MAX_INTERVAL = 6 * 60 * 60 * 1000; /* milliseconds */
+
+    // interval of the first poll
+    static final long INITIAL_INTERVAL = 15 * 60 * 1000; /* milliseconds */
+
+    // budget is reset after this time
+    static final long BUDGET_WINDOW = 24 * 60 * 60 * 1000; /* milliseconds */
+
+    // default budget per window
+    static final int DEFAULT_MAX_REQUESTS = 96;
+    static final long DEFAULT_MAX_BYTES = 4 * 1024 * 1024;
+
+    // new earthquakes of at least this magnitude make the poller speed up
+    static final double SIGNIFICANT_MAGNITUDE = 6;
+
+    // keys of the state kept in shared preferences
+    private static final String KEY_INTERVAL = "poll_interval";
+    private static final String KEY_NEXT_POLL = "poll_next";
+    private static final String KEY_WINDOW_START = "poll_window_start";
+    private static final String KEY_REQUESTS = "poll_requests";
+    private static final String KEY_BYTES = "poll_bytes";
+
+    /**
+     * Source of the current time in milliseconds since the epoch.
+     */
+    interface Clock {
+        long currentTimeMillis();
+    }
+
+    static final Clock SYSTEM_CLOCK = new Clock() {
+        @Override
+        public long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+    };
+
+    private final Clock mClock;
+
+    // budget per window
+    private final int mMaxRequests;
+    private final long mMaxBytes;
+
+    // time between two polls
+    private long mInterval = INITIAL_INTERVAL;
+
+    // earliest time of the next poll
+    private long mNextPoll;
+
+    // start of the current budget window and what has been spent in it
+    private long mWindowStart;
+    private int mRequests;
+    private long mBytes;
+
+    EarthquakePoller() {
+        this(SYSTEM_CLOCK, DEFAULT_MAX_REQUESTS, DEFAULT_MAX_BYTES);
+    }
+
+    @VisibleForTesting
+    EarthquakePoller(Clock clock, int maxRequests, long maxBytes) {
+        mClock = clock;
+        mMaxRequests = maxRequests;
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * Sync the cached earthquakes of a query, unless the last poll was too recent
+     * or the budget is spent.
+     *
+     * @return the time in milliseconds until the next poll
+     */
+    long poll(EarthquakeCache cache, EarthquakeSync sync) {
+        long delay = getDelay();
+        if (delay > 0) return delay;
+
+        EarthquakeStore cached = cache.read();
+        if (cached == null || cached.isEmpty()) {
+            // nothing to sync yet, the loader fills the cache the first time
+            return schedule(mClock.currentTimeMillis(), mInterval);
+        }
+
+        // the cache does not know if every page was loaded, earthquakes older than the cached
+        // ones are left to the pages the loader fetches
+        EarthquakeStore earthquakes = sync.revalidate(cached, false, new Cancellation());
+        return onPolled(cached, earthquakes, sync.getLastBytesOnWire());
+    }
+
+    /**
+     * Return 0 if a poll may send its request now, or the time in milliseconds until the
+     * next poll if the last one was too recent or the budget of the window is spent.
+     */
+    @VisibleForTesting
+    long getDelay() {
+        long now = mClock.currentTimeMillis();
+        if (now < mNextPoll) return mNextPoll - now;
+
+        if (now - mWindowStart >= BUDGET_WINDOW) {
+            mWindowStart = now;
+            mRequests = 0;
+            mBytes = 0;
+        }
+        if (mRequests >= mMaxRequests || mBytes >= mMaxBytes) {
+            return schedule(now, mWindowStart + BUDGET_WINDOW - now);
+        }
+        return 0;
+    }
+
+    /**
+     * Count a request that was sent along with the bytes of its response, adapt the interval
+     * to what has changed, and schedule the next poll.
+     *
+     * @param cached      the earthquakes before the poll
+     * @param earthquakes the earthquakes after the poll, the same store if nothing has changed
+     * @param bytesOnWire bytes of the response, 0 if none arrived
+     * @return the time in milliseconds until the next poll
+     */
+    @VisibleForTesting
+    long onPolled(EarthquakeStore cached, EarthquakeStore earthquakes, long bytesOnWire) {
+        mRequests++;
+        mBytes += bytesOnWire;
+
+        if (hasSignificantChange(cached, earthquakes)) {
+            mInterval = MIN_INTERVAL;
+        } else if (earthquakes == cached) {
+            // nothing has changed, or the server could not be reached
+            mInterval = Math.min(mInterval * 2, MAX_INTERVAL);
+        }
+        return schedule(mClock.currentTimeMillis(), mInterval);
+    }
+
+    private long schedule(long now, long delay) {
+        mNextPoll = now + delay;
+        return delay;
+    }
+
+    /**
+     * Return true if the synced earthquakes contain a significant earthquake
+     * that was not in the cached ones.
+     */
+    private static boolean hasSignificantChange(EarthquakeStore cached,
+                                                EarthquakeStore earthquakes) {
+        if (earthquakes == cached) return false;
+
+        Map<String, Double> cachedMagnitudes = new HashMap<>();
+        for (int i = 0; i < cached.size(); i++) {
+            cachedMagnitudes.put(cached.getId(i), cached.getMagnitude(i));
+        }
+        for (int i = 0; i < earthquakes.size(); i++) {
+            double magnitude = earthquakes.getMagnitude(i);
+            if (magnitude < SIGNIFICANT_MAGNITUDE) continue;
+            // a new earthquake or one that has just been upgraded
+            Double cachedMagnitude = cachedMagnitudes.get(earthquakes.getId(i));
+            if (cachedMagnitude == null || cachedMagnitude < SIGNIFICANT_MAGNITUDE) return true;
+        }
+        return false;
+    }
+
+    long getInterval() {
+        return mInterval;
+    }
+
+    /**
+     * Restore the state saved by {@link #save(SharedPreferences.Editor)}.
+     */
+    void restore(SharedPreferences preferences) {
+        mInterval = preferences.getLong(KEY_INTERVAL, INITIAL_INTERVAL);
+        mNextPoll = preferences.getLong(KEY_NEXT_POLL, 0);
+        mWindowStart = preferences.getLong(KEY_WINDOW_START, 0);
+        mRequests = preferences.getInt(KEY_REQUESTS, 0);
+        mBytes = preferences.getLong(KEY_BYTES, 0);
+
+        // the clock may have been set back since the state was saved
+        long now = mClock.currentTimeMillis();
+        if (mWindowStart > now) mWindowStart = 0;
+        if (mNextPoll > now + BUDGET_WINDOW) mNextPoll = 0;
+    }
+
+    void save(SharedPreferences.Editor editor) {
+        editor.putLong(KEY_INTERVAL, mInterval)
+                .putLong(KEY_NEXT_POLL, mNextPoll)
+                .putLong(KEY_WINDOW_START, mWindowStart)
+                .putInt(KEY_REQUESTS, mRequests)
+                .putLong(KEY_BYTES, mBytes);
+    }
+}
@@ -0,0 +1,223 @@
+package com.example.android.quakereport;
+
+import android.content.Context;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * {@link EarthquakeSync} brings the cached earthquakes of one query up to date with the
+ * server in a single request, and writes the result back to the {@link EarthquakeCache}.
+ *
+ * Earthquakes ordered by time are synced with a delta: only the earthquakes updated after
+ * the latest known update are requested, and they are inserted, replaced or removed by their
+ * ids. Other orders revalidate their first page with a conditional request and merge in the
+ * earthquakes that changed.
+ *
+ * It is used by the {@link EarthquakeLoader} while the list is on screen, and by the
+ * {@link EarthquakePollService} while it is not.
+ */
+final class EarthquakeSync {
+
+    // url of the query, without paging parameters
+    private final String mUrl;
+
+    private final EarthquakeCache mCache;
+
+    // true if the earthquakes are ordered by time and can be synced with deltas
+    private final boolean mDeltaSync;
+
+    // last answer of the server, null if the last request failed
+    private QueryUtils.Response mLastResponse;
+
+    // bytes received for the last request, answered or not
+    private long mLastBytesOnWire;
+
+    EarthquakeSync(String url, EarthquakeCache cache, boolean deltaSync) {
+        mUrl = url;
+        mCache = cache;
+        mDeltaSync = deltaSync;
+    }
+
+    /**
+     * Return true if the earthquakes of a query are ordered by time.
+     */
+    static boolean isOrderedByTime(Context context, String url) {
+        return context.getString(R.string.settings_order_by_most_recent_value)
+                .equals(EarthquakeRequests.getQueryParameter(url, "orderby"));
+    }
+
+    /**
+     * Return the minimum magnitude of a query, negative infinity if it has none,
+     * or NaN if it is not a number.
+     */
+    static double minMagnitude(String url) {
+        String value = EarthquakeRequests.getQueryParameter(url, "minmag");
+        if (value == null) return Double.NEGATIVE_INFINITY;
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
+
+    /**
+     * Return the response of the last request if the server answered it, or null.
+     */
+    QueryUtils.Response getLastResponse() {
+        return mLastResponse;
+    }
+
+    /**
+     * Return the bytes received from the network for the last request, including the ones
+     * of an error response or of a response that was cancelled.
+     */
+    long getLastBytesOnWire() {
+        return mLastBytesOnWire;
+    }
+
+    /**
+     * Check cached earthquakes with the server and merge in the changes.
+     * Return the same store if nothing has changed or the request failed or was cancelled.
+     * The request has the priority of a refresh, the cached earthquakes can be shown meanwhile.
+     *
+     * @param complete true if the cached earthquakes are every earthquake of the query,
+     *                 false if more pages may follow them
+     */
+    EarthquakeStore revalidate(EarthquakeStore cached, boolean complete,
+                               Cancellation cancellation) {
+        if (mDeltaSync && cached.getLastUpdated() > 0) {
+            return sync(cached, complete, cancellation);
+        }
+
+        QueryUtils.Response response = fetch(buildPageUrl(mUrl, 0),
+                mCache.getETag(), mCache.getLastModified(), cancellation);
+        if (response == null || response.notModified) return cached;
+
+        EarthquakeStore earthquakes = merge(response.earthquakes, cached);
+        mCache.write(earthquakes, response.eTag, response.lastModified);
+        return earthquakes;
+    }
+
+    /**
+     * Request the earthquakes updated after the latest known update and apply them.
+     */
+    private EarthquakeStore sync(EarthquakeStore loaded, boolean complete,
+                                 Cancellation cancellation) {
+        String url = EarthquakeRequests.appendQueryParameter(mUrl, "updatedafter",
+                QueryUtils.formatQueryTime(loaded.getLastUpdated()));
+        url = EarthquakeRequests.appendQueryParameter(url, "includedeleted", "true");
+
+        QueryUtils.Response response = fetch(url, null, 0, cancellation);
+        if (response == null || response.earthquakes == null) return loaded;
+
+        EarthquakeStore earthquakes = applyDelta(loaded, response.earthquakes,
+                minMagnitude(mUrl), complete);
+        if (earthquakes != loaded) {
+            mCache.write(earthquakes, mCache.getETag(), mCache.getLastModified());
+        }
+        return earthquakes;
+    }
+
+    /**
+     * Send a request and remember the response if the server answered it.
+     */
+    private QueryUtils.Response fetch(String url, String eTag, long lastModified,
+                                      Cancellation cancellation) {
+        QueryUtils.Response response = EarthquakeRequests.fetch(url, eTag, lastModified,
+                FetchScheduler.PRIORITY_REFRESH, cancellation);
+        mLastBytesOnWire = response.bytesOnWire;
+        boolean answered = response.notModified || response.earthquakes != null;
+        mLastResponse = answered ? response : null;
+        return mLastResponse;
+    }
+
+    /**
+     * Apply a delta to earthquakes ordered by time, the newest first. Deleted earthquakes
+     * are removed, updated ones are replaced and new ones are inserted at their place in
+     * time. Earthquakes updated to a magnitude below the minimum of the query are removed
+     * like deleted ones.
+     *
+     * While more pages may follow, earthquakes of the delta that are older than the last
+     * loaded one are left to those pages. Inserting them would shift the offset of the next
+     * page, which would then repeat loaded earthquakes.
+     *
+     * Return the same store if the delta changes none of the earthquakes.
+     *
+     * @param minMagnitude minimum magnitude of the query
+     * @param complete     true if the earthquakes are every earthquake of the query
+     */
+    static EarthquakeStore applyDelta(EarthquakeStore earthquakes, final EarthquakeStore delta,
+                                      double minMagnitude, boolean complete) {
+        if (delta.isEmpty()) return earthquakes;
+
+        long oldest = complete || earthquakes.isEmpty()
+                ? Long.MIN_VALUE : earthquakes.getTime(earthquakes.size() - 1);
+        Set<String> changedIds = new HashSet<>();
+        List<Integer> inserted = new ArrayList<>();
+        for (int i = 0; i < delta.size(); i++) {
+            changedIds.add(delta.getId(i));
+            if (!delta.isDeleted(i) && !(delta.getMagnitude(i) < minMagnitude)
+                    && delta.getTime(i) >= oldest) {
+                inserted.add(i);
+            }
+        }
+        Collections.sort(inserted, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer first, Integer second) {
+                long firstTime = delta.getTime(first);
+                long secondTime = delta.getTime(second);
+                return firstTime > secondTime ? -1 : (firstTime == secondTime ? 0 : 1);
+            }
+        });
+
+        EarthquakeStore result = new EarthquakeStore(earthquakes.size() + inserted.size());
+        int next = 0;
+        for (int i = 0; i < earthquakes.size(); i++) {
+            if (changedIds.contains(earthquakes.getId(i))) continue;
+            while (next < inserted.size()
+                    && delta.getTime(inserted.get(next)) >= earthquakes.getTime(i)) {
+                result.add(delta, inserted.get(next++));
+            }
+            // unchanged earthquakes keep their formatted rows
+            result.add(earthquakes, i);
+        }
+        while (next < inserted.size()) result.add(delta, inserted.get(next++));
+        if (inserted.isEmpty() && result.size() == earthquakes.size()) return earthquakes;
+
+        result.trimToSize();
+        return result;
+    }
+
+    /**
+     * Return the earthquakes of the head store followed by the earthquakes of the tail store
+     * that are not in the head store. Earthquakes are matched by their USGS ids.
+     */
+    static EarthquakeStore merge(EarthquakeStore head, EarthquakeStore tail) {
+        EarthquakeStore earthquakes = new EarthquakeStore(head.size() + tail.size());
+        Set<String> ids = new HashSet<>();
+        for (int i = 0; i < head.size(); i++) {
+            earthquakes.add(head, i);
+            ids.add(head.getId(i));
+        }
+        for (int i = 0; i < tail.size(); i++) {
+            if (!ids.contains(tail.getId(i))) earthquakes.add(tail, i);
+        }
+        earthquakes.trimToSize();
+        return earthquakes;
+    }
+
+    /**
+     * Return the url of the page of a query starting after the given number of earthquakes.
+     */
+    static String buildPageUrl(String url, int offset) {
+        url = EarthquakeRequests.appendQueryParameter(url, "limit",
+                String.valueOf(EarthquakeLoader.PAGE_SIZE));
+        // USGS offsets are 1-based
+        return EarthquakeRequests.appendQueryParameter(url, "offset", String.valueOf(offset + 1));
+    }
+}
@@ -1,157 +0,0 @@
-package com.example.android.quakereport;
-
-import android.util.Log;
-
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
-
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.net.HttpURLConnection;
-import java.net.MalformedURLException;
-import java.net.URL;
-import java.nio.charset.Charset;
-import java.util.ArrayList;
-import java.util.List;
-
-/**
- * Helper methods related to requesting and receiving earthquake data from USGS.
- */
-public final class QueryUtils {
-
-    /** Tag for log messages */
-    private static final String LOG_TAG = QueryUtils.class.getSimpleName();
-
-    /**
-     * Create a private constructor because no one should ever create a {@link QueryUtils} object.
-     * This class is only meant to hold static variables and methods, which can be accessed
-     * directly from the class name QueryUtils (and an object instance of QueryUtils is not needed).
-     */
-    private QueryUtils() {
-    }
-
-    /**
-     * Make a http request to a provided url and return a list of earthquakes
-     */
-    public static List<Earthquake> fetchEarthquakesData(String requestUrl) {
-        URL url = createUrl(requestUrl);
-
-        String jsonResponse = null;
-        try {
-            jsonResponse = makeHttpRequest(url);
-        } catch (IOException e) {
-            Log.e(LOG_TAG, "Error closing input stream", e);
-            // TODO move exception handling into method that throws it
-        }
-
-        List<Earthquake> earthquakes = extractDataFromJson(jsonResponse);
-
-        return earthquakes;
-    }
-
-    /**
-     * Returns new URL object from a given string.
-     */
-    private static URL createUrl(String requestedUrl) {
-        URL url = null;
-        try {
-            url = new URL(requestedUrl);
-        } catch (MalformedURLException e) {
-            Log.e(LOG_TAG, "Error creating URL ", e);
-        }
-        return url;
-    }
-
-    /**
-     * Makes a HTTP request to a given URL and return a String response.
-     */
-    private static String makeHttpRequest(URL url) throws IOException {
-        String jsonResponse = "";
-
-        if (url == null) return jsonResponse;
-
-        HttpURLConnection urlConnection = null;
-        InputStream inputStream = null;
-        try {
-            urlConnection = (HttpURLConnection) url.openConnection();
-            urlConnection.setReadTimeout(10000 /* milliseconds */);
-            urlConnection.setConnectTimeout(15000 /* milliseconds */);
-            urlConnection.setRequestMethod("GET");
-            urlConnection.connect();
-
-            // If the request was successful (response code 200),
-            // read the input stream and parse the response.
-            if (urlConnection.getResponseCode() == 200) {
-                inputStream = urlConnection.getInputStream();
-                jsonResponse = readFromStream(inputStream);
-            } else {
-                Log.e(LOG_TAG, "Error response code " + urlConnection.getResponseCode());
-            }
-        } catch (IOException e) {
-            Log.e(LOG_TAG, "Error retrieving earthquake data", e);
-        } finally {
-            if (urlConnection != null) urlConnection.disconnect();
-            if (inputStream != null) inputStream.close();
-        }
-
-        return jsonResponse;
-    }
-
-    /**
-     * Read data from stream into a string.
-     */
-    private static String readFromStream(InputStream inputStream) throws IOException {
-        StringBuilder stringBuilder = new StringBuilder();
-
-        if (inputStream != null) {
-            InputStreamReader inputStreamReader = new InputStreamReader(inputStream, Charset.forName("UTF-8"));
-            BufferedReader bufferedReader = new BufferedReader(inputStreamReader);
-            String line;
-            while ((line = bufferedReader.readLine()) != null) {
-                stringBuilder.append(line);
-            }
-        }
-
-        return stringBuilder.toString();
-    }
-
-    /**
-     * Return a list of {@link Earthquake} objects that has been built up from
-     * parsing a JSON response.
-     */
-    private static List<Earthquake> extractDataFromJson(String jsonResponse) {
-        if (jsonResponse.isEmpty()) return null;
-
-        // Create an empty ArrayList that we can start adding earthquakes to
-        List<Earthquake> earthquakes = new ArrayList<>();
-
-        // Try to parse the SAMPLE_JSON_RESPONSE. If there's a problem with the way the JSON
-        // is formatted, a JSONException exception object will be thrown.
-        // Catch the exception so the app doesn't crash, and print the error message to the logs.
-        try {
-            JSONObject root = new JSONObject(jsonResponse);
-            JSONArray features = root.optJSONArray("features");
-
-            for (int i = 0; i < features.length(); i++) {
-                JSONObject feature = features.optJSONObject(i);
-                JSONObject properties = feature.optJSONObject("properties");
-
-                Double mag = properties.optDouble("mag");
-                String place = properties.optString("place");
-                long date = properties.optLong("time");
-                String url = properties.optString("url");
-
-                Earthquake earthquake = new Earthquake(mag, place, date, url);
-                earthquakes.add(earthquake);
-            }
-        } catch (JSONException e) {
-            Log.e(LOG_TAG, "Problem parsing the earthquake JSON results", e);
-        }
-
-        // Return the list of earthquakes
-        return earthquakes;
-    }
-}
@@ -27,6 +27,9 @@ public class SettingsActivity extends AppCompatActivity {
 
             Preference minimumMagnitude = findPreference(getString(R.string.settings_min_magnitude_key));
             bindPreferenceSummaryToValue(minimumMagnitude);
+
+            Preference period = findPreference(getString(R.string.settings_period_key));
+            bindPreferenceSummaryToValue(period);
         }
 
         @Override
@@ -0,0 +1,203 @@
+package com.example.android.quakereport;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test of {@link EarthquakePoller#poll(EarthquakeCache, EarthquakeSync)} from end to end:
+ * delta syncs of a cached query against a local fake of the USGS server, on a clock the test
+ * moves.
+ */
+public class EarthquakePollerLoopbackTest {
+
+    private static final long START = 1539820800000L;
+    private static final long MINUTE = 60 * 1000;
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    private HttpServer mServer;
+    private String mUrl;
+
+    // earthquakes of the server as {id, magnitude, time, updated}
+    private final List<Object[]> mEvents = new ArrayList<>();
+
+    // requests the server received, and the bytes of the bodies it sent
+    private final AtomicInteger mRequests = new AtomicInteger();
+    private final AtomicLong mBytes = new AtomicLong();
+
+    private long mNow = START;
+    private final EarthquakePoller.Clock mClock = new EarthquakePoller.Clock() {
+        @Override
+        public long currentTimeMillis() {
+            return mNow;
+        }
+    };
+
+    private File mFilesDir;
+    private EarthquakeCache mCache;
+    private EarthquakeSync mSync;
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = HttpServer.create(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0),
+                0);
+        mServer.createContext("/query", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                answer(exchange);
+            }
+        });
+        mServer.start();
+        mUrl = "http://127.0.0.1:" + mServer.getAddress().getPort()
+                + "/query?format=geojson&orderby=time&minmag=4.5";
+        // every poll is a request of its own
+        EarthquakeRequests.setTimeToLive(0);
+
+        for (int i = 0; i < 10; i++) addEvent("old" + i, 5, START - (i + 1) * MINUTE);
+        mFilesDir = mFolder.newFolder();
+        mCache = new EarthquakeCache(mFilesDir, mUrl);
+        mCache.write(getEvents(), null, 0);
+        mSync = new EarthquakeSync(mUrl, mCache, true);
+    }
+
+    @After
+    public void tearDown() {
+        mServer.stop(0);
+        EarthquakeRequests.setTimeToLive(60 * 1000);
+    }
+
+    @Test
+    public void pollsBackOffWhileNothingChangesAndSpeedUpForASignificantEarthquake() {
+        EarthquakePoller poller = new EarthquakePoller(mClock, 1000, Long.MAX_VALUE);
+        assertEquals(2 * EarthquakePoller.INITIAL_INTERVAL, poller.poll(mCache, mSync));
+        assertEquals(1, mRequests.get());
+
+        // too early, nothing is sent
+        mNow += MINUTE;
+        assertEquals(2 * EarthquakePoller.INITIAL_INTERVAL - MINUTE, poller.poll(mCache, mSync));
+        assertEquals(1, mRequests.get());
+
+        mNow += 2 * EarthquakePoller.INITIAL_INTERVAL;
+        assertEquals(4 * EarthquakePoller.INITIAL_INTERVAL, poller.poll(mCache, mSync));
+
+        mNow += 4 * EarthquakePoller.INITIAL_INTERVAL;
+        addEvent("big", 6.5, mNow - MINUTE);
+        assertEquals(EarthquakePoller.MIN_INTERVAL, poller.poll(mCache, mSync));
+        assertEquals(3, mRequests.get());
+
+        // the poll wrote the new earthquake to the cache
+        EarthquakeStore cached = new EarthquakeCache(mFilesDir, mUrl).read();
+        assertEquals(11, cached.size());
+        assertEquals("big", cached.getId(0));
+    }
+
+    /**
+     * The bytes of every response count against the budget, once they are spent the poller
+     * waits for the next window without sending anything.
+     */
+    @Test
+    public void byteBudgetStopsThePollsUntilTheNextWindow() {
+        EarthquakePoller poller = new EarthquakePoller(mClock, 1000, 20 * 1024);
+        long windowStart = mNow;
+
+        long polled = 0;
+        while (mBytes.get() < 20 * 1024) {
+            for (int i = 0; i < 20; i++) addEvent("new" + polled + "-" + i, 5, mNow - i);
+            long delay = poller.poll(mCache, mSync);
+            polled++;
+            assertEquals(polled, mRequests.get());
+            mNow += delay;
+        }
+        assertTrue(polled > 1);
+
+        // the budget is spent, so the poll waits for the next window
+        long delay = poller.poll(mCache, mSync);
+        assertEquals(windowStart + EarthquakePoller.BUDGET_WINDOW - mNow, delay);
+        assertEquals(polled, mRequests.get());
+
+        mNow += delay;
+        poller.poll(mCache, mSync);
+        assertEquals(polled + 1, mRequests.get());
+    }
+
+    private void answer(HttpExchange exchange) throws IOException {
+        mRequests.incrementAndGet();
+        String url = exchange.getRequestURI().toString();
+        String updatedAfter = EarthquakeRequests.getQueryParameter(url, "updatedafter");
+        long after = updatedAfter == null
+                ? Long.MIN_VALUE : QueryUtils.parseQueryTime(updatedAfter);
+
+        StringBuilder json = new StringBuilder("{\"type\":\"FeatureCollection\",\"features\":[");
+        synchronized (mEvents) {
+            boolean first = true;
+            for (Object[] event : mEvents) {
+                if ((Long) event[3] <= after) continue;
+                if (!first) json.append(',');
+                first = false;
+                json.append(String.format(Locale.US, "{\"type\":\"Feature\",\"properties\":"
+                                + "{\"mag\":%.1f,\"place\":\"10km N of Adak, Alaska\",\"time\":%d,"
+                                + "\"updated\":%d,\"status\":\"reviewed\"},\"geometry\":"
+                                + "{\"type\":\"Point\",\"coordinates\":[-176.6,51.9,10]},"
+                                + "\"id\":\"%s\"}",
+                        event[1], event[2], event[3], event[0]));
+            }
+        }
+        json.append("]}");
+
+        byte[] body = json.toString().getBytes("UTF-8");
+        mBytes.addAndGet(body.length);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, body.length);
+        OutputStream out = exchange.getResponseBody();
+        try {
+            out.write(body);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Add an earthquake to the server, updated at the current time of the test.
+     */
+    private void addEvent(String id, double magnitude, long time) {
+        synchronized (mEvents) {
+            mEvents.add(new Object[]{id, magnitude, time, mNow});
+        }
+    }
+
+    /**
+     * Return the earthquakes of the server.
+     */
+    private EarthquakeStore getEvents() {
+        EarthquakeStore earthquakes = new EarthquakeStore();
+        synchronized (mEvents) {
+            for (Object[] event : mEvents) {
+                earthquakes.add((String) event[0], (Double) event[1], "10km N of Adak, Alaska",
+                        (Long) event[2], null, (Long) event[3], 51.9, -176.6, false);
+            }
+        }
+        return earthquakes;
+    }
+}
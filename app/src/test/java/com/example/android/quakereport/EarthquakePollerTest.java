@@ -0,0 +1,120 @@
+package com.example.android.quakereport;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Test of the intervals and the budget of {@link EarthquakePoller}, on a clock the test moves.
+ */
+public class EarthquakePollerTest {
+
+    private static final long START = 1539820800000L;
+
+    private final FakeClock mClock = new FakeClock();
+
+    private final EarthquakeStore mCached = store("a", 4.5, START - 1000);
+
+    @Test
+    public void pollsBackOffWhileNothingChanges() {
+        EarthquakePoller poller = new EarthquakePoller(mClock, 1000, Long.MAX_VALUE);
+        assertEquals(0, poller.getDelay());
+        assertEquals(2 * EarthquakePoller.INITIAL_INTERVAL, poller.onPolled(mCached, mCached, 0));
+
+        mClock.advance(10 * 60 * 1000);
+        assertEquals(2 * EarthquakePoller.INITIAL_INTERVAL - 10 * 60 * 1000, poller.getDelay());
+
+        long interval = 2 * EarthquakePoller.INITIAL_INTERVAL;
+        for (int i = 0; i < 10; i++) {
+            mClock.advance(poller.getDelay());
+            assertEquals(0, poller.getDelay());
+            interval = Math.min(interval * 2, EarthquakePoller.MAX_INTERVAL);
+            assertEquals(interval, poller.onPolled(mCached, mCached, 0));
+        }
+        assertEquals(EarthquakePoller.MAX_INTERVAL, interval);
+    }
+
+    /**
+     * A significant earthquake brings the polls down to the shortest interval, however much of
+     * the budget is left for the rest of the window.
+     */
+    @Test
+    public void significantEarthquakePollsAtTheShortestInterval() {
+        EarthquakePoller poller = new EarthquakePoller(mClock,
+                EarthquakePoller.DEFAULT_MAX_REQUESTS, EarthquakePoller.DEFAULT_MAX_BYTES);
+        assertEquals(0, poller.getDelay());
+        assertEquals(EarthquakePoller.MIN_INTERVAL, poller.onPolled(mCached, significant(), 0));
+
+        mClock.advance(EarthquakePoller.MIN_INTERVAL - 1);
+        assertEquals(1, poller.getDelay());
+        mClock.advance(1);
+        assertEquals(0, poller.getDelay());
+
+        // a smaller earthquake does not change the interval
+        assertEquals(EarthquakePoller.MIN_INTERVAL,
+                poller.onPolled(mCached, store("b", 5.5, START), 0));
+    }
+
+    @Test
+    public void requestBudgetIsAHardCap() {
+        EarthquakePoller poller = new EarthquakePoller(mClock, 3, Long.MAX_VALUE);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(0, poller.getDelay());
+            assertEquals(EarthquakePoller.MIN_INTERVAL,
+                    poller.onPolled(mCached, significant(), 0));
+            mClock.advance(EarthquakePoller.MIN_INTERVAL);
+        }
+
+        // the window started with the first poll
+        long windowLeft = EarthquakePoller.BUDGET_WINDOW - 3 * EarthquakePoller.MIN_INTERVAL;
+        assertEquals(windowLeft, poller.getDelay());
+        mClock.advance(windowLeft - 1);
+        assertEquals(1, poller.getDelay());
+
+        // a new window, a new budget
+        mClock.advance(1);
+        assertEquals(0, poller.getDelay());
+    }
+
+    @Test
+    public void bytesOfEveryResponseAreCounted() {
+        EarthquakePoller poller = new EarthquakePoller(mClock, 1000, 1000);
+        assertEquals(0, poller.getDelay());
+        poller.onPolled(mCached, significant(), 600);
+        mClock.advance(EarthquakePoller.MIN_INTERVAL);
+
+        assertEquals(0, poller.getDelay());
+        // a response that failed still went over the network
+        long interval = poller.onPolled(mCached, mCached, 600);
+        mClock.advance(interval);
+
+        assertEquals(EarthquakePoller.BUDGET_WINDOW - EarthquakePoller.MIN_INTERVAL - interval,
+                poller.getDelay());
+    }
+
+    private EarthquakeStore significant() {
+        EarthquakeStore earthquakes = store("big", 6.5, START);
+        earthquakes.add(mCached.getId(0), mCached.getMagnitude(0), null, mCached.getTime(0),
+                null, 0, 0, 0, false);
+        return earthquakes;
+    }
+
+    private static EarthquakeStore store(String id, double magnitude, long time) {
+        EarthquakeStore earthquakes = new EarthquakeStore();
+        earthquakes.add(id, magnitude, null, time, null, 0, 0, 0, false);
+        return earthquakes;
+    }
+
+    private static final class FakeClock implements EarthquakePoller.Clock {
+        private long mNow = START;
+
+        void advance(long millis) {
+            mNow += millis;
+        }
+
+        @Override
+        public long currentTimeMillis() {
+            return mNow;
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package com.example.android.quakereport;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class EarthquakeSyncTest {
+
+    private static final double NO_MIN_MAGNITUDE = Double.NEGATIVE_INFINITY;
+
+    @Test
+    public void deltaIsAppliedInTimeOrder() {
+        EarthquakeStore loaded = store("a", 5, 500, "b", 5, 400, "c", 5, 300, "d", 5, 200);
+        EarthquakeStore delta = store("new", 5, 450, "newest", 5, 600, "c", 6.5, 350);
+        add(delta, "b", 5, 400, true);
+
+        EarthquakeStore earthquakes = EarthquakeSync.applyDelta(loaded, delta,
+                NO_MIN_MAGNITUDE, false);
+        assertIds(earthquakes, "newest", "a", "new", "c", "d");
+        assertEquals(6.5, earthquakes.getMagnitude(3), 0);
+        assertEquals(350, earthquakes.getTime(3));
+    }
+
+    /**
+     * Earthquakes older than the last loaded one belong to the pages that have not been
+     * loaded, adding them would make the next page start too far.
+     */
+    @Test
+    public void earthquakesOlderThanTheLoadedOnesAreLeftToTheNextPages() {
+        EarthquakeStore loaded = store("a", 5, 500, "b", 5, 400);
+        EarthquakeStore delta = store("c", 5, 450, "old", 5, 100, "tail", 5, 400);
+
+        assertIds(EarthquakeSync.applyDelta(loaded, delta, NO_MIN_MAGNITUDE, false),
+                "a", "c", "tail", "b");
+        // once every page is loaded, there is nothing to leave them to
+        assertIds(EarthquakeSync.applyDelta(loaded, delta, NO_MIN_MAGNITUDE, true),
+                "a", "c", "tail", "b", "old");
+    }
+
+    @Test
+    public void earthquakesOlderThanTheLoadedOnesAloneChangeNothing() {
+        EarthquakeStore loaded = store("a", 5, 500, "b", 5, 400);
+        EarthquakeStore delta = store("old", 5, 100, "older", 5, 50);
+        assertSame(loaded, EarthquakeSync.applyDelta(loaded, delta, NO_MIN_MAGNITUDE, false));
+    }
+
+    @Test
+    public void earthquakesBelowTheMinimumMagnitudeAreRemoved() {
+        EarthquakeStore loaded = store("a", 5, 500, "b", 4.6, 400, "c", 5, 300);
+        // b was revised below the minimum, d is new but below it too
+        EarthquakeStore delta = store("b", 4.4, 400, "d", 4.2, 350, "e", 4.5, 320);
+
+        assertIds(EarthquakeSync.applyDelta(loaded, delta, 4.5, false), "a", "e", "c");
+        assertIds(EarthquakeSync.applyDelta(loaded, delta, NO_MIN_MAGNITUDE, false),
+                "a", "b", "d", "e", "c");
+    }
+
+    @Test
+    public void emptyDeltaKeepsTheStore() {
+        EarthquakeStore loaded = store("a", 5, 500);
+        assertSame(loaded, EarthquakeSync.applyDelta(loaded, new EarthquakeStore(), 4.5, false));
+    }
+
+    @Test
+    public void mergeKeepsTheHeadVersionOfEveryEarthquake() {
+        EarthquakeStore head = store("a", 6, 500, "b", 6, 400);
+        EarthquakeStore tail = store("b", 5, 400, "c", 5, 300);
+        EarthquakeStore earthquakes = EarthquakeSync.merge(head, tail);
+        assertIds(earthquakes, "a", "b", "c");
+        assertEquals(6, earthquakes.getMagnitude(1), 0);
+    }
+
+    @Test
+    public void minimumMagnitudeIsReadFromTheQuery() {
+        assertEquals(4.5, EarthquakeSync.minMagnitude("https://x/query?minmag=4.5&limit=5"), 0);
+        assertEquals(Double.NEGATIVE_INFINITY,
+                EarthquakeSync.minMagnitude("https://x/query?limit=5"), 0);
+        assertEquals(Double.NaN, EarthquakeSync.minMagnitude("https://x/query?minmag=big"), 0);
+    }
+
+    /**
+     * Return a store of the given ids, magnitudes and times.
+     */
+    private static EarthquakeStore store(Object... earthquakes) {
+        EarthquakeStore store = new EarthquakeStore();
+        for (int i = 0; i < earthquakes.length; i += 3) {
+            add(store, (String) earthquakes[i], ((Number) earthquakes[i + 1]).doubleValue(),
+                    ((Number) earthquakes[i + 2]).longValue(), false);
+        }
+        return store;
+    }
+
+    private static void add(EarthquakeStore store, String id, double magnitude, long time,
+                            boolean deleted) {
+        store.add(id, magnitude, "10km N of Somewhere", time,
+                EarthquakeStore.EVENT_PAGE_URL + id, time + 1, 0, 0, deleted);
+    }
+
+    private static void assertIds(EarthquakeStore earthquakes, String... ids) {
+        String[] actual = new String[earthquakes.size()];
+        for (int i = 0; i < actual.length; i++) actual[i] = earthquakes.getId(i);
+        assertEquals(Arrays.toString(ids), Arrays.toString(actual));
+    }
+}
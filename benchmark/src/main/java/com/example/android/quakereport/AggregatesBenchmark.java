@@ -0,0 +1,92 @@
+package com.example.android.quakereport;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of keeping the aggregates of a loaded query up to date as results are
+ * delivered, and of reading them for a view.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+@State(Scope.Benchmark)
+public class AggregatesBenchmark {
+
+    private static final long DAY = 24 * 60 * 60 * 1000;
+
+    @Param({"20000"})
+    public int featureCount;
+
+    private EarthquakeStore mEarthquakes;
+
+    // the same earthquakes and a page of revisions of the most recent ones
+    private EarthquakeStore mRevised;
+
+    private EarthquakeAggregates mAggregates;
+
+    // flips between the two results, so every delivery changes something
+    private boolean mFlip;
+
+    @Setup(Level.Trial)
+    public void createEarthquakes() {
+        mEarthquakes = Fixtures.earthquakes(featureCount);
+        mRevised = new EarthquakeStore(featureCount);
+        for (int i = 0; i < featureCount; i++) {
+            if (i < 100) {
+                mRevised.add(mEarthquakes.getId(i), mEarthquakes.getMagnitude(i) + 0.1,
+                        mEarthquakes.getLocation(i), mEarthquakes.getTime(i),
+                        mEarthquakes.getUrl(i), mEarthquakes.getUpdated(i) + 1,
+                        mEarthquakes.getLatitude(i), mEarthquakes.getLongitude(i), false);
+            } else {
+                mRevised.add(mEarthquakes, i);
+            }
+        }
+        mAggregates = new EarthquakeAggregates(DAY);
+        mAggregates.setEarthquakes(mEarthquakes);
+    }
+
+    /**
+     * The first result of a query.
+     */
+    @Benchmark
+    public EarthquakeAggregates aggregateAll() {
+        EarthquakeAggregates aggregates = new EarthquakeAggregates(DAY);
+        aggregates.setEarthquakes(mEarthquakes);
+        return aggregates;
+    }
+
+    /**
+     * A later result, where a hundred earthquakes were revised.
+     */
+    @Benchmark
+    public EarthquakeAggregates deliverRevisions() {
+        mFlip = !mFlip;
+        mAggregates.setEarthquakes(mFlip ? mRevised : mEarthquakes);
+        return mAggregates;
+    }
+
+    @Benchmark
+    public EarthquakeAggregates.Summary clustersOfTheWorld() {
+        return mAggregates.getClusters(4, -90, -180, 90, 180);
+    }
+
+    @Benchmark
+    public EarthquakeAggregates.Summary histogram() {
+        return mAggregates.getHistogram(Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+}
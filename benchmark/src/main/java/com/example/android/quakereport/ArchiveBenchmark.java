@@ -0,0 +1,102 @@
+package com.example.android.quakereport;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of paging through the archive when the server cannot be reached, and of
+ * appending the revisions of a sync to it.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+@State(Scope.Benchmark)
+public class ArchiveBenchmark {
+
+    private static final int PAGE_SIZE = 100;
+
+    // about a year of earthquakes in a dozen chunks
+    @Param({"100000"})
+    public int featureCount;
+
+    private File mDir;
+    private EarthquakeStore mEarthquakes;
+    private EarthquakeArchive mArchive;
+
+    private final EarthquakeIndex.Query mByTime = new EarthquakeIndex.Query();
+    private final EarthquakeIndex.Query mByMagnitude = new EarthquakeIndex.Query();
+
+    // revisions of recent earthquakes, each one updated later than the last
+    private long mRevision;
+
+    @Setup(Level.Trial)
+    public void fillArchive() throws IOException {
+        mDir = File.createTempFile("archive", "");
+        if (!mDir.delete() || !mDir.mkdir()) throw new IOException("Cannot create " + mDir);
+        mEarthquakes = Fixtures.earthquakes(featureCount);
+        mArchive = new EarthquakeArchive(mDir);
+        mArchive.append(mEarthquakes);
+
+        mByTime.byTime = true;
+        mByTime.minMagnitude = 4.5;
+        mByMagnitude.minMagnitude = 4.5;
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteArchive() {
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File file : files) file.delete();
+        }
+        mDir.delete();
+    }
+
+    @Benchmark
+    public EarthquakeStore scanFirstPageByTime() throws IOException {
+        return mArchive.scan(mByTime, 0, PAGE_SIZE);
+    }
+
+    @Benchmark
+    public EarthquakeStore scanFirstPageByMagnitude() throws IOException {
+        return mArchive.scan(mByMagnitude, 0, PAGE_SIZE);
+    }
+
+    @Benchmark
+    public EarthquakeStore scanDeepPageByTime() throws IOException {
+        return mArchive.scan(mByTime, 10 * PAGE_SIZE, PAGE_SIZE);
+    }
+
+    /**
+     * A sync revises a few of the most recent earthquakes, whose ids are kept after the
+     * first append to their chunk.
+     */
+    @Benchmark
+    public void appendRevisions() throws IOException {
+        mRevision++;
+        EarthquakeStore revisions = new EarthquakeStore(10);
+        for (int i = 0; i < 10; i++) {
+            revisions.add(mEarthquakes.getId(i), mEarthquakes.getMagnitude(i),
+                    mEarthquakes.getLocation(i), mEarthquakes.getTime(i),
+                    mEarthquakes.getUrl(i), mEarthquakes.getUpdated(i) + mRevision,
+                    mEarthquakes.getLatitude(i), mEarthquakes.getLongitude(i), false);
+        }
+        mArchive.append(revisions);
+    }
+}
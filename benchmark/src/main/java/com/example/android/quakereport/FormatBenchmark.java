@@ -0,0 +1,127 @@
+package com.example.android.quakereport;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of the formatting of a single row and of its parts, each one measured per
+ * earthquake over the earthquakes of a response.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FormatBenchmark {
+
+    // the colors of the app do not change the cost of formatting
+    static final int[] MAGNITUDE_COLORS = {1, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10};
+    static final String NEAR_THE = "Near the";
+
+    private static final int ROWS = 1000;
+
+    private EarthquakeStore mEarthquakes;
+    private EarthquakeStore mFormatted;
+    private EarthquakeFormatter mFormatter;
+    private final Date mDate = new Date();
+
+    @Setup(Level.Trial)
+    public void parse() {
+        mEarthquakes = Fixtures.earthquakes(ROWS);
+        mFormatter = new EarthquakeFormatter(MAGNITUDE_COLORS, NEAR_THE);
+        mFormatted = Fixtures.earthquakes(ROWS);
+        EarthquakeFormatter.formatAll(MAGNITUDE_COLORS, NEAR_THE, mFormatted);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public void format(Blackhole blackhole) {
+        for (int i = 0; i < ROWS; i++) blackhole.consume(mFormatter.format(mEarthquakes, i));
+    }
+
+    /**
+     * Binding a row the loader has already formatted, apart from setting the views. Run
+     * with {@code -prof gc} to see that it allocates nothing.
+     */
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public void bindFormattedRow(Blackhole blackhole) {
+        for (int i = 0; i < ROWS; i++) {
+            long bindStart = System.nanoTime();
+            EarthquakeRow row = mFormatted.getRow(i);
+            blackhole.consume(row.magnitude);
+            blackhole.consume(row.magnitudeColor);
+            blackhole.consume(row.locationOffset);
+            blackhole.consume(row.locationPrimary);
+            blackhole.consume(row.date);
+            blackhole.consume(row.time);
+            Metrics.BIND.recordSince(bindStart);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public void formatDate(Blackhole blackhole) {
+        for (int i = 0; i < ROWS; i++) {
+            mDate.setTime(mEarthquakes.getTime(i));
+            blackhole.consume(mFormatter.formatDate(mDate));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public void formatTime(Blackhole blackhole) {
+        for (int i = 0; i < ROWS; i++) {
+            mDate.setTime(mEarthquakes.getTime(i));
+            blackhole.consume(mFormatter.formatTime(mDate));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public void formatMagnitude(Blackhole blackhole) {
+        for (int i = 0; i < ROWS; i++) {
+            blackhole.consume(mFormatter.formatMagnitude(mEarthquakes.getMagnitude(i)));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public void getMagnitudeColor(Blackhole blackhole) {
+        for (int i = 0; i < ROWS; i++) {
+            blackhole.consume(mFormatter.getMagnitudeColor(mEarthquakes.getMagnitude(i)));
+        }
+    }
+
+    /**
+     * Locations are split into their offset and primary location when an earthquake is
+     * added to a store, along with the interning of its strings.
+     */
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public EarthquakeStore splitLocation() {
+        EarthquakeStore earthquakes = new EarthquakeStore(ROWS);
+        for (int i = 0; i < ROWS; i++) {
+            earthquakes.add(mEarthquakes.getId(i), mEarthquakes.getMagnitude(i),
+                    mEarthquakes.getLocation(i), mEarthquakes.getTime(i), mEarthquakes.getUrl(i),
+                    mEarthquakes.getUpdated(i), mEarthquakes.getLatitude(i),
+                    mEarthquakes.getLongitude(i), false);
+        }
+        return earthquakes;
+    }
+}
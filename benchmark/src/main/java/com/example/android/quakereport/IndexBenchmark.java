@@ -0,0 +1,100 @@
+package com.example.android.quakereport;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of answering changed settings from the index of the loaded earthquakes instead
+ * of a new query to the server, and of building the index after a load.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+@State(Scope.Benchmark)
+public class IndexBenchmark {
+
+    private static final long DAY = 24 * 60 * 60 * 1000;
+
+    @Param({"100000"})
+    public int featureCount;
+
+    private EarthquakeStore mEarthquakes;
+    private EarthquakeIndex mIndex;
+
+    private final EarthquakeIndex.Query mMinMagnitude = new EarthquakeIndex.Query();
+    private final EarthquakeIndex.Query mReordered = new EarthquakeIndex.Query();
+    private final EarthquakeIndex.Query mTimeWindow = new EarthquakeIndex.Query();
+    private final EarthquakeIndex.Query mBoundingBox = new EarthquakeIndex.Query();
+
+    @Setup(Level.Trial)
+    public void buildIndex() {
+        mEarthquakes = Fixtures.earthquakes(featureCount);
+        mIndex = new EarthquakeIndex(mEarthquakes);
+
+        // a stricter minimum magnitude, in the order by magnitude
+        mMinMagnitude.minMagnitude = 6;
+
+        // every earthquake, ordered by time instead
+        mReordered.byTime = true;
+
+        // one week of the earthquakes
+        mTimeWindow.byTime = true;
+        mTimeWindow.endTime = mEarthquakes.getTime(0) - 7 * DAY;
+        mTimeWindow.startTime = mTimeWindow.endTime - 7 * DAY;
+
+        // the western Pacific
+        mBoundingBox.minMagnitude = 4.5;
+        mBoundingBox.south = -50;
+        mBoundingBox.north = 50;
+        mBoundingBox.west = 120;
+        mBoundingBox.east = -170;
+    }
+
+    @Benchmark
+    public int[] minMagnitude() {
+        return mIndex.select(mMinMagnitude);
+    }
+
+    @Benchmark
+    public int[] reorder() {
+        return mIndex.select(mReordered);
+    }
+
+    @Benchmark
+    public int[] timeWindow() {
+        return mIndex.select(mTimeWindow);
+    }
+
+    @Benchmark
+    public int[] boundingBox() {
+        return mIndex.select(mBoundingBox);
+    }
+
+    /**
+     * Select and copy the earthquakes of a stricter minimum magnitude into the store that is
+     * delivered.
+     */
+    @Benchmark
+    public EarthquakeStore queryMinMagnitude() {
+        return mIndex.query(mMinMagnitude);
+    }
+
+    @Benchmark
+    public EarthquakeIndex build() {
+        return new EarthquakeIndex(mEarthquakes);
+    }
+}
@@ -0,0 +1,65 @@
+package com.example.android.quakereport;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of the cost of recording a metric, which the app pays for every bound row.
+ * The threaded ones record into the same histogram from several threads at once, as the
+ * workers do while parsing and formatting. Run with {@code -prof gc} to see that recording
+ * allocates nothing.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MetricsBenchmark {
+
+    private final Metrics.Histogram mHistogram = new Metrics.Histogram("benchmark", "ns", 1);
+    private final Metrics.Counter mCounter = new Metrics.Counter("benchmark");
+
+    // varies the bucket, so the same element is not incremented every time
+    private long mValue;
+
+    @Benchmark
+    public void record() {
+        mHistogram.record(mValue++ & 0xffff);
+    }
+
+    /**
+     * What binding a row records: a time since a System.nanoTime().
+     */
+    @Benchmark
+    public void recordSince() {
+        mHistogram.recordSince(System.nanoTime());
+    }
+
+    @Benchmark
+    public void increment() {
+        mCounter.increment();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void recordContended() {
+        mHistogram.recordSince(System.nanoTime());
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void incrementContended() {
+        mCounter.increment();
+    }
+}
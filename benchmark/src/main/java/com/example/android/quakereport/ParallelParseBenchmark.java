@@ -0,0 +1,60 @@
+package com.example.android.quakereport;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark of how parsing a large response scales with the number of threads its chunks are
+ * parsed on. A single thread parses the response in one piece, as small responses are.
+ * The scaling is only meaningful on a machine with at least as many cores as threads.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+@State(Scope.Benchmark)
+public class ParallelParseBenchmark {
+
+    @Param({"20000", "100000"})
+    public int featureCount;
+
+    @Param({"1", "2", "4", "8"})
+    public int threadCount;
+
+    private byte[] mResponse;
+    private ForkJoinPool mPool;
+
+    private final Cancellation mCancellation = new Cancellation();
+
+    @Setup(Level.Trial)
+    public void createResponse() {
+        mResponse = Fixtures.response(featureCount);
+        mPool = new ForkJoinPool(threadCount);
+    }
+
+    @TearDown(Level.Trial)
+    public void shutdownPool() {
+        mPool.shutdown();
+    }
+
+    @Benchmark
+    public EarthquakeStore extractData() {
+        return QueryUtils.extractData(mResponse, mResponse.length, mCancellation, mPool,
+                threadCount);
+    }
+}
@@ -0,0 +1,83 @@
+package com.example.android.quakereport;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of reading, parsing and formatting whole responses of different sizes, the work
+ * of a load in the background.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+@State(Scope.Benchmark)
+public class ParseBenchmark {
+
+    @Param({"10", "1000", "20000", "100000"})
+    public int featureCount;
+
+    private byte[] mResponse;
+
+    private final Cancellation mCancellation = new Cancellation();
+
+    @Setup(Level.Trial)
+    public void createResponse() {
+        mResponse = Fixtures.response(featureCount);
+    }
+
+    @Benchmark
+    public int readFromStream() throws IOException {
+        ByteBuffer body = QueryUtils.readFromStream(new ByteArrayInputStream(mResponse),
+                mResponse.length, mCancellation);
+        BufferPool.release(body.array());
+        return body.limit();
+    }
+
+    @Benchmark
+    public EarthquakeStore extractData() {
+        return QueryUtils.extractData(mResponse, mResponse.length, mCancellation);
+    }
+
+    @Benchmark
+    public EarthquakeStore formatAll(Unformatted unformatted) {
+        EarthquakeFormatter.formatAll(FormatBenchmark.MAGNITUDE_COLORS, FormatBenchmark.NEAR_THE,
+                unformatted.earthquakes);
+        return unformatted.earthquakes;
+    }
+
+    /**
+     * Earthquakes of the response whose rows are cleared before every call, as they are
+     * when a page has just been parsed.
+     */
+    @State(Scope.Benchmark)
+    public static class Unformatted {
+        EarthquakeStore earthquakes;
+
+        @Setup(Level.Trial)
+        public void parse(ParseBenchmark benchmark) {
+            earthquakes = Fixtures.earthquakes(benchmark.featureCount);
+        }
+
+        @Setup(Level.Invocation)
+        public void clearRows() {
+            for (int i = 0; i < earthquakes.size(); i++) earthquakes.setRow(i, null);
+        }
+    }
+}
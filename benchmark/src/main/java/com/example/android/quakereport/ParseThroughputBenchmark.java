@@ -0,0 +1,110 @@
+package com.example.android.quakereport;
+
+import org.json.JSONException;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of reading and parsing responses in bytes per second, against the way the app
+ * did it before, see {@link JsonReference}. The bytes of the response are counted in the
+ * "bytes" column. Run with "-Pbenchmarks='ParseThroughputBenchmark -prof gc'" to see the
+ * bytes allocated per operation as well.
+ *
+ * Both parsers run on a single thread here, the parallel parse is measured by
+ * {@link ParallelParseBenchmark}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+@State(Scope.Benchmark)
+public class ParseThroughputBenchmark {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    @Param({"1000", "20000"})
+    public int featureCount;
+
+    private byte[] mResponse;
+    private String mJson;
+
+    private final Cancellation mCancellation = new Cancellation();
+
+    @Setup(Level.Trial)
+    public void createResponse() {
+        mResponse = Fixtures.response(featureCount);
+        mJson = new String(mResponse, UTF_8);
+    }
+
+    /**
+     * Bytes of the responses read or parsed in an iteration.
+     */
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Bytes {
+        public long bytes;
+
+        @Setup(Level.Iteration)
+        public void clear() {
+            bytes = 0;
+        }
+    }
+
+    @Benchmark
+    public int readFromStream(Bytes bytes) throws IOException {
+        return read(bytes, mResponse.length);
+    }
+
+    /**
+     * A body without a Content-Length, as gzip encoded responses are, read into the smallest
+     * array the pool keeps, which grows as needed.
+     */
+    @Benchmark
+    public int readFromStreamOfUnknownLength(Bytes bytes) throws IOException {
+        return read(bytes, -1);
+    }
+
+    @Benchmark
+    public int referenceReadFromStream(Bytes bytes) throws IOException {
+        bytes.bytes += mResponse.length;
+        return JsonReference.readFromStream(new ByteArrayInputStream(mResponse)).length();
+    }
+
+    @Benchmark
+    public EarthquakeStore extractData(Bytes bytes) {
+        bytes.bytes += mResponse.length;
+        return QueryUtils.extractData(mResponse, mResponse.length, mCancellation, null, 1);
+    }
+
+    @Benchmark
+    public EarthquakeStore referenceExtractData(Bytes bytes) throws JSONException {
+        bytes.bytes += mResponse.length;
+        return JsonReference.extractData(mJson);
+    }
+
+    private int read(Bytes bytes, int length) throws IOException {
+        bytes.bytes += mResponse.length;
+        ByteBuffer body = QueryUtils.readFromStream(new ByteArrayInputStream(mResponse),
+                length, mCancellation);
+        BufferPool.release(body.array());
+        return body.limit();
+    }
+}
@@ -0,0 +1,64 @@
+package com.example.android.quakereport;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark of reading cached earthquakes from a snapshot on a cold start, against parsing
+ * the response they came from.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+@State(Scope.Benchmark)
+public class SnapshotBenchmark {
+
+    @Param({"1000", "50000"})
+    public int featureCount;
+
+    private byte[] mResponse;
+    private File mFile;
+
+    private final Cancellation mCancellation = new Cancellation();
+
+    @Setup(Level.Trial)
+    public void writeSnapshot() throws IOException {
+        mResponse = Fixtures.response(featureCount);
+        EarthquakeStore earthquakes = QueryUtils.extractData(mResponse, mResponse.length,
+                mCancellation);
+        mFile = File.createTempFile("snapshot", ".bin");
+        new EarthquakeSnapshot("https://query", null, 0, earthquakes).write(mFile);
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteSnapshot() {
+        mFile.delete();
+    }
+
+    @Benchmark
+    public EarthquakeSnapshot readSnapshot() throws IOException {
+        return EarthquakeSnapshot.read(mFile);
+    }
+
+    @Benchmark
+    public EarthquakeStore extractData() {
+        return QueryUtils.extractData(mResponse, mResponse.length, mCancellation);
+    }
+}
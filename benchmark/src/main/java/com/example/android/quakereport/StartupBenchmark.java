@@ -0,0 +1,150 @@
+package com.example.android.quakereport;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of the time from the start of the app until earthquakes can be shown, against a
+ * local fake of the USGS server. A cold start has nothing cached and waits for the whole
+ * response, a warm start shows the cached earthquakes and revalidates them with a
+ * conditional request, which the server answers with 304 Not Modified.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+@State(Scope.Benchmark)
+public class StartupBenchmark {
+
+    private static final String ETAG = "\"v1\"";
+
+    @Param({"1000", "20000"})
+    public int featureCount;
+
+    private byte[] mResponse;
+    private HttpServer mServer;
+    private String mUrl;
+
+    private File mFilesDir;
+    private File mCacheDir;
+
+    @Setup(Level.Trial)
+    public void startServer() throws IOException {
+        mResponse = Fixtures.response(featureCount);
+        mServer = HttpServer.create(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0),
+                0);
+        mServer.createContext("/query", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                exchange.getResponseHeaders().set("ETag", ETAG);
+                if (ETAG.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                    exchange.sendResponseHeaders(304, -1);
+                    exchange.close();
+                    return;
+                }
+                exchange.sendResponseHeaders(200, mResponse.length);
+                OutputStream out = exchange.getResponseBody();
+                try {
+                    out.write(mResponse);
+                } finally {
+                    out.close();
+                }
+            }
+        });
+        mServer.start();
+        mUrl = "http://127.0.0.1:" + mServer.getAddress().getPort() + "/query";
+
+        mFilesDir = File.createTempFile("startup", "");
+        mFilesDir.delete();
+        mFilesDir.mkdirs();
+        mCacheDir = new File(mFilesDir, "earthquakes");
+    }
+
+    @TearDown(Level.Trial)
+    public void stopServer() {
+        mServer.stop(0);
+        deleteCache();
+        mFilesDir.delete();
+    }
+
+    /**
+     * Empty the cache before every cold start, a start takes milliseconds so the setup does
+     * not skew it.
+     */
+    @State(Scope.Thread)
+    public static class Cold {
+        @Setup(Level.Invocation)
+        public void emptyCache(StartupBenchmark benchmark) {
+            benchmark.deleteCache();
+        }
+    }
+
+    /**
+     * Fill the cache once for the warm starts.
+     */
+    @State(Scope.Thread)
+    public static class Warm {
+        @Setup(Level.Trial)
+        public void fillCache(StartupBenchmark benchmark) {
+            benchmark.deleteCache();
+            benchmark.start();
+        }
+    }
+
+    @Benchmark
+    public EarthquakeStore coldStart(Cold cold) {
+        return start();
+    }
+
+    @Benchmark
+    public EarthquakeStore warmStart(Warm warm) {
+        return start();
+    }
+
+    /**
+     * Start the way the loader does: show what is cached, then ask the server for what
+     * changed since, and cache a new response. Return the earthquakes that are shown.
+     */
+    private EarthquakeStore start() {
+        EarthquakeCache cache = new EarthquakeCache(mFilesDir, mUrl);
+        EarthquakeStore earthquakes = cache.read();
+        QueryUtils.Response response = QueryUtils.fetchEarthquakesData(
+                new UrlConnectionTransport(), mUrl, cache.getETag(), cache.getLastModified(),
+                new Cancellation());
+        if (response.notModified) return earthquakes;
+        if (response.earthquakes == null) throw new IllegalStateException("request failed");
+        cache.write(response.earthquakes, response.eTag, response.lastModified);
+        return response.earthquakes;
+    }
+
+    private void deleteCache() {
+        File[] files = mCacheDir.listFiles();
+        if (files != null) {
+            for (File file : files) file.delete();
+        }
+        mCacheDir.delete();
+    }
+}
@@ -0,0 +1,64 @@
+package com.example.android.quakereport;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * {@link BufferPool} lends the byte arrays that response bodies are read into, so every
+ * response does not allocate, grow and throw away an array of its own size.
+ *
+ * A few arrays are kept, one for every request that may run at the same time. Arrays larger
+ * than {@link #MAX_POOLED_SIZE} are left to the garbage collector, so one huge response does
+ * not pin its memory for good.
+ */
+final class BufferPool {
+
+    // size of the arrays handed out when the size of a body is not known
+    static final int MIN_SIZE = 64 * 1024;
+
+    // larger arrays are not kept
+    private static final int MAX_POOLED_SIZE = 8 * 1024 * 1024;
+
+    // number of arrays kept
+    private static final int MAX_POOLED = 4;
+
+    // arrays that are not lent out
+    private static final List<byte[]> sBuffers = new ArrayList<>();
+
+    private BufferPool() {
+    }
+
+    /**
+     * Return an array of at least the given size, the smallest one that is kept if it fits.
+     * It should be given back with {@link #release(byte[])} once its contents are not used.
+     */
+    static byte[] acquire(int size) {
+        synchronized (sBuffers) {
+            int best = -1;
+            for (int i = 0; i < sBuffers.size(); i++) {
+                int length = sBuffers.get(i).length;
+                if (length >= size && (best == -1 || length < sBuffers.get(best).length)) best = i;
+            }
+            if (best != -1) return sBuffers.remove(best);
+        }
+        return new byte[Math.max(size, MIN_SIZE)];
+    }
+
+    /**
+     * Give an array back to be lent again, replacing the smallest kept one if there are enough.
+     */
+    static void release(byte[] buffer) {
+        if (buffer.length > MAX_POOLED_SIZE) return;
+        synchronized (sBuffers) {
+            if (sBuffers.size() < MAX_POOLED) {
+                sBuffers.add(buffer);
+                return;
+            }
+            int smallest = 0;
+            for (int i = 1; i < sBuffers.size(); i++) {
+                if (sBuffers.get(i).length < sBuffers.get(smallest).length) smallest = i;
+            }
+            if (sBuffers.get(smallest).length < buffer.length) sBuffers.set(smallest, buffer);
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package com.example.android.quakereport;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * {@link Cancellation} lets another thread cancel a fetch.
+ *
+ * The fetch itself checks {@link #isCancelled()} between the reads of the response and
+ * between the parsed features, so it stops within one read of the network and one feature
+ * of parsing. Code that waits for something else, like a free slot of the
+ * {@link FetchScheduler}, adds a listener to be woken up.
+ */
+final class Cancellation {
+
+    private volatile boolean mCancelled;
+
+    // run once when cancelled, guarded by this
+    private final List<Runnable> mListeners = new ArrayList<>();
+
+    /**
+     * Cancel, and run the listeners on the calling thread. Cancelling again does nothing.
+     */
+    void cancel() {
+        Runnable[] listeners;
+        synchronized (this) {
+            if (mCancelled) return;
+            mCancelled = true;
+            listeners = mListeners.toArray(new Runnable[mListeners.size()]);
+            mListeners.clear();
+        }
+        // outside of the lock, so a listener may take locks of its own
+        for (Runnable listener : listeners) listener.run();
+    }
+
+    boolean isCancelled() {
+        return mCancelled;
+    }
+
+    /**
+     * Add a listener to run when cancelled, or run it right away if it is cancelled already.
+     */
+    void addListener(Runnable listener) {
+        synchronized (this) {
+            if (!mCancelled) {
+                mListeners.add(listener);
+                return;
+            }
+        }
+        listener.run();
+    }
+
+    void removeListener(Runnable listener) {
+        synchronized (this) {
+            mListeners.remove(listener);
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package com.example.android.quakereport;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * {@link DaemonThreadFactory} creates the daemon threads of the shared pools, which live as
+ * long as the process and must not keep a JVM running once everything else is done.
+ */
+final class DaemonThreadFactory implements ThreadFactory {
+
+    private final String mName;
+
+    // number of the next thread, part of its name
+    private final AtomicInteger mNumber = new AtomicInteger(1);
+
+    /**
+     * @param name name of the pool, the threads are named after it
+     */
+    DaemonThreadFactory(String name) {
+        mName = name;
+    }
+
+    @Override
+    public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, mName + "-" + mNumber.getAndIncrement());
+        thread.setDaemon(true);
+        return thread;
+    }
+}
@@ -0,0 +1,75 @@
+package com.example.android.quakereport;
+
+/**
+ * {@link Earthquake} represents a one earthquake occurrence.
+ *
+ * It is a lightweight view of one row of an {@link EarthquakeStore},
+ * the values themselves are kept by the store.
+ */
+public class Earthquake {
+
+    // store that holds the values of the earthquake
+    private final EarthquakeStore mStore;
+
+    // position of the earthquake in the store
+    private final int mIndex;
+
+    /**
+     * Construct an earthquake object
+     *
+     * @param store is a store that holds the earthquake
+     * @param index is a position of the earthquake in the store
+     */
+    Earthquake(EarthquakeStore store, int index) {
+        mStore = store;
+        mIndex = index;
+    }
+
+    EarthquakeStore getStore() {
+        return mStore;
+    }
+
+    int getIndex() {
+        return mIndex;
+    }
+
+    public String getId() {
+        return mStore.getId(mIndex);
+    }
+
+    public double getMagnitude() {
+        return mStore.getMagnitude(mIndex);
+    }
+
+    public String getLocation() {
+        return mStore.getLocation(mIndex);
+    }
+
+    String getLocationOffset() {
+        return mStore.getLocationOffset(mIndex);
+    }
+
+    String getLocationPrimary() {
+        return mStore.getLocationPrimary(mIndex);
+    }
+
+    public long getTime() {
+        return mStore.getTime(mIndex);
+    }
+
+    public String getUrl() {
+        return mStore.getUrl(mIndex);
+    }
+
+    public long getUpdated() {
+        return mStore.getUpdated(mIndex);
+    }
+
+    public double getLatitude() {
+        return mStore.getLatitude(mIndex);
+    }
+
+    public double getLongitude() {
+        return mStore.getLongitude(mIndex);
+    }
+}
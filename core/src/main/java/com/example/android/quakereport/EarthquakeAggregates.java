@@ -0,0 +1,571 @@
+package com.example.android.quakereport;
+
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * {@link EarthquakeAggregates} keeps counts and magnitudes of earthquakes per grid cell at
+ * every zoom level and per time bucket, for views that show too many earthquakes to draw
+ * them one by one, like clusters on a map or a histogram over time.
+ *
+ * At zoom level z the world is split into 2^z by 2^z cells of equal degrees. The aggregates
+ * follow the earthquakes of one loaded query, see {@link #setEarthquakes}: only earthquakes
+ * that are new, changed or gone since the last call update them. Adding an earthquake updates
+ * one cell per zoom level and one time bucket. When the biggest earthquake of a bucket is
+ * removed, its maximum is computed again, from the earthquakes of the bucket at the finest
+ * zoom level and for time buckets, and from the four cells below at the other zoom levels.
+ * Buckets left empty are dropped once they are as many as the others.
+ *
+ * Everything is held in primitive arrays, ids included, and cells and time buckets are
+ * found by packed long keys. Earthquakes without an id or a magnitude are left out.
+ * All methods are synchronized, so the aggregates can be updated on a background thread
+ * while a view reads them.
+ */
+final class EarthquakeAggregates {
+
+    // cells at the finest zoom level are 360 / 2^MAX_ZOOM degrees wide
+    static final int MAX_ZOOM = 10;
+
+    // empty buckets that are kept before they are dropped
+    private static final int MIN_EMPTY_BUCKETS = 1024;
+
+    // length of a time bucket
+    private final long mBucketDuration;
+
+    // slot of every id, in a table with linear probing, -1 for empty entries
+    private int[] mIdTable = Buckets.newTable(16);
+    private int mIdCount;
+
+    // values of the earthquakes by slot, a null id for a free slot
+    private String[] mIds = new String[0];
+    private double[] mMagnitudes = new double[0];
+    private double[] mLatitudes = new double[0];
+    private double[] mLongitudes = new double[0];
+    private long[] mTimes = new long[0];
+
+    // last call of setEarthquakes that listed the earthquake of a slot
+    private int[] mGenerations = new int[0];
+    private int mGeneration;
+
+    // slots of removed earthquakes, to be used again
+    private int[] mFreeSlots = new int[0];
+    private int mFreeCount;
+
+    // number of slots in use or free
+    private int mSlotCount;
+
+    // cells of every zoom level, only the finest one tracks its earthquakes
+    private final Buckets[] mCells = new Buckets[MAX_ZOOM + 1];
+
+    private Buckets mTimeBuckets;
+
+    /**
+     * @param bucketDuration length of a time bucket in milliseconds
+     */
+    EarthquakeAggregates(long bucketDuration) {
+        mBucketDuration = bucketDuration;
+        newBuckets();
+    }
+
+    /**
+     * Aggregates of buckets, one per position. Positions are in no particular order for
+     * cells and ordered by time for time buckets.
+     */
+    static final class Summary {
+        final int size;
+
+        // number of earthquakes and their biggest and mean magnitude
+        final int[] counts;
+        final double[] maxMagnitudes;
+        final double[] meanMagnitudes;
+
+        // mean coordinates of the earthquakes of a cell, NaN for time buckets
+        final double[] latitudes;
+        final double[] longitudes;
+
+        // start of a time bucket in milliseconds, 0 for cells
+        final long[] startTimes;
+
+        Summary(int size) {
+            this.size = size;
+            counts = new int[size];
+            maxMagnitudes = new double[size];
+            meanMagnitudes = new double[size];
+            latitudes = new double[size];
+            longitudes = new double[size];
+            startTimes = new long[size];
+        }
+    }
+
+    /**
+     * Make these the aggregates of the given earthquakes. Earthquakes that are new or whose
+     * magnitude, time or coordinates changed are added, earthquakes that are not in the store
+     * anymore or are deleted are removed, and the others are left as they are.
+     */
+    synchronized void setEarthquakes(EarthquakeStore earthquakes) {
+        int generation = ++mGeneration;
+        for (int i = 0; i < earthquakes.size(); i++) {
+            String id = earthquakes.getId(i);
+            double magnitude = earthquakes.getMagnitude(i);
+            if (id == null || earthquakes.isDeleted(i) || Double.isNaN(magnitude)) continue;
+            long time = earthquakes.getTime(i);
+            double latitude = earthquakes.getLatitude(i);
+            double longitude = earthquakes.getLongitude(i);
+
+            int slot = findSlot(id);
+            if (slot != -1) {
+                // an earthquake listed twice counts once
+                if (mGenerations[slot] == generation) continue;
+                if (mMagnitudes[slot] == magnitude && mTimes[slot] == time
+                        && mLatitudes[slot] == latitude && mLongitudes[slot] == longitude) {
+                    mGenerations[slot] = generation;
+                    continue;
+                }
+                remove(slot);
+            }
+            slot = add(id, magnitude, time, latitude, longitude);
+            mGenerations[slot] = generation;
+        }
+
+        for (int slot = 0; slot < mSlotCount; slot++) {
+            if (mIds[slot] != null && mGenerations[slot] != generation) remove(slot);
+        }
+        if (hasManyEmptyBuckets()) rebuild();
+    }
+
+    /**
+     * Return the number of earthquakes that are aggregated.
+     */
+    synchronized int size() {
+        return mIdCount;
+    }
+
+    /**
+     * Return the cells of a zoom level whose mean coordinates are in the given bounds.
+     * West may be greater than east across the antimeridian.
+     */
+    synchronized Summary getClusters(int zoom, double south, double west, double north,
+                                     double east) {
+        Buckets cells = mCells[Math.max(0, Math.min(zoom, MAX_ZOOM))];
+        int[] matches = new int[cells.mSize];
+        int count = 0;
+        for (int b = 0; b < cells.mSize; b++) {
+            if (cells.mCounts[b] == 0) continue;
+            double latitude = cells.mLatitudeSums[b] / cells.mCounts[b];
+            double longitude = cells.mLongitudeSums[b] / cells.mCounts[b];
+            if (latitude < south || latitude > north) continue;
+            if (west <= east ? longitude < west || longitude > east
+                    : longitude < west && longitude > east) {
+                continue;
+            }
+            matches[count++] = b;
+        }
+
+        Summary summary = new Summary(count);
+        for (int i = 0; i < count; i++) {
+            int b = matches[i];
+            fill(summary, i, cells, b);
+            summary.latitudes[i] = cells.mLatitudeSums[b] / cells.mCounts[b];
+            summary.longitudes[i] = cells.mLongitudeSums[b] / cells.mCounts[b];
+        }
+        return summary;
+    }
+
+    /**
+     * Return the time buckets that start in the given window, both ends included,
+     * the oldest first.
+     */
+    synchronized Summary getHistogram(long startTime, long endTime) {
+        Buckets buckets = mTimeBuckets;
+        long[] keys = new long[buckets.mSize];
+        int count = 0;
+        for (int b = 0; b < buckets.mSize; b++) {
+            if (buckets.mCounts[b] == 0) continue;
+            long bucketStart = buckets.mKeys[b] * mBucketDuration;
+            if (bucketStart >= startTime && bucketStart <= endTime) {
+                keys[count++] = buckets.mKeys[b];
+            }
+        }
+        Arrays.sort(keys, 0, count);
+
+        Summary summary = new Summary(count);
+        for (int i = 0; i < count; i++) {
+            fill(summary, i, buckets, buckets.find(keys[i]));
+            summary.latitudes[i] = Double.NaN;
+            summary.longitudes[i] = Double.NaN;
+            summary.startTimes[i] = keys[i] * mBucketDuration;
+        }
+        return summary;
+    }
+
+    /**
+     * Return the time buckets as text, one line per bucket, the oldest first.
+     */
+    synchronized String dump() {
+        Summary histogram = getHistogram(Long.MIN_VALUE, Long.MAX_VALUE);
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        StringBuilder builder = new StringBuilder();
+        builder.append("aggregated earthquakes: ").append(size()).append('\n');
+        for (int i = 0; i < histogram.size; i++) {
+            builder.append(String.format(Locale.US, "%s UTC: count %d, mean %.1f, max %.1f%n",
+                    format.format(new Date(histogram.startTimes[i])), histogram.counts[i],
+                    histogram.meanMagnitudes[i], histogram.maxMagnitudes[i]));
+        }
+        return builder.toString();
+    }
+
+    private static void fill(Summary summary, int position, Buckets buckets, int b) {
+        summary.counts[position] = buckets.mCounts[b];
+        summary.maxMagnitudes[position] = buckets.mMaxima[b];
+        summary.meanMagnitudes[position] = buckets.mSums[b] / buckets.mCounts[b];
+    }
+
+    private int add(String id, double magnitude, long time, double latitude,
+                    double longitude) {
+        int slot = mFreeCount > 0 ? mFreeSlots[--mFreeCount] : newSlot();
+        mIds[slot] = id;
+        insertId(slot);
+        mMagnitudes[slot] = magnitude;
+        mLatitudes[slot] = latitude;
+        mLongitudes[slot] = longitude;
+        mTimes[slot] = time;
+        include(slot);
+        return slot;
+    }
+
+    private void include(int slot) {
+        double magnitude = mMagnitudes[slot];
+        double latitude = mLatitudes[slot];
+        double longitude = mLongitudes[slot];
+        if (hasCoordinates(latitude, longitude)) {
+            for (int zoom = 0; zoom <= MAX_ZOOM; zoom++) {
+                Buckets cells = mCells[zoom];
+                int b = cells.getOrAdd(cellKey(zoom, latitude, longitude));
+                cells.include(b, magnitude, latitude, longitude);
+                if (zoom == MAX_ZOOM) cells.link(b, slot);
+            }
+        }
+        int b = mTimeBuckets.getOrAdd(bucketOf(mTimes[slot]));
+        mTimeBuckets.include(b, magnitude, 0, 0);
+        mTimeBuckets.link(b, slot);
+    }
+
+    private void remove(int slot) {
+        double magnitude = mMagnitudes[slot];
+        double latitude = mLatitudes[slot];
+        double longitude = mLongitudes[slot];
+
+        if (hasCoordinates(latitude, longitude)) {
+            Buckets finest = mCells[MAX_ZOOM];
+            int b = finest.mBucketOf[slot];
+            finest.unlink(b, slot);
+            if (finest.exclude(b, magnitude, latitude, longitude)) {
+                finest.mMaxima[b] = maxOfMembers(finest, b);
+            }
+            // a coarser cell is made of the four cells below it
+            for (int zoom = MAX_ZOOM - 1; zoom >= 0; zoom--) {
+                Buckets cells = mCells[zoom];
+                long key = cellKey(zoom, latitude, longitude);
+                int cell = cells.find(key);
+                if (cells.exclude(cell, magnitude, latitude, longitude)) {
+                    cells.mMaxima[cell] = maxOfChildren(zoom, key);
+                }
+            }
+        }
+        int b = mTimeBuckets.mBucketOf[slot];
+        mTimeBuckets.unlink(b, slot);
+        if (mTimeBuckets.exclude(b, magnitude, 0, 0)) {
+            mTimeBuckets.mMaxima[b] = maxOfMembers(mTimeBuckets, b);
+        }
+
+        removeId(slot);
+        mIds[slot] = null;
+        if (mFreeCount == mFreeSlots.length) {
+            mFreeSlots = Arrays.copyOf(mFreeSlots, Math.max(16, mFreeCount * 2));
+        }
+        mFreeSlots[mFreeCount++] = slot;
+    }
+
+    private int newSlot() {
+        if (mSlotCount == mMagnitudes.length) {
+            int capacity = Math.max(16, mSlotCount * 2);
+            mIds = Arrays.copyOf(mIds, capacity);
+            mMagnitudes = Arrays.copyOf(mMagnitudes, capacity);
+            mLatitudes = Arrays.copyOf(mLatitudes, capacity);
+            mLongitudes = Arrays.copyOf(mLongitudes, capacity);
+            mTimes = Arrays.copyOf(mTimes, capacity);
+            mGenerations = Arrays.copyOf(mGenerations, capacity);
+            mCells[MAX_ZOOM].ensureSlotCapacity(capacity);
+            mTimeBuckets.ensureSlotCapacity(capacity);
+        }
+        return mSlotCount++;
+    }
+
+    private boolean hasManyEmptyBuckets() {
+        int empty = mTimeBuckets.mEmptyCount;
+        int size = mTimeBuckets.mSize;
+        for (Buckets cells : mCells) {
+            empty += cells.mEmptyCount;
+            size += cells.mSize;
+        }
+        return empty >= MIN_EMPTY_BUCKETS && empty * 2 >= size;
+    }
+
+    /**
+     * Drop the empty buckets, by aggregating the earthquakes again into new buckets.
+     */
+    private void rebuild() {
+        newBuckets();
+        mCells[MAX_ZOOM].ensureSlotCapacity(mMagnitudes.length);
+        mTimeBuckets.ensureSlotCapacity(mMagnitudes.length);
+        for (int slot = 0; slot < mSlotCount; slot++) {
+            if (mIds[slot] != null) include(slot);
+        }
+    }
+
+    private void newBuckets() {
+        for (int zoom = 0; zoom <= MAX_ZOOM; zoom++) {
+            mCells[zoom] = new Buckets(zoom == MAX_ZOOM);
+        }
+        mTimeBuckets = new Buckets(true);
+    }
+
+    private int findSlot(String id) {
+        int mask = mIdTable.length - 1;
+        for (int i = idHash(id) & mask; mIdTable[i] != -1; i = (i + 1) & mask) {
+            if (mIds[mIdTable[i]].equals(id)) return mIdTable[i];
+        }
+        return -1;
+    }
+
+    private void insertId(int slot) {
+        // keep the table at most half full
+        if (++mIdCount * 2 > mIdTable.length) {
+            mIdTable = Buckets.newTable(mIdTable.length * 2);
+            for (int s = 0; s < mSlotCount; s++) {
+                if (mIds[s] != null && s != slot) placeId(s);
+            }
+        }
+        placeId(slot);
+    }
+
+    private void placeId(int slot) {
+        int mask = mIdTable.length - 1;
+        int i = idHash(mIds[slot]) & mask;
+        while (mIdTable[i] != -1) i = (i + 1) & mask;
+        mIdTable[i] = slot;
+    }
+
+    /**
+     * Take the id of a slot out of the table, and move back the entries after it that can
+     * take its place, so no other id becomes unreachable.
+     */
+    private void removeId(int slot) {
+        int mask = mIdTable.length - 1;
+        int i = idHash(mIds[slot]) & mask;
+        while (mIdTable[i] != slot) i = (i + 1) & mask;
+        for (int j = (i + 1) & mask; mIdTable[j] != -1; j = (j + 1) & mask) {
+            int home = idHash(mIds[mIdTable[j]]) & mask;
+            // the entry at j can move to i if i is between its home and j
+            if (((j - home) & mask) >= ((j - i) & mask)) {
+                mIdTable[i] = mIdTable[j];
+                i = j;
+            }
+        }
+        mIdTable[i] = -1;
+        mIdCount--;
+    }
+
+    private static int idHash(String id) {
+        return Buckets.hash(id.hashCode());
+    }
+
+    private double maxOfMembers(Buckets buckets, int b) {
+        double max = Double.NEGATIVE_INFINITY;
+        for (int slot = buckets.mHeads[b]; slot != -1; slot = buckets.mNext[slot]) {
+            max = Math.max(max, mMagnitudes[slot]);
+        }
+        return max;
+    }
+
+    private double maxOfChildren(int zoom, long key) {
+        Buckets children = mCells[zoom + 1];
+        int x = (int) (key >>> 32);
+        int y = (int) key;
+        double max = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < 4; i++) {
+            int child = children.find(key(2 * x + (i & 1), 2 * y + (i >> 1)));
+            if (child != -1 && children.mCounts[child] > 0) {
+                max = Math.max(max, children.mMaxima[child]);
+            }
+        }
+        return max;
+    }
+
+    private long bucketOf(long time) {
+        long bucket = time / mBucketDuration;
+        return time < 0 && time % mBucketDuration != 0 ? bucket - 1 : bucket;
+    }
+
+    private static boolean hasCoordinates(double latitude, double longitude) {
+        return latitude >= -90 && latitude <= 90 && longitude >= -180 && longitude <= 180;
+    }
+
+    private static long cellKey(int zoom, double latitude, double longitude) {
+        int cells = 1 << zoom;
+        int x = Math.min((int) ((longitude + 180) / 360 * cells), cells - 1);
+        int y = Math.min((int) ((latitude + 90) / 180 * cells), cells - 1);
+        return key(x, y);
+    }
+
+    private static long key(int x, int y) {
+        return ((long) x << 32) | (y & 0xffffffffL);
+    }
+
+    /**
+     * Aggregates of buckets by a long key, in parallel arrays indexed by bucket. Buckets
+     * stay in place when they become empty.
+     */
+    private static final class Buckets {
+        // bucket of every key, in a table with linear probing, -1 for empty entries
+        private int[] mTable = newTable(16);
+
+        long[] mKeys = new long[8];
+        int[] mCounts = new int[8];
+        double[] mSums = new double[8];
+        double[] mMaxima = new double[8];
+        double[] mLatitudeSums = new double[8];
+        double[] mLongitudeSums = new double[8];
+        int mSize;
+
+        // buckets without earthquakes
+        int mEmptyCount;
+
+        // first earthquake of every bucket, and the bucket and neighbours of every earthquake
+        // by slot, only if the earthquakes of the buckets are tracked
+        int[] mHeads;
+        int[] mBucketOf;
+        int[] mNext;
+        int[] mPrev;
+
+        Buckets(boolean tracksEarthquakes) {
+            if (tracksEarthquakes) {
+                mHeads = new int[8];
+                mBucketOf = new int[0];
+                mNext = new int[0];
+                mPrev = new int[0];
+            }
+        }
+
+        int find(long key) {
+            int mask = mTable.length - 1;
+            for (int i = hash(key) & mask; mTable[i] != -1; i = (i + 1) & mask) {
+                if (mKeys[mTable[i]] == key) return mTable[i];
+            }
+            return -1;
+        }
+
+        int getOrAdd(long key) {
+            int b = find(key);
+            if (b != -1) return b;
+
+            if (mSize == mKeys.length) {
+                int capacity = mSize * 2;
+                mKeys = Arrays.copyOf(mKeys, capacity);
+                mCounts = Arrays.copyOf(mCounts, capacity);
+                mSums = Arrays.copyOf(mSums, capacity);
+                mMaxima = Arrays.copyOf(mMaxima, capacity);
+                mLatitudeSums = Arrays.copyOf(mLatitudeSums, capacity);
+                mLongitudeSums = Arrays.copyOf(mLongitudeSums, capacity);
+                if (mHeads != null) mHeads = Arrays.copyOf(mHeads, capacity);
+            }
+            b = mSize++;
+            mEmptyCount++;
+            mKeys[b] = key;
+            mMaxima[b] = Double.NEGATIVE_INFINITY;
+            if (mHeads != null) mHeads[b] = -1;
+
+            // keep the table at most half full
+            if (mSize * 2 > mTable.length) {
+                mTable = newTable(mTable.length * 2);
+                for (int i = 0; i < mSize; i++) insert(i);
+            } else {
+                insert(b);
+            }
+            return b;
+        }
+
+        private void insert(int b) {
+            int mask = mTable.length - 1;
+            int i = hash(mKeys[b]) & mask;
+            while (mTable[i] != -1) i = (i + 1) & mask;
+            mTable[i] = b;
+        }
+
+        void include(int b, double magnitude, double latitude, double longitude) {
+            if (mCounts[b]++ == 0) mEmptyCount--;
+            mSums[b] += magnitude;
+            mLatitudeSums[b] += latitude;
+            mLongitudeSums[b] += longitude;
+            if (magnitude > mMaxima[b]) mMaxima[b] = magnitude;
+        }
+
+        /**
+         * Take an earthquake out of the sums of a bucket.
+         * Return true if it was the biggest, so the maximum has to be computed again.
+         */
+        boolean exclude(int b, double magnitude, double latitude, double longitude) {
+            if (--mCounts[b] == 0) {
+                mEmptyCount++;
+                // start over from zero instead of keeping rounding errors
+                mSums[b] = 0;
+                mLatitudeSums[b] = 0;
+                mLongitudeSums[b] = 0;
+                mMaxima[b] = Double.NEGATIVE_INFINITY;
+                return false;
+            }
+            mSums[b] -= magnitude;
+            mLatitudeSums[b] -= latitude;
+            mLongitudeSums[b] -= longitude;
+            return magnitude >= mMaxima[b];
+        }
+
+        void ensureSlotCapacity(int capacity) {
+            mBucketOf = Arrays.copyOf(mBucketOf, capacity);
+            mNext = Arrays.copyOf(mNext, capacity);
+            mPrev = Arrays.copyOf(mPrev, capacity);
+        }
+
+        void link(int b, int slot) {
+            mBucketOf[slot] = b;
+            mPrev[slot] = -1;
+            mNext[slot] = mHeads[b];
+            if (mHeads[b] != -1) mPrev[mHeads[b]] = slot;
+            mHeads[b] = slot;
+        }
+
+        void unlink(int b, int slot) {
+            if (mPrev[slot] != -1) {
+                mNext[mPrev[slot]] = mNext[slot];
+            } else {
+                mHeads[b] = mNext[slot];
+            }
+            if (mNext[slot] != -1) mPrev[mNext[slot]] = mPrev[slot];
+        }
+
+        static int[] newTable(int size) {
+            int[] table = new int[size];
+            Arrays.fill(table, -1);
+            return table;
+        }
+
+        static int hash(long key) {
+            long h = key * 0x9e3779b97f4a7c15L;
+            return (int) (h ^ (h >>> 32));
+        }
+    }
+}
@@ -0,0 +1,465 @@
+package com.example.android.quakereport;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * {@link EarthquakeArchive} keeps every earthquake the app has received in append-only files,
+ * so years of history can be filtered without holding them on the heap.
+ *
+ * The archive is split into chunks of {@link #CHUNK_DURATION} by the time of the earthquakes.
+ * Every chunk is a file of fixed-width records and a file of the strings they refer to:
+ *
+ * <pre>
+ * records  int magic, int version, long reserved,
+ *          then per earthquake: long time, long updated, double magnitude,
+ *          double latitude, double longitude, int idOffset, int locationOffset,
+ *          int urlOffset, int flags
+ * strings  int magic, int version,
+ *          then per string: int length, byte[length] UTF-8 data
+ * </pre>
+ *
+ * String offsets point into the strings file, -1 stands for an absent string. All the
+ * numbers are big-endian. The strings of a record are written before the record, so a record
+ * never refers to strings that are not there yet.
+ *
+ * An earthquake that is appended again with a later update supersedes its previous record,
+ * which is flagged in place once the new record is written. The previous record is looked up
+ * in the chunk of the earthquake and its two neighbours, as revisions move the time of an
+ * earthquake by seconds at most. Deleted earthquakes are appended as flagged records, so they
+ * are not added back by older data.
+ *
+ * Scans map the record files and read the time, magnitude and coordinates of every record
+ * straight from the mapping. Only the records that are returned are turned into earthquakes.
+ * Appends and scans hold the lock of the archive, so a scan never sees a record that is
+ * half written or flagged while it is read.
+ *
+ * The record index of every id is read once per chunk and kept for the chunks appended to
+ * most recently, as earthquakes revised over and over keep landing in the same few chunks.
+ */
+final class EarthquakeArchive {
+
+    // "QKAR"
+    private static final int MAGIC = 0x514b4152;
+
+    // version of the file format, files with other versions are not read
+    private static final int VERSION = 1;
+
+    // time span of the earthquakes of one chunk
+    static final long CHUNK_DURATION = 30L * 24 * 60 * 60 * 1000; /* milliseconds */
+
+    private static final String RECORDS_SUFFIX = ".rec";
+    private static final String STRINGS_SUFFIX = ".str";
+
+    private static final int RECORDS_HEADER_SIZE = 16;
+    private static final int STRINGS_HEADER_SIZE = 8;
+
+    // size of a record and offsets of its fields
+    private static final int RECORD_SIZE = 56;
+    private static final int TIME_OFFSET = 0;
+    private static final int UPDATED_OFFSET = 8;
+    private static final int MAGNITUDE_OFFSET = 16;
+    private static final int LATITUDE_OFFSET = 24;
+    private static final int LONGITUDE_OFFSET = 32;
+    private static final int ID_OFFSET = 40;
+    private static final int LOCATION_OFFSET = 44;
+    private static final int URL_OFFSET = 48;
+    private static final int FLAGS_OFFSET = 52;
+
+    // flags of records that are not returned by scans
+    private static final int FLAG_SUPERSEDED = 1;
+    private static final int FLAG_DELETED = 2;
+
+    // offset of an absent string
+    private static final int NO_STRING = -1;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // directory inside the app files directory that holds the archive
+    private static final String ARCHIVE_DIR = "archive";
+
+    // number of chunks whose ids are kept, an append reads those of three chunks at least
+    private static final int MAX_ID_CHUNKS = 6;
+
+    private static EarthquakeArchive sInstance;
+
+    private final File mDir;
+
+    // record index of every id, by chunk, the chunk appended to least recently first
+    private final LinkedHashMap<Long, Map<String, Integer>> mIds =
+            new LinkedHashMap<Long, Map<String, Integer>>(8, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(
+                        Map.Entry<Long, Map<String, Integer>> eldest) {
+                    return size() > MAX_ID_CHUNKS;
+                }
+            };
+
+    /**
+     * Return the archive of the app, kept in the given files directory.
+     */
+    static synchronized EarthquakeArchive get(File filesDir) {
+        if (sInstance == null) sInstance = new EarthquakeArchive(new File(filesDir, ARCHIVE_DIR));
+        return sInstance;
+    }
+
+    EarthquakeArchive(File dir) {
+        mDir = dir;
+    }
+
+    /**
+     * Append earthquakes to the archive. Earthquakes that are already archived with the same
+     * or a later update are skipped.
+     */
+    synchronized void append(EarthquakeStore earthquakes) throws IOException {
+        if (!mDir.exists() && !mDir.mkdirs()) throw new IOException("Cannot create " + mDir);
+
+        // group the earthquakes by chunk, most of the time they all fall into one or two
+        Map<Long, List<Integer>> chunks = new HashMap<>();
+        for (int i = 0; i < earthquakes.size(); i++) {
+            long chunk = chunkOf(earthquakes.getTime(i));
+            List<Integer> positions = chunks.get(chunk);
+            if (positions == null) {
+                positions = new ArrayList<>();
+                chunks.put(chunk, positions);
+            }
+            positions.add(i);
+        }
+        try {
+            for (Map.Entry<Long, List<Integer>> entry : chunks.entrySet()) {
+                appendToChunk(entry.getKey(), earthquakes, entry.getValue());
+            }
+        } catch (IOException e) {
+            // the ids may not match the files anymore
+            mIds.clear();
+            throw e;
+        }
+    }
+
+    private void appendToChunk(long chunk, EarthquakeStore earthquakes, List<Integer> positions)
+            throws IOException {
+        File recordsFile = new File(mDir, chunk + RECORDS_SUFFIX);
+        File stringsFile = new File(mDir, chunk + STRINGS_SUFFIX);
+        if (!recordsFile.exists() || !stringsFile.exists()) {
+            createChunk(recordsFile, stringsFile);
+        }
+
+        // drop a record torn by a crash, it is not referred to by the ids
+        int recordCount;
+        RandomAccessFile file = new RandomAccessFile(recordsFile, "rw");
+        try {
+            recordCount = recordCount(file.length());
+            file.setLength(recordOffset(recordCount));
+        } finally {
+            file.close();
+        }
+        Map<String, Integer> ids = readIds(chunk, recordsFile, stringsFile);
+
+        // the previous record of an earthquake is in its chunk, or in a neighbouring one if a
+        // revision moved its time across the boundary
+        List<Long> neighbours = new ArrayList<>(3);
+        List<Map<String, Integer>> neighbourIds = new ArrayList<>(3);
+        List<ByteBuffer> neighbourRecords = new ArrayList<>(3);
+        for (long neighbour : new long[]{chunk, chunk - 1, chunk + 1}) {
+            File neighbourRecordsFile = new File(mDir, neighbour + RECORDS_SUFFIX);
+            File neighbourStringsFile = new File(mDir, neighbour + STRINGS_SUFFIX);
+            if (!neighbourRecordsFile.exists() || !neighbourStringsFile.exists()) continue;
+            ByteBuffer records = map(neighbourRecordsFile);
+            if (records == null) continue;
+            neighbours.add(neighbour);
+            neighbourIds.add(neighbour == chunk
+                    ? ids : readIds(neighbour, neighbourRecordsFile, neighbourStringsFile));
+            neighbourRecords.add(records);
+        }
+
+        // leave out earthquakes that are archived already, collect the records they supersede
+        List<Integer> appended = new ArrayList<>(positions.size());
+        Map<Long, List<Integer>> superseded = new HashMap<>();
+        for (int position : positions) {
+            String id = earthquakes.getId(position);
+            int[] previous = new int[neighbours.size()];
+            boolean archived = false;
+            for (int n = 0; n < neighbours.size() && !archived; n++) {
+                Integer record = neighbourIds.get(n).get(id);
+                previous[n] = record == null ? -1 : record;
+                archived = record != null && neighbourRecords.get(n).getLong(
+                        recordOffset(record) + UPDATED_OFFSET) >= earthquakes.getUpdated(position);
+            }
+            if (archived) continue;
+
+            appended.add(position);
+            for (int n = 0; n < neighbours.size(); n++) {
+                if (previous[n] < 0) continue;
+                int base = recordOffset(previous[n]);
+                if ((neighbourRecords.get(n).getInt(base + FLAGS_OFFSET) & FLAG_SUPERSEDED) != 0) {
+                    continue;
+                }
+                List<Integer> records = superseded.get(neighbours.get(n));
+                if (records == null) {
+                    records = new ArrayList<>();
+                    superseded.put(neighbours.get(n), records);
+                }
+                records.add(previous[n]);
+            }
+        }
+        if (appended.isEmpty()) return;
+
+        // strings first, then the records that refer to them
+        long stringsLength = stringsFile.length();
+        int[] idOffsets = new int[appended.size()];
+        int[] locationOffsets = new int[appended.size()];
+        int[] urlOffsets = new int[appended.size()];
+        DataOutputStream strings = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(stringsFile, true)));
+        try {
+            for (int i = 0; i < appended.size(); i++) {
+                int position = appended.get(i);
+                idOffsets[i] = writeString(strings, stringsLength, earthquakes.getId(position));
+                locationOffsets[i] = writeString(strings, stringsLength,
+                        earthquakes.getLocation(position));
+                urlOffsets[i] = writeString(strings, stringsLength, earthquakes.getUrl(position));
+            }
+        } finally {
+            strings.close();
+        }
+
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(recordsFile, true)));
+        try {
+            for (int i = 0; i < appended.size(); i++) {
+                int position = appended.get(i);
+                out.writeLong(earthquakes.getTime(position));
+                out.writeLong(earthquakes.getUpdated(position));
+                out.writeDouble(earthquakes.getMagnitude(position));
+                out.writeDouble(earthquakes.getLatitude(position));
+                out.writeDouble(earthquakes.getLongitude(position));
+                out.writeInt(idOffsets[i]);
+                out.writeInt(locationOffsets[i]);
+                out.writeInt(urlOffsets[i]);
+                out.writeInt(earthquakes.isDeleted(position) ? FLAG_DELETED : 0);
+            }
+        } finally {
+            out.close();
+        }
+        for (int i = 0; i < appended.size(); i++) {
+            ids.put(earthquakes.getId(appended.get(i)), recordCount + i);
+        }
+
+        // flag the previous records only once their replacements are written, a crash in
+        // between leaves an earthquake twice rather than not at all
+        for (Map.Entry<Long, List<Integer>> entry : superseded.entrySet()) {
+            RandomAccessFile records = new RandomAccessFile(
+                    new File(mDir, entry.getKey() + RECORDS_SUFFIX), "rw");
+            try {
+                for (int record : entry.getValue()) {
+                    records.seek(recordOffset(record) + FLAGS_OFFSET);
+                    int flags = records.readInt();
+                    records.seek(recordOffset(record) + FLAGS_OFFSET);
+                    records.writeInt(flags | FLAG_SUPERSEDED);
+                }
+            } finally {
+                records.close();
+            }
+        }
+    }
+
+    /**
+     * Return the earthquakes of the archive that match a query, in the order of the query,
+     * skipping the given number of them.
+     */
+    synchronized EarthquakeStore scan(EarthquakeIndex.Query query, int offset, int limit)
+            throws IOException {
+        List<MappedByteBuffer> chunks = new ArrayList<>();
+        List<File> stringsFiles = new ArrayList<>();
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            long firstChunk = chunkOf(query.startTime);
+            long lastChunk = chunkOf(query.endTime);
+            for (File file : files) {
+                String name = file.getName();
+                if (!name.endsWith(RECORDS_SUFFIX)) continue;
+                long chunk;
+                try {
+                    chunk = Long.parseLong(
+                            name.substring(0, name.length() - RECORDS_SUFFIX.length()));
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+                if (chunk < firstChunk || chunk > lastChunk) continue;
+
+                MappedByteBuffer records = map(file);
+                if (records == null) continue;
+                chunks.add(records);
+                stringsFiles.add(new File(mDir, chunk + STRINGS_SUFFIX));
+            }
+        }
+
+        // collect the matching records with the sort key of the query
+        long[] keys = new long[64];
+        long[] matches = new long[64];
+        int count = 0;
+        for (int c = 0; c < chunks.size(); c++) {
+            ByteBuffer records = chunks.get(c);
+            int recordCount = recordCount(records.capacity());
+            for (int r = 0; r < recordCount; r++) {
+                int base = recordOffset(r);
+                if (records.getInt(base + FLAGS_OFFSET) != 0) continue;
+                long time = records.getLong(base + TIME_OFFSET);
+                double magnitude = records.getDouble(base + MAGNITUDE_OFFSET);
+                if (!query.matches(magnitude, time, records.getDouble(base + LATITUDE_OFFSET),
+                        records.getDouble(base + LONGITUDE_OFFSET))) {
+                    continue;
+                }
+                if (count == keys.length) {
+                    keys = Arrays.copyOf(keys, count * 2);
+                    matches = Arrays.copyOf(matches, count * 2);
+                }
+                keys[count] = query.byTime ? time : EarthquakeIndex.sortableBits(magnitude);
+                matches[count++] = ((long) c << 32) | r;
+            }
+        }
+
+        int[] order = EarthquakeIndex.sortDescending(Arrays.copyOf(keys, count));
+        int end = (int) Math.min(count, (long) offset + limit);
+        EarthquakeStore earthquakes = new EarthquakeStore(Math.max(end - offset, 0));
+        ByteBuffer[] strings = new ByteBuffer[chunks.size()];
+        for (int i = offset; i < end; i++) {
+            long match = matches[order[i]];
+            int c = (int) (match >>> 32);
+            int base = recordOffset((int) match);
+            if (strings[c] == null) strings[c] = map(stringsFiles.get(c));
+            readRecord(chunks.get(c), base, strings[c], earthquakes);
+        }
+        earthquakes.trimToSize();
+        return earthquakes;
+    }
+
+    private static void readRecord(ByteBuffer records, int base, ByteBuffer strings,
+                                   EarthquakeStore earthquakes) {
+        earthquakes.add(readString(strings, records.getInt(base + ID_OFFSET)),
+                records.getDouble(base + MAGNITUDE_OFFSET),
+                readString(strings, records.getInt(base + LOCATION_OFFSET)),
+                records.getLong(base + TIME_OFFSET),
+                readString(strings, records.getInt(base + URL_OFFSET)),
+                records.getLong(base + UPDATED_OFFSET),
+                records.getDouble(base + LATITUDE_OFFSET),
+                records.getDouble(base + LONGITUDE_OFFSET),
+                false);
+    }
+
+    /**
+     * Return the record index of every id of a chunk, reading them only when they are not
+     * kept already.
+     */
+    private Map<String, Integer> readIds(long chunk, File recordsFile, File stringsFile)
+            throws IOException {
+        Map<String, Integer> kept = mIds.get(chunk);
+        if (kept != null) return kept;
+
+        Map<String, Integer> ids = new HashMap<>();
+        MappedByteBuffer records = map(recordsFile);
+        MappedByteBuffer strings = map(stringsFile);
+        if (records != null && strings != null) {
+            int recordCount = recordCount(records.capacity());
+            for (int r = 0; r < recordCount; r++) {
+                String id = readString(strings, records.getInt(recordOffset(r) + ID_OFFSET));
+                if (id != null) ids.put(id, r);
+            }
+        }
+        mIds.put(chunk, ids);
+        return ids;
+    }
+
+    private static void createChunk(File recordsFile, File stringsFile) throws IOException {
+        DataOutputStream records = new DataOutputStream(new FileOutputStream(recordsFile));
+        try {
+            records.writeInt(MAGIC);
+            records.writeInt(VERSION);
+            records.writeLong(0);
+        } finally {
+            records.close();
+        }
+        DataOutputStream strings = new DataOutputStream(new FileOutputStream(stringsFile));
+        try {
+            strings.writeInt(MAGIC);
+            strings.writeInt(VERSION);
+        } finally {
+            strings.close();
+        }
+    }
+
+    /**
+     * Map a chunk file, or return null if it is not a file of the current version.
+     */
+    private static MappedByteBuffer map(File file) throws IOException {
+        MappedByteBuffer buffer;
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            // the mapping stays valid after the channel is closed
+            in.close();
+        }
+        if (buffer.capacity() < STRINGS_HEADER_SIZE) return null;
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) return null;
+        return buffer;
+    }
+
+    /**
+     * Write a string at the end of the strings file and return its offset.
+     */
+    private static int writeString(DataOutputStream strings, long start, String string)
+            throws IOException {
+        if (string == null) return NO_STRING;
+        int offset = (int) (start + strings.size());
+        byte[] bytes = string.getBytes(UTF_8);
+        strings.writeInt(bytes.length);
+        strings.write(bytes);
+        return offset;
+    }
+
+    private static String readString(ByteBuffer strings, int offset) {
+        if (offset == NO_STRING) return null;
+        byte[] bytes = new byte[strings.getInt(offset)];
+        // read through a duplicate, the position of the shared buffer is left alone
+        ByteBuffer data = strings.duplicate();
+        data.position(offset + 4);
+        data.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    /**
+     * Return the number of complete records of a records file of the given length.
+     */
+    private static int recordCount(long length) {
+        return (int) Math.max(0, (length - RECORDS_HEADER_SIZE) / RECORD_SIZE);
+    }
+
+    private static int recordOffset(int record) {
+        return RECORDS_HEADER_SIZE + record * RECORD_SIZE;
+    }
+
+    /**
+     * Return the chunk of a time, times before 1970 fall into negative chunks.
+     */
+    private static long chunkOf(long time) {
+        long chunk = time / CHUNK_DURATION;
+        return time < 0 && time % CHUNK_DURATION != 0 ? chunk - 1 : chunk;
+    }
+}
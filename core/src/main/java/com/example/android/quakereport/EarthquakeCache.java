@@ -0,0 +1,127 @@
+package com.example.android.quakereport;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * {@link EarthquakeCache} keeps the earthquakes of one query on disk, together with the
+ * validators of the response they came from. It lets the loader show earthquakes at startup
+ * before the network responds, or when there is no connection at all.
+ *
+ * The earthquakes are stored as an {@link EarthquakeSnapshot}.
+ */
+final class EarthquakeCache {
+
+    private static final Logger LOGGER = Logger.getLogger(EarthquakeCache.class.getName());
+
+    // directory inside the files directory that holds the cache files
+    private static final String CACHE_DIR = "earthquakes";
+
+    // the query the cached earthquakes belong to
+    private final String mUrl;
+
+    private final File mFile;
+
+    // validators of the cached response
+    private String mETag;
+    private long mLastModified;
+
+    /**
+     * @param filesDir files directory of the app
+     * @param url      url of the query, without paging parameters
+     */
+    EarthquakeCache(File filesDir, String url) {
+        mUrl = url;
+        File dir = new File(filesDir, CACHE_DIR);
+        mFile = new File(dir, Integer.toHexString(url.hashCode()));
+    }
+
+    String getETag() {
+        return mETag;
+    }
+
+    long getLastModified() {
+        return mLastModified;
+    }
+
+    /**
+     * Read the cached earthquakes. Return null if there is nothing cached for the query.
+     */
+    EarthquakeStore read() {
+        EarthquakeStore earthquakes = readSnapshot();
+        if (earthquakes != null) {
+            Metrics.DISK_CACHE_HITS.increment();
+        } else {
+            Metrics.DISK_CACHE_MISSES.increment();
+        }
+        return earthquakes;
+    }
+
+    private EarthquakeStore readSnapshot() {
+        if (!mFile.exists()) return null;
+
+        try {
+            EarthquakeSnapshot snapshot = EarthquakeSnapshot.read(mFile);
+            // different urls can share a file name, so make sure this is our query
+            if (snapshot == null || !mUrl.equals(snapshot.query)) return null;
+
+            mETag = snapshot.eTag;
+            mLastModified = snapshot.lastModified;
+            return snapshot.earthquakes;
+        } catch (IOException | RuntimeException e) {
+            // a truncated or corrupted file ends up here as well
+            LOGGER.log(Level.SEVERE, "Error reading cached earthquakes", e);
+            return null;
+        }
+    }
+
+    /**
+     * Read the validators of the cached response without the earthquakes, for earthquakes
+     * that are shown from elsewhere but revalidated and written back here. Leave the
+     * validators as they are if there is nothing cached for the query.
+     */
+    void readValidators() {
+        if (!mFile.exists()) return;
+
+        try {
+            EarthquakeSnapshot header = EarthquakeSnapshot.readHeader(mFile);
+            if (header == null || !mUrl.equals(header.query)) return;
+
+            mETag = header.eTag;
+            mLastModified = header.lastModified;
+        } catch (IOException | RuntimeException e) {
+            LOGGER.log(Level.SEVERE, "Error reading cached validators", e);
+        }
+    }
+
+    /**
+     * Replace the cached earthquakes and the validators of the response they came from.
+     */
+    void write(EarthquakeStore earthquakes, String eTag, long lastModified) {
+        File dir = mFile.getParentFile();
+        if (!dir.exists() && !dir.mkdirs()) {
+            LOGGER.severe("Error creating cache directory " + dir);
+            return;
+        }
+
+        // write into a temporary file first, so a crash never leaves a broken cache behind,
+        // every writer gets its own, the poller may write while a loader does
+        File tempFile = null;
+        try {
+            tempFile = File.createTempFile(mFile.getName(), ".tmp", dir);
+            new EarthquakeSnapshot(mUrl, eTag, lastModified, earthquakes).write(tempFile);
+            if (!tempFile.renameTo(mFile)) {
+                LOGGER.severe("Error replacing cache file " + mFile);
+                tempFile.delete();
+                return;
+            }
+            mETag = eTag;
+            mLastModified = lastModified;
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "Error writing cached earthquakes", e);
+            if (tempFile != null) tempFile.delete();
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package com.example.android.quakereport;
+
+import java.text.DecimalFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * {@link EarthquakeFormatter} turns the values of an earthquake into an {@link EarthquakeRow}.
+ *
+ * The formatters it uses are created once and reused for every earthquake. They are not
+ * thread-safe, so a formatter must only be used by the thread that created it.
+ *
+ * {@link #formatAll(int[], String, EarthquakeStore)} formats the rows of a whole store ahead
+ * of time on a background thread, so the adapter only has to assign them to views. The colors
+ * and strings of the rows are resolved by the app and passed in.
+ */
+final class EarthquakeFormatter {
+
+    // below this number of rows a store is formatted on the calling thread only
+    private static final int PARALLEL_THRESHOLD = 1000;
+
+    private final SimpleDateFormat mDateFormat = new SimpleDateFormat("LLL dd, yyyy", Locale.US);
+    private final SimpleDateFormat mTimeFormat = new SimpleDateFormat("h:mm a", Locale.US);
+    private final DecimalFormat mMagnitudeFormat = new DecimalFormat("0.0");
+
+    // reused for every formatted time
+    private final Date mDate = new Date();
+
+    // colors of the magnitude circle, indexed by the floor of the magnitude
+    private final int[] mMagnitudeColors;
+
+    // default location offset if no precise distance is given
+    private final String mNearThe;
+
+    /**
+     * @param magnitudeColors colors of the magnitude circle, indexed by the floor of the
+     *                        magnitude, the last one is used for every higher magnitude
+     * @param nearThe         location offset used if no precise distance is given
+     */
+    EarthquakeFormatter(int[] magnitudeColors, String nearThe) {
+        mMagnitudeColors = magnitudeColors;
+        mNearThe = nearThe;
+    }
+
+    /**
+     * Format every row of the store that has not been formatted yet. Large stores are split
+     * into chunks that are formatted in parallel, each chunk with its own formatter.
+     * Must be called on a background thread.
+     */
+    static void formatAll(final int[] magnitudeColors, final String nearThe,
+                          final EarthquakeStore earthquakes) {
+        int size = earthquakes.size();
+        if (size < PARALLEL_THRESHOLD || WorkerPool.THREAD_COUNT < 2) {
+            formatRange(new EarthquakeFormatter(magnitudeColors, nearThe), earthquakes, 0, size);
+            return;
+        }
+
+        int chunkSize = (size + WorkerPool.THREAD_COUNT - 1) / WorkerPool.THREAD_COUNT;
+        List<Future<?>> futures = new ArrayList<>(WorkerPool.THREAD_COUNT);
+        for (int start = 0; start < size; start += chunkSize) {
+            final int from = start;
+            final int to = Math.min(start + chunkSize, size);
+            futures.add(WorkerPool.get().submit(new Runnable() {
+                @Override
+                public void run() {
+                    formatRange(new EarthquakeFormatter(magnitudeColors, nearThe),
+                            earthquakes, from, to);
+                }
+            }));
+        }
+
+        try {
+            for (Future<?> future : futures) future.get();
+        } catch (InterruptedException e) {
+            // rows that were not formatted are formatted by the adapter when they are shown
+            for (Future<?> future : futures) future.cancel(true);
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    private static void formatRange(EarthquakeFormatter formatter, EarthquakeStore earthquakes,
+                                    int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (earthquakes.getRow(i) == null) {
+                earthquakes.setRow(i, formatter.format(earthquakes, i));
+            }
+        }
+    }
+
+    /**
+     * Format the earthquake at the given position of a store.
+     */
+    EarthquakeRow format(EarthquakeStore earthquakes, int index) {
+        double magnitude = earthquakes.getMagnitude(index);
+        long time = earthquakes.getTime(index);
+
+        // the store keeps locations in the form of "99km N of Temp Location"
+        // split into "99km N of" and "Temp Location", the parts are shared by the rows
+        String locationOffset = earthquakes.getLocationOffset(index);
+        String locationPrimary = earthquakes.getLocationPrimary(index);
+        if (locationOffset == null) {
+            // if no precise distance found, it is replaced with default string "Near the"
+            locationOffset = mNearThe;
+        }
+
+        mDate.setTime(time);
+
+        return new EarthquakeRow(formatMagnitude(magnitude), getMagnitudeColor(magnitude),
+                locationOffset, locationPrimary, formatDate(mDate), formatTime(mDate));
+    }
+
+    /**
+     * Return int color for magnitude in a specified range
+     */
+    int getMagnitudeColor(double magnitude) {
+        int magnitudeFloor = (int) Math.floor(magnitude);
+        if (magnitudeFloor < 0 || magnitudeFloor >= mMagnitudeColors.length) {
+            return mMagnitudeColors[mMagnitudeColors.length - 1];
+        }
+        return mMagnitudeColors[magnitudeFloor];
+    }
+
+    /**
+     * Return the formatted date string (i.e. "Jan 01, 1990").
+     */
+    String formatDate(Date date) {
+        return mDateFormat.format(date);
+    }
+
+    /**
+     * Return the formatted date string (i.e. "4:30 PM").
+     */
+    String formatTime(Date date) {
+        return mTimeFormat.format(date);
+    }
+
+    /**
+     * Return the formatted magnitude string in the form of "99.9" (one decimal)
+     */
+    String formatMagnitude(double magnitude) {
+        return mMagnitudeFormat.format(magnitude);
+    }
+}
@@ -0,0 +1,267 @@
+package com.example.android.quakereport;
+
+import java.util.Arrays;
+
+/**
+ * {@link EarthquakeIndex} answers magnitude, time and area queries over an
+ * {@link EarthquakeStore} without going back to the server.
+ *
+ * It keeps the positions of the earthquakes sorted by magnitude and by time, both the newest
+ * or biggest first, and a grid of {@link #CELL_SIZE} degree cells over their coordinates.
+ * All of it is built from primitive arrays, so a query over 100k earthquakes only walks
+ * arrays of ints and doubles.
+ */
+final class EarthquakeIndex {
+
+    // size of a grid cell in degrees
+    static final int CELL_SIZE = 5;
+
+    private static final int GRID_COLUMNS = 360 / CELL_SIZE;
+    private static final int GRID_ROWS = 180 / CELL_SIZE;
+
+    /**
+     * Filters and order of a query, by default every earthquake matches.
+     */
+    static final class Query {
+        double minMagnitude = Double.NEGATIVE_INFINITY;
+
+        // time window in milliseconds, both ends included
+        long startTime = Long.MIN_VALUE;
+        long endTime = Long.MAX_VALUE;
+
+        // bounding box in degrees, west may be greater than east across the antimeridian
+        double south = -90;
+        double west = -180;
+        double north = 90;
+        double east = 180;
+
+        // order by time instead of by magnitude
+        boolean byTime;
+
+        boolean hasBounds() {
+            return south > -90 || north < 90 || west > -180 || east < 180;
+        }
+
+        boolean matches(double magnitude, long time, double latitude, double longitude) {
+            if (magnitude < minMagnitude) return false;
+            if (time < startTime || time > endTime) return false;
+            if (!hasBounds()) return true;
+
+            if (!(latitude >= south && latitude <= north)) return false;
+            if (west <= east) return longitude >= west && longitude <= east;
+            return longitude >= west || longitude <= east;
+        }
+    }
+
+    private final EarthquakeStore mEarthquakes;
+
+    // positions sorted by magnitude, the biggest first, and their magnitudes in that order
+    private final int[] mByMagnitude;
+    private final double[] mSortedMagnitudes;
+
+    // positions sorted by time, the newest first
+    private final int[] mByTime;
+
+    // rank of every position in the two orders
+    private final int[] mMagnitudeRanks;
+    private final int[] mTimeRanks;
+
+    // positions grouped by grid cell, the positions of cell c are
+    // mCellPositions[mCellStarts[c]] up to mCellPositions[mCellStarts[c + 1]]
+    private final int[] mCellStarts;
+    private final int[] mCellPositions;
+
+    /**
+     * Build the index of a store. Must be called on a background thread for large stores.
+     */
+    EarthquakeIndex(EarthquakeStore earthquakes) {
+        mEarthquakes = earthquakes;
+        int size = earthquakes.size();
+
+        long[] magnitudeKeys = new long[size];
+        long[] timeKeys = new long[size];
+        for (int i = 0; i < size; i++) {
+            magnitudeKeys[i] = sortableBits(earthquakes.getMagnitude(i));
+            timeKeys[i] = earthquakes.getTime(i);
+        }
+        mByMagnitude = sortDescending(magnitudeKeys);
+        mByTime = sortDescending(timeKeys);
+
+        mSortedMagnitudes = new double[size];
+        mMagnitudeRanks = new int[size];
+        mTimeRanks = new int[size];
+        for (int rank = 0; rank < size; rank++) {
+            mSortedMagnitudes[rank] = earthquakes.getMagnitude(mByMagnitude[rank]);
+            mMagnitudeRanks[mByMagnitude[rank]] = rank;
+            mTimeRanks[mByTime[rank]] = rank;
+        }
+
+        // counting sort of the positions by cell
+        int[] cells = new int[size];
+        mCellStarts = new int[GRID_ROWS * GRID_COLUMNS + 1];
+        for (int i = 0; i < size; i++) {
+            cells[i] = cellOf(earthquakes.getLatitude(i), earthquakes.getLongitude(i));
+            mCellStarts[cells[i] + 1]++;
+        }
+        for (int c = 0; c < GRID_ROWS * GRID_COLUMNS; c++) mCellStarts[c + 1] += mCellStarts[c];
+        mCellPositions = new int[size];
+        int[] next = Arrays.copyOf(mCellStarts, mCellStarts.length - 1);
+        for (int i = 0; i < size; i++) mCellPositions[next[cells[i]]++] = i;
+    }
+
+    EarthquakeStore getEarthquakes() {
+        return mEarthquakes;
+    }
+
+    /**
+     * Return the positions of the earthquakes that match a query, in the order of the query.
+     */
+    int[] select(Query query) {
+        if (query.hasBounds()) return selectInBounds(query);
+
+        int[] positions = new int[mEarthquakes.size()];
+        int count = 0;
+        if (query.byTime) {
+            for (int position : mByTime) {
+                long time = mEarthquakes.getTime(position);
+                if (time > query.endTime) continue;
+                // everything after this is older still
+                if (time < query.startTime) break;
+                if (mEarthquakes.getMagnitude(position) >= query.minMagnitude) {
+                    positions[count++] = position;
+                }
+            }
+        } else {
+            // only the biggest earthquakes up to the minimum magnitude have to be looked at
+            int end = countAtLeast(query.minMagnitude);
+            for (int rank = 0; rank < end; rank++) {
+                int position = mByMagnitude[rank];
+                long time = mEarthquakes.getTime(position);
+                if (time >= query.startTime && time <= query.endTime) {
+                    positions[count++] = position;
+                }
+            }
+        }
+        return Arrays.copyOf(positions, count);
+    }
+
+    /**
+     * Return the earthquakes that match a query, in the order of the query.
+     */
+    EarthquakeStore query(Query query) {
+        return mEarthquakes.select(select(query));
+    }
+
+    /**
+     * Select from the grid cells that overlap the bounding box only,
+     * then bring the matches into the order of the query by their ranks.
+     */
+    private int[] selectInBounds(Query query) {
+        int[] ranks = query.byTime ? mTimeRanks : mMagnitudeRanks;
+        int[] matches = new int[mEarthquakes.size()];
+        int count = 0;
+
+        int firstRow = row(query.south);
+        int lastRow = row(query.north);
+        int firstColumn = column(query.west);
+        int lastColumn = column(query.east);
+        boolean wraps = query.west > query.east;
+        for (int row = firstRow; row <= lastRow; row++) {
+            for (int column = 0; column < GRID_COLUMNS; column++) {
+                boolean inside = wraps
+                        ? column >= firstColumn || column <= lastColumn
+                        : column >= firstColumn && column <= lastColumn;
+                if (!inside) continue;
+
+                int cell = row * GRID_COLUMNS + column;
+                for (int i = mCellStarts[cell]; i < mCellStarts[cell + 1]; i++) {
+                    int position = mCellPositions[i];
+                    if (matches(position, query)) matches[count++] = ranks[position];
+                }
+            }
+        }
+
+        Arrays.sort(matches, 0, count);
+        int[] order = query.byTime ? mByTime : mByMagnitude;
+        int[] positions = new int[count];
+        for (int i = 0; i < count; i++) positions[i] = order[matches[i]];
+        return positions;
+    }
+
+    private boolean matches(int position, Query query) {
+        return query.matches(mEarthquakes.getMagnitude(position), mEarthquakes.getTime(position),
+                mEarthquakes.getLatitude(position), mEarthquakes.getLongitude(position));
+    }
+
+    /**
+     * Return the number of earthquakes with at least the given magnitude.
+     */
+    private int countAtLeast(double minMagnitude) {
+        // binary search in magnitudes sorted from the biggest
+        int low = 0;
+        int high = mSortedMagnitudes.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (mSortedMagnitudes[middle] >= minMagnitude) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private static int cellOf(double latitude, double longitude) {
+        return row(latitude) * GRID_COLUMNS + column(longitude);
+    }
+
+    private static int row(double latitude) {
+        int row = (int) Math.floor((latitude + 90) / CELL_SIZE);
+        return Math.max(0, Math.min(GRID_ROWS - 1, row));
+    }
+
+    private static int column(double longitude) {
+        int column = (int) Math.floor((longitude + 180) / CELL_SIZE);
+        return Math.max(0, Math.min(GRID_COLUMNS - 1, column));
+    }
+
+    /**
+     * Return the bits of a double as a long that sorts the same way as the double.
+     */
+    static long sortableBits(double value) {
+        long bits = Double.doubleToLongBits(value);
+        return bits ^ ((bits >> 63) & Long.MAX_VALUE);
+    }
+
+    /**
+     * Return the positions of the keys sorted by key, the greatest first. The sort is stable,
+     * so equal keys keep the order of their positions.
+     */
+    static int[] sortDescending(long[] keys) {
+        int[] positions = new int[keys.length];
+        for (int i = 0; i < positions.length; i++) positions[i] = i;
+        int[] buffer = new int[keys.length];
+
+        // bottom-up merge sort
+        for (int width = 1; width < positions.length; width *= 2) {
+            for (int start = 0; start < positions.length; start += 2 * width) {
+                int middle = Math.min(start + width, positions.length);
+                int end = Math.min(start + 2 * width, positions.length);
+                int left = start;
+                int right = middle;
+                for (int i = start; i < end; i++) {
+                    if (left < middle
+                            && (right >= end || keys[positions[left]] >= keys[positions[right]])) {
+                        buffer[i] = positions[left++];
+                    } else {
+                        buffer[i] = positions[right++];
+                    }
+                }
+            }
+            int[] swap = positions;
+            positions = buffer;
+            buffer = swap;
+        }
+        return positions;
+    }
+}
@@ -0,0 +1,545 @@
+package com.example.android.quakereport;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * {@link EarthquakeRequests} is the shared entry point for requests to USGS.
+ *
+ * Requests for the same query are coalesced. A caller that asks for a query that is already
+ * being fetched waits for that fetch instead of starting another one, and a successful
+ * response is served from memory to everyone who asks for the same query within its
+ * time to live. Queries are matched by their url with the parameters sorted by name.
+ *
+ * Fetches run on threads of their own and wait for their turn with the
+ * {@link FetchScheduler}, starting over if a fetch for the screen preempts them. A caller
+ * that is cancelled leaves its fetch and returns a cancelled response at once, and the fetch
+ * is cancelled once every caller has left it, so the rest of its response is neither read
+ * nor parsed.
+ *
+ * Long time windows can be requested as several queries, one per slice of the window, see
+ * {@link #fetchWindow(String, long, long, int, int, Cancellation)}. Every slice is a query
+ * like any other, coalesced, served from memory and scheduled the same way.
+ *
+ * Urls are handled as plain strings, so requests can be sent and tested on any JVM.
+ */
+final class EarthquakeRequests {
+
+    private static final Logger LOGGER = Logger.getLogger(EarthquakeRequests.class.getName());
+
+    // default time a response is served from memory
+    private static final long DEFAULT_TIME_TO_LIVE = 60 * 1000; /* milliseconds */
+
+    // number of recent responses kept in memory
+    private static final int MAX_RECENT_RESPONSES = 8;
+
+    private static final Object sLock = new Object();
+
+    // fetches that are running, by query
+    private static final Map<String, InFlight> sInFlight = new HashMap<>();
+
+    // recent responses, by query, the least recently used first
+    private static final LinkedHashMap<String, RecentResponse> sRecent =
+            new LinkedHashMap<String, RecentResponse>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, RecentResponse> eldest) {
+                    return size() > MAX_RECENT_RESPONSES;
+                }
+            };
+
+    private static long sTimeToLive = DEFAULT_TIME_TO_LIVE;
+
+    // most earthquakes USGS returns for one query, a slice asks for no more
+    private static final int DEFAULT_SLICE_LIMIT = 20000;
+    private static int sSliceLimit = DEFAULT_SLICE_LIMIT;
+
+    // threads that wait for the slices of time windows, the scheduler decides which ones
+    // use the network, created when first needed
+    private static final int SLICE_THREAD_COUNT = 4;
+    private static ExecutorService sSliceExecutor;
+
+    // threads that run the fetches, one per running or waiting query, created when needed
+    private static ExecutorService sFetchExecutor;
+
+    // orders query parameters by their name
+    private static final Comparator<String> PARAMETER_NAME_ORDER = new Comparator<String>() {
+        @Override
+        public int compare(String first, String second) {
+            return getName(first).compareTo(getName(second));
+        }
+    };
+
+    private EarthquakeRequests() {
+    }
+
+    /**
+     * Set how long a response is served from memory, 0 turns it off.
+     */
+    static void setTimeToLive(long milliseconds) {
+        synchronized (sLock) {
+            sTimeToLive = milliseconds;
+            if (milliseconds <= 0) sRecent.clear();
+        }
+    }
+
+    /**
+     * Set the most earthquakes a slice of a time window asks for.
+     */
+    static void setSliceLimit(int limit) {
+        sSliceLimit = limit;
+    }
+
+    /**
+     * Return the response to a query, fetching it only if it is neither in memory
+     * nor being fetched already. Must be called on a background thread. A caller that is
+     * cancelled or interrupted while it waits gets a cancelled response.
+     *
+     * @param priority     priority of the fetch, one of the priorities of {@link FetchScheduler}
+     * @param cancellation cancellation of the caller, the fetch is cancelled once the
+     *                     cancellations of all its callers are
+     * @see QueryUtils#fetchEarthquakesData(String, String, long)
+     */
+    static QueryUtils.Response fetch(String url, String eTag, long lastModified, int priority,
+                                     Cancellation cancellation) {
+        final String key = normalize(url) + '\n' + eTag + '\n' + lastModified;
+
+        final InFlight inFlight;
+        final Caller caller = new Caller();
+        synchronized (sLock) {
+            removeExpired();
+            RecentResponse recent = sRecent.get(key);
+            if (recent != null) {
+                Metrics.REQUEST_CACHE_HITS.increment();
+                return recent.response;
+            }
+            Metrics.REQUEST_CACHE_MISSES.increment();
+
+            InFlight running = sInFlight.get(key);
+            if (running == null) {
+                running = new InFlight(key, url, eTag, lastModified, priority);
+                sInFlight.put(key, running);
+                getFetchExecutor().execute(running);
+            }
+            inFlight = running;
+            inFlight.callers.add(caller);
+        }
+
+        // a cancelled caller leaves the fetch at once, the last one to leave cancels it
+        Runnable leave = new Runnable() {
+            @Override
+            public void run() {
+                boolean last;
+                synchronized (sLock) {
+                    // the fetch is done already
+                    if (!inFlight.callers.remove(caller)) return;
+                    last = inFlight.callers.isEmpty();
+                    // later callers of the query start a fetch of their own
+                    if (last && sInFlight.get(key) == inFlight) sInFlight.remove(key);
+                }
+                QueryUtils.Response cancelled = new QueryUtils.Response();
+                cancelled.cancelled = true;
+                caller.complete(cancelled, null);
+                if (last) inFlight.cancellation.cancel();
+            }
+        };
+        cancellation.addListener(leave);
+        try {
+            return caller.await();
+        } catch (InterruptedException e) {
+            // an interrupted caller leaves like a cancelled one, and keeps its interrupt
+            Thread.currentThread().interrupt();
+            leave.run();
+            QueryUtils.Response cancelled = new QueryUtils.Response();
+            cancelled.cancelled = true;
+            return cancelled;
+        } finally {
+            cancellation.removeListener(leave);
+        }
+    }
+
+    /**
+     * Return the earthquakes of a long time window, requested as one query per slice of the
+     * window. The slices are fetched at the same time, as far as the {@link FetchScheduler}
+     * lets them, each one is parsed while it streams in, and the results are merged in the
+     * order given by the "orderby" parameter of the url. Earthquakes on the boundary of two
+     * slices are kept once. Must be called on a background thread.
+     *
+     * Every slice asks for no more earthquakes than USGS returns for one query, and a slice
+     * that gets that many is split further, so a busy slice is never cut short.
+     *
+     * The slices live no longer than the call: once one of them fails or the caller is
+     * cancelled, the slices that are still running are cancelled.
+     *
+     * @param url        url of the query, without starttime and endtime parameters
+     * @param startTime  start of the time window in milliseconds
+     * @param endTime    end of the time window in milliseconds
+     * @param sliceCount number of slices to split the window into
+     * @return the response with the earthquakes of the whole window, which has no earthquakes
+     * if any of the slices failed or was cancelled
+     * @throws IllegalArgumentException if the window is empty or reversed, or the slice count
+     *                                  is not positive
+     */
+    static QueryUtils.Response fetchWindow(final String url, long startTime, long endTime,
+                                           int sliceCount, final int priority,
+                                           Cancellation cancellation) {
+        if (endTime <= startTime) {
+            throw new IllegalArgumentException(
+                    "Empty or reversed time window " + startTime + ".." + endTime);
+        }
+        if (sliceCount < 1) throw new IllegalArgumentException("Slice count " + sliceCount);
+        sliceCount = (int) Math.min(sliceCount, endTime - startTime);
+
+        // cancelled with the caller, and once the window is done whichever way it ended
+        final Cancellation slices = new Cancellation();
+        Runnable cancelSlices = new Runnable() {
+            @Override
+            public void run() {
+                slices.cancel();
+            }
+        };
+        cancellation.addListener(cancelSlices);
+
+        QueryUtils.Response response = new QueryUtils.Response();
+        List<Future<QueryUtils.Response>> futures = new ArrayList<>(sliceCount);
+        try {
+            for (int slice = 0; slice < sliceCount; slice++) {
+                final long sliceStart = startTime + (endTime - startTime) * slice / sliceCount;
+                final long sliceEnd =
+                        startTime + (endTime - startTime) * (slice + 1) / sliceCount;
+                futures.add(getSliceExecutor().submit(new Callable<QueryUtils.Response>() {
+                    @Override
+                    public QueryUtils.Response call() {
+                        return fetchSlice(url, sliceStart, sliceEnd, priority, slices);
+                    }
+                }));
+            }
+
+            List<EarthquakeStore> stores = new ArrayList<>(sliceCount);
+            for (Future<QueryUtils.Response> future : futures) {
+                QueryUtils.Response slice = future.get();
+                response.bytesOnWire += slice.bytesOnWire;
+                if (slice.cancelled || cancellation.isCancelled()) {
+                    response.cancelled = true;
+                    return response;
+                }
+                if (slice.earthquakes == null) {
+                    LOGGER.severe("Error retrieving a slice of " + url);
+                    return response;
+                }
+                stores.add(slice.earthquakes);
+            }
+            response.earthquakes = mergeSlices(stores, getQueryParameter(url, "orderby"));
+            return response;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            response.cancelled = true;
+            return response;
+        } catch (ExecutionException e) {
+            // a slice that failed with an exception fails the window like any other failure
+            LOGGER.log(Level.SEVERE, "Error retrieving a slice of " + url, e.getCause());
+            return response;
+        } finally {
+            cancellation.removeListener(cancelSlices);
+            slices.cancel();
+        }
+    }
+
+    /**
+     * Merge stores that are each sorted in the given USGS order into one store in that order,
+     * by repeatedly taking the first of the heads of the stores. Earthquakes that are in
+     * more than one store are kept once.
+     */
+    /**
+     * Return the earthquakes of a slice of a time window. A slice asks for at most
+     * {@link #DEFAULT_SLICE_LIMIT} earthquakes, which is all USGS returns, and one that gets
+     * that many is fetched again in halves until every half gets less.
+     */
+    private static QueryUtils.Response fetchSlice(String url, long startTime, long endTime,
+                                                  int priority, Cancellation cancellation) {
+        int limit = sSliceLimit;
+        String sliceUrl = appendQueryParameter(url, "starttime",
+                QueryUtils.formatQueryTime(startTime));
+        sliceUrl = appendQueryParameter(sliceUrl, "endtime", QueryUtils.formatQueryTime(endTime));
+        sliceUrl = appendQueryParameter(sliceUrl, "limit", String.valueOf(limit));
+        QueryUtils.Response whole = fetch(sliceUrl, null, 0, priority, cancellation);
+        if (whole.earthquakes == null || whole.earthquakes.size() < limit
+                || endTime - startTime < 2) {
+            return whole;
+        }
+
+        // the response may be shared with other callers, so the halves go into a new one
+        QueryUtils.Response response = new QueryUtils.Response();
+        response.bytesOnWire = whole.bytesOnWire;
+        long middle = startTime + (endTime - startTime) / 2;
+        List<EarthquakeStore> halves = new ArrayList<>(2);
+        for (long[] half : new long[][]{{startTime, middle}, {middle, endTime}}) {
+            QueryUtils.Response slice = fetchSlice(url, half[0], half[1], priority,
+                    cancellation);
+            response.bytesOnWire += slice.bytesOnWire;
+            if (slice.earthquakes == null) {
+                response.cancelled = slice.cancelled;
+                return response;
+            }
+            halves.add(slice.earthquakes);
+        }
+        response.earthquakes = mergeSlices(halves, getQueryParameter(url, "orderby"));
+        return response;
+    }
+
+    private static EarthquakeStore mergeSlices(List<EarthquakeStore> slices, String orderBy) {
+        boolean byMagnitude = orderBy != null && orderBy.startsWith("magnitude");
+        boolean ascending = orderBy != null && orderBy.endsWith("-asc");
+
+        int size = 0;
+        for (EarthquakeStore slice : slices) size += slice.size();
+        EarthquakeStore earthquakes = new EarthquakeStore(size);
+        Set<String> ids = new HashSet<>(size * 2);
+
+        // position of the head of every slice
+        int[] heads = new int[slices.size()];
+        while (true) {
+            int first = -1;
+            double firstKey = 0;
+            for (int i = 0; i < heads.length; i++) {
+                EarthquakeStore slice = slices.get(i);
+                if (heads[i] == slice.size()) continue;
+                double key = byMagnitude ? slice.getMagnitude(heads[i]) : slice.getTime(heads[i]);
+                if (first == -1 || (ascending ? key < firstKey : key > firstKey)) {
+                    first = i;
+                    firstKey = key;
+                }
+            }
+            if (first == -1) break;
+
+            EarthquakeStore slice = slices.get(first);
+            int index = heads[first]++;
+            if (ids.add(slice.getId(index))) earthquakes.add(slice, index);
+        }
+
+        earthquakes.trimToSize();
+        return earthquakes;
+    }
+
+    private static synchronized ExecutorService getFetchExecutor() {
+        if (sFetchExecutor == null) {
+            sFetchExecutor = Executors.newCachedThreadPool(new DaemonThreadFactory("fetch"));
+        }
+        return sFetchExecutor;
+    }
+
+    private static synchronized ExecutorService getSliceExecutor() {
+        if (sSliceExecutor == null) {
+            sSliceExecutor = Executors.newFixedThreadPool(SLICE_THREAD_COUNT,
+                    new DaemonThreadFactory("slice"));
+        }
+        return sSliceExecutor;
+    }
+
+    /**
+     * Return the url with its query parameters sorted by name. The values of a parameter
+     * that is given more than once stay in their order.
+     */
+    static String normalize(String url) {
+        int queryStart = url.indexOf('?');
+        if (queryStart == -1) return url;
+
+        List<String> parameters = new ArrayList<>(
+                Arrays.asList(url.substring(queryStart + 1).split("&")));
+        // the sort is stable
+        Collections.sort(parameters, PARAMETER_NAME_ORDER);
+        StringBuilder normalized = new StringBuilder(url.length());
+        normalized.append(url, 0, queryStart + 1);
+        for (String parameter : parameters) {
+            if (parameter.isEmpty()) continue;
+            if (normalized.length() > queryStart + 1) normalized.append('&');
+            normalized.append(parameter);
+        }
+        return normalized.toString();
+    }
+
+    /**
+     * Return the url with a query parameter added, its value encoded.
+     */
+    static String appendQueryParameter(String url, String name, String value) {
+        StringBuilder builder = new StringBuilder(url);
+        if (url.indexOf('?') == -1) {
+            builder.append('?');
+        } else if (!url.endsWith("?") && !url.endsWith("&")) {
+            builder.append('&');
+        }
+        try {
+            builder.append(URLEncoder.encode(name, "UTF-8")).append('=')
+                    .append(URLEncoder.encode(value, "UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            // every JVM has UTF-8
+            throw new AssertionError(e);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Return the decoded value of the first query parameter of the url with the given name,
+     * or null if there is none.
+     */
+    static String getQueryParameter(String url, String name) {
+        int queryStart = url.indexOf('?');
+        if (queryStart == -1) return null;
+        for (String parameter : url.substring(queryStart + 1).split("&")) {
+            if (!getName(parameter).equals(name)) continue;
+            int separator = parameter.indexOf('=');
+            if (separator == -1) return "";
+            try {
+                return URLDecoder.decode(parameter.substring(separator + 1), "UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                throw new AssertionError(e);
+            }
+        }
+        return null;
+    }
+
+    private static String getName(String parameter) {
+        int separator = parameter.indexOf('=');
+        return separator == -1 ? parameter : parameter.substring(0, separator);
+    }
+
+    private static void removeExpired() {
+        long now = System.currentTimeMillis();
+        Iterator<RecentResponse> iterator = sRecent.values().iterator();
+        while (iterator.hasNext()) {
+            long age = now - iterator.next().time;
+            // a response from the future is left over from a clock that was set back
+            if (age < 0 || age >= sTimeToLive) iterator.remove();
+        }
+    }
+
+    /**
+     * A fetch that is running, along with the callers that wait for it. It waits for a slot
+     * of the {@link FetchScheduler}, and starts over when its slot is preempted.
+     */
+    private static final class InFlight implements Runnable {
+        final String key;
+        final String url;
+        final String eTag;
+        final long lastModified;
+        final int priority;
+
+        // cancelled once every caller has left
+        final Cancellation cancellation = new Cancellation();
+
+        // guarded by sLock
+        final List<Caller> callers = new ArrayList<>();
+
+        InFlight(String key, String url, String eTag, long lastModified, int priority) {
+            this.key = key;
+            this.url = url;
+            this.eTag = eTag;
+            this.lastModified = lastModified;
+            this.priority = priority;
+        }
+
+        @Override
+        public void run() {
+            QueryUtils.Response response = null;
+            RuntimeException failure = null;
+            try {
+                response = fetch();
+            } catch (RuntimeException e) {
+                failure = e;
+            }
+
+            List<Caller> done;
+            synchronized (sLock) {
+                if (sInFlight.get(key) == this) sInFlight.remove(key);
+                if (response != null && (response.earthquakes != null || response.notModified)
+                        && sTimeToLive > 0) {
+                    sRecent.put(key, new RecentResponse(response, System.currentTimeMillis()));
+                }
+                done = new ArrayList<>(callers);
+                callers.clear();
+            }
+            for (Caller caller : done) caller.complete(response, failure);
+        }
+
+        private QueryUtils.Response fetch() {
+            // bytes read by attempts whose slot was preempted
+            long bytesPreempted = 0;
+            while (true) {
+                FetchScheduler.Slot slot = FetchScheduler.acquire(priority, cancellation);
+                if (slot == null) {
+                    QueryUtils.Response response = new QueryUtils.Response();
+                    response.cancelled = true;
+                    response.bytesOnWire = bytesPreempted;
+                    return response;
+                }
+                QueryUtils.Response response;
+                try {
+                    response = QueryUtils.fetchEarthquakesData(url, eTag, lastModified,
+                            slot.cancellation);
+                } finally {
+                    FetchScheduler.release(slot);
+                }
+                response.bytesOnWire += bytesPreempted;
+                if (!response.cancelled || !slot.isPreempted() || cancellation.isCancelled()) {
+                    return response;
+                }
+                Metrics.FETCHES_PREEMPTED.increment();
+                bytesPreempted = response.bytesOnWire;
+            }
+        }
+    }
+
+    /**
+     * A caller that waits for the response of a fetch, or for its own cancellation.
+     */
+    private static final class Caller {
+        private QueryUtils.Response mResponse;
+        private RuntimeException mFailure;
+        private boolean mDone;
+
+        /**
+         * Complete the wait with a response or a failure, unless it is complete already.
+         */
+        synchronized void complete(QueryUtils.Response response, RuntimeException failure) {
+            if (mDone) return;
+            mResponse = response;
+            mFailure = failure;
+            mDone = true;
+            notifyAll();
+        }
+
+        synchronized QueryUtils.Response await() throws InterruptedException {
+            while (!mDone) wait();
+            if (mFailure != null) throw new RuntimeException(mFailure);
+            return mResponse;
+        }
+    }
+
+    private static final class RecentResponse {
+        final QueryUtils.Response response;
+        final long time;
+
+        RecentResponse(QueryUtils.Response response, long time) {
+            this.response = response;
+            this.time = time;
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package com.example.android.quakereport;
+
+/**
+ * {@link EarthquakeRow} holds everything that is shown in the list row of one earthquake,
+ * already formatted, so binding a row only has to assign the values to its views.
+ */
+final class EarthquakeRow {
+
+    // magnitude in the form of "9.9" and the color of its circle
+    final String magnitude;
+    final int magnitudeColor;
+
+    // location split into "99km N of" and "Temp Location"
+    final String locationOffset;
+    final String locationPrimary;
+
+    // date in the form of "Jan 01, 1990" and time in the form of "4:30 PM"
+    final String date;
+    final String time;
+
+    EarthquakeRow(String magnitude, int magnitudeColor, String locationOffset,
+                  String locationPrimary, String date, String time) {
+        this.magnitude = magnitude;
+        this.magnitudeColor = magnitudeColor;
+        this.locationOffset = locationOffset;
+        this.locationPrimary = locationPrimary;
+        this.date = date;
+        this.time = time;
+    }
+}
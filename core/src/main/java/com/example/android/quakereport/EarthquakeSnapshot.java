@@ -0,0 +1,282 @@
+package com.example.android.quakereport;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * {@link EarthquakeSnapshot} is a list of earthquakes of one query, stored in a compact
+ * binary file that can be read back without any JSON parsing.
+ *
+ * The file is columnar: times and magnitudes are stored as arrays of primitives, and every
+ * string is stored once in a string table that the rows refer to by index. The string
+ * columns are those of {@link EarthquakeStore}, locations split into their offset and
+ * primary location and urls of event pages left to be built from the ids, so a snapshot is
+ * read back into a store without looking at a single row. All the numbers are big-endian.
+ *
+ * <pre>
+ * header   int magic, int version, int count, int stringCount,
+ *          long lastModified, int queryIndex, int eTagIndex
+ * columns  long[count] times, long[count] updated, double[count] magnitudes,
+ *          double[count] latitudes, double[count] longitudes,
+ *          int[count] idIndices, int[count] locationOffsetIndices,
+ *          int[count] locationPrimaryIndices, int[count] urlIndices
+ * strings  int[stringCount + 1] offsets, byte[] UTF-8 string data
+ * </pre>
+ *
+ * An index of -1 is an absent string, a url index of -2 the event page of the id.
+ */
+final class EarthquakeSnapshot {
+
+    // "QKSN"
+    private static final int MAGIC = 0x514b534e;
+
+    // version of the file format, files with other versions are not read
+    private static final int VERSION = 4;
+
+    // size of the header in bytes, it keeps the long columns 8-byte aligned
+    private static final int HEADER_SIZE = 32;
+
+    // index of an absent string
+    private static final int NO_STRING = -1;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // url of the query the earthquakes belong to
+    final String query;
+
+    // validators of the response the earthquakes came from
+    final String eTag;
+    final long lastModified;
+
+    final EarthquakeStore earthquakes;
+
+    EarthquakeSnapshot(String query, String eTag, long lastModified,
+                       EarthquakeStore earthquakes) {
+        this.query = query;
+        this.eTag = eTag;
+        this.lastModified = lastModified;
+        this.earthquakes = earthquakes;
+    }
+
+    /**
+     * Write the snapshot into a file, replacing its contents.
+     */
+    void write(File file) throws IOException {
+        int count = earthquakes.size();
+
+        // the string table of the store, without the strings no row refers to, which a
+        // store selected from a larger one shares with it
+        StringTable strings = new StringTable(earthquakes);
+        int[] idIndices = new int[count];
+        int[] offsetIndices = new int[count];
+        int[] primaryIndices = new int[count];
+        int[] urlIndices = new int[count];
+        for (int i = 0; i < count; i++) {
+            idIndices[i] = strings.add(earthquakes.getIdIndex(i));
+            offsetIndices[i] = strings.add(earthquakes.getLocationOffsetIndex(i));
+            primaryIndices[i] = strings.add(earthquakes.getLocationPrimaryIndex(i));
+            urlIndices[i] = strings.add(earthquakes.getUrlIndex(i));
+        }
+        int queryIndex = strings.add(query);
+        int eTagIndex = strings.add(eTag);
+
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(count);
+            out.writeInt(strings.mStrings.size());
+            out.writeLong(lastModified);
+            out.writeInt(queryIndex);
+            out.writeInt(eTagIndex);
+
+            for (int i = 0; i < count; i++) out.writeLong(earthquakes.getTime(i));
+            for (int i = 0; i < count; i++) out.writeLong(earthquakes.getUpdated(i));
+            for (int i = 0; i < count; i++) out.writeDouble(earthquakes.getMagnitude(i));
+            for (int i = 0; i < count; i++) out.writeDouble(earthquakes.getLatitude(i));
+            for (int i = 0; i < count; i++) out.writeDouble(earthquakes.getLongitude(i));
+            for (int i = 0; i < count; i++) out.writeInt(idIndices[i]);
+            for (int i = 0; i < count; i++) out.writeInt(offsetIndices[i]);
+            for (int i = 0; i < count; i++) out.writeInt(primaryIndices[i]);
+            for (int i = 0; i < count; i++) out.writeInt(urlIndices[i]);
+
+            byte[][] encoded = new byte[strings.mStrings.size()][];
+            int offset = 0;
+            out.writeInt(offset);
+            for (int i = 0; i < encoded.length; i++) {
+                encoded[i] = strings.mStrings.get(i).getBytes(UTF_8);
+                offset += encoded[i].length;
+                out.writeInt(offset);
+            }
+            for (byte[] bytes : encoded) out.write(bytes);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Read a snapshot from a file. Return null if the file is not a snapshot
+     * of the current version.
+     */
+    static EarthquakeSnapshot read(File file) throws IOException {
+        MappedByteBuffer buffer = map(file);
+        if (buffer.remaining() < HEADER_SIZE) return null;
+        if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) return null;
+        int count = buffer.getInt();
+        int stringCount = buffer.getInt();
+        long lastModified = buffer.getLong();
+        int queryIndex = buffer.getInt();
+        int eTagIndex = buffer.getInt();
+
+        long[] times = new long[count];
+        long[] updated = new long[count];
+        double[] magnitudes = new double[count];
+        double[] latitudes = new double[count];
+        double[] longitudes = new double[count];
+        int[] idIndices = new int[count];
+        int[] offsetIndices = new int[count];
+        int[] primaryIndices = new int[count];
+        int[] urlIndices = new int[count];
+        readLongs(buffer, times);
+        readLongs(buffer, updated);
+        readDoubles(buffer, magnitudes);
+        readDoubles(buffer, latitudes);
+        readDoubles(buffer, longitudes);
+        readInts(buffer, idIndices);
+        readInts(buffer, offsetIndices);
+        readInts(buffer, primaryIndices);
+        readInts(buffer, urlIndices);
+
+        // decode every distinct string once, the columns are used as they are
+        int[] offsets = new int[stringCount + 1];
+        readInts(buffer, offsets);
+        byte[] data = new byte[offsets[stringCount]];
+        buffer.get(data);
+        ArrayList<String> strings = new ArrayList<>(stringCount);
+        for (int i = 0; i < stringCount; i++) {
+            strings.add(new String(data, offsets[i], offsets[i + 1] - offsets[i], UTF_8));
+        }
+
+        EarthquakeStore earthquakes = new EarthquakeStore(strings, magnitudes, times, updated,
+                latitudes, longitudes, idIndices, offsetIndices, primaryIndices, urlIndices);
+
+        return new EarthquakeSnapshot(stringAt(strings, queryIndex),
+                stringAt(strings, eTagIndex), lastModified, earthquakes);
+    }
+
+    /**
+     * Read the query and the validators of a snapshot from a file, without its earthquakes,
+     * which are null. Return null if the file is not a snapshot of the current version.
+     */
+    static EarthquakeSnapshot readHeader(File file) throws IOException {
+        MappedByteBuffer buffer = map(file);
+        if (buffer.remaining() < HEADER_SIZE) return null;
+        if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) return null;
+        int count = buffer.getInt();
+        int stringCount = buffer.getInt();
+        long lastModified = buffer.getLong();
+        int queryIndex = buffer.getInt();
+        int eTagIndex = buffer.getInt();
+
+        // skip the columns, five of 8-byte values and four of indices
+        int offsetsStart = HEADER_SIZE + count * (5 * 8 + 4 * 4);
+        int dataStart = offsetsStart + (stringCount + 1) * 4;
+        return new EarthquakeSnapshot(stringAt(buffer, offsetsStart, dataStart, queryIndex),
+                stringAt(buffer, offsetsStart, dataStart, eTagIndex), lastModified, null);
+    }
+
+    private static MappedByteBuffer map(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            // the mapping stays valid after the channel is closed
+            in.close();
+        }
+    }
+
+    private static String stringAt(ByteBuffer buffer, int offsetsStart, int dataStart,
+                                   int index) {
+        if (index == NO_STRING) return null;
+        int start = buffer.getInt(offsetsStart + index * 4);
+        int end = buffer.getInt(offsetsStart + (index + 1) * 4);
+        byte[] bytes = new byte[end - start];
+        buffer.position(dataStart + start);
+        buffer.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    private static String stringAt(List<String> strings, int index) {
+        return index == NO_STRING ? null : strings.get(index);
+    }
+
+    /**
+     * Strings of a store that its rows refer to, in the order they are first referred to.
+     */
+    private static final class StringTable {
+        private final EarthquakeStore mEarthquakes;
+
+        // index in this table of every string of the store, NO_STRING if it is not here yet
+        private final int[] mIndices;
+
+        final List<String> mStrings = new ArrayList<>();
+
+        StringTable(EarthquakeStore earthquakes) {
+            mEarthquakes = earthquakes;
+            mIndices = new int[earthquakes.getStringCount()];
+            Arrays.fill(mIndices, NO_STRING);
+        }
+
+        /**
+         * Add a string of the store and return its index in this table. Negative indices
+         * are returned as they are.
+         */
+        int add(int stringIndex) {
+            if (stringIndex < 0) return stringIndex;
+            if (mIndices[stringIndex] == NO_STRING) {
+                mIndices[stringIndex] = mStrings.size();
+                mStrings.add(mEarthquakes.getString(stringIndex));
+            }
+            return mIndices[stringIndex];
+        }
+
+        /**
+         * Add a string that is not in the store and return its index.
+         */
+        int add(String string) {
+            if (string == null) return NO_STRING;
+            mStrings.add(string);
+            return mStrings.size() - 1;
+        }
+    }
+
+    // bulk reads through views, the views do not move the position of the buffer
+
+    private static void readLongs(ByteBuffer buffer, long[] values) {
+        buffer.asLongBuffer().get(values);
+        buffer.position(buffer.position() + values.length * 8);
+    }
+
+    private static void readDoubles(ByteBuffer buffer, double[] values) {
+        buffer.asDoubleBuffer().get(values);
+        buffer.position(buffer.position() + values.length * 8);
+    }
+
+    private static void readInts(ByteBuffer buffer, int[] values) {
+        buffer.asIntBuffer().get(values);
+        buffer.position(buffer.position() + values.length * 4);
+    }
+}
@@ -0,0 +1,465 @@
+package com.example.android.quakereport;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * {@link EarthquakeStore} holds a list of earthquakes as arrays of primitives, one array
+ * per field, instead of one object per earthquake. Strings are kept once in a string table
+ * and rows refer to them by index.
+ *
+ * Locations like "99km N of Temp Location" are kept as their offset, "99km N of ", and their
+ * primary location, "Temp Location", which repeat much more often than whole locations do.
+ * Urls of the USGS event pages of the earthquakes are not kept at all, they are built from
+ * the ids when they are read.
+ *
+ * Rows are read either through the indexed getters, which never allocate, or as
+ * {@link Earthquake} views returned by {@link #get(int)}.
+ *
+ * A store is filled on a background thread and its earthquakes are not changed after it has
+ * been delivered, so it can be read from any thread. Along with the earthquakes it keeps their
+ * formatted {@link EarthquakeRow}s, which are computed on the background thread as well.
+ */
+public final class EarthquakeStore extends AbstractList<Earthquake> {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    // index of an absent string
+    private static final int NO_STRING = -1;
+
+    // index of a url that is the event page of the earthquake
+    private static final int EVENT_PAGE = -2;
+
+    // the url of an event page is this prefix followed by the id of the earthquake
+    static final String EVENT_PAGE_URL = "https://earthquake.usgs.gov/earthquakes/eventpage/";
+
+    // separates the offset of a location from its primary location
+    static final String LOCATION_SEPARATOR = " of ";
+
+    private int mSize;
+
+    // columns, one entry per earthquake
+    private double[] mMagnitudes;
+    private long[] mTimes;
+    private int[] mIds;
+    private int[] mUrls;
+
+    // offset of every location, absent if it has none, and its primary location
+    private int[] mLocationOffsets;
+    private int[] mLocationPrimaries;
+
+    // time of the last update of each earthquake in milliseconds
+    private long[] mUpdated;
+
+    // coordinates of each earthquake in degrees, NaN if unknown
+    private double[] mLatitudes;
+    private double[] mLongitudes;
+
+    // true for earthquakes that USGS reported as deleted, only present in delta responses
+    private boolean[] mDeleted;
+
+    // formatted rows, filled in on the background thread before the store is delivered
+    private EarthquakeRow[] mRows;
+
+    // string table the columns of strings refer to
+    private List<String> mStrings;
+
+    // true while the string table is shared with a store selected from this one or the other way
+    private boolean mStringsShared;
+
+    // index of every string in the string table, only needed while the store is filled
+    private HashMap<String, Integer> mStringIndices;
+
+    public EarthquakeStore() {
+        this(INITIAL_CAPACITY);
+    }
+
+    /**
+     * @param capacity number of earthquakes the store can hold before it has to grow
+     */
+    public EarthquakeStore(int capacity) {
+        capacity = Math.max(capacity, 1);
+        mMagnitudes = new double[capacity];
+        mTimes = new long[capacity];
+        mIds = new int[capacity];
+        mLocationOffsets = new int[capacity];
+        mLocationPrimaries = new int[capacity];
+        mUrls = new int[capacity];
+        mUpdated = new long[capacity];
+        mLatitudes = new double[capacity];
+        mLongitudes = new double[capacity];
+        mDeleted = new boolean[capacity];
+        mRows = new EarthquakeRow[capacity];
+        mStrings = new ArrayList<>();
+    }
+
+    /**
+     * Construct a store from already built columns, which are used as they are. The columns
+     * of strings are indices into the list of strings, like the ones returned by
+     * {@link #getIdIndex(int)} and the other index getters.
+     */
+    EarthquakeStore(ArrayList<String> strings, double[] magnitudes, long[] times,
+                    long[] updated, double[] latitudes, double[] longitudes, int[] ids,
+                    int[] locationOffsets, int[] locationPrimaries, int[] urls) {
+        mSize = magnitudes.length;
+        mMagnitudes = magnitudes;
+        mTimes = times;
+        mUpdated = updated;
+        mLatitudes = latitudes;
+        mLongitudes = longitudes;
+        mIds = ids;
+        mLocationOffsets = locationOffsets;
+        mLocationPrimaries = locationPrimaries;
+        mUrls = urls;
+        mDeleted = new boolean[mSize];
+        mRows = new EarthquakeRow[mSize];
+        // the index of the strings is built when more are added
+        mStrings = strings;
+    }
+
+    /**
+     * Construct a store of the earthquakes at the given positions of another store,
+     * in the order of the positions. The string table is shared until a new string is added.
+     */
+    private EarthquakeStore(EarthquakeStore source, int[] positions) {
+        mSize = positions.length;
+        mMagnitudes = new double[mSize];
+        mTimes = new long[mSize];
+        mIds = new int[mSize];
+        mLocationOffsets = new int[mSize];
+        mLocationPrimaries = new int[mSize];
+        mUrls = new int[mSize];
+        mUpdated = new long[mSize];
+        mLatitudes = new double[mSize];
+        mLongitudes = new double[mSize];
+        mDeleted = new boolean[mSize];
+        mRows = new EarthquakeRow[mSize];
+        for (int i = 0; i < mSize; i++) {
+            int position = positions[i];
+            mMagnitudes[i] = source.mMagnitudes[position];
+            mTimes[i] = source.mTimes[position];
+            mIds[i] = source.mIds[position];
+            mLocationOffsets[i] = source.mLocationOffsets[position];
+            mLocationPrimaries[i] = source.mLocationPrimaries[position];
+            mUrls[i] = source.mUrls[position];
+            mUpdated[i] = source.mUpdated[position];
+            mLatitudes[i] = source.mLatitudes[position];
+            mLongitudes[i] = source.mLongitudes[position];
+            mDeleted[i] = source.mDeleted[position];
+            mRows[i] = source.mRows[position];
+        }
+        mStrings = source.mStrings;
+        mStringsShared = true;
+        source.mStringsShared = true;
+    }
+
+    /**
+     * Return a store of the earthquakes at the given positions, in the order of the positions.
+     * Only the columns are copied, strings and formatted rows are shared.
+     */
+    public EarthquakeStore select(int[] positions) {
+        for (int position : positions) checkIndex(position);
+        return new EarthquakeStore(this, positions);
+    }
+
+    /**
+     * Append an earthquake to the store.
+     */
+    public void add(String id, double magnitude, String location, long time, String url,
+                    long updated, boolean deleted) {
+        add(id, magnitude, location, time, url, updated, Double.NaN, Double.NaN, deleted);
+    }
+
+    /**
+     * Append an earthquake with its coordinates to the store.
+     */
+    public void add(String id, double magnitude, String location, long time, String url,
+                    long updated, double latitude, double longitude, boolean deleted) {
+        ensureCapacity(mSize + 1);
+        mMagnitudes[mSize] = magnitude;
+        mTimes[mSize] = time;
+        setStrings(mSize, id, location, url);
+        mUpdated[mSize] = updated;
+        mLatitudes[mSize] = latitude;
+        mLongitudes[mSize] = longitude;
+        mDeleted[mSize] = deleted;
+        mRows[mSize] = null;
+        mSize++;
+    }
+
+    /**
+     * Append a copy of an earthquake from another store, along with its formatted row.
+     */
+    public void add(EarthquakeStore store, int index) {
+        store.checkIndex(index);
+        ensureCapacity(mSize + 1);
+        mMagnitudes[mSize] = store.mMagnitudes[index];
+        mTimes[mSize] = store.mTimes[index];
+        // the parts of the strings are copied as they are, without building whole strings
+        mIds[mSize] = intern(store.stringAt(store.mIds[index]));
+        mLocationOffsets[mSize] = intern(store.stringAt(store.mLocationOffsets[index]));
+        mLocationPrimaries[mSize] = intern(store.stringAt(store.mLocationPrimaries[index]));
+        mUrls[mSize] = store.mUrls[index] == EVENT_PAGE
+                ? EVENT_PAGE : intern(store.stringAt(store.mUrls[index]));
+        mUpdated[mSize] = store.mUpdated[index];
+        mLatitudes[mSize] = store.mLatitudes[index];
+        mLongitudes[mSize] = store.mLongitudes[index];
+        mDeleted[mSize] = store.mDeleted[index];
+        mRows[mSize] = store.mRows[index];
+        mSize++;
+    }
+
+    /**
+     * Shrink the columns to the number of earthquakes and drop the data
+     * that is only needed while the store is filled.
+     */
+    public void trimToSize() {
+        mMagnitudes = Arrays.copyOf(mMagnitudes, mSize);
+        mTimes = Arrays.copyOf(mTimes, mSize);
+        mIds = Arrays.copyOf(mIds, mSize);
+        mLocationOffsets = Arrays.copyOf(mLocationOffsets, mSize);
+        mLocationPrimaries = Arrays.copyOf(mLocationPrimaries, mSize);
+        mUrls = Arrays.copyOf(mUrls, mSize);
+        mUpdated = Arrays.copyOf(mUpdated, mSize);
+        mLatitudes = Arrays.copyOf(mLatitudes, mSize);
+        mLongitudes = Arrays.copyOf(mLongitudes, mSize);
+        mDeleted = Arrays.copyOf(mDeleted, mSize);
+        mRows = Arrays.copyOf(mRows, mSize);
+        if (!mStringsShared) ((ArrayList<String>) mStrings).trimToSize();
+        mStringIndices = null;
+    }
+
+    @Override
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Return a lightweight view of the earthquake at the given position.
+     */
+    @Override
+    public Earthquake get(int index) {
+        checkIndex(index);
+        return new Earthquake(this, index);
+    }
+
+    public String getId(int index) {
+        checkIndex(index);
+        return stringAt(mIds[index]);
+    }
+
+    public double getMagnitude(int index) {
+        checkIndex(index);
+        return mMagnitudes[index];
+    }
+
+    public String getLocation(int index) {
+        checkIndex(index);
+        String offset = stringAt(mLocationOffsets[index]);
+        String primary = stringAt(mLocationPrimaries[index]);
+        return offset == null ? primary : offset + primary;
+    }
+
+    /**
+     * Return the offset of the location, like "99km N of ", or null if it has none.
+     */
+    String getLocationOffset(int index) {
+        checkIndex(index);
+        return stringAt(mLocationOffsets[index]);
+    }
+
+    /**
+     * Return the location without its offset, like "Temp Location".
+     */
+    String getLocationPrimary(int index) {
+        checkIndex(index);
+        return stringAt(mLocationPrimaries[index]);
+    }
+
+    public long getTime(int index) {
+        checkIndex(index);
+        return mTimes[index];
+    }
+
+    public String getUrl(int index) {
+        checkIndex(index);
+        if (mUrls[index] == EVENT_PAGE) return EVENT_PAGE_URL + stringAt(mIds[index]);
+        return stringAt(mUrls[index]);
+    }
+
+    public long getUpdated(int index) {
+        checkIndex(index);
+        return mUpdated[index];
+    }
+
+    public double getLatitude(int index) {
+        checkIndex(index);
+        return mLatitudes[index];
+    }
+
+    public double getLongitude(int index) {
+        checkIndex(index);
+        return mLongitudes[index];
+    }
+
+    public boolean isDeleted(int index) {
+        checkIndex(index);
+        return mDeleted[index];
+    }
+
+    /**
+     * Return the latest update time of all the earthquakes, or 0 if the store is empty.
+     */
+    public long getLastUpdated() {
+        long lastUpdated = 0;
+        for (int i = 0; i < mSize; i++) lastUpdated = Math.max(lastUpdated, mUpdated[i]);
+        return lastUpdated;
+    }
+
+    /**
+     * Return a rough estimate of the heap used by the store, in bytes: the columns,
+     * the string table and the formatted rows.
+     */
+    public long estimateSize() {
+        // per earthquake: magnitude, time, updated, latitude, longitude, four string indices,
+        // the deleted flag and the reference to the row
+        long size = (long) mMagnitudes.length * (5 * 8 + 4 * 4 + 1 + 4);
+        for (String string : mStrings) size += estimateSize(string);
+        for (int i = 0; i < mSize; i++) {
+            EarthquakeRow row = mRows[i];
+            if (row == null) continue;
+            // object header and its six fields, then the strings
+            size += 32 + estimateSize(row.magnitude)
+                    + estimateSize(row.locationOffset) + estimateSize(row.locationPrimary)
+                    + estimateSize(row.date) + estimateSize(row.time);
+        }
+        return size;
+    }
+
+    private static long estimateSize(String string) {
+        // object header, fields and the character array with its header
+        return string == null ? 0 : 40 + 2L * string.length();
+    }
+
+    /**
+     * Return the formatted row of the earthquake, or null if it has not been formatted yet.
+     */
+    EarthquakeRow getRow(int index) {
+        checkIndex(index);
+        return mRows[index];
+    }
+
+    void setRow(int index, EarthquakeRow row) {
+        checkIndex(index);
+        mRows[index] = row;
+    }
+
+    /**
+     * Set the id, location and url of the earthquake at the given position.
+     */
+    private void setStrings(int index, String id, String location, String url) {
+        mIds[index] = intern(id);
+
+        int separatorIndex = location == null ? -1 : location.indexOf(LOCATION_SEPARATOR);
+        if (separatorIndex >= 0) {
+            int primaryIndex = separatorIndex + LOCATION_SEPARATOR.length();
+            mLocationOffsets[index] = intern(location.substring(0, primaryIndex));
+            mLocationPrimaries[index] = intern(location.substring(primaryIndex));
+        } else {
+            mLocationOffsets[index] = NO_STRING;
+            mLocationPrimaries[index] = intern(location);
+        }
+
+        if (id != null && url != null
+                && url.length() == EVENT_PAGE_URL.length() + id.length()
+                && url.startsWith(EVENT_PAGE_URL) && url.endsWith(id)) {
+            mUrls[index] = EVENT_PAGE;
+        } else {
+            mUrls[index] = intern(url);
+        }
+    }
+
+    /**
+     * Return the index of a string in the string table, adding it if it is not there yet.
+     */
+    private int intern(String string) {
+        if (string == null) return NO_STRING;
+        if (mStringsShared) {
+            // copy the shared table before adding to it
+            mStrings = new ArrayList<>(mStrings);
+            mStringsShared = false;
+        }
+        if (mStringIndices == null) {
+            // the index was dropped by trimToSize, build it again
+            mStringIndices = new HashMap<>();
+            for (int i = 0; i < mStrings.size(); i++) mStringIndices.put(mStrings.get(i), i);
+        }
+        Integer index = mStringIndices.get(string);
+        if (index == null) {
+            index = mStrings.size();
+            mStringIndices.put(string, index);
+            mStrings.add(string);
+        }
+        return index;
+    }
+
+    // string table and the indices of the rows into it, for EarthquakeSnapshot. Indices are
+    // negative for absent strings, and for urls that are built from the id
+
+    int getStringCount() {
+        return mStrings.size();
+    }
+
+    String getString(int stringIndex) {
+        return mStrings.get(stringIndex);
+    }
+
+    int getIdIndex(int index) {
+        checkIndex(index);
+        return mIds[index];
+    }
+
+    int getLocationOffsetIndex(int index) {
+        checkIndex(index);
+        return mLocationOffsets[index];
+    }
+
+    int getLocationPrimaryIndex(int index) {
+        checkIndex(index);
+        return mLocationPrimaries[index];
+    }
+
+    int getUrlIndex(int index) {
+        checkIndex(index);
+        return mUrls[index];
+    }
+
+    private String stringAt(int index) {
+        return index == NO_STRING ? null : mStrings.get(index);
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= mMagnitudes.length) return;
+        int newCapacity = Math.max(capacity, mMagnitudes.length * 2);
+        mMagnitudes = Arrays.copyOf(mMagnitudes, newCapacity);
+        mTimes = Arrays.copyOf(mTimes, newCapacity);
+        mIds = Arrays.copyOf(mIds, newCapacity);
+        mLocationOffsets = Arrays.copyOf(mLocationOffsets, newCapacity);
+        mLocationPrimaries = Arrays.copyOf(mLocationPrimaries, newCapacity);
+        mUrls = Arrays.copyOf(mUrls, newCapacity);
+        mUpdated = Arrays.copyOf(mUpdated, newCapacity);
+        mLatitudes = Arrays.copyOf(mLatitudes, newCapacity);
+        mLongitudes = Arrays.copyOf(mLongitudes, newCapacity);
+        mDeleted = Arrays.copyOf(mDeleted, newCapacity);
+        mRows = Arrays.copyOf(mRows, newCapacity);
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= mSize) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + mSize);
+        }
+    }
+}
@@ -0,0 +1,381 @@
+package com.example.android.quakereport;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * {@link EarthquakeStream} passes on new and updated earthquakes as they arrive, from a feed
+ * of server-sent events or from a GeoJSON summary feed like the ones of USGS.
+ *
+ * A stream of server-sent events is kept open. Every event carries one GeoJSON feature in its
+ * data, like the features of a USGS query. Comments, event names, ids and retry fields are
+ * ignored. The connection is opened again after it fails or ends, with a growing delay.
+ *
+ * A url that ends with {@code .geojson} is a summary feed, a FeatureCollection of the
+ * earthquakes of a recent period that the server updates every minute. It is fetched every
+ * {@link #FEED_INTERVAL} with the validators of the last response, and only the earthquakes
+ * that are new or updated since the last response are passed on.
+ *
+ * Earthquakes are handed to the {@link Listener} in batches on the thread of the
+ * {@link Dispatcher}, the main thread in the app, at most one batch every
+ * {@link #BATCH_INTERVAL}, and the next batch only after the previous one has been consumed.
+ * Meanwhile arriving earthquakes are collected by id, so every earthquake is passed on once
+ * with its latest update. When {@link #MAX_PENDING} earthquakes are waiting, the stream stops
+ * reading from the connection until they are taken, so a burst of aftershocks is held back by
+ * the server instead of piling up in memory or on the main thread.
+ */
+final class EarthquakeStream {
+
+    private static final Logger LOGGER = Logger.getLogger(EarthquakeStream.class.getName());
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // batches are passed on at most this often
+    static final long BATCH_INTERVAL = 500; /* milliseconds */
+
+    // the connection is not read while this many earthquakes wait to be passed on
+    static final int MAX_PENDING = 1000;
+
+    // the server is expected to send at least a comment this often to keep the stream open
+    static final int READ_TIMEOUT = 60 * 1000; /* milliseconds */
+
+    // a summary feed is fetched this often
+    static final long FEED_INTERVAL = 60 * 1000; /* milliseconds */
+
+    // delay before connecting again, doubled after every failed connection
+    private static final long MIN_RECONNECT_DELAY = 1000; /* milliseconds */
+    private static final long MAX_RECONNECT_DELAY = 5 * 60 * 1000; /* milliseconds */
+
+    /**
+     * Receives the earthquakes of a stream.
+     */
+    interface Listener {
+        /**
+         * Called on the thread of the dispatcher with the earthquakes received since the last
+         * batch. No other batch is passed on until {@link #batchConsumed()} is called.
+         */
+        void onEarthquakes(EarthquakeStore batch);
+    }
+
+    /**
+     * Runs the passing on of batches on the thread the listener is called on.
+     */
+    interface Dispatcher {
+        /**
+         * Run a task on the thread of the dispatcher after the given delay.
+         */
+        void post(Runnable task, long delayMillis);
+
+        /**
+         * Remove a task that was posted and has not run yet.
+         */
+        void remove(Runnable task);
+    }
+
+    private final String mUrl;
+    private final HttpTransport mTransport;
+    private final long mFeedInterval;
+    private final Dispatcher mDispatcher;
+    private final Listener mListener;
+
+    private final Object mLock = new Object();
+
+    // latest version of every earthquake received and not passed on yet, by id
+    private final LinkedHashMap<String, EarthquakeStore> mPending = new LinkedHashMap<>();
+
+    // true from passing a batch on until it is consumed
+    private boolean mInFlight;
+
+    // true while passing the pending earthquakes on is posted to the main thread
+    private boolean mScheduled;
+
+    // System.nanoTime() when the last batch was passed on, the first one is not held back
+    private long mLastBatchNanos =
+            System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(BATCH_INTERVAL);
+
+    private volatile boolean mStopped;
+
+    private Thread mThread;
+
+    // response being read, disconnected when the stream is stopped
+    private volatile HttpResponse mResponse;
+
+    // cancelled when the stream is stopped, for the requests of a summary feed
+    private final Cancellation mCancellation = new Cancellation();
+
+    // validators of the last response of a summary feed, and the update time of every
+    // earthquake it had, by id
+    private String mETag;
+    private long mLastModified;
+    private Map<String, Long> mFeedVersions = new HashMap<>();
+
+    EarthquakeStream(String url, Dispatcher dispatcher, Listener listener) {
+        this(url, new UrlConnectionTransport(UrlConnectionTransport.DEFAULT_CONNECT_TIMEOUT,
+                READ_TIMEOUT), FEED_INTERVAL, dispatcher, listener);
+    }
+
+    /**
+     * @param transport    transport to open the stream with, for example one that talks
+     *                     to a local fake server in tests
+     * @param feedInterval how often a summary feed is fetched, in milliseconds
+     */
+    EarthquakeStream(String url, HttpTransport transport, long feedInterval,
+                     Dispatcher dispatcher, Listener listener) {
+        mUrl = url;
+        mTransport = transport;
+        mFeedInterval = feedInterval;
+        mDispatcher = dispatcher;
+        mListener = listener;
+    }
+
+    /**
+     * Open the stream on a background thread.
+     */
+    void start() {
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                readUntilStopped();
+            }
+        }, "EarthquakeStream");
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    /**
+     * Stop passing earthquakes on and close the stream. The connection is closed right away,
+     * a read in progress fails instead of waiting for the next event or the read timeout.
+     */
+    void stop() {
+        mStopped = true;
+        mCancellation.cancel();
+        synchronized (mLock) {
+            mPending.clear();
+            mLock.notifyAll();
+        }
+        mDispatcher.remove(mPassOn);
+        if (mThread != null) mThread.interrupt();
+
+        final HttpResponse response = mResponse;
+        if (response == null) return;
+        // closing a connection may write to it, which is not done on the main thread
+        new DaemonThreadFactory("EarthquakeStream-close").newThread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    response.disconnect();
+                } catch (IOException e) {
+                    LOGGER.log(Level.SEVERE, "Problem closing the earthquake stream", e);
+                }
+            }
+        }).start();
+    }
+
+    /**
+     * Let the stream pass on the next batch. Must be called on the thread of the dispatcher.
+     */
+    void batchConsumed() {
+        synchronized (mLock) {
+            mInFlight = false;
+            schedule();
+        }
+    }
+
+    private void readUntilStopped() {
+        URL url;
+        try {
+            url = new URL(mUrl);
+        } catch (MalformedURLException e) {
+            LOGGER.log(Level.SEVERE, "Problem building the stream URL ", e);
+            return;
+        }
+
+        boolean feed = isFeed(mUrl);
+        long delay = MIN_RECONNECT_DELAY;
+        while (!mStopped) {
+            if (feed) {
+                // a feed that could be fetched waits for its next update
+                delay = fetchFeed() ? mFeedInterval : Math.max(delay, mFeedInterval);
+            } else if (read(url)) {
+                delay = MIN_RECONNECT_DELAY;
+            }
+            if (mStopped) break;
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                break;
+            }
+            if (!feed) delay = Math.min(delay * 2, MAX_RECONNECT_DELAY);
+        }
+    }
+
+    /**
+     * Return true if the url is a GeoJSON summary feed rather than a stream of events.
+     */
+    static boolean isFeed(String url) {
+        int end = url.indexOf('?');
+        return (end == -1 ? url : url.substring(0, end)).endsWith(".geojson");
+    }
+
+    /**
+     * Fetch the summary feed and pass on the earthquakes that changed since the last fetch.
+     * Return true if the server answered.
+     */
+    private boolean fetchFeed() {
+        QueryUtils.Response response = QueryUtils.fetchEarthquakesData(mTransport, mUrl, mETag,
+                mLastModified, mCancellation);
+        if (response.notModified) return true;
+        EarthquakeStore earthquakes = response.earthquakes;
+        if (earthquakes == null) return false;
+        mETag = response.eTag;
+        mLastModified = response.lastModified;
+
+        Map<String, Long> versions = new HashMap<>(earthquakes.size() * 2);
+        try {
+            for (int i = 0; i < earthquakes.size(); i++) {
+                String id = earthquakes.getId(i);
+                if (id == null) continue;
+                long updated = earthquakes.getUpdated(i);
+                versions.put(id, updated);
+                Long previous = mFeedVersions.get(id);
+                if (previous != null && previous >= updated) continue;
+
+                EarthquakeStore earthquake = new EarthquakeStore(1);
+                earthquake.add(earthquakes, i);
+                Metrics.EARTHQUAKES_STREAMED.increment();
+                offer(earthquake);
+            }
+        } catch (InterruptedException e) {
+            return true;
+        }
+        mFeedVersions = versions;
+        return true;
+    }
+
+    /**
+     * Read events until the stream ends, fails or is stopped.
+     * Return true if the server accepted the connection.
+     */
+    private boolean read(URL url) {
+        HttpResponse response = null;
+        boolean connected = false;
+        try {
+            response = mTransport.get(url, null, 0);
+            mResponse = response;
+            // stopped before the response could be disconnected
+            if (mStopped) return true;
+            if (response.getCode() != HttpURLConnection.HTTP_OK || response.getBody() == null) {
+                LOGGER.severe("Error response code " + response.getCode());
+                return false;
+            }
+            connected = true;
+
+            BufferedReader reader =
+                    new BufferedReader(new InputStreamReader(response.getBody(), UTF_8));
+            StringBuilder data = new StringBuilder();
+            String line;
+            while (!mStopped && (line = reader.readLine()) != null) {
+                if (line.isEmpty()) {
+                    // a blank line ends an event
+                    if (data.length() > 0) {
+                        dispatch(data.toString());
+                        data.setLength(0);
+                    }
+                } else if (line.startsWith("data:")) {
+                    if (data.length() > 0) data.append('\n');
+                    data.append(line, line.startsWith("data: ") ? 6 : 5, line.length());
+                }
+            }
+            return true;
+        } catch (IOException e) {
+            if (!mStopped) LOGGER.log(Level.SEVERE, "Error reading the earthquake stream", e);
+            return connected;
+        } catch (InterruptedException e) {
+            return true;
+        } finally {
+            mResponse = null;
+            if (response != null) {
+                Metrics.BYTES_READ.add(response.getBytesOnWire());
+                try {
+                    response.abort();
+                } catch (IOException e) {
+                    LOGGER.log(Level.SEVERE, "Problem closing the earthquake stream", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Parse the data of an event and add its earthquake to the pending ones.
+     */
+    private void dispatch(String data) throws InterruptedException {
+        EarthquakeStore earthquake = QueryUtils.extractFeature(data);
+        if (earthquake == null) return;
+        Metrics.EARTHQUAKES_STREAMED.increment();
+        offer(earthquake);
+    }
+
+    /**
+     * Add an earthquake, in a store of its own, to the pending ones, waiting while too many
+     * are pending.
+     */
+    private void offer(EarthquakeStore earthquake) throws InterruptedException {
+        String id = earthquake.getId(0);
+        synchronized (mLock) {
+            while (mPending.size() >= MAX_PENDING && !mPending.containsKey(id) && !mStopped) {
+                mLock.wait();
+            }
+            if (mStopped) return;
+            EarthquakeStore pending = mPending.get(id);
+            if (pending == null || pending.getUpdated(0) <= earthquake.getUpdated(0)) {
+                mPending.put(id, earthquake);
+            }
+            schedule();
+        }
+    }
+
+    /**
+     * Post passing the pending earthquakes on, unless it is posted already or the last batch
+     * has not been consumed. Must be called holding the lock.
+     */
+    private void schedule() {
+        if (mInFlight || mScheduled || mPending.isEmpty() || mStopped) return;
+        mScheduled = true;
+        long delay = BATCH_INTERVAL
+                - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - mLastBatchNanos);
+        mDispatcher.post(mPassOn, Math.max(delay, 0));
+    }
+
+    /**
+     * Pass the pending earthquakes on to the listener as one batch.
+     */
+    private final Runnable mPassOn = new Runnable() {
+        @Override
+        public void run() {
+            EarthquakeStore batch;
+            synchronized (mLock) {
+                mScheduled = false;
+                if (mStopped || mPending.isEmpty()) return;
+                batch = new EarthquakeStore(mPending.size());
+                for (EarthquakeStore earthquake : mPending.values()) batch.add(earthquake, 0);
+                mPending.clear();
+                mLock.notifyAll();
+                mInFlight = true;
+                mLastBatchNanos = System.nanoTime();
+            }
+            Metrics.STREAM_BATCHES.increment();
+            mListener.onEarthquakes(batch);
+        }
+    };
+}
@@ -0,0 +1,428 @@
+package com.example.android.quakereport;
+
+import java.nio.charset.Charset;
+
+/**
+ * {@link FeatureParser} reads GeoJSON features straight from the bytes of a response.
+ *
+ * Keys and the values that are not kept are compared and skipped as bytes, numbers are
+ * parsed from the bytes without building strings, and only the id, place and url of every
+ * feature are decoded into strings. The response is never decoded into chars as a whole.
+ */
+final class FeatureParser {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+    private static final byte[] ID = bytes("id");
+    private static final byte[] PROPERTIES = bytes("properties");
+    private static final byte[] GEOMETRY = bytes("geometry");
+    private static final byte[] COORDINATES = bytes("coordinates");
+    private static final byte[] MAG = bytes("mag");
+    private static final byte[] PLACE = bytes("place");
+    private static final byte[] TIME = bytes("time");
+    private static final byte[] URL = bytes("url");
+    private static final byte[] UPDATED = bytes("updated");
+    private static final byte[] STATUS = bytes("status");
+    private static final byte[] DELETED = bytes("deleted");
+    private static final byte[] NULL = bytes("null");
+
+    // powers of ten that are exact doubles, numbers with up to 15 digits and these exponents
+    // are parsed exactly with a single multiplication or division
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+    private static final int MAX_EXACT_DIGITS = 15;
+
+    private final byte[] mJson;
+    private final int mEnd;
+    private int mPosition;
+
+    // bounds of the last key that was read
+    private int mKeyStart;
+    private int mKeyEnd;
+
+    private FeatureParser(byte[] json, int start, int end) {
+        mJson = json;
+        mPosition = start;
+        mEnd = end;
+    }
+
+    /**
+     * Parse the comma separated feature objects from the start offset, up to the end offset
+     * or a closing bracket, and add an earthquake for every one of them. Parsing stops
+     * before the next feature once the cancellation is cancelled.
+     *
+     * @param cancellation cancellation of the fetch, or null if it cannot be cancelled
+     * @throws IllegalStateException if the JSON is malformed, the earthquakes before the
+     *                               error are in the store
+     */
+    static void parseFeatures(byte[] json, int start, int end, EarthquakeStore earthquakes,
+                              Cancellation cancellation) {
+        FeatureParser parser = new FeatureParser(json, start, end);
+        try {
+            parser.skipWhitespace();
+            while (parser.mPosition < end && json[parser.mPosition] != ']') {
+                if (cancellation != null && cancellation.isCancelled()) return;
+                parser.readFeature(earthquakes);
+                parser.skipWhitespace();
+                if (parser.mPosition < end && json[parser.mPosition] != ']') {
+                    parser.expect(',');
+                    parser.skipWhitespace();
+                }
+            }
+        } catch (NumberFormatException e) {
+            throw new IllegalStateException("Bad number before " + parser.mPosition, e);
+        }
+    }
+
+    private void readFeature(EarthquakeStore earthquakes) {
+        String id = null;
+        double mag = Double.NaN;
+        String place = "";
+        long time = 0;
+        String url = "";
+        long updated = 0;
+        boolean deleted = false;
+        double latitude = Double.NaN;
+        double longitude = Double.NaN;
+
+        expect('{');
+        while (nextMember()) {
+            if (readNull()) {
+                continue;
+            } else if (keyIs(ID)) {
+                id = readString();
+            } else if (keyIs(PROPERTIES)) {
+                // read the properties that are displayed by the app
+                expect('{');
+                while (nextMember()) {
+                    if (readNull()) {
+                        continue;
+                    } else if (keyIs(MAG)) {
+                        mag = readDouble();
+                    } else if (keyIs(PLACE)) {
+                        place = readString();
+                    } else if (keyIs(TIME)) {
+                        time = readLong();
+                    } else if (keyIs(URL)) {
+                        url = readString();
+                    } else if (keyIs(UPDATED)) {
+                        updated = readLong();
+                    } else if (keyIs(STATUS)) {
+                        deleted = readStringEquals(DELETED);
+                    } else {
+                        skipValue();
+                    }
+                }
+            } else if (keyIs(GEOMETRY)) {
+                // read longitude and latitude, the first two of the point coordinates
+                expect('{');
+                while (nextMember()) {
+                    if (keyIs(COORDINATES) && peek() == '[') {
+                        expect('[');
+                        if (nextElement(true) && !readNull()) longitude = readDouble();
+                        if (nextElement(false) && !readNull()) latitude = readDouble();
+                        while (nextElement(false)) skipValue();
+                    } else {
+                        skipValue();
+                    }
+                }
+            } else {
+                skipValue();
+            }
+        }
+
+        earthquakes.add(id, mag, place, time, url, updated, latitude, longitude, deleted);
+    }
+
+    /**
+     * Move to the next member of an object and read its key.
+     * Return false and move past the object if it has no more members.
+     */
+    private boolean nextMember() {
+        skipWhitespace();
+        byte b = peek();
+        if (b == '}') {
+            mPosition++;
+            return false;
+        }
+        if (b == ',') {
+            mPosition++;
+            skipWhitespace();
+        }
+        expect('"');
+        mKeyStart = mPosition;
+        skipStringContent();
+        mKeyEnd = mPosition - 1;
+        skipWhitespace();
+        expect(':');
+        skipWhitespace();
+        return true;
+    }
+
+    /**
+     * Move to the next element of an array.
+     * Return false and move past the array if it has no more elements.
+     */
+    private boolean nextElement(boolean first) {
+        skipWhitespace();
+        byte b = peek();
+        if (b == ']') {
+            mPosition++;
+            return false;
+        }
+        if (!first) {
+            expect(',');
+            skipWhitespace();
+        }
+        return true;
+    }
+
+    private boolean keyIs(byte[] key) {
+        if (mKeyEnd - mKeyStart != key.length) return false;
+        for (int i = 0; i < key.length; i++) {
+            if (mJson[mKeyStart + i] != key[i]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Skip a null value and return true, or return false if the value is not null.
+     */
+    private boolean readNull() {
+        if (mPosition + NULL.length > mEnd) return false;
+        for (int i = 0; i < NULL.length; i++) {
+            if (mJson[mPosition + i] != NULL[i]) return false;
+        }
+        mPosition += NULL.length;
+        return true;
+    }
+
+    private String readString() {
+        expect('"');
+        int start = mPosition;
+        boolean escaped = skipStringContent();
+        int end = mPosition - 1;
+        return escaped ? unescape(start, end) : new String(mJson, start, end - start, UTF_8);
+    }
+
+    /**
+     * Read a string and return true if its bytes are the given ones, without decoding it.
+     */
+    private boolean readStringEquals(byte[] value) {
+        expect('"');
+        int start = mPosition;
+        skipStringContent();
+        int length = mPosition - 1 - start;
+        if (length != value.length) return false;
+        for (int i = 0; i < length; i++) {
+            if (mJson[start + i] != value[i]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Move past the closing quote of a string whose opening quote has been read.
+     * Return true if the string has escape sequences.
+     */
+    private boolean skipStringContent() {
+        boolean escaped = false;
+        while (mPosition < mEnd) {
+            byte b = mJson[mPosition++];
+            if (b == '"') return escaped;
+            if (b == '\\') {
+                escaped = true;
+                mPosition++;
+            }
+        }
+        throw new IllegalStateException("Unterminated string at " + mPosition);
+    }
+
+    /**
+     * Decode a string with escape sequences, the raw bytes between the quotes are given.
+     */
+    private String unescape(int start, int end) {
+        StringBuilder builder = new StringBuilder(end - start);
+        int segmentStart = start;
+        int i = start;
+        while (i < end) {
+            if (mJson[i] != '\\') {
+                i++;
+                continue;
+            }
+            builder.append(new String(mJson, segmentStart, i - segmentStart, UTF_8));
+            byte escape = mJson[i + 1];
+            i += 2;
+            switch (escape) {
+                case 'b':
+                    builder.append('\b');
+                    break;
+                case 'f':
+                    builder.append('\f');
+                    break;
+                case 'n':
+                    builder.append('\n');
+                    break;
+                case 'r':
+                    builder.append('\r');
+                    break;
+                case 't':
+                    builder.append('\t');
+                    break;
+                case 'u':
+                    if (i + 4 > end) throw new IllegalStateException("Bad escape at " + i);
+                    builder.append((char) Integer.parseInt(
+                            new String(mJson, i, 4, ISO_8859_1), 16));
+                    i += 4;
+                    break;
+                default:
+                    // quotes, slashes and backslashes stand for themselves
+                    builder.append((char) escape);
+                    break;
+            }
+            segmentStart = i;
+        }
+        builder.append(new String(mJson, segmentStart, end - segmentStart, UTF_8));
+        return builder.toString();
+    }
+
+    private double readDouble() {
+        if (peek() == '"') return Double.parseDouble(readString());
+
+        int start = mPosition;
+        boolean negative = false;
+        if (mJson[mPosition] == '-') {
+            negative = true;
+            mPosition++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int exponent = 0;
+        boolean fraction = false;
+        while (mPosition < mEnd) {
+            byte b = mJson[mPosition];
+            if (b >= '0' && b <= '9') {
+                // leading zeros do not count towards the exact digits
+                if (mantissa != 0 || b != '0') digits++;
+                mantissa = mantissa * 10 + (b - '0');
+                if (fraction) exponent--;
+                if (digits > MAX_EXACT_DIGITS) return parseDoubleFrom(start);
+            } else if (b == '.' && !fraction) {
+                fraction = true;
+            } else if (b == 'e' || b == 'E') {
+                return parseDoubleFrom(start);
+            } else {
+                break;
+            }
+            mPosition++;
+        }
+        if (mPosition == start || (negative && mPosition == start + 1)) {
+            throw new IllegalStateException("Expected a number at " + start);
+        }
+        if (-exponent >= POWERS_OF_TEN.length) return parseDoubleFrom(start);
+
+        double value = exponent == 0 ? mantissa : mantissa / POWERS_OF_TEN[-exponent];
+        return negative ? -value : value;
+    }
+
+    private long readLong() {
+        if (peek() == '"') return Long.parseLong(readString());
+
+        int start = mPosition;
+        boolean negative = false;
+        if (mJson[mPosition] == '-') {
+            negative = true;
+            mPosition++;
+        }
+        long value = 0;
+        int digits = 0;
+        while (mPosition < mEnd) {
+            byte b = mJson[mPosition];
+            if (b >= '0' && b <= '9') {
+                value = value * 10 + (b - '0');
+                if (++digits > 18) return (long) parseDoubleFrom(start);
+            } else if (b == '.' || b == 'e' || b == 'E') {
+                return (long) parseDoubleFrom(start);
+            } else {
+                break;
+            }
+            mPosition++;
+        }
+        if (digits == 0) throw new IllegalStateException("Expected a number at " + start);
+        return negative ? -value : value;
+    }
+
+    /**
+     * Parse the number that starts at the given offset the slow way, for numbers with
+     * many digits or an exponent.
+     */
+    private double parseDoubleFrom(int start) {
+        mPosition = start;
+        while (mPosition < mEnd && isNumberByte(mJson[mPosition])) mPosition++;
+        return Double.parseDouble(new String(mJson, start, mPosition - start, ISO_8859_1));
+    }
+
+    private static boolean isNumberByte(byte b) {
+        return (b >= '0' && b <= '9') || b == '-' || b == '+' || b == '.' || b == 'e' || b == 'E';
+    }
+
+    /**
+     * Skip a value of any type, nested objects and arrays included.
+     */
+    private void skipValue() {
+        byte b = peek();
+        if (b == '"') {
+            mPosition++;
+            skipStringContent();
+            return;
+        }
+        if (b != '{' && b != '[') {
+            // a number, true, false or null
+            while (mPosition < mEnd) {
+                b = mJson[mPosition];
+                if (b == ',' || b == '}' || b == ']' || isWhitespace(b)) break;
+                mPosition++;
+            }
+            return;
+        }
+
+        int depth = 0;
+        while (mPosition < mEnd) {
+            b = mJson[mPosition++];
+            if (b == '"') {
+                skipStringContent();
+            } else if (b == '{' || b == '[') {
+                depth++;
+            } else if ((b == '}' || b == ']') && --depth == 0) {
+                return;
+            }
+        }
+        throw new IllegalStateException("Unterminated value at " + mPosition);
+    }
+
+    private void skipWhitespace() {
+        while (mPosition < mEnd && isWhitespace(mJson[mPosition])) mPosition++;
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\n' || b == '\r' || b == '\t';
+    }
+
+    private byte peek() {
+        if (mPosition >= mEnd) throw new IllegalStateException("Unexpected end of JSON");
+        return mJson[mPosition];
+    }
+
+    private void expect(char c) {
+        if (peek() != c) {
+            throw new IllegalStateException("Expected '" + c + "' at " + mPosition);
+        }
+        mPosition++;
+    }
+
+    private static byte[] bytes(String ascii) {
+        return ascii.getBytes(ISO_8859_1);
+    }
+}
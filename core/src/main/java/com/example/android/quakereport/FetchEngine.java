@@ -0,0 +1,197 @@
+package com.example.android.quakereport;
+
+import java.io.Closeable;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * {@link FetchEngine} runs many queries to USGS at the same time, for hosts on a plain JVM
+ * that fan out queries for many regions or magnitudes.
+ *
+ * Every query blocks a thread while it waits for the server. By default the queries run on
+ * virtual threads when the JVM has them, Java 21 or later, so thousands of queries can wait
+ * at once without holding a platform thread each. Older JVMs get a cached thread pool.
+ *
+ * The queries of a call are structured: {@link #fetchAll(List, long, TimeUnit)} returns only
+ * once every one of its queries has ended. When the timeout of the call expires, the caller
+ * is interrupted or the engine is closed, the queries that are still running are cancelled,
+ * they stop reading and parsing their responses, and the call waits for them to stop. The
+ * connect and read timeouts of the single requests are set per engine.
+ *
+ * Queries of an engine are not limited like the fetches of the app, where the
+ * FetchScheduler lets only a few use the network at the same time.
+ */
+public final class FetchEngine implements Closeable {
+
+    private static final Logger LOGGER = Logger.getLogger(FetchEngine.class.getName());
+
+    private final ExecutorService mExecutor;
+
+    // true if the executor was created by the engine and is shut down with it
+    private final boolean mOwnsExecutor;
+
+    private final HttpTransport mTransport;
+
+    // cancelled when the engine is closed, cancels the queries of every call
+    private final Cancellation mClosed = new Cancellation();
+
+    /**
+     * Create an engine that runs queries on virtual threads if the JVM has them, with the
+     * default connect and read timeouts.
+     */
+    public FetchEngine() {
+        this(newQueryExecutor(), true, new UrlConnectionTransport());
+    }
+
+    /**
+     * Create an engine that runs queries on the given executor, which stays owned by the
+     * caller.
+     *
+     * @param executor       executor to run the queries on, for example
+     *                       {@link #newQueryExecutor()}
+     * @param connectTimeout timeout of connecting in milliseconds
+     * @param readTimeout    timeout of every read in milliseconds
+     */
+    public FetchEngine(ExecutorService executor, int connectTimeout, int readTimeout) {
+        this(executor, false, new UrlConnectionTransport(connectTimeout, readTimeout));
+    }
+
+    FetchEngine(ExecutorService executor, boolean ownsExecutor, HttpTransport transport) {
+        mExecutor = executor;
+        mOwnsExecutor = ownsExecutor;
+        mTransport = transport;
+    }
+
+    /**
+     * Return an executor that starts a virtual thread per query, or a cached thread pool if
+     * the JVM has no virtual threads.
+     */
+    public static ExecutorService newQueryExecutor() {
+        try {
+            // looked up at runtime, the engine is built for Java 7
+            Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) method.invoke(null);
+        } catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException e) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    /**
+     * Fetch the earthquakes of a single query.
+     *
+     * @return the earthquakes, or null if the query failed or did not end in time
+     * @see #fetchAll(List, long, TimeUnit)
+     */
+    public EarthquakeStore fetch(String url, long timeout, TimeUnit unit)
+            throws InterruptedException {
+        return fetchAll(Collections.singletonList(url), timeout, unit).get(0);
+    }
+
+    /**
+     * Fetch the earthquakes of every query at the same time, and return once all of them
+     * have ended. Queries still running when the timeout expires are cancelled.
+     *
+     * @param urls    urls of the queries
+     * @param timeout time to wait for all the queries
+     * @param unit    unit of the timeout
+     * @return the earthquakes of every query in the order of the urls, null for the queries
+     * that failed or did not end in time
+     * @throws InterruptedException if the calling thread was interrupted, the queries of the
+     *                              call are cancelled and have ended when it is thrown
+     */
+    public List<EarthquakeStore> fetchAll(List<String> urls, long timeout, TimeUnit unit)
+            throws InterruptedException {
+        int count = urls.size();
+        final EarthquakeStore[] results = new EarthquakeStore[count];
+        final CountDownLatch done = new CountDownLatch(count);
+        // threads of the running queries, guarded by itself
+        final Thread[] threads = new Thread[count];
+        final Cancellation call = new Cancellation();
+        Runnable cancelCall = new Runnable() {
+            @Override
+            public void run() {
+                call.cancel();
+            }
+        };
+        mClosed.addListener(cancelCall);
+
+        boolean interrupted = false;
+        try {
+            for (int i = 0; i < count; i++) {
+                final int index = i;
+                final String url = urls.get(i);
+                try {
+                    mExecutor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            synchronized (threads) {
+                                threads[index] = Thread.currentThread();
+                            }
+                            try {
+                                results[index] = QueryUtils.fetchEarthquakesData(
+                                        mTransport, url, null, 0, call).earthquakes;
+                            } finally {
+                                synchronized (threads) {
+                                    threads[index] = null;
+                                    // an interrupt meant for this query must not reach the
+                                    // next task of a pooled thread
+                                    Thread.interrupted();
+                                }
+                                done.countDown();
+                            }
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    // the executor was shut down, the query fails
+                    done.countDown();
+                }
+            }
+            if (!done.await(timeout, unit)) {
+                LOGGER.warning(done.getCount() + " of " + count + " queries did not end in time");
+            }
+        } catch (InterruptedException e) {
+            interrupted = true;
+        } finally {
+            mClosed.removeListener(cancelCall);
+            // queries that have not started end right away, running ones stop within one
+            // read of the network, or at once on virtual threads, where the interrupt
+            // aborts a blocking read
+            call.cancel();
+            synchronized (threads) {
+                for (Thread thread : threads) {
+                    if (thread != null) thread.interrupt();
+                }
+            }
+            // nothing of the call outlives it
+            while (true) {
+                try {
+                    done.await();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+
+        if (interrupted) throw new InterruptedException();
+        return Arrays.asList(results);
+    }
+
+    /**
+     * Cancel the queries of every running call. The engine cannot be used any more.
+     */
+    @Override
+    public void close() {
+        mClosed.cancel();
+        if (mOwnsExecutor) mExecutor.shutdown();
+    }
+}
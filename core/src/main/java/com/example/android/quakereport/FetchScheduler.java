@@ -0,0 +1,178 @@
+package com.example.android.quakereport;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * {@link FetchScheduler} decides which fetches of {@link EarthquakeRequests} may use the
+ * network.
+ *
+ * At most {@link #MAX_CONCURRENT_FETCHES} fetches run at the same time. The others wait,
+ * and a free slot goes to the waiting fetch of the highest priority, the longest waiting
+ * one among equals: earthquakes the user waits for on screen come before the next page
+ * that is prefetched while scrolling, which comes before refreshing earthquakes that are
+ * already shown or polling in the background. A cancelled fetch stops waiting at once.
+ *
+ * A fetch for the screen does not wait behind the others: when every slot is taken, the
+ * running fetch of the lowest priority, the latest started among equals, is preempted. The
+ * cancellation of its slot is cancelled, so it stops at its next read and gives the slot
+ * back, and it is up to its owner to wait for another slot and start over.
+ */
+final class FetchScheduler {
+
+    // priorities, the lower the number the higher the priority
+    static final int PRIORITY_VISIBLE = 0;
+    static final int PRIORITY_PREFETCH = 1;
+    static final int PRIORITY_REFRESH = 2;
+
+    // most fetches that use the network at the same time
+    static final int MAX_CONCURRENT_FETCHES = 2;
+
+    private static final Object sLock = new Object();
+
+    // slots of the fetches that are running, the earliest started first
+    private static final List<Slot> sRunning = new ArrayList<>();
+
+    // fetches waiting for a slot, the one to run next first
+    private static final PriorityQueue<Waiter> sWaiting = new PriorityQueue<>();
+
+    // order in which the waiting fetches arrived
+    private static long sSequence;
+
+    private FetchScheduler() {
+    }
+
+    /**
+     * The right of a fetch to use the network, until it is given back with
+     * {@link #release(Slot)}.
+     */
+    static final class Slot {
+        final int priority;
+
+        // cancelled along with the fetch, or when the slot is preempted
+        final Cancellation cancellation = new Cancellation();
+
+        // the cancellation of the fetch, and the listener that cancels the slot with it
+        private final Cancellation mFetchCancellation;
+        private final Runnable mCancelSlot = new Runnable() {
+            @Override
+            public void run() {
+                cancellation.cancel();
+            }
+        };
+
+        // guarded by sLock
+        private boolean mPreempted;
+
+        private Slot(int priority, Cancellation fetchCancellation) {
+            this.priority = priority;
+            mFetchCancellation = fetchCancellation;
+        }
+
+        /**
+         * Return true if the slot was taken by a fetch of a higher priority.
+         */
+        boolean isPreempted() {
+            synchronized (sLock) {
+                return mPreempted;
+            }
+        }
+    }
+
+    /**
+     * Wait until the fetch may run, preempting a running fetch if it is for the screen.
+     * Return the slot of the fetch, whose cancellation the fetch must use, or null if the
+     * fetch was cancelled or the thread was interrupted first.
+     */
+    static Slot acquire(int priority, Cancellation cancellation) {
+        Runnable wakeUp = new Runnable() {
+            @Override
+            public void run() {
+                synchronized (sLock) {
+                    sLock.notifyAll();
+                }
+            }
+        };
+        cancellation.addListener(wakeUp);
+        Waiter waiter;
+        synchronized (sLock) {
+            waiter = new Waiter(priority, sSequence++);
+            sWaiting.add(waiter);
+        }
+        try {
+            while (true) {
+                Slot preempted;
+                synchronized (sLock) {
+                    if (cancellation.isCancelled()) return null;
+                    if (sRunning.size() < MAX_CONCURRENT_FETCHES && sWaiting.peek() == waiter) {
+                        Slot slot = new Slot(priority, cancellation);
+                        sRunning.add(slot);
+                        cancellation.addListener(slot.mCancelSlot);
+                        return slot;
+                    }
+                    preempted = sWaiting.peek() == waiter ? preempt(priority) : null;
+                    if (preempted == null) sLock.wait();
+                }
+                // outside of the lock, as the listeners of the fetch run on this thread
+                if (preempted != null) preempted.cancellation.cancel();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } finally {
+            synchronized (sLock) {
+                sWaiting.remove(waiter);
+                // the next waiting fetch may be first now
+                sLock.notifyAll();
+            }
+            cancellation.removeListener(wakeUp);
+        }
+    }
+
+    /**
+     * Give the slot of a fetch that is done to the next one.
+     */
+    static void release(Slot slot) {
+        slot.mFetchCancellation.removeListener(slot.mCancelSlot);
+        synchronized (sLock) {
+            sRunning.remove(slot);
+            sLock.notifyAll();
+        }
+    }
+
+    /**
+     * Mark the slot a fetch of the given priority preempts, if it is for the screen and no
+     * other slot is on its way to be given back already. Return the slot, or null if none
+     * is preempted.
+     */
+    private static Slot preempt(int priority) {
+        if (priority != PRIORITY_VISIBLE) return null;
+        Slot preempted = null;
+        for (Slot slot : sRunning) {
+            if (slot.mPreempted) return null;
+            if (slot.priority > priority
+                    && (preempted == null || slot.priority >= preempted.priority)) {
+                preempted = slot;
+            }
+        }
+        if (preempted != null) preempted.mPreempted = true;
+        return preempted;
+    }
+
+    private static final class Waiter implements Comparable<Waiter> {
+        final int priority;
+        final long sequence;
+
+        Waiter(int priority, long sequence) {
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Waiter other) {
+            if (priority != other.priority) return priority < other.priority ? -1 : 1;
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package com.example.android.quakereport;
+
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * {@link HttpResponse} is a response received by an {@link HttpTransport}.
+ *
+ * A gzip encoded body is decoded transparently. The response also counts how many bytes of
+ * the body went over the wire, and records how long the request took in
+ * {@link Metrics#REQUEST} when it is closed.
+ */
+final class HttpResponse implements Closeable {
+
+    // bodies shorter than this are read to the end on close, so the connection can be reused
+    private static final int MAX_DRAIN_BYTES = 64 * 1024;
+
+    private final int mCode;
+    private final String mETag;
+    private final long mLastModified;
+    private final int mContentLength;
+
+    // body as it came over the wire, counting the bytes read from it
+    private final CountingInputStream mWireBody;
+
+    // decoded body
+    private final InputStream mBody;
+
+    // connection of the response, null if it cannot be closed apart from the body
+    private final Closeable mConnection;
+
+    // System.nanoTime() when the request was started
+    private final long mStartNanos;
+
+    private boolean mClosed;
+
+    /**
+     * @param code            http response code
+     * @param eTag            ETag header or null
+     * @param lastModified    Last-Modified header or 0
+     * @param contentLength   Content-Length header or -1
+     * @param contentEncoding Content-Encoding header or null
+     * @param body            body of the response or null if there is none
+     * @param startNanos      System.nanoTime() when the request was started
+     */
+    HttpResponse(int code, String eTag, long lastModified, int contentLength,
+                 String contentEncoding, InputStream body, long startNanos) throws IOException {
+        this(code, eTag, lastModified, contentLength, contentEncoding, body, startNanos, null);
+    }
+
+    /**
+     * @param connection closes the connection of the response, see {@link #disconnect()}
+     * @see #HttpResponse(int, String, long, int, String, InputStream, long)
+     */
+    HttpResponse(int code, String eTag, long lastModified, int contentLength,
+                 String contentEncoding, InputStream body, long startNanos,
+                 Closeable connection) throws IOException {
+        mCode = code;
+        mConnection = connection;
+        mETag = eTag;
+        mLastModified = lastModified;
+        mContentLength = contentLength;
+        mStartNanos = startNanos;
+        mWireBody = body == null ? null : new CountingInputStream(body);
+        if (mWireBody != null && "gzip".equalsIgnoreCase(contentEncoding)) {
+            mBody = new GZIPInputStream(mWireBody);
+        } else {
+            mBody = mWireBody;
+        }
+    }
+
+    int getCode() {
+        return mCode;
+    }
+
+    String getETag() {
+        return mETag;
+    }
+
+    long getLastModified() {
+        return mLastModified;
+    }
+
+    /**
+     * Return the number of bytes of the body on the wire, or -1 if it is not known.
+     * It is the compressed size if the body is gzip encoded.
+     */
+    int getContentLength() {
+        return mContentLength;
+    }
+
+    /**
+     * Return the decoded body, or null if the response has no body.
+     */
+    InputStream getBody() {
+        return mBody;
+    }
+
+    /**
+     * Return the number of body bytes read from the wire so far.
+     */
+    long getBytesOnWire() {
+        return mWireBody == null ? 0 : mWireBody.mCount;
+    }
+
+    /**
+     * Close the body. A body that has not been read to the end is drained first, if it
+     * is short enough, so the transport can reuse the connection for the next request.
+     */
+    @Override
+    public void close() throws IOException {
+        if (mClosed) return;
+        mClosed = true;
+        try {
+            if (mBody != null) {
+                byte[] buffer = new byte[4096];
+                long drained = 0;
+                int read;
+                while (drained < MAX_DRAIN_BYTES && (read = mBody.read(buffer)) != -1) {
+                    drained += read;
+                }
+                mBody.close();
+            }
+        } finally {
+            Metrics.REQUEST.recordSince(mStartNanos);
+        }
+    }
+
+    /**
+     * Close the body without draining it, for bodies that do not end, like a stream of events.
+     * The connection is not reused, and the request is not recorded as it did not end.
+     */
+    void abort() throws IOException {
+        if (mClosed) return;
+        mClosed = true;
+        if (mBody != null) mBody.close();
+    }
+
+    /**
+     * Close the connection of the response. Unlike the other methods it may be called from
+     * any thread, to end a read that is blocked on the body. The body still has to be aborted
+     * by the thread that reads it.
+     *
+     * The HttpURLConnection of Android cancels the call and closes its socket, so the blocked
+     * read fails right away. The one of the JDK waits for the read to return.
+     */
+    void disconnect() throws IOException {
+        if (mConnection != null) mConnection.close();
+    }
+
+    /**
+     * Counts the bytes read through it.
+     */
+    private static final class CountingInputStream extends FilterInputStream {
+        private long mCount;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) mCount++;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read = super.read(buffer, offset, length);
+            if (read > 0) mCount += read;
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            mCount += skipped;
+            return skipped;
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package com.example.android.quakereport;
+
+import java.io.IOException;
+import java.net.URL;
+
+/**
+ * {@link HttpTransport} sends the http requests of {@link QueryUtils}.
+ *
+ * The app uses {@link UrlConnectionTransport}, tests can replace it with
+ * {@link QueryUtils#setTransport(HttpTransport)}, for example with one that talks
+ * to a local fake server.
+ */
+interface HttpTransport {
+
+    /**
+     * Send a GET request. The returned response must be closed by the caller.
+     *
+     * @param url          url to make request to
+     * @param eTag         ETag of the previous response or null
+     * @param lastModified Last-Modified time of the previous response or 0
+     */
+    HttpResponse get(URL url, String eTag, long lastModified) throws IOException;
+}
@@ -0,0 +1,205 @@
+package com.example.android.quakereport;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * {@link Metrics} holds the timers and counters of the hot paths of the app: the network,
+ * parsing, formatting, binding rows and the caches.
+ *
+ * They are always on. Recording is a few atomic increments and never takes a lock or
+ * allocates, so it can be done from any thread, including the main thread for every bound row.
+ * The collected values can be seen on the MetricsActivity screen of the app or dumped with
+ * {@code adb shell dumpsys activity com.example.android.quakereport/.EarthquakeActivity}.
+ */
+final class Metrics {
+
+    // network, in microseconds
+    static final Histogram CONNECT = new Histogram("connect", "us", 1000);
+    static final Histogram TIME_TO_FIRST_BYTE = new Histogram("time to first byte", "us", 1000);
+    // from the start of a request until its body was read and closed
+    static final Histogram REQUEST = new Histogram("request", "us", 1000);
+    static final Counter BYTES_READ = new Counter("bytes read");
+
+    // fetches cancelled before they were parsed, and the bytes they read until then
+    static final Counter FETCHES_CANCELLED = new Counter("fetches cancelled");
+    static final Counter BYTES_CANCELLED = new Counter("bytes of cancelled fetches");
+
+    // fetches that gave their slot to a fetch for the screen and started over
+    static final Counter FETCHES_PREEMPTED = new Counter("fetches preempted");
+
+    // earthquakes pushed by EarthquakeStream, and the batches they were passed on in
+    static final Counter EARTHQUAKES_STREAMED = new Counter("earthquakes streamed");
+    static final Counter STREAM_BATCHES = new Counter("stream batches");
+
+    // background work, in microseconds
+    static final Histogram PARSE = new Histogram("parse", "us", 1000);
+    static final Counter EARTHQUAKES_PARSED = new Counter("earthquakes parsed");
+    static final Histogram FORMAT = new Histogram("format", "us", 1000);
+
+    // main thread, in nanoseconds per row
+    static final Histogram BIND = new Histogram("bind row", "ns", 1);
+
+    // responses answered from memory by EarthquakeRequests
+    static final Counter REQUEST_CACHE_HITS = new Counter("request cache hits");
+    static final Counter REQUEST_CACHE_MISSES = new Counter("request cache misses");
+
+    // loaded earthquakes of a query found in EarthquakeMemoryCache
+    static final Counter QUERY_CACHE_HITS = new Counter("query cache hits");
+    static final Counter QUERY_CACHE_MISSES = new Counter("query cache misses");
+    static final Counter QUERY_CACHE_EVICTIONS = new Counter("query cache evictions");
+
+    // earthquakes read from the disk cache of a query
+    static final Counter DISK_CACHE_HITS = new Counter("disk cache hits");
+    static final Counter DISK_CACHE_MISSES = new Counter("disk cache misses");
+
+    private static final Histogram[] HISTOGRAMS = {
+            CONNECT, TIME_TO_FIRST_BYTE, REQUEST, PARSE, FORMAT, BIND
+    };
+
+    private static final Counter[] COUNTERS = {
+            BYTES_READ, FETCHES_CANCELLED, BYTES_CANCELLED, FETCHES_PREEMPTED,
+            EARTHQUAKES_STREAMED, STREAM_BATCHES, EARTHQUAKES_PARSED,
+            REQUEST_CACHE_HITS, REQUEST_CACHE_MISSES,
+            QUERY_CACHE_HITS, QUERY_CACHE_MISSES, QUERY_CACHE_EVICTIONS,
+            DISK_CACHE_HITS, DISK_CACHE_MISSES
+    };
+
+    private Metrics() {
+    }
+
+    /**
+     * Return all the timers and counters as text, one per line.
+     */
+    static String dump() {
+        StringBuilder builder = new StringBuilder();
+        for (Histogram histogram : HISTOGRAMS) histogram.dump(builder);
+        for (Counter counter : COUNTERS) counter.dump(builder);
+        return builder.toString();
+    }
+
+    /**
+     * Set all the timers and counters back to zero.
+     */
+    static void reset() {
+        for (Histogram histogram : HISTOGRAMS) histogram.reset();
+        for (Counter counter : COUNTERS) counter.reset();
+    }
+
+    /**
+     * Counter of events or amounts.
+     */
+    static final class Counter {
+        private final String mName;
+        private final AtomicLong mValue = new AtomicLong();
+
+        Counter(String name) {
+            mName = name;
+        }
+
+        void add(long amount) {
+            mValue.addAndGet(amount);
+        }
+
+        void increment() {
+            mValue.incrementAndGet();
+        }
+
+        long get() {
+            return mValue.get();
+        }
+
+        void reset() {
+            mValue.set(0);
+        }
+
+        void dump(StringBuilder builder) {
+            builder.append(mName).append(": ").append(mValue.get()).append('\n');
+        }
+    }
+
+    /**
+     * Histogram of non-negative values in buckets of powers of two, bucket i counts the values
+     * below 2^i that do not fit in a lower bucket. Percentiles are reported as the upper bound
+     * of their bucket, so they are accurate within a factor of two.
+     */
+    static final class Histogram {
+        private static final int BUCKET_COUNT = 64;
+
+        private final String mName;
+        private final String mUnit;
+        private final long mNanosPerUnit;
+        private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKET_COUNT);
+        private final AtomicLong mCount = new AtomicLong();
+        private final AtomicLong mSum = new AtomicLong();
+        private final AtomicLong mMax = new AtomicLong();
+
+        Histogram(String name, String unit, long nanosPerUnit) {
+            mName = name;
+            mUnit = unit;
+            mNanosPerUnit = nanosPerUnit;
+        }
+
+        void record(long value) {
+            if (value < 0) value = 0;
+            mBuckets.incrementAndGet(BUCKET_COUNT - Long.numberOfLeadingZeros(value));
+            mCount.incrementAndGet();
+            mSum.addAndGet(value);
+            long max;
+            do {
+                max = mMax.get();
+            } while (value > max && !mMax.compareAndSet(max, value));
+        }
+
+        /**
+         * Record the time since the given System.nanoTime() in the unit of the histogram.
+         */
+        void recordSince(long startNanos) {
+            record((System.nanoTime() - startNanos) / mNanosPerUnit);
+        }
+
+        long getCount() {
+            return mCount.get();
+        }
+
+        /**
+         * Return the upper bound of the bucket that holds the given fraction of the values,
+         * or the largest value if it is lower. The last bucket has no upper bound that fits
+         * in a long, so it reports the largest value.
+         */
+        long getPercentile(double fraction) {
+            long count = mCount.get();
+            if (count == 0) return 0;
+            long rank = (long) Math.ceil(fraction * count);
+            long seen = 0;
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                seen += mBuckets.get(i);
+                if (seen < rank) continue;
+                if (i == 0) return 0;
+                if (i == BUCKET_COUNT - 1) return mMax.get();
+                return Math.min(1L << i, mMax.get());
+            }
+            return mMax.get();
+        }
+
+        void reset() {
+            for (int i = 0; i < BUCKET_COUNT; i++) mBuckets.set(i, 0);
+            mCount.set(0);
+            mSum.set(0);
+            mMax.set(0);
+        }
+
+        void dump(StringBuilder builder) {
+            long count = mCount.get();
+            builder.append(mName).append(": count ").append(count);
+            if (count > 0) {
+                builder.append(String.format(Locale.US,
+                        ", mean %d, p50 %d, p90 %d, p99 %d, max %d %s",
+                        mSum.get() / count, getPercentile(0.5), getPercentile(0.9),
+                        getPercentile(0.99), mMax.get(), mUnit));
+            }
+            builder.append('\n');
+        }
+    }
+}
@@ -0,0 +1,493 @@
+package com.example.android.quakereport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Helper methods related to requesting and receiving earthquake data from USGS.
+ *
+ * This class and the ones it uses do not depend on Android, so they can be used on any JVM,
+ * see {@link FetchEngine}. Problems are logged with {@link java.util.logging}, which ends up
+ * in the Android log as well.
+ */
+public final class QueryUtils {
+
+    /** Logger for log messages */
+    private static final Logger LOGGER = Logger.getLogger(QueryUtils.class.getName());
+
+    /** Responses of at least this many bytes are parsed in parallel chunks */
+    private static final int PARALLEL_PARSE_THRESHOLD = 1024 * 1024;
+
+    /** Chunks per thread, more chunks than threads keep every thread busy until the end */
+    private static final int CHUNKS_PER_THREAD = 4;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final byte[] FEATURES_KEY = "features".getBytes(UTF_8);
+
+    /** Transport used to send requests */
+    private static volatile HttpTransport sTransport = new UrlConnectionTransport();
+
+    /**
+     * Create a private constructor because no one should ever create a {@link QueryUtils} object.
+     * This class is only meant to hold static variables and methods, which can be accessed
+     * directly from the class name QueryUtils (and an object instance of QueryUtils is not needed).
+     */
+    private QueryUtils() {
+    }
+
+    /**
+     * Make a http request to a provided url and return a list of earthquakes
+     */
+    public static EarthquakeStore fetchEarthquakesData(String requestUrl) {
+        return fetchEarthquakesData(requestUrl, null, 0).earthquakes;
+    }
+
+    /**
+     * Make a conditional http request to a provided url. The request is sent with the
+     * validators of a previously received response, if there are any, so the server
+     * can answer that nothing has changed instead of sending the whole feed again.
+     *
+     * @param requestUrl   url to make request to
+     * @param eTag         ETag of the previous response or null
+     * @param lastModified Last-Modified time of the previous response or 0
+     */
+    static Response fetchEarthquakesData(String requestUrl, String eTag, long lastModified) {
+        return fetchEarthquakesData(requestUrl, eTag, lastModified, new Cancellation());
+    }
+
+    /**
+     * Make a conditional http request that stops reading and parsing the response as soon as
+     * the cancellation is cancelled. A cancelled response has no earthquakes.
+     *
+     * @see #fetchEarthquakesData(String, String, long)
+     */
+    static Response fetchEarthquakesData(String requestUrl, String eTag, long lastModified,
+                                         Cancellation cancellation) {
+        return fetchEarthquakesData(sTransport, requestUrl, eTag, lastModified, cancellation);
+    }
+
+    /**
+     * Make a conditional http request with the given transport instead of the one set with
+     * {@link #setTransport(HttpTransport)}.
+     *
+     * @see #fetchEarthquakesData(String, String, long, Cancellation)
+     */
+    static Response fetchEarthquakesData(HttpTransport transport, String requestUrl,
+                                         String eTag, long lastModified,
+                                         Cancellation cancellation) {
+        URL url = createUrl(requestUrl);
+
+        Response response = new Response();
+        try {
+            makeHttpRequest(transport, url, eTag, lastModified, cancellation, response);
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "Error closing input stream", e);
+            // TODO move exception handling into method that throws it
+        }
+
+        return response;
+    }
+
+    /**
+     * Return a time in the format of the time parameters of USGS queries, in UTC.
+     */
+    static String formatQueryTime(long time) {
+        return createQueryTimeFormat().format(new Date(time));
+    }
+
+    /**
+     * Return the time of a time parameter of a USGS query in milliseconds,
+     * or -1 if it is not in the format of {@link #formatQueryTime(long)}.
+     */
+    static long parseQueryTime(String time) {
+        try {
+            return createQueryTimeFormat().parse(time).getTime();
+        } catch (ParseException e) {
+            return -1;
+        }
+    }
+
+    private static SimpleDateFormat createQueryTimeFormat() {
+        SimpleDateFormat timeFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS", Locale.US);
+        timeFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+        timeFormat.setLenient(false);
+        return timeFormat;
+    }
+
+    /**
+     * Returns new URL object from a given string.
+     */
+    private static URL createUrl(String requestedUrl) {
+        URL url = null;
+        try {
+            url = new URL(requestedUrl);
+        } catch (MalformedURLException e) {
+            LOGGER.log(Level.SEVERE, "Error creating URL ", e);
+        }
+        return url;
+    }
+
+    /**
+     * Replace the transport used to send requests, for example with one that talks
+     * to a local fake server in tests.
+     */
+    static void setTransport(HttpTransport transport) {
+        sTransport = transport;
+    }
+
+    /**
+     * Makes a HTTP request to a given URL and fills the response with earthquakes parsed
+     * directly from the response stream. Once the request is cancelled, the body is neither
+     * read nor parsed any further and the connection is closed without draining it.
+     */
+    private static void makeHttpRequest(HttpTransport transport, URL url, String eTag,
+                                        long lastModified, Cancellation cancellation,
+                                        Response response) throws IOException {
+        if (url == null) return;
+        if (cancellation.isCancelled()) {
+            response.cancelled = true;
+            return;
+        }
+
+        HttpResponse httpResponse = null;
+        try {
+            httpResponse = transport.get(url, eTag, lastModified);
+
+            // If the request was successful (response code 200),
+            // parse the response straight from the input stream.
+            int responseCode = httpResponse.getCode();
+            if (responseCode == HttpURLConnection.HTTP_OK) {
+                response.eTag = httpResponse.getETag();
+                response.lastModified = httpResponse.getLastModified();
+                InputStream inputStream = httpResponse.getBody();
+                ByteBuffer body = inputStream == null ? null : readFromStream(inputStream,
+                        httpResponse.getContentLength(), cancellation);
+                if (body != null) {
+                    long parseStart = System.nanoTime();
+                    try {
+                        response.earthquakes =
+                                extractData(body.array(), body.limit(), cancellation);
+                    } finally {
+                        // the parsed earthquakes do not refer to the bytes of the body
+                        BufferPool.release(body.array());
+                    }
+                    if (response.earthquakes != null) {
+                        Metrics.PARSE.recordSince(parseStart);
+                        Metrics.EARTHQUAKES_PARSED.add(response.earthquakes.size());
+                    }
+                }
+            } else if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                response.notModified = true;
+            } else {
+                LOGGER.severe("Error response code " + responseCode);
+            }
+        } catch (IOException e) {
+            // a cancelled request may fail because its connection was aborted
+            if (!cancellation.isCancelled()) {
+                LOGGER.log(Level.SEVERE, "Error retrieving earthquake data", e);
+            }
+        } finally {
+            // a response that was parsed completely is kept even if it was cancelled since
+            response.cancelled = cancellation.isCancelled() && response.earthquakes == null
+                    && !response.notModified;
+            if (httpResponse != null) {
+                if (response.cancelled) {
+                    httpResponse.abort();
+                } else {
+                    httpResponse.close();
+                }
+                response.bytesOnWire = httpResponse.getBytesOnWire();
+                Metrics.BYTES_READ.add(response.bytesOnWire);
+                if (response.cancelled) {
+                    Metrics.FETCHES_CANCELLED.increment();
+                    Metrics.BYTES_CANCELLED.add(response.bytesOnWire);
+                }
+            }
+        }
+    }
+
+    /**
+     * Return a store with the earthquake of a single GeoJSON feature,
+     * or null if it cannot be parsed or has no id.
+     */
+    static EarthquakeStore extractFeature(String json) {
+        EarthquakeStore earthquakes = new EarthquakeStore(1);
+        byte[] bytes = json.getBytes(UTF_8);
+        try {
+            FeatureParser.parseFeatures(bytes, 0, bytes.length, earthquakes, null);
+        } catch (IllegalStateException e) {
+            LOGGER.log(Level.SEVERE, "Problem parsing the earthquake JSON feature", e);
+            return null;
+        }
+        return earthquakes.size() != 1 || earthquakes.getId(0) == null ? null : earthquakes;
+    }
+
+    /**
+     * Read data from stream into an array of the {@link BufferPool}. The returned buffer
+     * wraps the array, its limit is the number of bytes read. The array has to be released
+     * to the pool once it is parsed.
+     *
+     * @param length expected number of bytes, or -1 if it is not known. A gzip encoded body
+     *               is longer than announced, the array grows as needed.
+     * @return the buffer, or null if the request was cancelled before the end of the stream
+     */
+    static ByteBuffer readFromStream(InputStream inputStream, int length,
+                                     Cancellation cancellation) throws IOException {
+        byte[] data = BufferPool.acquire(length + 1);
+        int count = 0;
+        try {
+            int read;
+            while ((read = inputStream.read(data, count, data.length - count)) != -1) {
+                if (cancellation.isCancelled()) {
+                    BufferPool.release(data);
+                    return null;
+                }
+                count += read;
+                if (count == data.length) {
+                    byte[] larger = BufferPool.acquire(data.length * 2);
+                    System.arraycopy(data, 0, larger, 0, count);
+                    BufferPool.release(data);
+                    data = larger;
+                }
+            }
+        } catch (IOException e) {
+            BufferPool.release(data);
+            throw e;
+        }
+        return ByteBuffer.wrap(data, 0, count);
+    }
+
+    /**
+     * Return an {@link EarthquakeStore} filled with earthquakes parsed from the first bytes
+     * of the given array, which hold a GeoJSON response.
+     *
+     * The features are parsed straight from the bytes by {@link FeatureParser}, so only the
+     * strings that are kept are decoded. Responses of at least
+     * {@link #PARALLEL_PARSE_THRESHOLD} bytes are split into chunks of features that are
+     * parsed on the {@link WorkerPool}. The chunks are joined in their original order.
+     *
+     * Return null if parsing was cancelled.
+     */
+    static EarthquakeStore extractData(byte[] json, int length, Cancellation cancellation) {
+        return extractData(json, length, cancellation, WorkerPool.get(), WorkerPool.THREAD_COUNT);
+    }
+
+    /**
+     * Parse the earthquakes of a response like {@link #extractData(byte[], int, Cancellation)},
+     * with the chunks of a large response parsed on the given executor, which runs at most
+     * the given number of them at the same time.
+     */
+    static EarthquakeStore extractData(final byte[] json, int length,
+                                       final Cancellation cancellation,
+                                       ExecutorService executor, int threadCount) {
+        int start = findFeaturesStart(json, length);
+        if (start == -1) return new EarthquakeStore();
+        if (length < PARALLEL_PARSE_THRESHOLD || threadCount < 2) {
+            return extractFeatures(json, start, length, cancellation);
+        }
+
+        final int[] bounds = findFeatureBounds(json, start, length);
+        int featureCount = bounds.length / 2;
+        int chunkCount = Math.min(featureCount, threadCount * CHUNKS_PER_THREAD);
+        if (chunkCount < 2) return extractFeatures(json, start, length, cancellation);
+
+        List<Future<EarthquakeStore>> futures = new ArrayList<>(chunkCount);
+        for (int chunk = 0; chunk < chunkCount; chunk++) {
+            int firstFeature = chunk * featureCount / chunkCount;
+            int lastFeature = (chunk + 1) * featureCount / chunkCount - 1;
+            final int chunkStart = bounds[2 * firstFeature];
+            final int chunkEnd = bounds[2 * lastFeature + 1];
+            futures.add(executor.submit(new Callable<EarthquakeStore>() {
+                @Override
+                public EarthquakeStore call() {
+                    return extractFeatures(json, chunkStart, chunkEnd, cancellation);
+                }
+            }));
+        }
+
+        EarthquakeStore earthquakes = new EarthquakeStore(featureCount);
+        try {
+            for (Future<EarthquakeStore> future : futures) {
+                EarthquakeStore chunk = future.get();
+                if (chunk == null) return null;
+                for (int i = 0; i < chunk.size(); i++) earthquakes.add(chunk, i);
+            }
+        } catch (InterruptedException e) {
+            for (Future<EarthquakeStore> future : futures) future.cancel(true);
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            LOGGER.log(Level.SEVERE, "Problem parsing the earthquake JSON results", e.getCause());
+            return null;
+        }
+
+        earthquakes.trimToSize();
+        return earthquakes;
+    }
+
+    /**
+     * Parse the features that start at the given offset, up to the end offset or the end
+     * of the "features" array. Return null if parsing was cancelled.
+     */
+    private static EarthquakeStore extractFeatures(byte[] json, int start, int end,
+                                                   Cancellation cancellation) {
+        EarthquakeStore earthquakes = new EarthquakeStore();
+
+        // If there's a problem with the way the JSON is formatted, the parser throws an
+        // IllegalStateException. Catch it so the app doesn't crash, and print the error
+        // message to the logs. The earthquakes before the problem are kept.
+        try {
+            FeatureParser.parseFeatures(json, start, end, earthquakes, cancellation);
+        } catch (IllegalStateException e) {
+            LOGGER.log(Level.SEVERE, "Problem parsing the earthquake JSON results", e);
+        }
+        if (cancellation.isCancelled()) return null;
+
+        earthquakes.trimToSize();
+        return earthquakes;
+    }
+
+    /**
+     * Return the offset right after the opening bracket of the "features" array,
+     * or -1 if there is no such array. Only the structure of the JSON is scanned.
+     */
+    private static int findFeaturesStart(byte[] json, int length) {
+        int depth = 0;
+        boolean inString = false;
+        int stringStart = 0;
+        boolean featuresKey = false;
+
+        for (int i = 0; i < length; i++) {
+            byte b = json[i];
+            if (inString) {
+                if (b == '\\') {
+                    i++;
+                } else if (b == '"') {
+                    inString = false;
+                    // remember if the key of the current root member is "features"
+                    if (depth == 1) featuresKey = isFeaturesKey(json, stringStart, i);
+                }
+                continue;
+            }
+
+            switch (b) {
+                case '"':
+                    inString = true;
+                    stringStart = i + 1;
+                    break;
+                case '{':
+                case '[':
+                    depth++;
+                    if (depth == 2 && b == '[' && featuresKey) return i + 1;
+                    break;
+                case '}':
+                case ']':
+                    depth--;
+                    break;
+                default:
+                    break;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Return the start and end offsets of every feature of the "features" array that starts
+     * at the given offset, one pair of offsets after the other. Only the structure of the
+     * JSON is scanned, nothing is decoded. If the response ends early, the features that are
+     * complete are returned.
+     */
+    private static int[] findFeatureBounds(byte[] json, int start, int length) {
+        int[] bounds = new int[64];
+        int count = 0;
+
+        // depth within the array
+        int depth = 0;
+        boolean inString = false;
+
+        for (int i = start; i < length; i++) {
+            byte b = json[i];
+            if (inString) {
+                if (b == '\\') {
+                    i++;
+                } else if (b == '"') {
+                    inString = false;
+                }
+                continue;
+            }
+
+            switch (b) {
+                case '"':
+                    inString = true;
+                    break;
+                case '{':
+                case '[':
+                    if (depth++ == 0) {
+                        if (count + 2 > bounds.length) bounds = Arrays.copyOf(bounds, count * 2);
+                        bounds[count++] = i;
+                    }
+                    break;
+                case '}':
+                case ']':
+                    if (depth == 0) return Arrays.copyOf(bounds, count);
+                    if (--depth == 0) bounds[count++] = i + 1;
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        LOGGER.severe("The earthquake JSON results end early");
+        // leave out a feature that has not ended
+        return Arrays.copyOf(bounds, count & ~1);
+    }
+
+    private static boolean isFeaturesKey(byte[] json, int start, int end) {
+        if (end - start != FEATURES_KEY.length) return false;
+        for (int i = 0; i < FEATURES_KEY.length; i++) {
+            if (json[start + i] != FEATURES_KEY[i]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Result of a possibly conditional request to USGS.
+     */
+    static final class Response {
+        // parsed earthquakes, null if the request failed or nothing has changed
+        EarthquakeStore earthquakes;
+
+        // true if the server answered that the previous response is still current
+        boolean notModified;
+
+        // validators to send with the next request for the same url
+        String eTag;
+        long lastModified;
+
+        // bytes received from the network, compressed if the response was
+        long bytesOnWire;
+
+        // true if the request was cancelled before its earthquakes were parsed
+        boolean cancelled;
+    }
+}
@@ -0,0 +1,86 @@
+package com.example.android.quakereport;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * {@link UrlConnectionTransport} sends requests with {@link HttpURLConnection}.
+ *
+ * Connections are disconnected by {@link HttpResponse#disconnect()}, or right away if the
+ * request fails before there is a response. Once a response body has been read to the end
+ * and closed, the connection goes back to the keep-alive pool of {@link HttpURLConnection},
+ * so the next request to the same host skips the TCP and TLS setup. Bodies are requested
+ * gzip encoded and decoded by {@link HttpResponse}.
+ */
+final class UrlConnectionTransport implements HttpTransport {
+
+    static final int DEFAULT_READ_TIMEOUT = 10000; /* milliseconds */
+    static final int DEFAULT_CONNECT_TIMEOUT = 15000; /* milliseconds */
+
+    private final int mReadTimeout;
+    private final int mConnectTimeout;
+
+    UrlConnectionTransport() {
+        this(DEFAULT_CONNECT_TIMEOUT, DEFAULT_READ_TIMEOUT);
+    }
+
+    /**
+     * @param connectTimeout timeout of connecting in milliseconds
+     * @param readTimeout    timeout of every read in milliseconds
+     */
+    UrlConnectionTransport(int connectTimeout, int readTimeout) {
+        mConnectTimeout = connectTimeout;
+        mReadTimeout = readTimeout;
+    }
+
+    @Override
+    public HttpResponse get(URL url, String eTag, long lastModified) throws IOException {
+        long startNanos = System.nanoTime();
+
+        final HttpURLConnection urlConnection = (HttpURLConnection) url.openConnection();
+        urlConnection.setReadTimeout(mReadTimeout);
+        urlConnection.setConnectTimeout(mConnectTimeout);
+        urlConnection.setRequestMethod("GET");
+        // setting it explicitly turns off the transparent decoding of HttpURLConnection,
+        // so the compressed bytes on the wire can be counted
+        urlConnection.setRequestProperty("Accept-Encoding", "gzip");
+        if (eTag != null) urlConnection.setRequestProperty("If-None-Match", eTag);
+        if (lastModified > 0) urlConnection.setIfModifiedSince(lastModified);
+        try {
+            long connectStart = System.nanoTime();
+            urlConnection.connect();
+            Metrics.CONNECT.recordSince(connectStart);
+
+            int responseCode = urlConnection.getResponseCode();
+            Metrics.TIME_TO_FIRST_BYTE.recordSince(startNanos);
+            InputStream body;
+            if (responseCode == HttpURLConnection.HTTP_OK) {
+                body = urlConnection.getInputStream();
+            } else {
+                // an error body has to be consumed as well to keep the connection reusable
+                body = urlConnection.getErrorStream();
+            }
+
+            return new HttpResponse(responseCode,
+                    urlConnection.getHeaderField("ETag"),
+                    urlConnection.getLastModified(),
+                    urlConnection.getContentLength(),
+                    urlConnection.getContentEncoding(),
+                    body,
+                    startNanos,
+                    new Closeable() {
+                        @Override
+                        public void close() {
+                            urlConnection.disconnect();
+                        }
+                    });
+        } catch (IOException | RuntimeException e) {
+            // no response owns the connection, which would stay open otherwise
+            urlConnection.disconnect();
+            throw e;
+        }
+    }
+}
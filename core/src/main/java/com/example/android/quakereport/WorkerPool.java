@@ -0,0 +1,27 @@
+package com.example.android.quakereport;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * {@link WorkerPool} holds the threads that split CPU heavy work, like parsing and formatting
+ * of large responses, across the cores of the device.
+ */
+final class WorkerPool {
+
+    static final int THREAD_COUNT = Runtime.getRuntime().availableProcessors();
+
+    // created when first needed
+    private static ExecutorService sExecutor;
+
+    private WorkerPool() {
+    }
+
+    static synchronized ExecutorService get() {
+        if (sExecutor == null) {
+            sExecutor = Executors.newFixedThreadPool(THREAD_COUNT,
+                    new DaemonThreadFactory("worker"));
+        }
+        return sExecutor;
+    }
+}
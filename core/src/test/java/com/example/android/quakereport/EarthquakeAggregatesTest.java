@@ -0,0 +1,172 @@
+package com.example.android.quakereport;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Test of {@link EarthquakeAggregates} against counts of the same earthquakes made one by one.
+ */
+public class EarthquakeAggregatesTest {
+
+    private static final long DAY = 24 * 60 * 60 * 1000;
+
+    private final EarthquakeStore mEarthquakes = Fixtures.earthquakes(5000);
+
+    @Test
+    public void aggregatesCountEveryEarthquake() {
+        EarthquakeAggregates aggregates = new EarthquakeAggregates(DAY);
+        aggregates.setEarthquakes(mEarthquakes);
+
+        assertEquals(mEarthquakes.size(), aggregates.size());
+        assertAggregates(mEarthquakes, aggregates);
+    }
+
+    /**
+     * Each call replaces the earthquakes of the last one: earthquakes that are gone are
+     * removed and revised ones are counted with their new values.
+     */
+    @Test
+    public void aggregatesFollowTheEarthquakesThatAreSet() {
+        EarthquakeAggregates aggregates = new EarthquakeAggregates(DAY);
+        Random random = new Random(42);
+        for (int round = 0; round < 20; round++) {
+            EarthquakeStore earthquakes = new EarthquakeStore();
+            for (int i = 0; i < mEarthquakes.size(); i++) {
+                int choice = random.nextInt(10);
+                if (choice < 4) continue;
+                if (choice == 4) {
+                    earthquakes.add(mEarthquakes.getId(i), 9 - random.nextInt(30) / 10.0,
+                            null, mEarthquakes.getTime(i) + random.nextInt(3) * DAY, null, 0,
+                            mEarthquakes.getLatitude(i), -mEarthquakes.getLongitude(i), false);
+                } else {
+                    earthquakes.add(mEarthquakes, i);
+                }
+            }
+            aggregates.setEarthquakes(earthquakes);
+
+            assertEquals(earthquakes.size(), aggregates.size());
+            assertAggregates(earthquakes, aggregates);
+        }
+
+        aggregates.setEarthquakes(new EarthquakeStore());
+        assertEquals(0, aggregates.size());
+        assertEquals(0, aggregates.getHistogram(Long.MIN_VALUE, Long.MAX_VALUE).size);
+        assertEquals(0, aggregates.getClusters(0, -90, -180, 90, 180).size);
+    }
+
+    /**
+     * Earthquakes of another query empty the buckets of the last ones, which are dropped.
+     */
+    @Test
+    public void aggregatesOfAnotherQueryStartOver() {
+        EarthquakeAggregates aggregates = new EarthquakeAggregates(DAY);
+        aggregates.setEarthquakes(mEarthquakes);
+
+        EarthquakeStore later = new EarthquakeStore();
+        for (int i = 0; i < mEarthquakes.size(); i++) {
+            later.add("later" + i, mEarthquakes.getMagnitude(i), null,
+                    mEarthquakes.getTime(i) + 1000 * DAY, null, 0,
+                    mEarthquakes.getLatitude(i) / 2, mEarthquakes.getLongitude(i) / 2, false);
+        }
+        aggregates.setEarthquakes(later);
+
+        assertEquals(later.size(), aggregates.size());
+        assertAggregates(later, aggregates);
+    }
+
+    @Test
+    public void deletedAndIncompleteEarthquakesAreLeftOut() {
+        EarthquakeStore earthquakes = new EarthquakeStore();
+        earthquakes.add("a", 4.5, null, DAY, null, 0, 10, 20, false);
+        earthquakes.add("b", 5.5, null, DAY, null, 0, 10, 20, true);
+        earthquakes.add("c", Double.NaN, null, DAY, null, 0, 10, 20, false);
+        earthquakes.add(null, 6.5, null, DAY, null, 0, 10, 20, false);
+        // listed twice, counted once
+        earthquakes.add("a", 4.5, null, DAY, null, 0, 10, 20, false);
+
+        EarthquakeAggregates aggregates = new EarthquakeAggregates(DAY);
+        aggregates.setEarthquakes(earthquakes);
+        assertEquals(1, aggregates.size());
+        EarthquakeAggregates.Summary histogram =
+                aggregates.getHistogram(Long.MIN_VALUE, Long.MAX_VALUE);
+        assertEquals(1, histogram.size);
+        assertEquals(1, histogram.counts[0]);
+        assertEquals(4.5, histogram.maxMagnitudes[0], 0);
+        assertEquals(DAY, histogram.startTimes[0]);
+    }
+
+    /**
+     * Compare the time buckets in order, and the cells of some zoom levels by their counts
+     * and magnitudes, since cells come in no particular order.
+     */
+    private static void assertAggregates(EarthquakeStore earthquakes,
+                                         EarthquakeAggregates aggregates) {
+        TreeMap<Long, double[]> days = new TreeMap<>();
+        for (int i = 0; i < earthquakes.size(); i++) {
+            include(days, Math.floor(earthquakes.getTime(i) / (double) DAY),
+                    earthquakes.getMagnitude(i));
+        }
+        EarthquakeAggregates.Summary histogram =
+                aggregates.getHistogram(Long.MIN_VALUE, Long.MAX_VALUE);
+        assertEquals(days.size(), histogram.size);
+        int position = 0;
+        for (long day : days.keySet()) {
+            assertEquals(day * DAY, histogram.startTimes[position]);
+            assertEquals(describe(days.get(day)), describe(histogram, position));
+            position++;
+        }
+
+        for (int zoom : new int[]{0, 3, EarthquakeAggregates.MAX_ZOOM}) {
+            TreeMap<Long, double[]> cells = new TreeMap<>();
+            int size = 1 << zoom;
+            for (int i = 0; i < earthquakes.size(); i++) {
+                int x = Math.min((int) ((earthquakes.getLongitude(i) + 180) / 360 * size),
+                        size - 1);
+                int y = Math.min((int) ((earthquakes.getLatitude(i) + 90) / 180 * size),
+                        size - 1);
+                include(cells, (double) x * size + y, earthquakes.getMagnitude(i));
+            }
+            List<String> expected = new ArrayList<>();
+            for (double[] cell : cells.values()) expected.add(describe(cell));
+            EarthquakeAggregates.Summary clusters = aggregates.getClusters(zoom, -90, -180, 90,
+                    180);
+            List<String> actual = new ArrayList<>();
+            for (int i = 0; i < clusters.size; i++) actual.add(describe(clusters, i));
+            Collections.sort(expected);
+            Collections.sort(actual);
+            assertEquals(expected, actual);
+        }
+    }
+
+    private static void include(TreeMap<Long, double[]> buckets, double key, double magnitude) {
+        double[] bucket = buckets.get((long) key);
+        if (bucket == null) {
+            bucket = new double[]{0, 0, Double.NEGATIVE_INFINITY};
+            buckets.put((long) key, bucket);
+        }
+        bucket[0]++;
+        bucket[1] += magnitude;
+        bucket[2] = Math.max(bucket[2], magnitude);
+    }
+
+    private static String describe(double[] bucket) {
+        return describe((int) bucket[0], bucket[1] / bucket[0], bucket[2]);
+    }
+
+    private static String describe(EarthquakeAggregates.Summary summary, int position) {
+        return describe(summary.counts[position], summary.meanMagnitudes[position],
+                summary.maxMagnitudes[position]);
+    }
+
+    private static String describe(int count, double mean, double max) {
+        return String.format(Locale.US, "%d %.6f %.1f", count, mean, max);
+    }
+}
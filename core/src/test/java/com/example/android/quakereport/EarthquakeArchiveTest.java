@@ -0,0 +1,316 @@
+package com.example.android.quakereport;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static com.example.android.quakereport.EarthquakeSnapshotTest.assertSameEarthquakes;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Test of {@link EarthquakeArchive} against {@link EarthquakeIndex} over the same earthquakes,
+ * in a temporary directory.
+ */
+public class EarthquakeArchiveTest {
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    // about two months of earthquakes, so they fall into several chunks
+    private final EarthquakeStore mEarthquakes = Fixtures.earthquakes(15000);
+
+    @Test
+    public void scanReturnsWhatWasAppended() throws IOException {
+        EarthquakeArchive archive = newArchive();
+        archive.append(mEarthquakes);
+        assertTrue(chunkCount() > 1);
+
+        EarthquakeIndex.Query query = new EarthquakeIndex.Query();
+        query.byTime = true;
+        assertSameEarthquakes(mEarthquakes, archive.scan(query, 0, Integer.MAX_VALUE));
+
+        query.minMagnitude = 5;
+        query.startTime = mEarthquakes.getTime(12000);
+        query.endTime = mEarthquakes.getTime(1000);
+        query.south = -30;
+        query.north = 30;
+        query.west = 170;
+        query.east = -170;
+        EarthquakeIndex index = new EarthquakeIndex(mEarthquakes);
+        assertSameEarthquakes(index.query(query), archive.scan(query, 0, Integer.MAX_VALUE));
+    }
+
+    /**
+     * Magnitudes have many ties, whose order depends on the chunks, so only the order of the
+     * magnitudes and the earthquakes that are returned are compared.
+     */
+    @Test
+    public void scanOrdersByMagnitude() throws IOException {
+        EarthquakeArchive archive = newArchive();
+        archive.append(mEarthquakes);
+
+        EarthquakeIndex.Query query = new EarthquakeIndex.Query();
+        query.minMagnitude = 6;
+        EarthquakeStore expected = new EarthquakeIndex(mEarthquakes).query(query);
+        EarthquakeStore earthquakes = archive.scan(query, 0, Integer.MAX_VALUE);
+
+        assertEquals(ids(expected), ids(earthquakes));
+        for (int i = 0; i < earthquakes.size(); i++) {
+            assertEquals(expected.getMagnitude(i), earthquakes.getMagnitude(i), 0);
+        }
+    }
+
+    @Test
+    public void pagesOfAScanFollowEachOther() throws IOException {
+        EarthquakeArchive archive = newArchive();
+        archive.append(mEarthquakes);
+
+        EarthquakeIndex.Query query = new EarthquakeIndex.Query();
+        query.byTime = true;
+        query.minMagnitude = 4.5;
+        EarthquakeStore expected = new EarthquakeIndex(mEarthquakes).query(query);
+        EarthquakeStore pages = new EarthquakeStore();
+        for (int offset = 0; ; offset += 500) {
+            EarthquakeStore page = archive.scan(query, offset, 500);
+            for (int i = 0; i < page.size(); i++) pages.add(page, i);
+            if (page.size() < 500) break;
+        }
+        assertSameEarthquakes(expected, pages);
+        assertEquals(0, archive.scan(query, expected.size() + 10, 500).size());
+    }
+
+    @Test
+    public void laterUpdatesSupersedeAndDeletionsHide() throws IOException {
+        EarthquakeArchive archive = newArchive();
+        archive.append(mEarthquakes);
+
+        EarthquakeStore revisions = new EarthquakeStore();
+        // a later update, an earlier one that is skipped, and a deletion
+        revise(revisions, 10, 9.1, 1000, false);
+        revise(revisions, 20, 9.2, -1000, false);
+        revise(revisions, 30, 9.3, 1000, true);
+        archive.append(revisions);
+        // appending the same earthquakes again changes nothing
+        archive.append(mEarthquakes);
+
+        assertRevised(archive);
+    }
+
+    /**
+     * An archive opened again reads the ids of a chunk from its files, and ids of more chunks
+     * than it keeps are read again when they are needed.
+     */
+    @Test
+    public void revisionsReachEveryChunk() throws IOException {
+        EarthquakeArchive archive = newArchive();
+        archive.append(mEarthquakes);
+
+        // one earthquake per chunk and back, more chunks than the ids are kept for
+        EarthquakeArchive reopened = new EarthquakeArchive(mFolder.getRoot());
+        int last = mEarthquakes.size() - 1;
+        int[] positions = {10, last, 20, last - 1, 30, last - 2};
+        for (int i = 0; i < positions.length; i++) {
+            EarthquakeStore revision = new EarthquakeStore();
+            revise(revision, positions[i], 9, 1000, false);
+            reopened.append(revision);
+        }
+
+        EarthquakeIndex.Query query = new EarthquakeIndex.Query();
+        query.byTime = true;
+        EarthquakeStore earthquakes = reopened.scan(query, 0, Integer.MAX_VALUE);
+        assertEquals(mEarthquakes.size(), earthquakes.size());
+        assertEquals(mEarthquakes.size(), new HashSet<>(ids(earthquakes)).size());
+        for (int position : positions) {
+            assertEquals(9, earthquakes.getMagnitude(position), 0);
+            assertEquals(mEarthquakes.getUpdated(position) + 1000,
+                    earthquakes.getUpdated(position));
+        }
+    }
+
+    /**
+     * A revision that moves an earthquake into the next chunk supersedes its record in the
+     * previous one, and a later one that moves it back supersedes that again.
+     */
+    @Test
+    public void revisionsAcrossAChunkBoundarySupersede() throws IOException {
+        EarthquakeArchive archive = newArchive();
+        long boundary = 600 * EarthquakeArchive.CHUNK_DURATION;
+        EarthquakeStore earthquakes = new EarthquakeStore();
+        earthquakes.add("us1", 5, "10km N of Adak, Alaska", boundary - 1000, null, boundary,
+                51.9, -176.6, false);
+        archive.append(earthquakes);
+
+        EarthquakeStore later = new EarthquakeStore();
+        later.add("us1", 5.2, "10km N of Adak, Alaska", boundary + 1000, null, boundary + 1,
+                51.9, -176.6, false);
+        archive.append(later);
+        EarthquakeStore scanned = scanAll(archive);
+        assertEquals(1, scanned.size());
+        assertEquals(boundary + 1000, scanned.getTime(0));
+        assertEquals(5.2, scanned.getMagnitude(0), 0);
+
+        // the first record is older than the one in the next chunk, it is not added back
+        archive.append(earthquakes);
+        assertEquals(boundary + 1000, scanAll(archive).getTime(0));
+
+        // an archive opened again finds the record in the next chunk from the files
+        EarthquakeStore back = new EarthquakeStore();
+        back.add("us1", 5.1, "10km N of Adak, Alaska", boundary - 2000, null, boundary + 2,
+                51.9, -176.6, false);
+        EarthquakeArchive reopened = newArchive();
+        reopened.append(back);
+        scanned = scanAll(reopened);
+        assertEquals(1, scanned.size());
+        assertEquals(boundary - 2000, scanned.getTime(0));
+
+        EarthquakeStore deleted = new EarthquakeStore();
+        deleted.add("us1", 5.1, "10km N of Adak, Alaska", boundary + 3000, null, boundary + 3,
+                51.9, -176.6, true);
+        reopened.append(deleted);
+        assertEquals(0, scanAll(reopened).size());
+    }
+
+    /**
+     * The previous record is flagged only once its replacement is written, an append that
+     * fails leaves the earthquake as it was.
+     */
+    @Test
+    public void failedAppendLeavesThePreviousRecord() throws IOException {
+        EarthquakeArchive archive = newArchive();
+        long boundary = 600 * EarthquakeArchive.CHUNK_DURATION;
+        EarthquakeStore earthquakes = new EarthquakeStore();
+        earthquakes.add("us1", 5, "10km N of Adak, Alaska", boundary - 1000, null, boundary,
+                51.9, -176.6, false);
+        earthquakes.add("us2", 5, "10km N of Adak, Alaska", boundary + 1000, null, boundary,
+                51.9, -176.6, false);
+        archive.append(earthquakes);
+
+        // the strings of the next chunk cannot be written anymore
+        File strings = new File(mFolder.getRoot(), (boundary / EarthquakeArchive.CHUNK_DURATION)
+                + ".str");
+        assertTrue(strings.delete());
+        assertTrue(strings.mkdir());
+
+        EarthquakeStore revision = new EarthquakeStore();
+        revision.add("us1", 6, "10km N of Adak, Alaska", boundary + 500, null, boundary + 1,
+                51.9, -176.6, false);
+        try {
+            archive.append(revision);
+            fail();
+        } catch (IOException expected) {
+        }
+
+        EarthquakeIndex.Query query = new EarthquakeIndex.Query();
+        query.byTime = true;
+        query.endTime = boundary - 1;
+        EarthquakeStore scanned = archive.scan(query, 0, Integer.MAX_VALUE);
+        assertEquals(1, scanned.size());
+        assertEquals("us1", scanned.getId(0));
+        assertEquals(5, scanned.getMagnitude(0), 0);
+    }
+
+    /**
+     * Scans hold the lock of the archive, so a scan during appends sees every earthquake once,
+     * never one that is flagged as superseded before its new record is written.
+     */
+    @Test
+    public void scansDuringAppendsSeeEveryEarthquakeOnce() throws Exception {
+        final EarthquakeArchive archive = newArchive();
+        archive.append(mEarthquakes);
+
+        final AtomicBoolean done = new AtomicBoolean();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<?> appends = executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int round = 1; round <= 20; round++) {
+                            EarthquakeStore revisions = new EarthquakeStore();
+                            for (int i = 0; i < mEarthquakes.size(); i += 50) {
+                                revise(revisions, i, 5, round, false);
+                            }
+                            archive.append(revisions);
+                        }
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    } finally {
+                        done.set(true);
+                    }
+                }
+            });
+
+            EarthquakeIndex.Query query = new EarthquakeIndex.Query();
+            query.byTime = true;
+            int scans = 0;
+            while (!done.get() || scans == 0) {
+                EarthquakeStore earthquakes = archive.scan(query, 0, Integer.MAX_VALUE);
+                assertEquals(mEarthquakes.size(), earthquakes.size());
+                scans++;
+            }
+            appends.get(5, TimeUnit.SECONDS);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static EarthquakeStore scanAll(EarthquakeArchive archive) throws IOException {
+        EarthquakeIndex.Query query = new EarthquakeIndex.Query();
+        query.byTime = true;
+        return archive.scan(query, 0, Integer.MAX_VALUE);
+    }
+
+    private void assertRevised(EarthquakeArchive archive) throws IOException {
+        EarthquakeIndex.Query query = new EarthquakeIndex.Query();
+        query.byTime = true;
+        EarthquakeStore earthquakes = archive.scan(query, 0, Integer.MAX_VALUE);
+        assertEquals(mEarthquakes.size() - 1, earthquakes.size());
+        assertEquals(mEarthquakes.getId(10), earthquakes.getId(10));
+        assertEquals(9.1, earthquakes.getMagnitude(10), 0);
+        assertEquals(mEarthquakes.getMagnitude(20), earthquakes.getMagnitude(20), 0);
+        // the deleted earthquake is gone, the next one takes its place
+        assertEquals(mEarthquakes.getId(31), earthquakes.getId(30));
+    }
+
+    /**
+     * Add a revision of an earthquake, updated later or earlier by the given time.
+     */
+    private void revise(EarthquakeStore revisions, int position, double magnitude,
+                        long updatedBy, boolean deleted) {
+        revisions.add(mEarthquakes.getId(position), magnitude,
+                mEarthquakes.getLocation(position), mEarthquakes.getTime(position),
+                mEarthquakes.getUrl(position), mEarthquakes.getUpdated(position) + updatedBy,
+                mEarthquakes.getLatitude(position), mEarthquakes.getLongitude(position),
+                deleted);
+    }
+
+    private EarthquakeArchive newArchive() {
+        return new EarthquakeArchive(mFolder.getRoot());
+    }
+
+    private int chunkCount() {
+        File[] files = mFolder.getRoot().listFiles();
+        return files == null ? 0 : files.length / 2;
+    }
+
+    private static List<String> ids(EarthquakeStore earthquakes) {
+        List<String> ids = new ArrayList<>(earthquakes.size());
+        for (int i = 0; i < earthquakes.size(); i++) ids.add(earthquakes.getId(i));
+        Collections.sort(ids);
+        return ids;
+    }
+}
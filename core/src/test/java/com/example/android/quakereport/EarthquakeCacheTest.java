@@ -0,0 +1,214 @@
+package com.example.android.quakereport;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.example.android.quakereport.EarthquakeSnapshotTest.assertSameEarthquakes;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test of {@link EarthquakeCache}, on its own and the way the app revalidates what it holds
+ * against a local fake of the USGS server that answers conditional requests.
+ */
+public class EarthquakeCacheTest {
+
+    private static final String LAST_MODIFIED_HEADER = "Thu, 18 Oct 2018 00:00:00 GMT";
+    private static final long LAST_MODIFIED = 1539820800000L;
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mFilesDir;
+
+    private HttpServer mServer;
+    private String mUrl;
+
+    // version of the earthquakes the server has, its ETag changes with it
+    private final AtomicInteger mVersion = new AtomicInteger(1);
+
+    // requests the server received and the ones it answered with 304 Not Modified
+    private final AtomicInteger mRequests = new AtomicInteger();
+    private final AtomicInteger mNotModified = new AtomicInteger();
+
+    @Before
+    public void startServer() throws IOException {
+        mFilesDir = mFolder.newFolder();
+        mServer = HttpServer.create(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0),
+                0);
+        mServer.createContext("/query", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                answer(exchange);
+            }
+        });
+        mServer.start();
+        mUrl = "http://127.0.0.1:" + mServer.getAddress().getPort() + "/query";
+        Metrics.reset();
+    }
+
+    @After
+    public void stopServer() {
+        mServer.stop(0);
+    }
+
+    private void answer(HttpExchange exchange) throws IOException {
+        mRequests.incrementAndGet();
+        int version = mVersion.get();
+        String eTag = "\"v" + version + "\"";
+        exchange.getResponseHeaders().set("ETag", eTag);
+        exchange.getResponseHeaders().set("Last-Modified", LAST_MODIFIED_HEADER);
+        if (eTag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+            mNotModified.incrementAndGet();
+            exchange.sendResponseHeaders(304, -1);
+            exchange.close();
+            return;
+        }
+
+        byte[] body = Fixtures.response(100 * version);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, body.length);
+        OutputStream out = exchange.getResponseBody();
+        try {
+            out.write(body);
+        } finally {
+            out.close();
+        }
+    }
+
+    @Test
+    public void nothingIsCachedAtFirst() {
+        EarthquakeCache cache = new EarthquakeCache(mFilesDir, mUrl);
+
+        assertNull(cache.read());
+        assertNull(cache.getETag());
+        assertEquals(0, cache.getLastModified());
+        assertEquals(1, Metrics.DISK_CACHE_MISSES.get());
+    }
+
+    /**
+     * What one process writes, the next one reads back with the validators of the response.
+     */
+    @Test
+    public void roundTripKeepsEarthquakesAndValidators() {
+        EarthquakeStore earthquakes = Fixtures.earthquakes(500);
+        new EarthquakeCache(mFilesDir, mUrl).write(earthquakes, "\"v1\"", LAST_MODIFIED);
+
+        EarthquakeCache cache = new EarthquakeCache(mFilesDir, mUrl);
+        assertSameEarthquakes(earthquakes, cache.read());
+        assertEquals("\"v1\"", cache.getETag());
+        assertEquals(LAST_MODIFIED, cache.getLastModified());
+        assertEquals(1, Metrics.DISK_CACHE_HITS.get());
+
+        // the cache of another query does not see them
+        assertNull(new EarthquakeCache(mFilesDir, mUrl + "?other").read());
+    }
+
+    /**
+     * Earthquakes shown from memory or the index are revalidated and written back with the
+     * validators of the snapshot, which are read without its earthquakes.
+     */
+    @Test
+    public void validatorsAreReadWithoutTheEarthquakes() {
+        EarthquakeCache cache = new EarthquakeCache(mFilesDir, mUrl);
+        cache.readValidators();
+        assertNull(cache.getETag());
+
+        cache.write(Fixtures.earthquakes(100), "\"v1\"", LAST_MODIFIED);
+        EarthquakeCache next = new EarthquakeCache(mFilesDir, mUrl);
+        next.readValidators();
+        assertEquals("\"v1\"", next.getETag());
+        assertEquals(LAST_MODIFIED, next.getLastModified());
+        assertEquals(0, Metrics.DISK_CACHE_HITS.get());
+
+        // a write of the earthquakes keeps them for the next process
+        next.write(Fixtures.earthquakes(200), next.getETag(), next.getLastModified());
+        EarthquakeCache last = new EarthquakeCache(mFilesDir, mUrl);
+        assertEquals(200, last.read().size());
+        assertEquals("\"v1\"", last.getETag());
+        assertTrue(fetch(last).notModified);
+
+        // the cache of another query does not take them
+        EarthquakeCache other = new EarthquakeCache(mFilesDir, mUrl + "?other");
+        other.readValidators();
+        assertNull(other.getETag());
+    }
+
+    @Test
+    public void corruptedFileIsAMiss() throws IOException {
+        EarthquakeCache cache = new EarthquakeCache(mFilesDir, mUrl);
+        cache.write(Fixtures.earthquakes(100), "\"v1\"", LAST_MODIFIED);
+        File file = new File(new File(mFilesDir, "earthquakes"),
+                Integer.toHexString(mUrl.hashCode()));
+        assertTrue(file.exists());
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(new byte[]{1, 2, 3});
+        } finally {
+            out.close();
+        }
+
+        assertNull(new EarthquakeCache(mFilesDir, mUrl).read());
+    }
+
+    /**
+     * A cold start fetches everything and caches it with the validators of the response, the
+     * next start shows the cached earthquakes and revalidates them with a conditional request,
+     * which costs no body while the server has nothing new, and fetches the new earthquakes
+     * once it has.
+     */
+    @Test
+    public void cachedEarthquakesAreRevalidated() {
+        EarthquakeCache cold = new EarthquakeCache(mFilesDir, mUrl);
+        assertNull(cold.read());
+        QueryUtils.Response response = fetch(cold);
+        assertFalse(response.notModified);
+        assertTrue(response.bytesOnWire > 0);
+        cold.write(response.earthquakes, response.eTag, response.lastModified);
+
+        EarthquakeCache warm = new EarthquakeCache(mFilesDir, mUrl);
+        assertSameEarthquakes(Fixtures.earthquakes(100), warm.read());
+        assertEquals("\"v1\"", warm.getETag());
+        assertEquals(LAST_MODIFIED, warm.getLastModified());
+        response = fetch(warm);
+        assertTrue(response.notModified);
+        assertNull(response.earthquakes);
+        assertEquals(0, response.bytesOnWire);
+        assertEquals(1, mNotModified.get());
+
+        mVersion.set(2);
+        response = fetch(warm);
+        assertFalse(response.notModified);
+        assertEquals("\"v2\"", response.eTag);
+        warm.write(response.earthquakes, response.eTag, response.lastModified);
+        assertEquals("\"v2\"", warm.getETag());
+
+        EarthquakeCache next = new EarthquakeCache(mFilesDir, mUrl);
+        assertSameEarthquakes(Fixtures.earthquakes(200), next.read());
+        assertTrue(fetch(next).notModified);
+        assertEquals(4, mRequests.get());
+        assertEquals(2, mNotModified.get());
+    }
+
+    private QueryUtils.Response fetch(EarthquakeCache cache) {
+        return QueryUtils.fetchEarthquakesData(new UrlConnectionTransport(), mUrl,
+                cache.getETag(), cache.getLastModified(), new Cancellation());
+    }
+}
@@ -0,0 +1,169 @@
+package com.example.android.quakereport;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.TimeZone;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+public class EarthquakeFormatterTest {
+
+    private static final int[] MAGNITUDE_COLORS = {10, 11, 12, 13, 14, 15, 16, 17, 18, 19, 20};
+
+    private TimeZone mDefaultTimeZone;
+
+    @Before
+    public void useUtc() {
+        mDefaultTimeZone = TimeZone.getDefault();
+        TimeZone.setDefault(TimeZone.getTimeZone("UTC"));
+    }
+
+    @After
+    public void restoreTimeZone() {
+        TimeZone.setDefault(mDefaultTimeZone);
+    }
+
+    @Test
+    public void formatsEveryPartOfTheRow() {
+        EarthquakeStore earthquakes = new EarthquakeStore();
+        // Oct 18, 2018 4:30:00 PM UTC
+        earthquakes.add("us1", 6.54, "123km SSW of Kokopo, Papua New Guinea", 1539880200000L,
+                null, 0, 0, 0, false);
+        earthquakes.add("us2", 4.0, "Mid-Atlantic Ridge", 0, null, 0, 0, 0, false);
+
+        EarthquakeRow row = newFormatter().format(earthquakes, 0);
+        assertEquals("6.5", row.magnitude);
+        assertEquals(16, row.magnitudeColor);
+        assertEquals("123km SSW of ", row.locationOffset);
+        assertEquals("Kokopo, Papua New Guinea", row.locationPrimary);
+        assertEquals("Oct 18, 2018", row.date);
+        assertEquals("4:30 PM", row.time);
+
+        row = newFormatter().format(earthquakes, 1);
+        assertEquals("4.0", row.magnitude);
+        assertEquals("Near the", row.locationOffset);
+        assertEquals("Mid-Atlantic Ridge", row.locationPrimary);
+        assertEquals("Jan 01, 1970", row.date);
+        assertEquals("12:00 AM", row.time);
+    }
+
+    @Test
+    public void magnitudesOutOfRangeGetTheLastColor() {
+        EarthquakeFormatter formatter = newFormatter();
+        assertEquals(10, formatter.getMagnitudeColor(0.9));
+        assertEquals(19, formatter.getMagnitudeColor(9.99));
+        assertEquals(20, formatter.getMagnitudeColor(12));
+        assertEquals(20, formatter.getMagnitudeColor(-1));
+    }
+
+    @Test
+    public void formatAllFormatsEveryRowOnce() {
+        // large enough to be formatted in parallel
+        EarthquakeStore earthquakes = Fixtures.earthquakes(5000);
+        EarthquakeFormatter.formatAll(MAGNITUDE_COLORS, "Near the", earthquakes);
+
+        EarthquakeRow[] rows = new EarthquakeRow[earthquakes.size()];
+        EarthquakeFormatter formatter = newFormatter();
+        for (int i = 0; i < rows.length; i++) {
+            rows[i] = earthquakes.getRow(i);
+            assertNotNull(rows[i]);
+            EarthquakeRow expected = formatter.format(earthquakes, i);
+            assertEquals(expected.magnitude, rows[i].magnitude);
+            assertEquals(expected.locationPrimary, rows[i].locationPrimary);
+            assertEquals(expected.date, rows[i].date);
+            assertEquals(expected.time, rows[i].time);
+        }
+
+        EarthquakeFormatter.formatAll(MAGNITUDE_COLORS, "Near the", earthquakes);
+        for (int i = 0; i < rows.length; i++) assertSame(rows[i], earthquakes.getRow(i));
+    }
+
+    /**
+     * Binding a row that the loader has formatted only reads the row and records the bind
+     * time, so scrolling through formatted rows does not allocate.
+     */
+    @Test
+    public void bindingFormattedRowsDoesNotAllocate() {
+        AllocationCounter counter = new AllocationCounter();
+        assumeTrue(counter.isSupported());
+
+        EarthquakeStore earthquakes = Fixtures.earthquakes(1000);
+        EarthquakeFormatter.formatAll(MAGNITUDE_COLORS, "Near the", earthquakes);
+
+        // warm up, so class loading and compilation are not counted
+        long sink = 0;
+        for (int pass = 0; pass < 20; pass++) sink += bindAll(earthquakes);
+
+        counter.start();
+        for (int pass = 0; pass < 10; pass++) sink += bindAll(earthquakes);
+        long allocated = counter.stop();
+
+        assertEquals("bytes allocated by " + 10 * earthquakes.size() + " binds", 0, allocated);
+        // the rows were read
+        assertTrue(sink > 0);
+    }
+
+    /**
+     * Do what binding every row of the store does, apart from setting the views.
+     */
+    private static long bindAll(EarthquakeStore earthquakes) {
+        long sink = 0;
+        for (int i = 0; i < earthquakes.size(); i++) {
+            long bindStart = System.nanoTime();
+            EarthquakeRow row = earthquakes.getRow(i);
+            sink += row.magnitude.length() + row.magnitudeColor + row.locationOffset.length()
+                    + row.locationPrimary.length() + row.date.length() + row.time.length();
+            Metrics.BIND.recordSince(bindStart);
+        }
+        return sink;
+    }
+
+    private static EarthquakeFormatter newFormatter() {
+        return new EarthquakeFormatter(MAGNITUDE_COLORS, "Near the");
+    }
+
+    /**
+     * Counts the bytes allocated by the current thread, on JVMs that can tell.
+     */
+    private static final class AllocationCounter {
+        private final java.lang.management.ThreadMXBean mBean =
+                ManagementFactory.getThreadMXBean();
+        private final long mThreadId = Thread.currentThread().getId();
+
+        // bytes the counter itself allocates between start and stop
+        private long mOverhead;
+        private long mStart;
+
+        boolean isSupported() {
+            if (!(mBean instanceof com.sun.management.ThreadMXBean)) return false;
+            com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) mBean;
+            if (!bean.isThreadAllocatedMemorySupported()) return false;
+            bean.setThreadAllocatedMemoryEnabled(true);
+            for (int i = 0; i < 100; i++) {
+                start();
+                mOverhead = 0;
+                mOverhead = stop();
+            }
+            return true;
+        }
+
+        void start() {
+            mStart = allocatedBytes();
+        }
+
+        long stop() {
+            return allocatedBytes() - mStart - mOverhead;
+        }
+
+        private long allocatedBytes() {
+            return ((com.sun.management.ThreadMXBean) mBean).getThreadAllocatedBytes(mThreadId);
+        }
+    }
+}
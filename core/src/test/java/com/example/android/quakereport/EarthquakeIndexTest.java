@@ -0,0 +1,147 @@
+package com.example.android.quakereport;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test of {@link EarthquakeIndex} against selecting and sorting every earthquake one by one.
+ */
+public class EarthquakeIndexTest {
+
+    private static final long HOUR = 60 * 60 * 1000;
+
+    private final EarthquakeStore mEarthquakes = Fixtures.earthquakes(5000);
+    private final EarthquakeIndex mIndex = new EarthquakeIndex(mEarthquakes);
+
+    @Test
+    public void everyEarthquakeMatchesTheDefaultQuery() {
+        EarthquakeIndex.Query query = new EarthquakeIndex.Query();
+        assertSelects(query);
+        query.byTime = true;
+        assertSelects(query);
+        assertEquals(mEarthquakes.size(), mIndex.select(query).length);
+    }
+
+    @Test
+    public void selectsByMinimumMagnitude() {
+        double[] minMagnitudes = {2.5, 4.5, 6, 8.9, 9.5};
+        for (double minMagnitude : minMagnitudes) {
+            EarthquakeIndex.Query query = new EarthquakeIndex.Query();
+            query.minMagnitude = minMagnitude;
+            assertSelects(query);
+            query.byTime = true;
+            assertSelects(query);
+        }
+    }
+
+    @Test
+    public void selectsByTimeWindow() {
+        long newest = mEarthquakes.getTime(0);
+        EarthquakeIndex.Query query = new EarthquakeIndex.Query();
+        query.startTime = newest - 100 * HOUR;
+        query.endTime = newest - 10 * HOUR;
+        query.minMagnitude = 5;
+        assertSelects(query);
+        query.byTime = true;
+        assertSelects(query);
+
+        // both ends are included
+        query.startTime = mEarthquakes.getTime(20);
+        query.endTime = mEarthquakes.getTime(10);
+        query.minMagnitude = Double.NEGATIVE_INFINITY;
+        assertEquals(11, mIndex.select(query).length);
+    }
+
+    @Test
+    public void selectsByBoundingBox() {
+        EarthquakeIndex.Query query = new EarthquakeIndex.Query();
+        query.south = -12.5;
+        query.north = 33;
+        query.west = 101.25;
+        query.east = 160;
+        assertSelects(query);
+        query.byTime = true;
+        query.minMagnitude = 5.5;
+        assertSelects(query);
+    }
+
+    @Test
+    public void selectsAcrossTheAntimeridian() {
+        EarthquakeIndex.Query query = new EarthquakeIndex.Query();
+        query.south = -60;
+        query.north = 10;
+        query.west = 170;
+        query.east = -165;
+        int[] positions = assertSelects(query);
+        assertTrue(positions.length > 0);
+        for (int position : positions) {
+            double longitude = mEarthquakes.getLongitude(position);
+            assertTrue(longitude >= 170 || longitude <= -165);
+        }
+    }
+
+    @Test
+    public void queryReturnsTheSelectedEarthquakes() {
+        EarthquakeIndex.Query query = new EarthquakeIndex.Query();
+        query.minMagnitude = 7;
+        EarthquakeStore earthquakes = mIndex.query(query);
+        int[] positions = mIndex.select(query);
+        assertEquals(positions.length, earthquakes.size());
+        for (int i = 0; i < positions.length; i++) {
+            assertEquals(mEarthquakes.getId(positions[i]), earthquakes.getId(i));
+        }
+        assertSame(mEarthquakes, mIndex.getEarthquakes());
+    }
+
+    @Test
+    public void sortDescendingIsStable() {
+        long[] keys = {3, 1, 3, 2, Long.MIN_VALUE, 2, Long.MAX_VALUE};
+        assertArrayEquals(new int[]{6, 0, 2, 3, 5, 1, 4}, EarthquakeIndex.sortDescending(keys));
+
+        double[] magnitudes = {-1.5, -0.5, 0, 0.5, 9.1};
+        for (int i = 1; i < magnitudes.length; i++) {
+            assertTrue(EarthquakeIndex.sortableBits(magnitudes[i - 1])
+                    < EarthquakeIndex.sortableBits(magnitudes[i]));
+        }
+    }
+
+    /**
+     * Assert that the index selects the earthquakes that match the query in the order of the
+     * query, the newest or biggest first and equal ones in the order of the store.
+     */
+    private int[] assertSelects(final EarthquakeIndex.Query query) {
+        List<Integer> expected = new ArrayList<>();
+        for (int i = 0; i < mEarthquakes.size(); i++) {
+            if (query.matches(mEarthquakes.getMagnitude(i), mEarthquakes.getTime(i),
+                    mEarthquakes.getLatitude(i), mEarthquakes.getLongitude(i))) {
+                expected.add(i);
+            }
+        }
+        Collections.sort(expected, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer first, Integer second) {
+                if (query.byTime) {
+                    return Long.compare(mEarthquakes.getTime(second),
+                            mEarthquakes.getTime(first));
+                }
+                return Double.compare(mEarthquakes.getMagnitude(second),
+                        mEarthquakes.getMagnitude(first));
+            }
+        });
+
+        int[] positions = mIndex.select(query);
+        int[] expectedPositions = new int[expected.size()];
+        for (int i = 0; i < expectedPositions.length; i++) expectedPositions[i] = expected.get(i);
+        assertArrayEquals(expectedPositions, positions);
+        return positions;
+    }
+}
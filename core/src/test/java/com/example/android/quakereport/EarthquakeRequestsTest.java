@@ -0,0 +1,722 @@
+package com.example.android.quakereport;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.charset.Charset;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.example.android.quakereport.EarthquakeSnapshotTest.assertSameEarthquakes;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test of the coalescing, the responses kept in memory, the time windows and the
+ * cancellation of {@link EarthquakeRequests}, with a fake transport that answers when the
+ * test lets it.
+ */
+public class EarthquakeRequestsTest {
+
+    private static final String URL = "https://fake/query?format=geojson&minmag=4";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // Oct 18, 2018 00:00:00 UTC
+    private static final long DAY = 1539820800000L;
+    private static final long HOUR = 60 * 60 * 1000;
+
+    private final byte[] mBody = Fixtures.response(10);
+
+    // earthquakes of the server as {id, magnitude, time}, null to answer with mBody
+    private volatile Object[][] mEvents;
+
+    // urls the transport was asked for
+    private final List<String> mRequests = Collections.synchronizedList(new ArrayList<String>());
+
+    // whether the transport was called on daemon threads only
+    private volatile boolean mDaemonThreads = true;
+
+    // a permit for every request the transport received
+    private final Semaphore mRequested = new Semaphore(0);
+
+    // the transport answers once it is counted down
+    private volatile CountDownLatch mAnswer = new CountDownLatch(0);
+
+    // response code of the transport
+    private volatile int mCode = 200;
+
+    // body the transport answers with, if it is set
+    private volatile SlowBody mSlowBody;
+
+    // the transport throws this instead of answering, if it is set
+    private volatile RuntimeException mFailure;
+
+    private final ExecutorService mCallers = Executors.newCachedThreadPool();
+
+    @Before
+    public void setUp() {
+        QueryUtils.setTransport(new HttpTransport() {
+            @Override
+            public HttpResponse get(URL url, String eTag, long lastModified)
+                    throws IOException {
+                mRequests.add(url.toString());
+                if (!Thread.currentThread().isDaemon()) mDaemonThreads = false;
+                mRequested.release();
+                try {
+                    mAnswer.await();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+                if (mFailure != null) throw mFailure;
+                byte[] body = mEvents == null ? mBody : select(url.toString());
+                InputStream in = mSlowBody != null ? mSlowBody : new ByteArrayInputStream(body);
+                return new HttpResponse(mCode, null, 0, body.length, null, in,
+                        System.nanoTime());
+            }
+        });
+        EarthquakeRequests.setTimeToLive(60 * 1000);
+    }
+
+    @After
+    public void tearDown() {
+        mCallers.shutdownNow();
+        EarthquakeRequests.setTimeToLive(0);
+        QueryUtils.setTransport(new UrlConnectionTransport());
+    }
+
+    @Test
+    public void identicalQueriesAreCoalesced() throws Exception {
+        mAnswer = new CountDownLatch(1);
+        long misses = Metrics.REQUEST_CACHE_MISSES.get();
+        Future<QueryUtils.Response> first = fetchLater(URL, new Cancellation());
+        assertTrue(mRequested.tryAcquire(5, TimeUnit.SECONDS));
+        // the same query with its parameters in another order
+        Future<QueryUtils.Response> second = fetchLater(
+                "https://fake/query?minmag=4&format=geojson", new Cancellation());
+        awaitMisses(misses + 2);
+        mAnswer.countDown();
+
+        assertSame(first.get(5, TimeUnit.SECONDS), second.get(5, TimeUnit.SECONDS));
+        assertSameEarthquakes(Fixtures.earthquakes(10), first.get().earthquakes);
+        assertEquals(1, mRequests.size());
+    }
+
+    @Test
+    public void recentResponseIsServedFromMemory() {
+        long hits = Metrics.REQUEST_CACHE_HITS.get();
+        QueryUtils.Response response = fetch(URL, new Cancellation());
+        assertSame(response, fetch(URL, new Cancellation()));
+        assertEquals(1, mRequests.size());
+        assertEquals(hits + 1, Metrics.REQUEST_CACHE_HITS.get());
+
+        // other validators are another request
+        fetch(URL, "\"etag\"", new Cancellation());
+        assertEquals(2, mRequests.size());
+
+        EarthquakeRequests.setTimeToLive(0);
+        fetch(URL, new Cancellation());
+        assertEquals(3, mRequests.size());
+    }
+
+    @Test
+    public void failedResponseIsNotKept() {
+        mCode = 500;
+        assertNull(fetch(URL, new Cancellation()).earthquakes);
+        mCode = 200;
+        assertSameEarthquakes(Fixtures.earthquakes(10), fetch(URL, new Cancellation()).earthquakes);
+        assertEquals(2, mRequests.size());
+    }
+
+    @Test
+    public void fetchGoesOnWhileACallerWaitsForIt() throws Exception {
+        mAnswer = new CountDownLatch(1);
+        long misses = Metrics.REQUEST_CACHE_MISSES.get();
+        Cancellation leaving = new Cancellation();
+        fetchLater(URL, leaving);
+        assertTrue(mRequested.tryAcquire(5, TimeUnit.SECONDS));
+        Future<QueryUtils.Response> staying = fetchLater(URL, new Cancellation());
+        awaitMisses(misses + 2);
+
+        leaving.cancel();
+        mAnswer.countDown();
+        QueryUtils.Response response = staying.get(5, TimeUnit.SECONDS);
+        assertFalse(response.cancelled);
+        assertEquals(10, response.earthquakes.size());
+    }
+
+    /**
+     * A caller that leaves does not wait for the fetch, even the one that started it.
+     */
+    @Test
+    public void cancelledCallerReturnsAtOnce() throws Exception {
+        mAnswer = new CountDownLatch(1);
+        long misses = Metrics.REQUEST_CACHE_MISSES.get();
+        Cancellation leaving = new Cancellation();
+        Future<QueryUtils.Response> left = fetchLater(URL, leaving);
+        assertTrue(mRequested.tryAcquire(5, TimeUnit.SECONDS));
+        Future<QueryUtils.Response> staying = fetchLater(URL, new Cancellation());
+        awaitMisses(misses + 2);
+
+        leaving.cancel();
+        // the transport has not answered yet
+        QueryUtils.Response response = left.get(5, TimeUnit.SECONDS);
+        assertTrue(response.cancelled);
+        assertNull(response.earthquakes);
+        assertFalse(staying.isDone());
+
+        mAnswer.countDown();
+        assertEquals(10, staying.get(5, TimeUnit.SECONDS).earthquakes.size());
+        assertEquals(1, mRequests.size());
+    }
+
+    /**
+     * An interrupted caller leaves like a cancelled one, with its interrupt kept.
+     */
+    @Test
+    public void interruptedCallerReturnsACancelledResponse() throws Exception {
+        mAnswer = new CountDownLatch(1);
+        final QueryUtils.Response[] response = new QueryUtils.Response[1];
+        final boolean[] interrupted = new boolean[1];
+        Thread caller = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                response[0] = fetch(URL, new Cancellation());
+                interrupted[0] = Thread.currentThread().isInterrupted();
+            }
+        });
+        caller.start();
+        assertTrue(mRequested.tryAcquire(5, TimeUnit.SECONDS));
+
+        caller.interrupt();
+        caller.join(5000);
+        assertFalse(caller.isAlive());
+        assertTrue(response[0].cancelled);
+        assertNull(response[0].earthquakes);
+        assertTrue(interrupted[0]);
+
+        // the fetch was cancelled with its only caller and is not kept
+        mAnswer.countDown();
+        assertEquals(10, fetch(URL, new Cancellation()).earthquakes.size());
+        assertEquals(2, mRequests.size());
+    }
+
+    @Test
+    public void fetchIsCancelledOnceEveryCallerHasLeft() throws Exception {
+        mAnswer = new CountDownLatch(1);
+        long misses = Metrics.REQUEST_CACHE_MISSES.get();
+        Cancellation first = new Cancellation();
+        Cancellation second = new Cancellation();
+        Future<QueryUtils.Response> firstResponse = fetchLater(URL, first);
+        assertTrue(mRequested.tryAcquire(5, TimeUnit.SECONDS));
+        Future<QueryUtils.Response> secondResponse = fetchLater(URL, second);
+        awaitMisses(misses + 2);
+
+        first.cancel();
+        second.cancel();
+        mAnswer.countDown();
+        assertTrue(firstResponse.get(5, TimeUnit.SECONDS).cancelled);
+        assertTrue(secondResponse.get(5, TimeUnit.SECONDS).cancelled);
+
+        // a cancelled response is not kept
+        assertEquals(10, fetch(URL, new Cancellation()).earthquakes.size());
+        assertEquals(2, mRequests.size());
+    }
+
+    /**
+     * A fetch that some callers still wait for keeps reading its body, once the last one has
+     * left no read of it starts anymore and its connection is closed.
+     */
+    @Test
+    public void noBytesAreReadOnceEveryCallerHasLeft() throws Exception {
+        SlowBody body = new SlowBody(mBody);
+        mSlowBody = body;
+        long misses = Metrics.REQUEST_CACHE_MISSES.get();
+        Cancellation first = new Cancellation();
+        Cancellation second = new Cancellation();
+        Future<QueryUtils.Response> firstResponse = fetchLater(URL, first);
+        assertTrue(mRequested.tryAcquire(5, TimeUnit.SECONDS));
+        Future<QueryUtils.Response> secondResponse = fetchLater(URL, second);
+        awaitMisses(misses + 2);
+        while (body.bytesRead.get() == 0) Thread.sleep(SlowBody.READ_DELAY);
+
+        first.cancel();
+        assertTrue(firstResponse.get(5, TimeUnit.SECONDS).cancelled);
+        int read = body.bytesRead.get();
+        while (body.bytesRead.get() == read) Thread.sleep(SlowBody.READ_DELAY);
+
+        // the fetch is cancelled when this returns, only the read in progress may finish
+        second.cancel();
+        body.cancelled = true;
+        assertTrue(secondResponse.get(5, TimeUnit.SECONDS).cancelled);
+        assertTrue(body.closed.await(5, TimeUnit.SECONDS));
+        Thread.sleep(10 * SlowBody.READ_DELAY);
+        assertEquals(0, body.readsAfterCancel.get());
+        assertTrue(body.bytesRead.get() < mBody.length);
+    }
+
+    @Test
+    public void normalizeSortsParametersByName() {
+        assertEquals("https://fake/query?a=1&b=2&b=1&c",
+                EarthquakeRequests.normalize("https://fake/query?c&b=2&a=1&&b=1"));
+        assertEquals("https://fake/query", EarthquakeRequests.normalize("https://fake/query"));
+        assertEquals("https://fake/query?", EarthquakeRequests.normalize("https://fake/query?"));
+    }
+
+    @Test
+    public void queryParametersAreEncoded() {
+        String url = EarthquakeRequests.appendQueryParameter("https://fake/query",
+                "starttime", "2018-10-18T00:00:00.000");
+        assertEquals("https://fake/query?starttime=2018-10-18T00%3A00%3A00.000", url);
+        url = EarthquakeRequests.appendQueryParameter(url, "place", "R\u00edo & Co");
+        assertEquals("2018-10-18T00:00:00.000",
+                EarthquakeRequests.getQueryParameter(url, "starttime"));
+        assertEquals("R\u00edo & Co", EarthquakeRequests.getQueryParameter(url, "place"));
+        assertNull(EarthquakeRequests.getQueryParameter(url, "start"));
+    }
+
+    /**
+     * Fetches for the screen hold the slots, so none is preempted.
+     */
+    @Test
+    public void freeSlotGoesToTheHighestPriority() throws Exception {
+        List<FetchScheduler.Slot> running = acquireAll(FetchScheduler.PRIORITY_VISIBLE);
+        try {
+            final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+            Future<?> refresh = acquireLater(FetchScheduler.PRIORITY_REFRESH, order);
+            Thread.sleep(50);
+            Future<?> prefetch = acquireLater(FetchScheduler.PRIORITY_PREFETCH, order);
+            Thread.sleep(50);
+            Future<?> visible = acquireLater(FetchScheduler.PRIORITY_VISIBLE, order);
+            Thread.sleep(50);
+            assertTrue(order.isEmpty());
+
+            // every waiter releases its slot right away, so they run one after the other
+            FetchScheduler.release(running.remove(0));
+            visible.get(5, TimeUnit.SECONDS);
+            prefetch.get(5, TimeUnit.SECONDS);
+            refresh.get(5, TimeUnit.SECONDS);
+            assertEquals(Arrays.asList(FetchScheduler.PRIORITY_VISIBLE,
+                    FetchScheduler.PRIORITY_PREFETCH, FetchScheduler.PRIORITY_REFRESH), order);
+        } finally {
+            releaseAll(running);
+        }
+    }
+
+    @Test
+    public void cancelledFetchStopsWaiting() throws Exception {
+        List<FetchScheduler.Slot> running = acquireAll(FetchScheduler.PRIORITY_VISIBLE);
+        try {
+            final Cancellation waiting = new Cancellation();
+            Future<FetchScheduler.Slot> acquired = mCallers.submit(
+                    new Callable<FetchScheduler.Slot>() {
+                        @Override
+                        public FetchScheduler.Slot call() {
+                            return FetchScheduler.acquire(FetchScheduler.PRIORITY_VISIBLE,
+                                    waiting);
+                        }
+                    });
+            Thread.sleep(50);
+            waiting.cancel();
+            assertNull(acquired.get(5, TimeUnit.SECONDS));
+        } finally {
+            releaseAll(running);
+        }
+    }
+
+    /**
+     * A fetch for the screen takes the slot of the latest started fetch of the lowest
+     * priority, once that fetch gives it back.
+     */
+    @Test
+    public void visibleFetchPreemptsTheLowestPriority() throws Exception {
+        FetchScheduler.Slot prefetch = FetchScheduler.acquire(FetchScheduler.PRIORITY_PREFETCH,
+                new Cancellation());
+        FetchScheduler.Slot refresh = FetchScheduler.acquire(FetchScheduler.PRIORITY_REFRESH,
+                new Cancellation());
+        try {
+            // a prefetch waits its turn
+            List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+            Future<?> waiting = acquireLater(FetchScheduler.PRIORITY_PREFETCH, order);
+            Thread.sleep(50);
+            assertFalse(refresh.cancellation.isCancelled());
+
+            Future<?> visible = acquireLater(FetchScheduler.PRIORITY_VISIBLE, order);
+            awaitCancelled(refresh.cancellation);
+            assertTrue(refresh.isPreempted());
+            assertFalse(prefetch.cancellation.isCancelled());
+            assertTrue(order.isEmpty());
+
+            FetchScheduler.release(refresh);
+            visible.get(5, TimeUnit.SECONDS);
+            waiting.get(5, TimeUnit.SECONDS);
+            assertEquals(Arrays.asList(FetchScheduler.PRIORITY_VISIBLE,
+                    FetchScheduler.PRIORITY_PREFETCH), order);
+            assertFalse(prefetch.isPreempted());
+        } finally {
+            FetchScheduler.release(prefetch);
+        }
+    }
+
+    /**
+     * A preempted fetch starts over once a slot is free again, its callers never see it.
+     */
+    @Test
+    public void preemptedFetchStartsOver() throws Exception {
+        mAnswer = new CountDownLatch(1);
+        long misses = Metrics.REQUEST_CACHE_MISSES.get();
+        long preempted = Metrics.FETCHES_PREEMPTED.get();
+        FetchScheduler.Slot held = FetchScheduler.acquire(FetchScheduler.PRIORITY_VISIBLE,
+                new Cancellation());
+        try {
+            Future<QueryUtils.Response> prefetch = mCallers.submit(
+                    new Callable<QueryUtils.Response>() {
+                        @Override
+                        public QueryUtils.Response call() {
+                            return EarthquakeRequests.fetch(URL + "&offset=21", null, 0,
+                                    FetchScheduler.PRIORITY_PREFETCH, new Cancellation());
+                        }
+                    });
+            assertTrue(mRequested.tryAcquire(5, TimeUnit.SECONDS));
+            Future<QueryUtils.Response> visible = fetchLater(URL, new Cancellation());
+            awaitMisses(misses + 2);
+            // the fetch for the screen waits for a slot, and preempts the prefetch
+            Thread.sleep(50);
+            mAnswer.countDown();
+
+            assertEquals(10, visible.get(5, TimeUnit.SECONDS).earthquakes.size());
+            QueryUtils.Response response = prefetch.get(5, TimeUnit.SECONDS);
+            assertFalse(response.cancelled);
+            assertEquals(10, response.earthquakes.size());
+            assertEquals(preempted + 1, Metrics.FETCHES_PREEMPTED.get());
+            assertEquals(Arrays.asList(URL + "&offset=21", URL, URL + "&offset=21"), mRequests);
+        } finally {
+            FetchScheduler.release(held);
+        }
+    }
+
+    @Test
+    public void windowIsFetchedInSlicesAndMerged() {
+        // one earthquake at the end of the first slice, which USGS returns with both slices
+        mEvents = new Object[][]{
+                {"a", 4.5, DAY + 1}, {"b", 5.0, DAY + 5 * HOUR}, {"edge", 6.0, DAY + 6 * HOUR},
+                {"c", 4.0, DAY + 7 * HOUR}, {"d", 4.2, DAY + 11 * HOUR + 59 * 60 * 1000},
+                {"outside", 7.0, DAY + 13 * HOUR}
+        };
+        QueryUtils.Response response = EarthquakeRequests.fetchWindow(URL, DAY, DAY + 12 * HOUR,
+                2, FetchScheduler.PRIORITY_VISIBLE, new Cancellation());
+
+        assertFalse(response.cancelled);
+        assertIds(response.earthquakes, "d", "c", "edge", "b", "a");
+        assertEquals(2, mRequests.size());
+        List<String> starts = new ArrayList<>();
+        for (String request : mRequests) {
+            starts.add(EarthquakeRequests.getQueryParameter(request, "starttime"));
+            assertEquals("4", EarthquakeRequests.getQueryParameter(request, "minmag"));
+        }
+        Collections.sort(starts);
+        assertEquals(Arrays.asList("2018-10-18T00:00:00.000", "2018-10-18T06:00:00.000"), starts);
+    }
+
+    /**
+     * A slice that gets as many earthquakes as it asked for is fetched again in halves.
+     */
+    @Test
+    public void sliceAtItsLimitIsSplit() {
+        EarthquakeRequests.setSliceLimit(3);
+        try {
+            mEvents = new Object[][]{
+                    {"a", 4.5, DAY + HOUR}, {"b", 5.0, DAY + 2 * HOUR},
+                    {"c", 4.0, DAY + 4 * HOUR}, {"d", 4.2, DAY + 5 * HOUR},
+                    {"e", 6.0, DAY + 9 * HOUR}
+            };
+            QueryUtils.Response response = EarthquakeRequests.fetchWindow(URL, DAY,
+                    DAY + 12 * HOUR, 2, FetchScheduler.PRIORITY_VISIBLE, new Cancellation());
+
+            assertIds(response.earthquakes, "e", "d", "c", "b", "a");
+            // both slices, then the halves of the first one
+            assertEquals(4, mRequests.size());
+            for (String request : mRequests) {
+                assertEquals("3", EarthquakeRequests.getQueryParameter(request, "limit"));
+            }
+        } finally {
+            EarthquakeRequests.setSliceLimit(20000);
+        }
+    }
+
+    /**
+     * The shared pools do not keep a JVM running, the fetches and slices run on daemons.
+     */
+    @Test
+    public void fetchesRunOnDaemonThreads() {
+        fetch(URL, new Cancellation());
+        mEvents = new Object[0][];
+        EarthquakeRequests.fetchWindow(URL, DAY, DAY + HOUR, 2, FetchScheduler.PRIORITY_VISIBLE,
+                new Cancellation());
+        assertEquals(3, mRequests.size());
+        assertTrue(mDaemonThreads);
+    }
+
+    @Test
+    public void slicesAreMergedInTheOrderOfTheQuery() {
+        mEvents = new Object[][]{
+                {"a", 4.5, DAY + HOUR}, {"b", 6.0, DAY + 2 * HOUR}, {"c", 5.0, DAY + 7 * HOUR},
+                {"d", 4.0, DAY + 8 * HOUR}, {"e", 7.0, DAY + 9 * HOUR}
+        };
+        QueryUtils.Response response = EarthquakeRequests.fetchWindow(URL + "&orderby=magnitude",
+                DAY, DAY + 12 * HOUR, 3, FetchScheduler.PRIORITY_VISIBLE, new Cancellation());
+        assertIds(response.earthquakes, "e", "b", "c", "a", "d");
+
+        response = EarthquakeRequests.fetchWindow(URL + "&orderby=time-asc",
+                DAY, DAY + 12 * HOUR, 3, FetchScheduler.PRIORITY_VISIBLE, new Cancellation());
+        assertIds(response.earthquakes, "a", "b", "c", "d", "e");
+    }
+
+    @Test
+    public void windowHasNoMoreSlicesThanMilliseconds() {
+        mEvents = new Object[0][];
+        QueryUtils.Response response = EarthquakeRequests.fetchWindow(URL, DAY, DAY + 2, 10,
+                FetchScheduler.PRIORITY_VISIBLE, new Cancellation());
+        assertEquals(0, response.earthquakes.size());
+        assertEquals(2, mRequests.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void emptyWindowIsRejected() {
+        EarthquakeRequests.fetchWindow(URL, DAY, DAY, 1, FetchScheduler.PRIORITY_VISIBLE,
+                new Cancellation());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void windowWithoutSlicesIsRejected() {
+        EarthquakeRequests.fetchWindow(URL, DAY, DAY + HOUR, 0, FetchScheduler.PRIORITY_VISIBLE,
+                new Cancellation());
+    }
+
+    @Test
+    public void failedSliceFailsTheWindow() {
+        mEvents = new Object[0][];
+        mCode = 500;
+        QueryUtils.Response response = EarthquakeRequests.fetchWindow(URL, DAY, DAY + HOUR, 2,
+                FetchScheduler.PRIORITY_VISIBLE, new Cancellation());
+        assertFalse(response.cancelled);
+        assertNull(response.earthquakes);
+    }
+
+    @Test
+    public void sliceThatThrowsFailsTheWindow() {
+        mEvents = new Object[0][];
+        mFailure = new IllegalStateException("broken transport");
+        QueryUtils.Response response = EarthquakeRequests.fetchWindow(URL, DAY, DAY + HOUR, 2,
+                FetchScheduler.PRIORITY_VISIBLE, new Cancellation());
+        assertFalse(response.cancelled);
+        assertNull(response.earthquakes);
+    }
+
+    @Test
+    public void cancelledWindowIsCancelled() throws Exception {
+        mEvents = new Object[0][];
+        mAnswer = new CountDownLatch(1);
+        final Cancellation cancellation = new Cancellation();
+        Future<QueryUtils.Response> window = mCallers.submit(
+                new Callable<QueryUtils.Response>() {
+                    @Override
+                    public QueryUtils.Response call() {
+                        return EarthquakeRequests.fetchWindow(URL, DAY, DAY + HOUR, 2,
+                                FetchScheduler.PRIORITY_VISIBLE, cancellation);
+                    }
+                });
+        assertTrue(mRequested.tryAcquire(5, TimeUnit.SECONDS));
+
+        cancellation.cancel();
+        mAnswer.countDown();
+        QueryUtils.Response response = window.get(5, TimeUnit.SECONDS);
+        assertTrue(response.cancelled);
+        assertNull(response.earthquakes);
+    }
+
+    private QueryUtils.Response fetch(String url, Cancellation cancellation) {
+        return fetch(url, null, cancellation);
+    }
+
+    private QueryUtils.Response fetch(String url, String eTag, Cancellation cancellation) {
+        return EarthquakeRequests.fetch(url, eTag, 0, FetchScheduler.PRIORITY_VISIBLE,
+                cancellation);
+    }
+
+    private Future<QueryUtils.Response> fetchLater(final String url,
+                                                   final Cancellation cancellation) {
+        return mCallers.submit(new Callable<QueryUtils.Response>() {
+            @Override
+            public QueryUtils.Response call() {
+                return fetch(url, cancellation);
+            }
+        });
+    }
+
+    /**
+     * Acquire a slot of the scheduler on another thread, note the priority and release it.
+     */
+    private Future<?> acquireLater(final int priority, final List<Integer> order) {
+        return mCallers.submit(new Runnable() {
+            @Override
+            public void run() {
+                FetchScheduler.Slot slot = FetchScheduler.acquire(priority, new Cancellation());
+                assertTrue(slot != null);
+                order.add(priority);
+                FetchScheduler.release(slot);
+            }
+        });
+    }
+
+    private static List<FetchScheduler.Slot> acquireAll(int priority) {
+        List<FetchScheduler.Slot> slots = new ArrayList<>();
+        for (int i = 0; i < FetchScheduler.MAX_CONCURRENT_FETCHES; i++) {
+            FetchScheduler.Slot slot = FetchScheduler.acquire(priority, new Cancellation());
+            assertTrue(slot != null);
+            slots.add(slot);
+        }
+        return slots;
+    }
+
+    private static void releaseAll(List<FetchScheduler.Slot> slots) {
+        for (FetchScheduler.Slot slot : slots) FetchScheduler.release(slot);
+    }
+
+    private static void awaitCancelled(Cancellation cancellation) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!cancellation.isCancelled()) {
+            assertTrue(System.nanoTime() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    /**
+     * Return a response with the earthquakes of {@link #mEvents} between the start and the
+     * end time of the url, both included like USGS does, in the order of the url.
+     */
+    private byte[] select(String url) {
+        long startTime = QueryUtils.parseQueryTime(
+                EarthquakeRequests.getQueryParameter(url, "starttime"));
+        long endTime = QueryUtils.parseQueryTime(
+                EarthquakeRequests.getQueryParameter(url, "endtime"));
+        String orderBy = EarthquakeRequests.getQueryParameter(url, "orderby");
+        final boolean byMagnitude = orderBy != null && orderBy.startsWith("magnitude");
+        final int direction = orderBy != null && orderBy.endsWith("-asc") ? 1 : -1;
+
+        List<Object[]> events = new ArrayList<>();
+        for (Object[] event : mEvents) {
+            long time = (Long) event[2];
+            if (time >= startTime && time <= endTime) events.add(event);
+        }
+        Collections.sort(events, new Comparator<Object[]>() {
+            @Override
+            public int compare(Object[] first, Object[] second) {
+                if (byMagnitude) {
+                    return direction * Double.compare((Double) first[1], (Double) second[1]);
+                }
+                return direction * Long.compare((Long) first[2], (Long) second[2]);
+            }
+        });
+        String limit = EarthquakeRequests.getQueryParameter(url, "limit");
+        if (limit != null && events.size() > Integer.parseInt(limit)) {
+            events = events.subList(0, Integer.parseInt(limit));
+        }
+
+        StringBuilder json = new StringBuilder("{\"type\":\"FeatureCollection\",\"features\":[");
+        for (int i = 0; i < events.size(); i++) {
+            Object[] event = events.get(i);
+            if (i > 0) json.append(',');
+            json.append("{\"type\":\"Feature\",\"id\":\"").append(event[0])
+                    .append("\",\"properties\":{\"mag\":").append(event[1])
+                    .append(",\"place\":\"Somewhere\",\"time\":").append(event[2])
+                    .append(",\"updated\":").append(event[2])
+                    .append("},\"geometry\":{\"type\":\"Point\",\"coordinates\":[0,0,10]}}");
+        }
+        return json.append("]}").toString().getBytes(UTF_8);
+    }
+
+    /**
+     * A body that hands out one byte per read, slowly, and counts the reads that start once
+     * the test has marked its fetch as cancelled.
+     */
+    private static final class SlowBody extends InputStream {
+        static final long READ_DELAY = 10; /* milliseconds */
+
+        private final byte[] mBytes;
+        private int mPosition;
+
+        final AtomicInteger bytesRead = new AtomicInteger();
+        final AtomicInteger readsAfterCancel = new AtomicInteger();
+        final CountDownLatch closed = new CountDownLatch(1);
+        volatile boolean cancelled;
+
+        SlowBody(byte[] bytes) {
+            mBytes = bytes;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (cancelled) readsAfterCancel.incrementAndGet();
+            try {
+                Thread.sleep(READ_DELAY);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+            if (length == 0) return 0;
+            if (mPosition == mBytes.length) return -1;
+            buffer[offset] = mBytes[mPosition++];
+            bytesRead.incrementAndGet();
+            return 1;
+        }
+
+        @Override
+        public void close() {
+            closed.countDown();
+        }
+    }
+
+    private static void assertIds(EarthquakeStore earthquakes, String... ids) {
+        String[] actual = new String[earthquakes.size()];
+        for (int i = 0; i < actual.length; i++) actual[i] = earthquakes.getId(i);
+        assertEquals(Arrays.asList(ids), Arrays.asList(actual));
+    }
+
+    /**
+     * Wait until the callers have asked for the given number of queries that were not in
+     * memory. A caller joins the running fetch of its query along with counting the miss.
+     */
+    private static void awaitMisses(long misses) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (Metrics.REQUEST_CACHE_MISSES.get() < misses) {
+            assertTrue(System.nanoTime() < deadline);
+            Thread.sleep(1);
+        }
+    }
+}
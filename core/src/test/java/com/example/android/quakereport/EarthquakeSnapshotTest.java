@@ -0,0 +1,175 @@
+package com.example.android.quakereport;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class EarthquakeSnapshotTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void roundTripKeepsEveryColumn() throws IOException {
+        EarthquakeStore earthquakes = Fixtures.earthquakes(1000);
+        // locations without a distance, urls that are not event pages and absent strings
+        earthquakes.add("ci1", 3.25, "Central California", 1000, "https://example.com/ci1",
+                1001, 36.5, -121.25, false);
+        earthquakes.add("ci2", -0.5, null, 2000, null, 2001, 0, 0, false);
+
+        EarthquakeSnapshot read = writeAndRead(
+                new EarthquakeSnapshot("https://query", "\"etag\"", 1234, earthquakes));
+
+        assertEquals("https://query", read.query);
+        assertEquals("\"etag\"", read.eTag);
+        assertEquals(1234, read.lastModified);
+        assertSameEarthquakes(earthquakes, read.earthquakes);
+    }
+
+    /**
+     * A store selected from a larger one shares its string table, only the strings of the
+     * selected rows are written.
+     */
+    @Test
+    public void roundTripOfASelectionWritesItsStringsOnly() throws IOException {
+        EarthquakeStore all = Fixtures.earthquakes(1000);
+        EarthquakeStore selected = all.select(new int[]{500, 3, 3, 999});
+
+        EarthquakeSnapshot read = writeAndRead(
+                new EarthquakeSnapshot("https://query", null, 0, selected));
+
+        assertSameEarthquakes(selected, read.earthquakes);
+        Set<String> strings = new HashSet<>();
+        strings.add("https://query");
+        for (int i = 0; i < selected.size(); i++) {
+            strings.add(selected.getId(i));
+            strings.add(selected.getLocationOffset(i));
+            strings.add(selected.getLocationPrimary(i));
+        }
+        strings.remove(null);
+        assertEquals(strings.size(), read.earthquakes.getStringCount());
+    }
+
+    /**
+     * The columns are read as they were written, the rows share their strings and a read
+     * store takes more earthquakes like any other.
+     */
+    @Test
+    public void readStoreKeepsItsStringTable() throws IOException {
+        EarthquakeStore earthquakes = Fixtures.earthquakes(1000);
+        EarthquakeSnapshot read = writeAndRead(
+                new EarthquakeSnapshot(null, null, 0, earthquakes));
+
+        EarthquakeStore store = read.earthquakes;
+        for (int i = 0; i < store.size(); i++) {
+            assertEquals(earthquakes.getString(earthquakes.getIdIndex(i)),
+                    store.getString(store.getIdIndex(i)));
+            assertEquals(earthquakes.getUrlIndex(i), store.getUrlIndex(i));
+        }
+        for (int i = 1; i < store.size(); i++) {
+            if (store.getLocationPrimary(i).equals(store.getLocationPrimary(0))) {
+                assertSame(store.getLocationPrimary(0), store.getLocationPrimary(i));
+            }
+        }
+
+        int stringCount = store.getStringCount();
+        store.add("new1", 4.5, "0.5km N of " + store.getLocationPrimary(0), 1000,
+                EarthquakeStore.EVENT_PAGE_URL + "new1", 1000, 1, 2, false);
+        store.add(earthquakes, 0);
+        assertEquals(1002, store.size());
+        assertEquals("0.5km N of " + store.getLocationPrimary(0), store.getLocation(1000));
+        assertEquals(EarthquakeStore.EVENT_PAGE_URL + "new1", store.getUrl(1000));
+        // the id and the new offset, the primary location was in the table
+        assertEquals(stringCount + 2, store.getStringCount());
+        assertEquals(earthquakes.getLocation(0), store.getLocation(1001));
+    }
+
+    @Test
+    public void headerHasTheQueryAndValidatorsOnly() throws IOException {
+        File file = mFolder.newFile();
+        new EarthquakeSnapshot("https://query", "\"etag\"", 1234, Fixtures.earthquakes(1000))
+                .write(file);
+
+        EarthquakeSnapshot header = EarthquakeSnapshot.readHeader(file);
+        assertEquals("https://query", header.query);
+        assertEquals("\"etag\"", header.eTag);
+        assertEquals(1234, header.lastModified);
+        assertNull(header.earthquakes);
+
+        new EarthquakeSnapshot(null, null, 0, new EarthquakeStore()).write(file);
+        header = EarthquakeSnapshot.readHeader(file);
+        assertNull(header.query);
+        assertNull(header.eTag);
+    }
+
+    @Test
+    public void roundTripOfNothing() throws IOException {
+        EarthquakeSnapshot read = writeAndRead(
+                new EarthquakeSnapshot(null, null, 0, new EarthquakeStore()));
+
+        assertNull(read.query);
+        assertNull(read.eTag);
+        assertEquals(0, read.earthquakes.size());
+    }
+
+    @Test
+    public void otherFilesAreNotRead() throws IOException {
+        File empty = mFolder.newFile();
+        assertNull(EarthquakeSnapshot.read(empty));
+
+        File other = mFolder.newFile();
+        FileOutputStream out = new FileOutputStream(other);
+        try {
+            out.write(new byte[64]);
+        } finally {
+            out.close();
+        }
+        assertNull(EarthquakeSnapshot.read(other));
+
+        // a snapshot of another version
+        File older = mFolder.newFile();
+        new EarthquakeSnapshot("https://query", null, 0, Fixtures.earthquakes(10)).write(older);
+        RandomAccessFile file = new RandomAccessFile(older, "rw");
+        try {
+            file.seek(4);
+            file.writeInt(1);
+        } finally {
+            file.close();
+        }
+        assertNull(EarthquakeSnapshot.read(older));
+    }
+
+    private EarthquakeSnapshot writeAndRead(EarthquakeSnapshot snapshot) throws IOException {
+        File file = mFolder.newFile();
+        snapshot.write(file);
+        return EarthquakeSnapshot.read(file);
+    }
+
+    static void assertSameEarthquakes(EarthquakeStore expected, EarthquakeStore actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.getId(i), actual.getId(i));
+            assertEquals(expected.getMagnitude(i), actual.getMagnitude(i), 0);
+            assertEquals(expected.getLocation(i), actual.getLocation(i));
+            assertEquals(expected.getLocationOffset(i), actual.getLocationOffset(i));
+            assertEquals(expected.getLocationPrimary(i), actual.getLocationPrimary(i));
+            assertEquals(expected.getTime(i), actual.getTime(i));
+            assertEquals(expected.getUrl(i), actual.getUrl(i));
+            assertEquals(expected.getUpdated(i), actual.getUpdated(i));
+            assertEquals(expected.getLatitude(i), actual.getLatitude(i), 0);
+            assertEquals(expected.getLongitude(i), actual.getLongitude(i), 0);
+            assertEquals(expected.isDeleted(i), actual.isDeleted(i));
+        }
+    }
+}
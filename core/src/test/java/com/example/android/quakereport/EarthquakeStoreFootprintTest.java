@@ -0,0 +1,192 @@
+package com.example.android.quakereport;
+
+import org.json.JSONException;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test of the heap an {@link EarthquakeStore} retains, against the list of objects the app
+ * kept before, see {@link JsonReference#extractObjects(String)}. The heap is measured as the
+ * used heap after a full collection, with and without the earthquakes held, so the numbers
+ * are accurate within some kilobytes, which is far below the differences asserted.
+ */
+public class EarthquakeStoreFootprintTest {
+
+    private static final int FEATURE_COUNT = 50000;
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final byte[] mResponse = Fixtures.response(FEATURE_COUNT);
+    private final String mJson = new String(mResponse, Charset.forName("UTF-8"));
+
+    // what is measured, held here until the heap is measured
+    private Object mHeld;
+
+    /**
+     * 50k earthquakes take about 6.4 MB in the store and 19.8 MB as objects.
+     */
+    @Test
+    public void storeRetainsLessThanFortyPercentOfTheObjects()
+            throws JSONException, IOException {
+        long store = retainedBytes(new Builder() {
+            @Override
+            public Object build() {
+                return QueryUtils.extractData(mResponse, mResponse.length, new Cancellation());
+            }
+        });
+        long objects = retainedBytes(new Builder() {
+            @Override
+            public Object build() throws JSONException {
+                return JsonReference.extractObjects(mJson);
+            }
+        });
+
+        assertTrue("store " + store + " B, objects " + objects + " B", store * 5 < objects * 2);
+    }
+
+    /**
+     * The locations of the store are split into offsets and primary locations that are kept
+     * once for all the earthquakes, while every object has a string of its own. The heap of
+     * the locations is the difference to the same earthquakes without them, about 0.34 MB
+     * against 1.2 MB for 50k earthquakes.
+     */
+    @Test
+    public void sharedLocationsRetainLessThanAThirdOfTheStrings()
+            throws JSONException, IOException {
+        final EarthquakeStore earthquakes = QueryUtils.extractData(mResponse, mResponse.length,
+                new Cancellation());
+        final ArrayList<JsonReference.EarthquakeObject> objects =
+                JsonReference.extractObjects(mJson);
+        assertEquals(FEATURE_COUNT, earthquakes.size());
+
+        long store = retainedBytes(new Builder() {
+            @Override
+            public Object build() {
+                return copy(earthquakes, true);
+            }
+        });
+        long storeWithoutLocations = retainedBytes(new Builder() {
+            @Override
+            public Object build() {
+                return copy(earthquakes, false);
+            }
+        });
+        long list = retainedBytes(new Builder() {
+            @Override
+            public Object build() {
+                return copy(objects, true);
+            }
+        });
+        long listWithoutLocations = retainedBytes(new Builder() {
+            @Override
+            public Object build() {
+                return copy(objects, false);
+            }
+        });
+
+        long shared = store - storeWithoutLocations;
+        long strings = list - listWithoutLocations;
+        assertTrue("shared locations " + shared + " B, strings " + strings + " B",
+                shared * 3 < strings);
+    }
+
+    /**
+     * A store read back from a snapshot has the columns and the string table of the parsed
+     * one, so it retains about as much, 6.4 MB for 50k earthquakes. The mapping of the file
+     * is not on the heap.
+     */
+    @Test
+    public void snapshotRetainsAboutAsMuchAsTheParsedStore() throws JSONException, IOException {
+        final EarthquakeStore parsed = QueryUtils.extractData(mResponse, mResponse.length,
+                new Cancellation());
+        final File file = mFolder.newFile();
+        new EarthquakeSnapshot(null, null, 0, parsed).write(file);
+        // read once first, like the store was parsed once, so nothing that is set up on the
+        // first read is counted
+        EarthquakeSnapshot.read(file);
+
+        long store = retainedBytes(new Builder() {
+            @Override
+            public Object build() {
+                return QueryUtils.extractData(mResponse, mResponse.length, new Cancellation());
+            }
+        });
+        long snapshot = retainedBytes(new Builder() {
+            @Override
+            public Object build() throws IOException {
+                return EarthquakeSnapshot.read(file).earthquakes;
+            }
+        });
+
+        String message = "snapshot " + snapshot + " B, parsed " + store + " B";
+        assertTrue(message, snapshot * 10 < store * 11);
+        assertTrue(message, snapshot * 10 > store * 9);
+    }
+
+    private static EarthquakeStore copy(EarthquakeStore earthquakes, boolean withLocations) {
+        EarthquakeStore copy = new EarthquakeStore(earthquakes.size());
+        for (int i = 0; i < earthquakes.size(); i++) {
+            copy.add(earthquakes.getId(i), earthquakes.getMagnitude(i),
+                    withLocations ? earthquakes.getLocation(i) : null, earthquakes.getTime(i),
+                    earthquakes.getUrl(i), earthquakes.getUpdated(i),
+                    earthquakes.getLatitude(i), earthquakes.getLongitude(i),
+                    earthquakes.isDeleted(i));
+        }
+        copy.trimToSize();
+        return copy;
+    }
+
+    private static ArrayList<JsonReference.EarthquakeObject> copy(
+            ArrayList<JsonReference.EarthquakeObject> objects, boolean withLocations) {
+        ArrayList<JsonReference.EarthquakeObject> copy = new ArrayList<>(objects.size());
+        for (JsonReference.EarthquakeObject object : objects) {
+            // strings of their own, as every object parsed from the response has
+            copy.add(new JsonReference.EarthquakeObject(new String(object.id), object.magnitude,
+                    withLocations ? new String(object.location) : null, object.time,
+                    new String(object.url), object.updated, object.latitude, object.longitude,
+                    object.deleted));
+        }
+        return copy;
+    }
+
+    /**
+     * Return the bytes of heap the object built retains.
+     */
+    private long retainedBytes(Builder builder) throws JSONException, IOException {
+        mHeld = null;
+        long before = usedHeap();
+        mHeld = builder.build();
+        long after = usedHeap();
+        mHeld = null;
+        return after - before;
+    }
+
+    /**
+     * Return the used heap once collections free nothing more.
+     */
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        for (int i = 0; i < 20; i++) {
+            System.gc();
+            long now = runtime.totalMemory() - runtime.freeMemory();
+            if (now >= used && i >= 3) return now;
+            used = now;
+        }
+        return used;
+    }
+
+    private interface Builder {
+        Object build() throws JSONException, IOException;
+    }
+}
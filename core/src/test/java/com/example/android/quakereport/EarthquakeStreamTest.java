@@ -0,0 +1,330 @@
+package com.example.android.quakereport;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test of {@link EarthquakeStream} against a local fake of the USGS summary feed
+ * all_hour.geojson and of a stream of server-sent events. Batches are passed on on a thread
+ * of the test, which stands in for the main thread of the app.
+ */
+public class EarthquakeStreamTest {
+
+    private static final String FEED_PATH = "/earthquakes/feed/v1.0/summary/all_hour.geojson";
+    private static final String EVENTS_PATH = "/events";
+
+    private static final long START = 1539820800000L;
+
+    // how often the feed is fetched in the tests
+    private static final long FEED_INTERVAL = 100; /* milliseconds */
+
+    private HttpServer mServer;
+    private ExecutorService mServerExecutor;
+    private String mBaseUrl;
+
+    // earthquakes of the feed as {id, magnitude, time, updated}, by id, and its version,
+    // which its ETag changes with
+    private final Map<String, Object[]> mFeed = new HashMap<>();
+    private int mFeedVersion = 1;
+
+    // requests of the feed, and the ones answered with 304 Not Modified
+    private final AtomicInteger mFeedRequests = new AtomicInteger();
+    private final AtomicInteger mNotModified = new AtomicInteger();
+
+    // connections to the event stream, and whether they are kept open after the first event
+    private final AtomicInteger mConnections = new AtomicInteger();
+    private volatile boolean mKeepOpen;
+
+    // counted down once the server could not write to a stream that was kept open anymore
+    private final CountDownLatch mStreamClosed = new CountDownLatch(1);
+
+    // the thread batches are passed on on
+    private final ScheduledExecutorService mMainThread =
+            Executors.newSingleThreadScheduledExecutor();
+    private final Map<Runnable, ScheduledFuture<?>> mPosted = new HashMap<>();
+    private final EarthquakeStream.Dispatcher mDispatcher = new EarthquakeStream.Dispatcher() {
+        @Override
+        public void post(Runnable task, long delayMillis) {
+            synchronized (mPosted) {
+                mPosted.put(task, mMainThread.schedule(task, delayMillis, TimeUnit.MILLISECONDS));
+            }
+        }
+
+        @Override
+        public void remove(Runnable task) {
+            synchronized (mPosted) {
+                ScheduledFuture<?> posted = mPosted.remove(task);
+                if (posted != null) posted.cancel(false);
+            }
+        }
+    };
+
+    private final BlockingQueue<EarthquakeStore> mBatches = new LinkedBlockingQueue<>();
+    private final EarthquakeStream.Listener mListener = new EarthquakeStream.Listener() {
+        @Override
+        public void onEarthquakes(EarthquakeStore batch) {
+            mBatches.add(batch);
+        }
+    };
+
+    private EarthquakeStream mStream;
+
+    @Before
+    public void startServer() throws IOException {
+        mServer = HttpServer.create(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0),
+                0);
+        mServer.createContext(FEED_PATH, new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                answerFeed(exchange);
+            }
+        });
+        mServer.createContext(EVENTS_PATH, new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                answerEvents(exchange);
+            }
+        });
+        // a stream that is kept open takes a thread of its own
+        mServerExecutor = Executors.newCachedThreadPool();
+        mServer.setExecutor(mServerExecutor);
+        mServer.start();
+        mBaseUrl = "http://127.0.0.1:" + mServer.getAddress().getPort();
+    }
+
+    @After
+    public void stopServer() {
+        if (mStream != null) mStream.stop();
+        mMainThread.shutdownNow();
+        mServer.stop(0);
+        mServerExecutor.shutdownNow();
+    }
+
+    @Test
+    public void feedPassesOnWhatIsNewOrUpdated() throws InterruptedException {
+        putFeed("us1", 4.5, START, START);
+        putFeed("us2", 5.0, START + 60000, START + 60000);
+        putFeed("us3", 2.5, START + 120000, START + 120000);
+        startStream(mBaseUrl + FEED_PATH);
+
+        assertEquals(ids("us1", "us2", "us3"), ids(nextBatch()));
+        consumeBatch();
+
+        // the feed has not changed, it is revalidated without passing anything on
+        while (mNotModified.get() < 2) Thread.sleep(FEED_INTERVAL);
+        assertNull(mBatches.poll(EarthquakeStream.BATCH_INTERVAL, TimeUnit.MILLISECONDS));
+
+        putFeed("us2", 5.3, START + 60000, START + 180000);
+        putFeed("us4", 6.1, START + 240000, START + 240000);
+        EarthquakeStore batch = nextBatch();
+        assertEquals(ids("us2", "us4"), ids(batch));
+        for (int i = 0; i < batch.size(); i++) {
+            if (batch.getId(i).equals("us2")) assertEquals(5.3, batch.getMagnitude(i), 0);
+        }
+    }
+
+    /**
+     * A batch that is not consumed holds back the next one, and once
+     * {@link EarthquakeStream#MAX_PENDING} earthquakes wait, the feed is not read any further
+     * and not fetched again.
+     */
+    @Test
+    public void unconsumedBatchHoldsBackTheFeed() throws InterruptedException {
+        int count = 2 * EarthquakeStream.MAX_PENDING + 500;
+        for (int i = 0; i < count; i++) putFeed("us" + i, 4.5, START + i, START + i);
+        startStream(mBaseUrl + FEED_PATH);
+
+        Set<String> ids = new HashSet<>(ids(nextBatch()));
+        Thread.sleep(2 * EarthquakeStream.BATCH_INTERVAL);
+        assertTrue(mBatches.isEmpty());
+        assertEquals(1, mFeedRequests.get());
+
+        int batches = 1;
+        while (ids.size() < count) {
+            consumeBatch();
+            EarthquakeStore batch = nextBatch();
+            assertTrue(batch.size() <= EarthquakeStream.MAX_PENDING);
+            ids.addAll(ids(batch));
+            batches++;
+        }
+        assertEquals(count, ids.size());
+        assertTrue(batches >= 3);
+    }
+
+    /**
+     * An event stream that ends is opened again, and what it sends then is passed on.
+     */
+    @Test
+    public void eventStreamReconnectsAfterItEnds() throws InterruptedException {
+        startStream(mBaseUrl + EVENTS_PATH);
+
+        assertEquals(ids("ev1"), ids(nextBatch()));
+        consumeBatch();
+        assertEquals(ids("ev2"), ids(nextBatch()));
+        assertTrue(mConnections.get() >= 2);
+    }
+
+    /**
+     * A stopped stream closes its connection, connects no more and passes nothing on.
+     */
+    @Test
+    public void stopClosesTheConnection() throws InterruptedException {
+        mKeepOpen = true;
+        startStream(mBaseUrl + EVENTS_PATH);
+        assertEquals(ids("ev1"), ids(nextBatch()));
+
+        mStream.stop();
+        assertTrue(mStreamClosed.await(5, TimeUnit.SECONDS));
+        consumeBatch();
+        assertNull(mBatches.poll(2 * EarthquakeStream.BATCH_INTERVAL, TimeUnit.MILLISECONDS));
+        assertEquals(1, mConnections.get());
+    }
+
+    private void startStream(String url) {
+        mStream = new EarthquakeStream(url, new UrlConnectionTransport(
+                UrlConnectionTransport.DEFAULT_CONNECT_TIMEOUT, EarthquakeStream.READ_TIMEOUT),
+                FEED_INTERVAL, mDispatcher, mListener);
+        mStream.start();
+    }
+
+    private EarthquakeStore nextBatch() throws InterruptedException {
+        EarthquakeStore batch = mBatches.poll(5, TimeUnit.SECONDS);
+        assertNotNull(batch);
+        return batch;
+    }
+
+    /**
+     * Consume the last batch on the thread it was passed on on, as the app does.
+     */
+    private void consumeBatch() {
+        mMainThread.execute(new Runnable() {
+            @Override
+            public void run() {
+                mStream.batchConsumed();
+            }
+        });
+    }
+
+    private void putFeed(String id, double magnitude, long time, long updated) {
+        synchronized (mFeed) {
+            mFeed.put(id, new Object[]{id, magnitude, time, updated});
+            mFeedVersion++;
+        }
+    }
+
+    private void answerFeed(HttpExchange exchange) throws IOException {
+        mFeedRequests.incrementAndGet();
+        StringBuilder json = new StringBuilder("{\"type\":\"FeatureCollection\",\"features\":[");
+        String eTag;
+        synchronized (mFeed) {
+            eTag = "\"v" + mFeedVersion + "\"";
+            boolean first = true;
+            for (Object[] earthquake : mFeed.values()) {
+                if (!first) json.append(',');
+                first = false;
+                json.append(feature(earthquake));
+            }
+        }
+        json.append("]}");
+
+        exchange.getResponseHeaders().set("ETag", eTag);
+        if (eTag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+            mNotModified.incrementAndGet();
+            exchange.sendResponseHeaders(304, -1);
+            exchange.close();
+            return;
+        }
+        byte[] body = json.toString().getBytes("UTF-8");
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, body.length);
+        OutputStream out = exchange.getResponseBody();
+        try {
+            out.write(body);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Send one event per connection, then end the stream, or keep it open with comments
+     * until the client goes away.
+     */
+    private void answerEvents(HttpExchange exchange) throws IOException {
+        int connection = mConnections.incrementAndGet();
+        exchange.getResponseHeaders().set("Content-Type", "text/event-stream");
+        exchange.sendResponseHeaders(200, 0);
+        OutputStream out = exchange.getResponseBody();
+        try {
+            Object[] earthquake = {"ev" + connection, 4.5, START + connection,
+                    START + connection};
+            out.write((": first\ndata: " + feature(earthquake) + "\n\n").getBytes("UTF-8"));
+            out.flush();
+            while (mKeepOpen) {
+                Thread.sleep(50);
+                out.write(": keep-alive\n".getBytes("UTF-8"));
+                out.flush();
+            }
+        } catch (IOException e) {
+            mStreamClosed.countDown();
+        } catch (InterruptedException e) {
+            // the server is stopped
+        } finally {
+            try {
+                out.close();
+            } catch (IOException e) {
+                mStreamClosed.countDown();
+            }
+        }
+    }
+
+    private static String feature(Object[] earthquake) {
+        return String.format(Locale.US, "{\"type\":\"Feature\",\"properties\":"
+                        + "{\"mag\":%.1f,\"place\":\"10km N of Adak, Alaska\",\"time\":%d,"
+                        + "\"updated\":%d,\"status\":\"reviewed\"},\"geometry\":"
+                        + "{\"type\":\"Point\",\"coordinates\":[-176.6,51.9,10]},"
+                        + "\"id\":\"%s\"}",
+                earthquake[1], earthquake[2], earthquake[3], earthquake[0]);
+    }
+
+    private static Set<String> ids(String... ids) {
+        Set<String> set = new HashSet<>();
+        for (String id : ids) set.add(id);
+        return set;
+    }
+
+    private static Set<String> ids(EarthquakeStore earthquakes) {
+        Set<String> ids = new HashSet<>();
+        for (int i = 0; i < earthquakes.size(); i++) ids.add(earthquakes.getId(i));
+        assertEquals("every earthquake once", earthquakes.size(), ids.size());
+        return ids;
+    }
+}
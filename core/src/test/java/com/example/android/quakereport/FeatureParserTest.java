@@ -0,0 +1,110 @@
+package com.example.android.quakereport;
+
+import org.json.JSONException;
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.util.concurrent.ForkJoinPool;
+
+import static com.example.android.quakereport.EarthquakeSnapshotTest.assertSameEarthquakes;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class FeatureParserTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    @Test
+    public void parsesLikeJsonObject() throws JSONException {
+        byte[] response = Fixtures.response(2000);
+        EarthquakeStore expected = JsonReference.extractData(new String(response, UTF_8));
+
+        EarthquakeStore earthquakes = QueryUtils.extractData(response, response.length,
+                new Cancellation(), null, 1);
+        assertEquals(2000, earthquakes.size());
+        assertSameEarthquakes(expected, earthquakes);
+    }
+
+    @Test
+    public void parsesUnusualFeaturesLikeJsonObject() throws JSONException {
+        String json = "{\n"
+                + "  \"type\": \"FeatureCollection\",\n"
+                + "  \"metadata\": {\"features\": [{\"id\": \"not a feature\"}]},\n"
+                + "  \"features\": [\n"
+                // whitespace everywhere, escapes and numbers in every form
+                + "    { \"id\" : \"us1\" , \"properties\" : { \"mag\" : 4.5e0 ,\n"
+                + "      \"place\" : \"5km N of \\\"Caf\\u00e9\\\" \\\\ Ni\\u00f1o\\/Ri\\u00f3\","
+                + " \n"
+                + "      \"time\" : 1.5e12 , \"updated\" : -12 , \"url\" : \"u\\tv\" } ,\n"
+                + "      \"geometry\" : { \"coordinates\" : [ -1.25E1 , 1.23456789012345678 ]"
+                + " } },\n"
+                // nulls, numbers as strings and no geometry
+                + "    {\"id\":\"us2\",\"properties\":{\"mag\":null,\"place\":null,"
+                + "\"time\":\"1539820800000\",\"url\":null,\"updated\":null,\"status\":null}},\n"
+                // no id or properties, values that are skipped and null coordinates
+                + "    {\"type\":\"Feature\",\"extra\":{\"a\":[1,{\"b\":\"]}\"}],\"c\":true},"
+                + "\"geometry\":{\"type\":\"Point\",\"coordinates\":[null,12,3]}},\n"
+                // a deleted event, and a place in a script outside the BMP
+                + "    {\"id\":\"us4\",\"properties\":{\"mag\":\"-0.3\",\"status\":\"deleted\","
+                + "\"place\":\"\u6771\u4eac \ud83c\udf0b\",\"time\":-1000,\"tsunami\":false},"
+                + "\"geometry\":null}\n"
+                + "  ]\n"
+                + "}";
+        EarthquakeStore expected = JsonReference.extractData(json);
+
+        byte[] bytes = json.getBytes(UTF_8);
+        EarthquakeStore earthquakes = QueryUtils.extractData(bytes, bytes.length,
+                new Cancellation());
+        assertEquals(4, earthquakes.size());
+        assertSameEarthquakes(expected, earthquakes);
+        assertEquals("5km N of \"Caf\u00e9\" \\ Ni\u00f1o/Ri\u00f3", earthquakes.getLocation(0));
+        assertEquals(1500000000000L, earthquakes.getTime(0));
+        assertEquals(1.23456789012345678, earthquakes.getLatitude(0), 0);
+        assertNull(earthquakes.getId(2));
+    }
+
+    /**
+     * Large responses are split into chunks that are parsed in parallel, the joined chunks
+     * must be the same as the response parsed on a single thread.
+     */
+    @Test
+    public void parallelParseMatchesSequentialParse() {
+        // a few MB, well above the size that is parsed in parallel
+        byte[] response = Fixtures.response(5000);
+        EarthquakeStore expected = QueryUtils.extractData(response, response.length,
+                new Cancellation(), null, 1);
+
+        int[] threadCounts = {2, 3, 8};
+        for (int threadCount : threadCounts) {
+            ForkJoinPool pool = new ForkJoinPool(threadCount);
+            try {
+                EarthquakeStore earthquakes = QueryUtils.extractData(response, response.length,
+                        new Cancellation(), pool, threadCount);
+                assertSameEarthquakes(expected, earthquakes);
+            } finally {
+                pool.shutdown();
+            }
+        }
+    }
+
+    @Test
+    public void cancelledParseReturnsNull() {
+        byte[] response = Fixtures.response(5000);
+        Cancellation cancellation = new Cancellation();
+        cancellation.cancel();
+
+        assertNull(QueryUtils.extractData(response, response.length, cancellation, null, 1));
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            assertNull(QueryUtils.extractData(response, response.length, cancellation, pool, 4));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void responseWithoutFeaturesHasNoEarthquakes() {
+        byte[] json = "{\"type\":\"FeatureCollection\",\"metadata\":{}}".getBytes(UTF_8);
+        assertEquals(0, QueryUtils.extractData(json, json.length, new Cancellation()).size());
+    }
+}
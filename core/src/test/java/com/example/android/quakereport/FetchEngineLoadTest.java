@@ -0,0 +1,187 @@
+package com.example.android.quakereport;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Load test of {@link FetchEngine} against a local stub of the USGS server, which answers
+ * every query after a fixed delay, like a server far away.
+ */
+public class FetchEngineLoadTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // time the stub takes to answer a query
+    private static final long SERVER_DELAY = 500; /* milliseconds */
+
+    // queries sent at the same time
+    private static final int QUERY_COUNT = 2000;
+
+    private static final byte[] BODY = ("{\"type\":\"FeatureCollection\",\"features\":[{"
+            + "\"type\":\"Feature\",\"properties\":{\"mag\":6.1,\"place\":\"10km S of Nowhere\","
+            + "\"time\":1500000000000,\"updated\":1500000000001,"
+            + "\"url\":\"https://earthquake.usgs.gov/earthquakes/eventpage/us1\"},"
+            + "\"geometry\":{\"type\":\"Point\",\"coordinates\":[10.5,-20.25,10]},"
+            + "\"id\":\"us1\"}]}").getBytes(UTF_8);
+
+    private ServerSocket mServer;
+    private ExecutorService mServerExecutor;
+    private String mUrl;
+
+    // queries the stub is answering, and the most it answered at the same time
+    private final AtomicInteger mRunning = new AtomicInteger();
+    private final AtomicInteger mPeak = new AtomicInteger();
+
+    /**
+     * Start a stub that answers every connection on a thread of its own, so the stub is
+     * not what limits the number of queries at the same time.
+     */
+    @Before
+    public void startServer() throws IOException {
+        mServer = new ServerSocket(0, QUERY_COUNT, InetAddress.getByName("127.0.0.1"));
+        mServerExecutor = Executors.newCachedThreadPool();
+        mServerExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        final Socket socket = mServer.accept();
+                        mServerExecutor.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                answer(socket);
+                            }
+                        });
+                    }
+                } catch (IOException e) {
+                    // the stub is stopped
+                }
+            }
+        });
+        mUrl = "http://127.0.0.1:" + mServer.getLocalPort() + "/query?format=geojson";
+    }
+
+    /**
+     * Answer the request of a connection after the delay of the stub, and close it.
+     */
+    private void answer(Socket socket) {
+        int running = mRunning.incrementAndGet();
+        while (true) {
+            int peak = mPeak.get();
+            if (running <= peak || mPeak.compareAndSet(peak, running)) break;
+        }
+        try {
+            BufferedReader request = new BufferedReader(
+                    new InputStreamReader(socket.getInputStream(), UTF_8));
+            String requestLine = request.readLine();
+            String header;
+            do {
+                header = request.readLine();
+            } while (header != null && !header.isEmpty());
+
+            Thread.sleep(requestLine.contains("slow") ? 60 * SERVER_DELAY : SERVER_DELAY);
+            OutputStream response = socket.getOutputStream();
+            response.write(("HTTP/1.1 200 OK\r\nContent-Type: application/json\r\n"
+                    + "Content-Length: " + BODY.length + "\r\nConnection: close\r\n\r\n")
+                    .getBytes(UTF_8));
+            response.write(BODY);
+            response.flush();
+        } catch (IOException | InterruptedException e) {
+            // the query was cancelled or the stub is stopped
+        } finally {
+            mRunning.decrementAndGet();
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // nothing left to answer
+            }
+        }
+    }
+
+    @After
+    public void stopServer() throws IOException {
+        mServer.close();
+        mServerExecutor.shutdownNow();
+    }
+
+    @Test
+    public void sustainsConcurrentQueries() throws InterruptedException {
+        List<String> urls = new ArrayList<>(QUERY_COUNT);
+        for (int i = 0; i < QUERY_COUNT; i++) urls.add(mUrl + "&minmag=" + i);
+
+        FetchEngine engine = new FetchEngine();
+        long start = System.nanoTime();
+        List<EarthquakeStore> results;
+        try {
+            results = engine.fetchAll(urls, 60, TimeUnit.SECONDS);
+        } finally {
+            engine.close();
+        }
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        for (EarthquakeStore earthquakes : results) {
+            assertNotNull(earthquakes);
+            assertEquals(1, earthquakes.size());
+            assertEquals("us1", earthquakes.getId(0));
+        }
+        // one query after the other would take QUERY_COUNT times the delay, the bounds leave
+        // room for a cold JVM on a single core
+        assertTrue("at most " + mPeak.get() + " queries at the same time",
+                mPeak.get() >= QUERY_COUNT / 4);
+        assertTrue("took " + elapsed + " ms", elapsed < QUERY_COUNT * SERVER_DELAY / 50);
+    }
+
+    @Test
+    public void timeoutCancelsRunningQueries() throws InterruptedException {
+        List<String> urls = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            urls.add(mUrl + (i % 2 == 0 ? "&slow" : "") + "&minmag=" + i);
+        }
+
+        ExecutorService executor = FetchEngine.newQueryExecutor();
+        FetchEngine engine = new FetchEngine(executor, (int) SERVER_DELAY,
+                (int) (4 * SERVER_DELAY));
+        long start = System.nanoTime();
+        List<EarthquakeStore> results;
+        try {
+            results = engine.fetchAll(urls, 2 * SERVER_DELAY, TimeUnit.MILLISECONDS);
+        } finally {
+            engine.close();
+            executor.shutdown();
+        }
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        // the call waits for the cancelled queries, which stop at the latest when their
+        // read times out
+        assertTrue("took " + elapsed + " ms", elapsed < 6 * SERVER_DELAY + 1000);
+        assertTrue(executor.awaitTermination(1, TimeUnit.SECONDS));
+        for (int i = 0; i < urls.size(); i++) {
+            if (i % 2 == 0) {
+                assertNull(results.get(i));
+            } else {
+                assertNotNull(results.get(i));
+            }
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package com.example.android.quakereport;
+
+import org.junit.Test;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MetricsTest {
+
+    @Test
+    public void percentilesAreTheUpperBoundOfTheirBucket() {
+        Metrics.Histogram histogram = new Metrics.Histogram("test", "us", 1);
+        assertEquals(0, histogram.getPercentile(0.5));
+
+        for (int i = 0; i < 90; i++) histogram.record(5);
+        for (int i = 0; i < 9; i++) histogram.record(100);
+        histogram.record(1000);
+
+        assertEquals(100, histogram.getCount());
+        assertEquals(8, histogram.getPercentile(0.5));
+        assertEquals(8, histogram.getPercentile(0.9));
+        assertEquals(128, histogram.getPercentile(0.99));
+        // not above the largest value
+        assertEquals(1000, histogram.getPercentile(1));
+    }
+
+    @Test
+    public void zeroAndNegativeValuesAreInTheFirstBucket() {
+        Metrics.Histogram histogram = new Metrics.Histogram("test", "us", 1);
+        histogram.record(0);
+        histogram.record(-5);
+        assertEquals(2, histogram.getCount());
+        assertEquals(0, histogram.getPercentile(1));
+    }
+
+    /**
+     * Values of 2^62 and above fall in the last bucket, whose upper bound does not fit in a
+     * long, the largest value is reported instead.
+     */
+    @Test
+    public void lastBucketReportsTheLargestValue() {
+        Metrics.Histogram histogram = new Metrics.Histogram("test", "ns", 1);
+        histogram.record(1L << 62);
+        histogram.record(Long.MAX_VALUE);
+        assertEquals(Long.MAX_VALUE, histogram.getPercentile(0.5));
+        assertEquals(Long.MAX_VALUE, histogram.getPercentile(1));
+
+        histogram.reset();
+        histogram.record(3);
+        assertEquals(3, histogram.getPercentile(1));
+    }
+
+    @Test
+    public void recordingFromManyThreadsLosesNothing() throws InterruptedException {
+        final Metrics.Histogram histogram = new Metrics.Histogram("test", "us", 1);
+        final Metrics.Counter counter = new Metrics.Counter("test");
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        for (int thread = 0; thread < 4; thread++) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 1; i <= 10000; i++) {
+                        histogram.record(i);
+                        counter.add(2);
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+
+        assertEquals(40000, histogram.getCount());
+        assertEquals(80000, counter.get());
+        assertEquals(10000, histogram.getPercentile(1));
+        assertEquals(8192, histogram.getPercentile(0.5));
+    }
+
+    @Test
+    public void dumpListsTheStatistics() {
+        Metrics.Histogram histogram = new Metrics.Histogram("parse", "us", 1000);
+        histogram.record(10);
+        histogram.record(30);
+        StringBuilder builder = new StringBuilder();
+        histogram.dump(builder);
+        assertEquals("parse: count 2, mean 20, p50 16, p90 30, p99 30, max 30 us\n",
+                builder.toString());
+    }
+}
@@ -0,0 +1,79 @@
+package com.example.android.quakereport;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test of reading response bodies into arrays of the {@link BufferPool}.
+ */
+public class QueryUtilsTest {
+
+    // larger than the arrays handed out for bodies of unknown length
+    private final byte[] mBody = Fixtures.response(300);
+
+    @Test
+    public void bodyOfKnownLengthIsReadWhole() throws IOException {
+        assertRead(mBody.length);
+    }
+
+    /**
+     * The array of a body without a Content-Length grows as the stream is read, and so does
+     * the one of a gzip encoded body, which is longer than announced.
+     */
+    @Test
+    public void bodyOfUnknownOrWrongLengthIsReadWhole() throws IOException {
+        assertTrue(mBody.length > 2 * BufferPool.MIN_SIZE);
+        assertRead(-1);
+        assertRead(mBody.length / 3);
+        assertRead(0);
+    }
+
+    @Test
+    public void cancelledReadReturnsNull() throws IOException {
+        Cancellation cancellation = new Cancellation();
+        cancellation.cancel();
+        assertNull(QueryUtils.readFromStream(new TrickleStream(mBody), -1, cancellation));
+    }
+
+    private void assertRead(int length) throws IOException {
+        ByteBuffer body = QueryUtils.readFromStream(new TrickleStream(mBody), length,
+                new Cancellation());
+        try {
+            assertEquals(mBody.length, body.limit());
+            assertArrayEquals(mBody, Arrays.copyOf(body.array(), body.limit()));
+        } finally {
+            BufferPool.release(body.array());
+        }
+    }
+
+    /**
+     * A stream that returns a few bytes per read, like a slow network.
+     */
+    private static final class TrickleStream extends InputStream {
+        private final InputStream mIn;
+
+        TrickleStream(byte[] bytes) {
+            mIn = new ByteArrayInputStream(bytes);
+        }
+
+        @Override
+        public int read() throws IOException {
+            return mIn.read();
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            return mIn.read(buffer, offset, Math.min(length, 1500));
+        }
+    }
+}
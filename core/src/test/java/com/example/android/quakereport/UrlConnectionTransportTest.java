@@ -0,0 +1,229 @@
+package com.example.android.quakereport;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import static com.example.android.quakereport.EarthquakeSnapshotTest.assertSameEarthquakes;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Test of {@link UrlConnectionTransport} and the way {@link QueryUtils} uses it, against a
+ * local fake of the USGS server that compresses its responses and answers conditional
+ * requests.
+ */
+public class UrlConnectionTransportTest {
+
+    private static final String ETAG = "\"v1\"";
+    private static final long LAST_MODIFIED = 1539820800000L;
+
+    private final byte[] mBody = Fixtures.response(200);
+    private byte[] mGzipBody;
+
+    private HttpServer mServer;
+    private String mUrl;
+
+    // remote ports of the requests the server received, one per request
+    private final List<Integer> mClientPorts = Collections.synchronizedList(
+            new ArrayList<Integer>());
+
+    @Before
+    public void startServer() throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        GZIPOutputStream gzip = new GZIPOutputStream(compressed);
+        gzip.write(mBody);
+        gzip.close();
+        mGzipBody = compressed.toByteArray();
+
+        mServer = HttpServer.create(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0),
+                0);
+        mServer.createContext("/query", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                answer(exchange);
+            }
+        });
+        mServer.start();
+        mUrl = "http://127.0.0.1:" + mServer.getAddress().getPort() + "/query";
+    }
+
+    @After
+    public void stopServer() {
+        mServer.stop(0);
+        QueryUtils.setTransport(new UrlConnectionTransport());
+    }
+
+    private void answer(HttpExchange exchange) throws IOException {
+        mClientPorts.add(exchange.getRemoteAddress().getPort());
+        String query = exchange.getRequestURI().getQuery();
+        if (query != null && query.contains("error")) {
+            byte[] error = "Bad Request".getBytes("UTF-8");
+            exchange.sendResponseHeaders(400, error.length);
+            write(exchange, error);
+            return;
+        }
+        if (query != null && query.contains("broken")) {
+            // announced as gzip, but it is not
+            exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+            exchange.sendResponseHeaders(200, mBody.length);
+            write(exchange, mBody);
+            return;
+        }
+
+        String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+        String ifModifiedSince = exchange.getRequestHeaders().getFirst("If-Modified-Since");
+        exchange.getResponseHeaders().set("ETag", ETAG);
+        exchange.getResponseHeaders().set("Last-Modified", "Thu, 18 Oct 2018 00:00:00 GMT");
+        if (ETAG.equals(ifNoneMatch) || ifModifiedSince != null) {
+            exchange.sendResponseHeaders(304, -1);
+            exchange.close();
+            return;
+        }
+
+        String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+        byte[] body = mBody;
+        if (acceptEncoding != null && acceptEncoding.contains("gzip")) {
+            exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+            body = mGzipBody;
+        }
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, body.length);
+        write(exchange, body);
+    }
+
+    private static void write(HttpExchange exchange, byte[] body) throws IOException {
+        OutputStream out = exchange.getResponseBody();
+        try {
+            out.write(body);
+        } finally {
+            out.close();
+        }
+    }
+
+    @Test
+    public void gzipResponseIsDecodedAndCountedCompressed() {
+        Metrics.reset();
+        QueryUtils.Response response = fetch(mUrl, null, 0);
+
+        assertFalse(response.notModified);
+        assertFalse(response.cancelled);
+        assertSameEarthquakes(Fixtures.earthquakes(200), response.earthquakes);
+        assertEquals(ETAG, response.eTag);
+        assertEquals(LAST_MODIFIED, response.lastModified);
+        // the compressed body went over the wire
+        assertEquals(mGzipBody.length, response.bytesOnWire);
+        assertTrue(mGzipBody.length < mBody.length / 2);
+        // the whole request is timed once its body is closed
+        assertEquals(1, Metrics.REQUEST.getCount());
+    }
+
+    @Test
+    public void validatorsOfAPreviousResponseGetNotModified() {
+        QueryUtils.Response response = fetch(mUrl, ETAG, 0);
+        assertTrue(response.notModified);
+        assertNull(response.earthquakes);
+        assertEquals(0, response.bytesOnWire);
+
+        response = fetch(mUrl, null, LAST_MODIFIED);
+        assertTrue(response.notModified);
+        assertNull(response.earthquakes);
+    }
+
+    @Test
+    public void errorResponseHasNoEarthquakes() {
+        QueryUtils.Response response = fetch(mUrl + "?error", null, 0);
+        assertFalse(response.notModified);
+        assertFalse(response.cancelled);
+        assertNull(response.earthquakes);
+    }
+
+    /**
+     * A body that cannot be decoded fails the request before there is a response, which
+     * leaves nothing behind for the next request.
+     */
+    @Test
+    public void undecodableBodyFailsTheRequest() throws IOException {
+        try {
+            new UrlConnectionTransport().get(new URL(mUrl + "?broken"), null, 0);
+            fail("expected an exception");
+        } catch (IOException expected) {
+        }
+
+        QueryUtils.Response response = fetch(mUrl, null, 0);
+        assertSameEarthquakes(Fixtures.earthquakes(200), response.earthquakes);
+        assertEquals(2, mClientPorts.size());
+    }
+
+    /**
+     * Bodies are read to the end and closed, so the next request goes over the same
+     * connection.
+     */
+    @Test
+    public void connectionIsReused() {
+        for (int i = 0; i < 3; i++) fetch(mUrl, null, 0);
+        fetch(mUrl + "?error", null, 0);
+        fetch(mUrl, null, 0);
+        // last, as the server of Java 8 closes the connection after a 304
+        fetch(mUrl, ETAG, 0);
+
+        assertEquals(6, mClientPorts.size());
+        for (int port : mClientPorts) assertEquals(mClientPorts.get(0).intValue(), port);
+    }
+
+    @Test
+    public void cancelledRequestIsNotSent() {
+        Cancellation cancellation = new Cancellation();
+        cancellation.cancel();
+        QueryUtils.Response response = QueryUtils.fetchEarthquakesData(
+                new UrlConnectionTransport(), mUrl, null, 0, cancellation);
+
+        assertTrue(response.cancelled);
+        assertNull(response.earthquakes);
+        assertTrue(mClientPorts.isEmpty());
+    }
+
+    @Test
+    public void requestsGoThroughTheTransportThatIsSet() {
+        final List<URL> urls = new ArrayList<>();
+        QueryUtils.setTransport(new HttpTransport() {
+            @Override
+            public HttpResponse get(URL url, String eTag, long lastModified)
+                    throws IOException {
+                urls.add(url);
+                return new HttpResponse(200, null, 0, mBody.length, null,
+                        new ByteArrayInputStream(mBody), System.nanoTime());
+            }
+        });
+
+        EarthquakeStore earthquakes = QueryUtils.fetchEarthquakesData("https://fake/query");
+        assertEquals(1, urls.size());
+        assertEquals("https://fake/query", urls.get(0).toString());
+        assertSameEarthquakes(Fixtures.earthquakes(200), earthquakes);
+        assertTrue(mClientPorts.isEmpty());
+    }
+
+    private QueryUtils.Response fetch(String url, String eTag, long lastModified) {
+        return QueryUtils.fetchEarthquakesData(new UrlConnectionTransport(), url, eTag,
+                lastModified, new Cancellation());
+    }
+}
@@ -0,0 +1,133 @@
+package com.example.android.quakereport;
+
+import java.nio.charset.Charset;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * {@link Fixtures} builds responses of the USGS query api for the tests and benchmarks.
+ *
+ * Every feature has all the properties of a real response, in the same order, with null
+ * values, places without a distance and non-ASCII names mixed in, so parsing sees the same
+ * keys, strings and number forms as it does in the app. The responses are generated with
+ * a fixed seed instead of being recorded, as 100k recorded features would take about 100 MB.
+ */
+final class Fixtures {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final String[] PLACES = {
+            "Kokopo, Papua New Guinea",
+            "Hihifo, Tonga",
+            "Ndoi Island, Fiji",
+            "Sola, Vanuatu",
+            "Tobelo, Indonesia",
+            "Petropavlovsk-Kamchatsky, Russia",
+            "Adak, Alaska",
+            "Iquique, Chile",
+            "Ishinomaki, Japan",
+            "Acapulco, Mexico",
+            "Lata, Solomon Islands",
+            "Kermadec Islands, New Zealand",
+            "L\u014d\u02bbihi Seamount, Hawaii",
+            "R\u00edo Grande, Argentina"
+    };
+
+    private static final String[] REGIONS = {
+            "south of the Fiji Islands",
+            "Mid-Atlantic Ridge",
+            "Southern East Pacific Rise",
+            "Owen Fracture Zone region"
+    };
+
+    private static final String[] DIRECTIONS = {
+            "N", "NNE", "NE", "ENE", "E", "ESE", "SE", "SSE",
+            "S", "SSW", "SW", "WSW", "W", "WNW", "NW", "NNW"
+    };
+
+    private static final String[] MAG_TYPES = {"mww", "mb", "mwr", "ml", "md"};
+
+    private Fixtures() {
+    }
+
+    /**
+     * Return a response with the given number of features, ordered by time.
+     */
+    static byte[] response(int featureCount) {
+        Random random = new Random(featureCount);
+        StringBuilder json = new StringBuilder(featureCount * 1100 + 512);
+        long now = 1539820800000L;
+        json.append("{\"type\":\"FeatureCollection\",\"metadata\":{\"generated\":").append(now)
+                .append(",\"url\":\"https://earthquake.usgs.gov/fdsnws/event/1/query?")
+                .append("format=geojson&orderby=time&limit=").append(featureCount)
+                .append("\",\"title\":\"USGS Earthquakes\",\"status\":200,\"api\":\"1.5.8\",")
+                .append("\"limit\":").append(featureCount).append(",\"offset\":1,\"count\":")
+                .append(featureCount).append("},\"features\":[");
+
+        long time = now;
+        for (int i = 0; i < featureCount; i++) {
+            if (i > 0) json.append(',');
+            time -= 1000 + random.nextInt(600000);
+            appendFeature(json, random, i, time);
+        }
+
+        json.append("],\"bbox\":[-179.9989,-65.1823,-3.2,179.9997,84.9123,647.34]}");
+        return json.toString().getBytes(UTF_8);
+    }
+
+    /**
+     * Return the earthquakes of a response with the given number of features.
+     */
+    static EarthquakeStore earthquakes(int featureCount) {
+        byte[] json = response(featureCount);
+        return QueryUtils.extractData(json, json.length, new Cancellation());
+    }
+
+    private static void appendFeature(StringBuilder json, Random random, int index, long time) {
+        String id = "us" + Integer.toString(0x1000000 + index, 36);
+        double magnitude = 2.5 + random.nextInt(65) / 10.0;
+        String place;
+        if (random.nextInt(10) == 0) {
+            place = REGIONS[random.nextInt(REGIONS.length)];
+        } else {
+            place = (1 + random.nextInt(300)) + "km " + DIRECTIONS[random.nextInt(16)] + " of "
+                    + PLACES[random.nextInt(PLACES.length)];
+        }
+        boolean felt = random.nextInt(4) == 0;
+
+        json.append("{\"type\":\"Feature\",\"properties\":{\"mag\":").append(magnitude)
+                .append(",\"place\":\"").append(place)
+                .append("\",\"time\":").append(time)
+                .append(",\"updated\":").append(time + random.nextInt(100000000))
+                .append(",\"tz\":").append(random.nextInt(25) * 60 - 720)
+                .append(",\"url\":\"https://earthquake.usgs.gov/earthquakes/eventpage/")
+                .append(id)
+                .append("\",\"detail\":\"https://earthquake.usgs.gov/fdsnws/event/1/query?eventid=")
+                .append(id).append("&format=geojson\",\"felt\":")
+                .append(felt ? Integer.toString(random.nextInt(500)) : "null")
+                .append(",\"cdi\":").append(felt ? format(random.nextDouble() * 8) : "null")
+                .append(",\"mmi\":").append(felt ? format(random.nextDouble() * 8) : "null")
+                .append(",\"alert\":").append(felt ? "\"green\"" : "null")
+                .append(",\"status\":\"reviewed\",\"tsunami\":").append(random.nextInt(2))
+                .append(",\"sig\":").append(random.nextInt(1000))
+                .append(",\"net\":\"us\",\"code\":\"").append(id.substring(2))
+                .append("\",\"ids\":\",").append(id).append(",pt").append(index)
+                .append(",\",\"sources\":\",us,pt,\",")
+                .append("\"types\":\",dyfi,geoserve,losspager,moment-tensor,origin,phase-data,\",")
+                .append("\"nst\":null,\"dmin\":").append(format(random.nextDouble() * 10))
+                .append(",\"rms\":").append(format(random.nextDouble() * 1.5))
+                .append(",\"gap\":").append(random.nextInt(200))
+                .append(",\"magType\":\"").append(MAG_TYPES[random.nextInt(MAG_TYPES.length)])
+                .append("\",\"type\":\"earthquake\",\"title\":\"M ").append(magnitude)
+                .append(" - ").append(place)
+                .append("\"},\"geometry\":{\"type\":\"Point\",\"coordinates\":[")
+                .append(format(random.nextDouble() * 360 - 180)).append(',')
+                .append(format(random.nextDouble() * 180 - 90)).append(',')
+                .append(format(random.nextDouble() * 600))
+                .append("]},\"id\":\"").append(id).append("\"}");
+    }
+
+    private static String format(double value) {
+        return String.format(Locale.US, "%.4f", value);
+    }
+}
@@ -0,0 +1,126 @@
+package com.example.android.quakereport;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+
+/**
+ * {@link JsonReference} reads and parses responses the way the app did before it parsed them
+ * straight from bytes: the stream is decoded into lines of chars that are joined into a
+ * string, and the string is parsed into a tree of {@link JSONObject}s.
+ *
+ * The tests compare {@link FeatureParser} with it, the benchmarks measure against it.
+ * {@link #extractObjects(String)} keeps the earthquakes the way the app did before the
+ * {@link EarthquakeStore}, as a list of objects, to compare the heap both take.
+ */
+final class JsonReference {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private JsonReference() {
+    }
+
+    /**
+     * Read the whole stream into a string, line by line.
+     */
+    static String readFromStream(InputStream inputStream) throws IOException {
+        StringBuilder output = new StringBuilder();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream, UTF_8));
+        String line = reader.readLine();
+        while (line != null) {
+            output.append(line);
+            line = reader.readLine();
+        }
+        return output.toString();
+    }
+
+    /**
+     * Return the earthquakes of a response, with the same defaults for missing and null
+     * values as {@link FeatureParser}.
+     */
+    static EarthquakeStore extractData(String json) throws JSONException {
+        EarthquakeStore earthquakes = new EarthquakeStore();
+        JSONArray features = new JSONObject(json).getJSONArray("features");
+        for (int i = 0; i < features.length(); i++) {
+            JSONObject feature = features.getJSONObject(i);
+            JSONObject properties = feature.optJSONObject("properties");
+            if (properties == null) properties = new JSONObject();
+            JSONObject geometry = feature.optJSONObject("geometry");
+            JSONArray coordinates = geometry == null ? null : geometry.optJSONArray("coordinates");
+
+            earthquakes.add(
+                    feature.isNull("id") ? null : feature.getString("id"),
+                    properties.optDouble("mag"),
+                    properties.optString("place"),
+                    properties.optLong("time"),
+                    properties.optString("url"),
+                    properties.optLong("updated"),
+                    coordinates == null ? Double.NaN : coordinates.optDouble(1),
+                    coordinates == null ? Double.NaN : coordinates.optDouble(0),
+                    "deleted".equals(properties.optString("status")));
+        }
+        return earthquakes;
+    }
+
+    /**
+     * Return the earthquakes of a response as a list of objects, one per earthquake.
+     */
+    static ArrayList<EarthquakeObject> extractObjects(String json) throws JSONException {
+        JSONArray features = new JSONObject(json).getJSONArray("features");
+        ArrayList<EarthquakeObject> earthquakes = new ArrayList<>(features.length());
+        for (int i = 0; i < features.length(); i++) {
+            JSONObject feature = features.getJSONObject(i);
+            JSONObject properties = feature.optJSONObject("properties");
+            if (properties == null) properties = new JSONObject();
+            JSONObject geometry = feature.optJSONObject("geometry");
+            JSONArray coordinates = geometry == null ? null : geometry.optJSONArray("coordinates");
+
+            earthquakes.add(new EarthquakeObject(
+                    feature.isNull("id") ? null : feature.getString("id"),
+                    properties.optDouble("mag"),
+                    properties.optString("place"),
+                    properties.optLong("time"),
+                    properties.optString("url"),
+                    properties.optLong("updated"),
+                    coordinates == null ? Double.NaN : coordinates.optDouble(1),
+                    coordinates == null ? Double.NaN : coordinates.optDouble(0),
+                    "deleted".equals(properties.optString("status"))));
+        }
+        return earthquakes;
+    }
+
+    /**
+     * An earthquake with a field for every value the {@link EarthquakeStore} has a column for.
+     */
+    static final class EarthquakeObject {
+        final String id;
+        final double magnitude;
+        final String location;
+        final long time;
+        final String url;
+        final long updated;
+        final double latitude;
+        final double longitude;
+        final boolean deleted;
+
+        EarthquakeObject(String id, double magnitude, String location, long time, String url,
+                         long updated, double latitude, double longitude, boolean deleted) {
+            this.id = id;
+            this.magnitude = magnitude;
+            this.location = location;
+            this.time = time;
+            this.url = url;
+            this.updated = updated;
+            this.latitude = latitude;
+            this.longitude = longitude;
+            this.deleted = deleted;
+        }
+    }
+}